@@ -0,0 +1,57 @@
+package org.masukomi.aspirin.benchmark;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.openjdk.jmh.annotations.*;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message helpers called by every add of an email.
+ *
+ * <p>Run: mvn -Pbenchmark test-compile exec:exec -Djmh.args="AspirinInternalBenchmark -prof gc"</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AspirinInternalBenchmark {
+    private MimeMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws MessagingException {
+        message = AspirinInternal.createNewMimeMessage();
+        message.setFrom();
+        message.setRecipients(MimeMessage.RecipientType.TO, "to1@domain.example, to2@domain.example");
+        message.setRecipients(MimeMessage.RecipientType.CC, "cc@domain.example");
+        message.setRecipients(MimeMessage.RecipientType.BCC, "bcc@other.example");
+        message.setSubject("Benchmark");
+        message.setText("Benchmark");
+        AspirinInternal.setExpiry(message, 3600000L);
+    }
+
+    @Benchmark
+    public MimeMessage createNewMimeMessage() {
+        return AspirinInternal.createNewMimeMessage();
+    }
+
+    @Benchmark
+    public String getMailID() {
+        return AspirinInternal.getMailID(message);
+    }
+
+    @Benchmark
+    public long getExpiry() {
+        return AspirinInternal.getExpiry(message);
+    }
+
+    @Benchmark
+    public Collection<InternetAddress> extractRecipients() throws MessagingException {
+        return AspirinInternal.extractRecipients(message);
+    }
+}
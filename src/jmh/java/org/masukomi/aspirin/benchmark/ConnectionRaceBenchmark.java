@@ -0,0 +1,92 @@
+package org.masukomi.aspirin.benchmark;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.delivery.TransportPool;
+import org.masukomi.aspirin.harness.FakeSmtpServer;
+import org.openjdk.jmh.annotations.*;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TransportPool} connecting to a domain of two mail servers, the
+ * first one is healthy, slow (greets after 200 ms) or blackholed (never
+ * greets, the delivery timeout is 1 s). In the sequential case the servers
+ * are tried one after another like without racing, in the race case they
+ * are raced with 50 ms stagger delay. Connections are not reused.
+ *
+ * <p>Run: mvn -Pbenchmark test-compile exec:exec -Djmh.args="ConnectionRaceBenchmark"</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ConnectionRaceBenchmark {
+    private static final long RACE_DELAY = 50L;
+
+    @Param({"healthy", "slow", "blackhole"})
+    public String primary;
+
+    @Param({"sequential", "race"})
+    public String strategy;
+
+    private FakeSmtpServer primaryServer;
+    private FakeSmtpServer secondaryServer;
+    private TransportPool transportPool;
+    private Session session;
+    private List<URLName> urls;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // The mock transport of the test classpath is replaced by the real SMTP transport
+        System.setProperty("mail.smtp.class", "com.sun.mail.smtp.SMTPTransport");
+        AspirinInternal.getConfiguration().setDeliveryTimeout(1000);
+        AspirinInternal.getConfiguration().setDeliveryConnectionHostMax(0);
+        primaryServer = new FakeSmtpServer();
+        secondaryServer = new FakeSmtpServer();
+        if ("slow".equals(primary)) primaryServer.setBannerDelay(200L);
+        else if ("blackhole".equals(primary)) primaryServer.setBannerDelay(3600000L);
+
+        transportPool = new TransportPool();
+        session = AspirinInternal.getConfiguration().getMailSession();
+        urls = Arrays.asList(
+                new URLName("smtp://127.0.0.1:" + primaryServer.getPort()),
+                new URLName("smtp://127.0.0.1:" + secondaryServer.getPort()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        primaryServer.close();
+        secondaryServer.close();
+    }
+
+    @Benchmark
+    public URLName connect() throws MessagingException {
+        TransportPool.Connection connection = null;
+
+        if ("race".equals(strategy))
+            connection = transportPool.borrow(session, urls, RACE_DELAY, (url, e) -> {
+            });
+        else {
+            for (int i = 0; connection == null; i++) {
+                try {
+                    connection = transportPool.borrow(session, Collections.singletonList(urls.get(i)), 0L, (url, e) -> {
+                    });
+                } catch (MessagingException e) {
+                    if (i == urls.size() - 1) throw e;
+                }
+            }
+        }
+
+        transportPool.release(connection, false);
+        return connection.getUrl();
+    }
+}
@@ -0,0 +1,132 @@
+package org.masukomi.aspirin.benchmark;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.dns.DnsResolver;
+import org.openjdk.jmh.annotations.*;
+import org.xbill.DNS.*;
+
+import javax.mail.URLName;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DnsResolver} against a local stub resolver, which answers every
+ * MX query with two mail servers, without network. In the "uncached" case
+ * the cache of Aspirin and the cache of dnsjava are disabled, so every call
+ * runs the lookups.
+ *
+ * <p>Run: mvn -Pbenchmark test-compile exec:exec -Djmh.args="DnsResolverBenchmark -prof gc"</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DnsResolverBenchmark {
+    private static final int DOMAIN_COUNT = 1000;
+
+    @Param({"cached", "uncached"})
+    public String cache;
+
+    private String[] domains;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Lookup.setDefaultResolver(new StubResolver());
+        Cache dnsCache = new Cache(DClass.IN);
+
+        if ("uncached".equals(cache)) {
+            dnsCache.setMaxCache(0);
+            dnsCache.setMaxNCache(0);
+            AspirinInternal.getConfiguration().setDnsCacheSize(0);
+        } else
+            AspirinInternal.getConfiguration().setDnsCacheSize(DOMAIN_COUNT * 2);
+
+        Lookup.setDefaultCache(dnsCache, DClass.IN);
+        DnsResolver.getCache().clear();
+
+        domains = new String[DOMAIN_COUNT];
+        for (int i = 0; i < DOMAIN_COUNT; i++) domains[i] = "domain" + i + ".example";
+    }
+
+    @Benchmark
+    public List<URLName> getMXRecordsForHost() {
+        return DnsResolver.getMXRecordsForHost(domains[next++ % DOMAIN_COUNT]);
+    }
+
+    /**
+     * Answers MX and A queries of any name, other queries with NXDOMAIN.
+     */
+    static final class StubResolver implements Resolver {
+        private static final long TTL = 3600L;
+
+        @Override
+        public Message send(Message query) throws IOException {
+            Record question = query.getQuestion();
+            Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flags.QR);
+            response.getHeader().setFlag(Flags.AA);
+            response.addRecord(question, Section.QUESTION);
+            Name name = question.getName();
+
+            if (question.getType() == Type.MX) {
+                response.addRecord(new MXRecord(name, DClass.IN, TTL, 20, Name.fromString("mx2", name)), Section.ANSWER);
+                response.addRecord(new MXRecord(name, DClass.IN, TTL, 10, Name.fromString("mx1", name)), Section.ANSWER);
+            } else if (question.getType() == Type.A)
+                response.addRecord(new ARecord(name, DClass.IN, TTL, InetAddress.getByAddress(new byte[]{127, 0, 0, 1})), Section.ANSWER);
+            else
+                response.getHeader().setRcode(Rcode.NXDOMAIN);
+
+            return response;
+        }
+
+        @Override
+        public Object sendAsync(Message query, ResolverListener listener) {
+            Object id = new Object();
+
+            try {
+                listener.receiveMessage(id, send(query));
+            } catch (IOException e) {
+                listener.handleException(id, e);
+            }
+
+            return id;
+        }
+
+        @Override
+        public void setPort(int port) {
+        }
+
+        @Override
+        public void setTCP(boolean flag) {
+        }
+
+        @Override
+        public void setIgnoreTruncation(boolean flag) {
+        }
+
+        @Override
+        public void setEDNS(int level) {
+        }
+
+        @Override
+        public void setEDNS(int level, int payloadSize, int flags, List options) {
+        }
+
+        @Override
+        public void setTSIGKey(TSIG key) {
+        }
+
+        @Override
+        public void setTimeout(int secs, int msecs) {
+        }
+
+        @Override
+        public void setTimeout(int secs) {
+        }
+    }
+}
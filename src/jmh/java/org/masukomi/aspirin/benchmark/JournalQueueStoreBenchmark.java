@@ -0,0 +1,67 @@
+package org.masukomi.aspirin.benchmark;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.JournalQueueStore;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+import org.openjdk.jmh.annotations.*;
+
+import javax.mail.MessagingException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable state transitions of {@link JournalQueueStore}. Every operation is
+ * forced to disk before it returns, concurrent operations share the forces
+ * (group commit), so the throughput grows with the count of threads.
+ *
+ * <p>Run: mvn -Pbenchmark test-compile exec:exec -Djmh.args="JournalQueueStoreBenchmark -t 16"</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalQueueStoreBenchmark {
+    @Param({"100000"})
+    public int backlog;
+
+    private File journalFile;
+    private JournalQueueStore queueStore;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, MessagingException {
+        Configuration configuration = AspirinInternal.getConfiguration();
+        configuration.setDeliveryAttemptCount(Integer.MAX_VALUE);
+        configuration.setDeliveryAttemptDelay(-1000);
+
+        journalFile = File.createTempFile("aspirin-benchmark", ".journal");
+        Files.delete(journalFile.toPath());
+        queueStore = new JournalQueueStore();
+        queueStore.setJournalFile(journalFile);
+        queueStore.init();
+        QueueStoreBenchmark.fill(queueStore, backlog);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        queueStore.close();
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    /**
+     * One durable dispatch round: take the next item and persist a
+     * temporary failure result.
+     */
+    @Benchmark
+    public QueueInfo nextAndSetSendingResult() {
+        QueueInfo qi = queueStore.next();
+        qi.setState(DeliveryState.QUEUED);
+        queueStore.setSendingResult(qi);
+        return qi;
+    }
+}
@@ -0,0 +1,132 @@
+package org.masukomi.aspirin.benchmark;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.store.mail.FileMailStore;
+import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.mail.SegmentMailStore;
+import org.openjdk.jmh.annotations.*;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * {@link FileMailStore} and {@link SegmentMailStore} set and get. In the warm
+ * case all messages fit into the message cache of the store. In the cold
+ * case the cache is disabled, so every get reads and parses the message
+ * from disk. The file-gzip and file-deflate stores compress the message
+ * files, the size of the files after the messages were set is reported as
+ * the diskKilobytes counter.
+ *
+ * <p>Run: mvn -Pbenchmark test-compile exec:exec -Djmh.args="MailStoreBenchmark -prof gc"</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MailStoreBenchmark {
+    private static final int MESSAGE_COUNT = 1000;
+
+    @Param({"1024", "65536"})
+    public int messageSize;
+
+    @Param({"warm", "cold"})
+    public String cache;
+
+    @Param({"file", "file-gzip", "file-deflate", "segment"})
+    public String store;
+
+    private Path rootDir;
+    private MailStore mailStore;
+    private String[] mailIds;
+    private MimeMessage newMessage;
+    private long diskKilobytes;
+    private int next;
+
+    static MimeMessage createMessage(int size) throws MessagingException {
+        MimeMessage message = AspirinInternal.createNewMimeMessage();
+        message.setFrom();
+        message.setRecipients(MimeMessage.RecipientType.TO, "rcpt@domain.example");
+        message.setSubject("Benchmark");
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) text.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n");
+        message.setText(text.toString());
+        message.saveChanges();
+        return message;
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, MessagingException {
+        rootDir = Files.createTempDirectory("aspirin-mailstore");
+        long cacheSize = "cold".equals(cache) ? 0L : FileMailStore.DEFAULT_CACHE_SIZE * 2;
+
+        if ("segment".equals(store)) {
+            SegmentMailStore segmentMailStore = new SegmentMailStore();
+            segmentMailStore.setSegmentDir(rootDir.toFile());
+            segmentMailStore.setCacheSize(cacheSize);
+            mailStore = segmentMailStore;
+        } else {
+            FileMailStore fileMailStore = new FileMailStore();
+            fileMailStore.setRootDir(rootDir.toFile());
+            fileMailStore.setCacheSize(cacheSize);
+            if (store.startsWith("file-")) fileMailStore.setCodecName(store.substring("file-".length()));
+            mailStore = fileMailStore;
+        }
+
+        mailStore.init();
+
+        mailIds = new String[MESSAGE_COUNT];
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            MimeMessage message = createMessage(messageSize);
+            mailIds[i] = AspirinInternal.getMailID(message);
+            mailStore.set(mailIds[i], message);
+        }
+
+        try (Stream<Path> paths = Files.walk(rootDir)) {
+            diskKilobytes = paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum() / 1024;
+        }
+
+        newMessage = createMessage(messageSize);
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        mailStore.close();
+        try (Stream<Path> paths = Files.walk(rootDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public MimeMessage get(DiskUsage diskUsage) {
+        diskUsage.diskKilobytes = diskKilobytes;
+        return mailStore.get(mailIds[next++ % MESSAGE_COUNT]);
+    }
+
+    @Benchmark
+    public void setAndRemove(DiskUsage diskUsage) {
+        diskUsage.diskKilobytes = diskKilobytes;
+        String mailid = AspirinInternal.getMailID(newMessage);
+        mailStore.set(mailid, newMessage);
+        mailStore.remove(mailid);
+    }
+
+    /**
+     * Size of the store files, reported next to the timing results.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class DiskUsage {
+        public long diskKilobytes;
+    }
+}
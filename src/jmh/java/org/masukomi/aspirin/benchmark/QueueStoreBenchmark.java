@@ -0,0 +1,116 @@
+package org.masukomi.aspirin.benchmark;
+
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+import org.masukomi.aspirin.core.store.queue.QueueStore;
+import org.masukomi.aspirin.core.store.queue.ShardedQueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+import org.openjdk.jmh.annotations.*;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue store hot paths at different backlog sizes. The "legacy" store is
+ * the original sort-and-scan implementation, the "simple" store is the
+ * current {@link SimpleQueueStore}, the "sharded" store is the
+ * {@link ShardedQueueStore} with a shard per processor. Lock contention of
+ * delivery threads is measured by running with more threads (-t).
+ *
+ * <p>Run: mvn -Pbenchmark test-compile exec:exec -Djmh.args="QueueStoreBenchmark"</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueStoreBenchmark {
+    private static final int RECIPIENTS_PER_MAIL = 10;
+
+    @Param({"10000", "100000", "1000000"})
+    public int backlog;
+
+    @Param({"simple", "sharded", "legacy"})
+    public String store;
+
+    private QueueStore queueStore;
+    private List<InternetAddress> singleRecipient;
+    private int added;
+
+    static QueueStore createStore(String name) {
+        if ("legacy".equals(name)) return new LegacySimpleQueueStore();
+        return "sharded".equals(name) ? new ShardedQueueStore() : new SimpleQueueStore();
+    }
+
+    static void fill(QueueStore queueStore, int backlog) throws MessagingException {
+        List<InternetAddress> recipients = new ArrayList<>(RECIPIENTS_PER_MAIL);
+
+        for (int mail = 0; mail < backlog / RECIPIENTS_PER_MAIL; mail++) {
+            recipients.clear();
+            for (int r = 0; r < RECIPIENTS_PER_MAIL; r++)
+                recipients.add(new InternetAddress("rcpt" + r + "@domain" + (mail % 1000) + ".example"));
+            queueStore.add("mail-" + mail, -1L, recipients);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUpConfiguration() throws AddressException {
+        Configuration configuration = AspirinInternal.getConfiguration();
+        // Items should never run out of attempts and should be sendable again immediately
+        configuration.setDeliveryAttemptCount(Integer.MAX_VALUE);
+        configuration.setDeliveryAttemptDelay(-1000);
+        singleRecipient = Collections.singletonList(new InternetAddress("new@domain.example"));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpStore() throws MessagingException {
+        queueStore = createStore(store);
+        fill(queueStore, backlog);
+        added = 0;
+    }
+
+    /**
+     * One dispatch round: take the next sendable item and give back a
+     * temporary failure result, so it is queued again.
+     */
+    @Benchmark
+    public QueueInfo nextAndSetSendingResult() {
+        QueueInfo qi = queueStore.next();
+        qi.setState(DeliveryState.QUEUED);
+        queueStore.setSendingResult(qi);
+        return qi;
+    }
+
+    /**
+     * What a delivery thread does with the store after a delivery: set the
+     * result and check whether the message is completed.
+     */
+    @Benchmark
+    public boolean setSendingResultAndIsCompleted() {
+        QueueInfo qi = queueStore.next();
+        qi.setState(DeliveryState.QUEUED);
+        queueStore.setSendingResult(qi);
+        return queueStore.isCompleted(qi.getMailid());
+    }
+
+    @Benchmark
+    public void add() throws MessagingException {
+        queueStore.add("added-" + added++, -1L, singleRecipient);
+    }
+
+    /**
+     * Maintenance scan of the whole backlog, nothing is completed.
+     */
+    @Benchmark
+    public List<String> clean() {
+        return queueStore.clean();
+    }
+}
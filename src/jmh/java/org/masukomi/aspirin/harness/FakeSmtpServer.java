@@ -0,0 +1,324 @@
+package org.masukomi.aspirin.harness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>SMTP sink on loopback for load tests. It accepts every transaction and
+ * throws the messages away. One thread serves all connections with a
+ * selector.</p>
+ *
+ * <p>The banner and every reply could be delayed, to simulate remote
+ * servers, and recipients could be rejected randomly with temporary (4xx)
+ * or permanent (5xx) failures.</p>
+ */
+public class FakeSmtpServer implements Closeable {
+    private static final byte[] DATA_END = {'\r', '\n', '.', '\r', '\n'};
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final PriorityQueue<Reply> replies = new PriorityQueue<>((r1, r2) -> r1.due != r2.due ? Long.compare(r1.due, r2.due) : Long.compare(r1.seq, r2.seq));
+    private final Random random = new Random(42L);
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong recipientCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private long replySeq;
+    private volatile long bannerDelay;
+    private volatile long replyDelay;
+    private volatile double temporaryFailureRate;
+    private volatile double permanentFailureRate;
+    private volatile boolean running = true;
+
+    public FakeSmtpServer() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::run, "FakeSmtpServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @param bannerDelay Delay of the greeting after connect in milliseconds.
+     */
+    public void setBannerDelay(long bannerDelay) {
+        this.bannerDelay = bannerDelay;
+    }
+
+    /**
+     * @param replyDelay Delay of every reply in milliseconds.
+     */
+    public void setReplyDelay(long replyDelay) {
+        this.replyDelay = replyDelay;
+    }
+
+    /**
+     * @param temporaryFailureRate Rate of recipients rejected with 451.
+     */
+    public void setTemporaryFailureRate(double temporaryFailureRate) {
+        this.temporaryFailureRate = temporaryFailureRate;
+    }
+
+    /**
+     * @param permanentFailureRate Rate of recipients rejected with 550.
+     */
+    public void setPermanentFailureRate(double permanentFailureRate) {
+        this.permanentFailureRate = permanentFailureRate;
+    }
+
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getRecipientCount() {
+        return recipientCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+
+        try {
+            thread.join(5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : selector.keys()) key.channel().close();
+        selector.close();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                Reply reply;
+
+                while ((reply = replies.peek()) != null && reply.due <= now) {
+                    replies.poll();
+                    reply.connection.send(reply.text, reply.close);
+                }
+
+                long timeout = reply == null ? 0L : Math.max(1L, reply.due - now);
+                selector.select(timeout);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.write();
+                        }
+                    } catch (IOException e) {
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) throw new IllegalStateException("Fake SMTP server failed.", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount.incrementAndGet();
+            schedule(connection, "220 fake.smtp ESMTP ready", bannerDelay, false);
+        }
+    }
+
+    private void schedule(Connection connection, String text, long delay, boolean close) {
+        // Replies with the same due time are sent in order
+        replies.add(new Reply(connection, text, System.currentTimeMillis() + delay, replySeq++, close));
+    }
+
+    private static final class Reply {
+        final Connection connection;
+        final String text;
+        final long due;
+        final long seq;
+        final boolean close;
+
+        Reply(Connection connection, String text, long due, long seq, boolean close) {
+            this.connection = connection;
+            this.text = text;
+            this.due = due;
+            this.seq = seq;
+            this.close = close;
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        private final Deque<ByteBuffer> output = new ArrayDeque<>();
+        private SelectionKey key;
+        private boolean inData;
+        private int dataEndMatched;
+        private int acceptedRecipients;
+        private boolean closeAfterWrite;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+
+            if (read < 0) {
+                channel.close();
+                return;
+            }
+
+            readBuffer.flip();
+
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+
+                if (inData) {
+                    // Message content is only scanned for the end marker
+                    dataEndMatched = b == DATA_END[dataEndMatched] ? dataEndMatched + 1 : (b == DATA_END[0] ? 1 : 0);
+
+                    if (dataEndMatched == DATA_END.length) {
+                        inData = false;
+                        dataEndMatched = 0;
+                        messageCount.incrementAndGet();
+                        recipientCount.addAndGet(acceptedRecipients);
+                        acceptedRecipients = 0;
+                        schedule(this, "250 2.0.0 Ok: queued", replyDelay, false);
+                    }
+                } else if (b == '\n') {
+                    command(new String(line.toByteArray(), StandardCharsets.US_ASCII).trim());
+                    line.reset();
+                } else
+                    line.write(b);
+            }
+        }
+
+        private void command(String command) {
+            String verb = (command.length() < 4 ? command : command.substring(0, 4)).toUpperCase(Locale.ENGLISH);
+
+            switch (verb) {
+                case "EHLO":
+                    schedule(this, "250-fake.smtp\r\n250-PIPELINING\r\n250 8BITMIME", replyDelay, false);
+                    break;
+                case "HELO":
+                    schedule(this, "250 fake.smtp", replyDelay, false);
+                    break;
+                case "MAIL":
+                case "NOOP":
+                    schedule(this, "250 2.1.0 Ok", replyDelay, false);
+                    break;
+                case "RSET":
+                    acceptedRecipients = 0;
+                    schedule(this, "250 2.0.0 Ok", replyDelay, false);
+                    break;
+                case "RCPT":
+                    double chance = random.nextDouble();
+
+                    if (chance < permanentFailureRate) {
+                        rejectedCount.incrementAndGet();
+                        schedule(this, "550 5.1.1 User unknown", replyDelay, false);
+                    } else if (chance < permanentFailureRate + temporaryFailureRate) {
+                        rejectedCount.incrementAndGet();
+                        schedule(this, "451 4.3.0 Try again later", replyDelay, false);
+                    } else {
+                        acceptedRecipients++;
+                        schedule(this, "250 2.1.5 Ok", replyDelay, false);
+                    }
+                    break;
+                case "DATA":
+                    inData = true;
+                    // The previous line ending is a part of the end marker
+                    dataEndMatched = 2;
+                    schedule(this, "354 End data with <CR><LF>.<CR><LF>", replyDelay, false);
+                    break;
+                case "QUIT":
+                    schedule(this, "221 2.0.0 Bye", 0L, true);
+                    break;
+                default:
+                    schedule(this, "502 5.5.2 Command not recognized", replyDelay, false);
+            }
+        }
+
+        void send(String text, boolean close) {
+            if (!channel.isOpen()) return;
+            output.add(ByteBuffer.wrap((text + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+            closeAfterWrite |= close;
+
+            try {
+                write();
+            } catch (IOException e) {
+                closeQuietly();
+            }
+        }
+
+        void write() throws IOException {
+            ByteBuffer buffer;
+
+            while ((buffer = output.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) break;
+                output.poll();
+            }
+
+            if (output.isEmpty() && closeAfterWrite) {
+                channel.close();
+                return;
+            }
+
+            key.interestOps(output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package org.masukomi.aspirin.harness;
+
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.delivery.LatencyHistogram;
+import org.masukomi.aspirin.core.dns.DnsCache;
+import org.masukomi.aspirin.core.dns.DnsResolver;
+import org.masukomi.aspirin.core.listener.ResultState;
+import org.masukomi.aspirin.core.store.mail.DedupMailStore;
+import org.masukomi.aspirin.core.store.mail.FileMailStore;
+import org.masukomi.aspirin.core.store.mail.SegmentMailStore;
+import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
+import org.masukomi.aspirin.core.store.mail.TieredMailStore;
+import org.masukomi.aspirin.core.store.queue.JournalQueueStore;
+import org.masukomi.aspirin.core.store.queue.SimpleQueueStore;
+
+import javax.mail.MessagingException;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>End-to-end load test of Aspirin without network. Messages are added
+ * with {@link Aspirin#add(MimeMessage)} to recipients of test domains, which
+ * are resolved to a {@link FakeSmtpServer} on loopback. It reports the
+ * throughput, the latency between add and the delivery result of
+ * recipients, the allocation rate and the peak heap usage.</p>
+ *
+ * <p>Run: mvn -Pbenchmark test-compile exec:exec
+ * -Dbenchmark.main=org.masukomi.aspirin.harness.LoadHarness
+ * -Djmh.args="--messages 20000 --fanout 5 --threads 20"</p>
+ *
+ * <p>Options (default):</p>
+ * <ul>
+ *   <li>--messages (10000): count of added messages</li>
+ *   <li>--size (4096): size of message bodies in bytes</li>
+ *   <li>--fanout (1): count of recipients per message</li>
+ *   <li>--domains (10): count of recipient domains</li>
+ *   <li>--rate (0): added messages per second, 0 is unlimited</li>
+ *   <li>--threads (10): maximal count of active delivery threads</li>
+ *   <li>--executor (pool): delivery executor mode</li>
+ *   <li>--queue-store (simple): simple or journal</li>
+ *   <li>--mail-store (simple): simple, file, segment, dedup or tiered</li>
+ *   <li>--write-mode (direct): write mode of the file store: direct, fsync
+ *   or staged</li>
+ *   <li>--banner-delay (0), --reply-delay (0): delays of the SMTP server in
+ *   milliseconds</li>
+ *   <li>--temp-fail (0), --perm-fail (0): rate of recipients rejected with
+ *   4xx and 5xx replies</li>
+ *   <li>--retry-delay (1000): delay of delivery attempts after temporary
+ *   failures in milliseconds</li>
+ *   <li>--timeout (300): maximal run time in seconds</li>
+ * </ul>
+ */
+public class LoadHarness {
+    private static final String DOMAIN_SUFFIX = ".harness.test";
+    private final Map<String, String> options;
+    private final Map<String, Long> addTimes = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder finishedCount = new LongAdder();
+    private volatile long lastFinished;
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        int status = new LoadHarness(options).run();
+        // Delivery threads of Aspirin are not daemon threads
+        System.exit(status);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int run() throws IOException, MessagingException, InterruptedException {
+        int messages = intOption("messages", 10000);
+        int size = intOption("size", 4096);
+        int fanout = intOption("fanout", 1);
+        int domains = intOption("domains", 10);
+        int rate = intOption("rate", 0);
+        File workDir = Files.createTempDirectory("aspirin-harness").toFile();
+
+        // The delivery manager is created with the first use of Aspirin, so it is configured before
+        configure(workDir);
+
+        try (FakeSmtpServer server = new FakeSmtpServer()) {
+            server.setBannerDelay(intOption("banner-delay", 0));
+            server.setReplyDelay(intOption("reply-delay", 0));
+            server.setTemporaryFailureRate(doubleOption("temp-fail", 0.0));
+            server.setPermanentFailureRate(doubleOption("perm-fail", 0.0));
+
+            URLName sink = new URLName("smtp://127.0.0.1:" + server.getPort());
+            DnsResolver.setResolver(hostName -> new DnsCache.Entry(
+                    hostName.endsWith(DOMAIN_SUFFIX) ? Collections.singletonList(sink) : null, 3600000L));
+
+            Aspirin.addListener(this::delivered);
+
+            AllocationSampler sampler = new AllocationSampler();
+            sampler.start();
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            long start = System.nanoTime();
+            lastFinished = start;
+            long timeout = TimeUnit.SECONDS.toNanos(intOption("timeout", 300));
+
+            for (int i = 0; i < messages; i++) {
+                if (0 < rate) {
+                    long due = start + i * 1000000000L / rate;
+                    long wait = due - System.nanoTime();
+                    if (0L < wait) LockSupport.parkNanos(wait);
+                }
+
+                MimeMessage message = createMessage(i, size, fanout, domains);
+                addTimes.put(AspirinInternal.getMailID(message), System.currentTimeMillis());
+                Aspirin.add(message);
+            }
+
+            long added = System.nanoTime();
+
+            while (finishedCount.sum() < messages && System.nanoTime() - start < timeout)
+                Thread.sleep(50L);
+
+            sampler.stop();
+            report(messages, fanout, start, added, sampler, server);
+            return finishedCount.sum() < messages ? 1 : 0;
+        } finally {
+            DnsResolver.setResolver(null);
+            Aspirin.shutdown();
+        }
+    }
+
+    private void configure(File workDir) {
+        // The mock transport of the test classpath is replaced by the real SMTP transport
+        System.setProperty("mail.smtp.class", "com.sun.mail.smtp.SMTPTransport");
+        Configuration configuration = Configuration.getInstance();
+        int threads = intOption("threads", 10);
+        configuration.setHostname("harness.test");
+        configuration.setDeliveryThreadsActiveMax(threads);
+        configuration.setDeliveryThreadsIdleMax(threads);
+        configuration.setDeliveryAttemptDelay(intOption("retry-delay", 1000));
+        configuration.setDeliveryExecutor(option("executor", Configuration.DELIVERY_EXECUTOR_POOL));
+        configuration.setDeliveryBounceOnFailure(false);
+
+        if ("journal".equals(option("queue-store", "simple"))) {
+            JournalQueueStore queueStore = new JournalQueueStore();
+            queueStore.setJournalFile(new File(workDir, "queue.journal"));
+            configuration.setQueueStore(queueStore);
+        } else
+            configuration.setQueueStore(new SimpleQueueStore());
+
+        String mailStoreName = option("mail-store", "simple");
+
+        if ("file".equals(mailStoreName)) {
+            FileMailStore mailStore = new FileMailStore();
+            mailStore.setRootDir(new File(workDir, "mails"));
+            mailStore.setWriteMode(FileMailStore.WriteMode.valueOf(option("write-mode", "direct").toUpperCase()));
+            configuration.setMailStore(mailStore);
+        } else if ("segment".equals(mailStoreName)) {
+            SegmentMailStore mailStore = new SegmentMailStore();
+            mailStore.setSegmentDir(new File(workDir, "segments"));
+            configuration.setMailStore(mailStore);
+        } else if ("dedup".equals(mailStoreName))
+            configuration.setMailStore(new DedupMailStore());
+        else if ("tiered".equals(mailStoreName)) {
+            TieredMailStore mailStore = new TieredMailStore();
+            mailStore.setRootDir(new File(workDir, "spill"));
+            configuration.setMailStore(mailStore);
+        }
+        else
+            configuration.setMailStore(new SimpleMailStore());
+    }
+
+    private static MimeMessage createMessage(int index, int size, int fanout, int domains) throws MessagingException {
+        MimeMessage message = Aspirin.createNewMimeMessage();
+        message.setFrom(new InternetAddress("sender@harness.test"));
+        InternetAddress[] recipients = new InternetAddress[fanout];
+
+        for (int r = 0; r < fanout; r++)
+            recipients[r] = new InternetAddress("user" + index + "@domain" + ((index + r) % domains) + DOMAIN_SUFFIX);
+
+        message.setRecipients(MimeMessage.RecipientType.TO, recipients);
+        message.setSubject("Load test " + index);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) text.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\n");
+        message.setText(text.substring(0, size));
+        return message;
+    }
+
+    private void delivered(String mailid, String recipient, ResultState state, String resultContent) {
+        Long added = addTimes.get(mailid);
+
+        if (state == ResultState.SENT || state == ResultState.FAILED) {
+            if (state == ResultState.SENT) sentCount.increment();
+            else failedCount.increment();
+            if (added != null) latency.record(System.currentTimeMillis() - added);
+        } else if (state == ResultState.FINISHED && addTimes.remove(mailid) != null) {
+            finishedCount.increment();
+            lastFinished = System.nanoTime();
+        }
+    }
+
+    private void report(int messages, int fanout, long start, long added, AllocationSampler sampler, FakeSmtpServer server) {
+        double elapsed = (lastFinished - start) / 1e9;
+        double addElapsed = (added - start) / 1e9;
+        long heapPeak = 0L;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                heapPeak += pool.getPeakUsage().getUsed();
+
+        System.out.println("Options:              " + options);
+        System.out.printf("Finished messages:    %d of %d in %.2f s (added in %.2f s)%n", finishedCount.sum(), messages, elapsed, addElapsed);
+        System.out.printf("Throughput:           %.1f messages/s, %.1f recipients/s%n", finishedCount.sum() / elapsed, (sentCount.sum() + failedCount.sum()) / elapsed);
+        System.out.printf("Recipients:           %d sent, %d failed of %d%n", sentCount.sum(), failedCount.sum(), (long) messages * fanout);
+        System.out.printf("Latency (ms):         p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                latency.getPercentile(50.0), latency.getPercentile(90.0), latency.getPercentile(99.0),
+                latency.getPercentile(99.9), latency.getPercentile(100.0));
+        System.out.printf("Allocation rate:      %s%n", sampler.getAllocated() < 0L ? "n/a" :
+                String.format("%.1f MB/s", sampler.getAllocated() / elapsed / (1024.0 * 1024.0)));
+        System.out.printf("Heap peak:            %.1f MB%n", heapPeak / (1024.0 * 1024.0));
+        System.out.printf("SMTP server:          %d connections, %d transactions, %d recipients, %d rejected%n",
+                server.getConnectionCount(), server.getMessageCount(), server.getRecipientCount(), server.getRejectedCount());
+    }
+
+    /**
+     * Sums the allocated bytes of all threads. Threads are sampled
+     * periodically, so allocations of finished threads are counted until
+     * their last sample.
+     */
+    private static final class AllocationSampler implements Runnable {
+        private final Map<Long, Long> allocated = new ConcurrentHashMap<>();
+        private final Map<Long, Long> initial = new ConcurrentHashMap<>();
+        private final Thread thread = new Thread(this, "AllocationSampler");
+        private final com.sun.management.ThreadMXBean threadBean;
+        private volatile boolean running = true;
+
+        AllocationSampler() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            threadBean = bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                    ? (com.sun.management.ThreadMXBean) bean : null;
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            if (threadBean == null) return;
+            sample(initial);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            if (threadBean == null) return;
+            thread.join();
+            sample(allocated);
+        }
+
+        long getAllocated() {
+            if (threadBean == null) return -1L;
+            long sum = 0L;
+            for (Map.Entry<Long, Long> entry : allocated.entrySet())
+                sum += entry.getValue() - initial.getOrDefault(entry.getKey(), 0L);
+            return sum;
+        }
+
+        private void sample(Map<Long, Long> target) {
+            long[] ids = threadBean.getAllThreadIds();
+            long[] bytes = threadBean.getThreadAllocatedBytes(ids);
+
+            for (int i = 0; i < ids.length; i++)
+                if (0L <= bytes[i]) target.put(ids[i], bytes[i]);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample(allocated);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100L));
+            }
+        }
+    }
+}
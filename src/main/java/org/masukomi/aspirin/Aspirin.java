@@ -3,6 +3,7 @@ package org.masukomi.aspirin;
 import org.jetbrains.annotations.NotNull;
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.delivery.AdaptiveConcurrencyControllerMBean;
 import org.masukomi.aspirin.core.listener.AspirinListener;
 import org.masukomi.aspirin.core.store.mail.FileMailStore;
 import org.masukomi.aspirin.core.store.mail.MailStore;
@@ -35,13 +36,13 @@ import java.util.Objects;
  * This is an inside object, which contains all control informations of a mail
  * item. In Aspirin package there is a {@link QueueStore} for in-memory use
  * {@link org.masukomi.aspirin.core.store.queue.SimpleQueueStore}, this is the default implementation to store
- * QueueInfo objects. You can find an additional package, which use SQLite
- * (based on <a href="http://sqljet.com">SQLJet</a>) to store QueueInfo
- * object.</p>
+ * QueueInfo objects, and there is a persistent
+ * {@link org.masukomi.aspirin.core.store.queue.JournalQueueStore}, which
+ * writes all changes of the queue into a journal file.</p>
  *
  * <p><b>Hint:</b> If you need a Quality-of-Service mail sending, use
- * {@link FileMailStore} and additional <b>SqliteQueueStore</b>, they could
- * preserve emails in queue between runs or on Java failure.</p>
+ * {@link FileMailStore} and {@link org.masukomi.aspirin.core.store.queue.JournalQueueStore},
+ * they could preserve emails in queue between runs or on Java failure.</p>
  *
  * @author Laszlo Solova
  */
@@ -127,6 +128,18 @@ public class Aspirin {
         return AspirinInternal.getConfiguration();
     }
 
+    /**
+     * You can get the adaptive concurrency controller of deliveries, for
+     * example to register it in an MBeanServer. It shows the current window
+     * of every recipient domain, if aspirin.delivery.domain.adaptive is set.
+     *
+     * @return The concurrency controller of Aspirin
+     */
+    @NotNull
+    public static AdaptiveConcurrencyControllerMBean getConcurrencyController() {
+        return AspirinInternal.getDeliveryManager().getTrafficShaper().getConcurrencyController();
+    }
+
     /**
      * Remove an email from delivery.
      *
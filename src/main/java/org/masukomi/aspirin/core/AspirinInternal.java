@@ -108,7 +108,7 @@ public class AspirinInternal {
         Objects.requireNonNull(listener, "listener");
 
         if (listenerManager.get() == null)
-            listenerManager.set(new ListenerManager());
+            listenerManager.compareAndSet(null, new ListenerManager());
 
         listenerManager.get().add(listener);
     }
@@ -273,5 +273,8 @@ public class AspirinInternal {
 
     public static void shutdown() {
         deliveryManager.shutdown();
+
+        if (listenerManager.get() != null)
+            listenerManager.get().shutdown();
     }
 }
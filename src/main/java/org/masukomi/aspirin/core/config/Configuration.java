@@ -25,7 +25,8 @@ package org.masukomi.aspirin.core.config;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.delivery.FixedDelayRetryPolicy;
+import org.masukomi.aspirin.core.delivery.RetryPolicy;
 import org.masukomi.aspirin.core.store.mail.MailStore;
 import org.masukomi.aspirin.core.store.mail.SimpleMailStore;
 import org.masukomi.aspirin.core.store.queue.QueueStore;
@@ -79,12 +80,80 @@ import java.util.*;
  *     <i>Change by JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.delivery.connection.host.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximum number of idle SMTP connections kept open to a mail server
+ *     for reuse. If 0, then connections are not reused. <i>Change by JMX
+ *     applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.connection.idle.timeout</td>
+ *     <td>Integer</td>
+ *     <td>Time in milliseconds while an idle SMTP connection is kept open.
+ *     <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.connection.messages.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximum number of messages sent on one SMTP connection. <i>Change
+ *     by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.connection.race.delay</td>
+ *     <td>Integer</td>
+ *     <td>Stagger delay of connection races in milliseconds. If greater than
+ *     0, the next mail server of a domain is connected after this delay
+ *     while the previous connection is still pending, and the first greeted
+ *     connection is used. If 0, mail servers are tried one after another.
+ *     Default 0. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.delivery.debug</td>
  *     <td>Boolean</td>
  *     <td>If true, full SMTP communication will be logged. <i>Change by JMX
  *     applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.delivery.domain.adaptive</td>
+ *     <td>Boolean</td>
+ *     <td>If true, the count of parallel deliveries to a recipient domain is
+ *     adapted to the transaction times, deferrals and connection failures of
+ *     its mail servers. Default false. <i>Change by JMX applied
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.domain.connections.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of parallel deliveries to a recipient domain. If 0,
+ *     it is not limited. Default 0. <i>Change by JMX applied
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.domain.limits</td>
+ *     <td>String</td>
+ *     <td>Limits of recipient domains differing from the defaults, in
+ *     <code>domains=connections:rate</code> format, separated by commas, for
+ *     example <code>gmail.com|googlemail.com=20:10, yahoo.com=4:0.5</code>.
+ *     <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.domain.rate</td>
+ *     <td>Integer</td>
+ *     <td>Maximal count of deliveries to a recipient domain in a second. If
+ *     0, it is not limited. Default 0. <i>Change by JMX applied
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.executor</td>
+ *     <td>String</td>
+ *     <td>The execution mode of deliveries. If "pool", then deliveries run
+ *     on a pool of DeliveryThread objects. If "virtual", then every delivery
+ *     runs on a virtual thread (on a cached thread pool before Java 21). If
+ *     "cached", then every delivery runs on a cached thread pool. The count
+ *     of parallel deliveries is limited by aspirin.delivery.threads.active.max
+ *     in all modes.</td>
+ *   </tr>
+ *   <tr>
  *   	<td>aspirin.delivery.expiry</td>
  *   	<td>Long</td>
  *   	<td>Time of sending expiry in milliseconds. The queue send an email
@@ -93,6 +162,53 @@ import java.util.*;
  *   	immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.delivery.host.backoff</td>
+ *     <td>Integer</td>
+ *     <td>Time in milliseconds while a failing mail server is skipped by
+ *     the deliveries, before it is tried again. It is doubled on every
+ *     failed try. Default 30000. <i>Change by JMX applied
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.prerender.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximal size of emails rendered into wire format once, when they
+ *     are added, in bytes. If 0, emails are encoded on every delivery.
+ *     Default 10485760. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.recipients.max</td>
+ *     <td>Integer</td>
+ *     <td>Maximum number of recipients of an email in the same domain
+ *     delivered in one SMTP transaction. If 1, then every recipient is
+ *     delivered separately. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.retry.deadline</td>
+ *     <td>Long</td>
+ *     <td>Time in milliseconds after queueing, until an email is tried by
+ *     the ExponentialBackoffRetryPolicy. If 0, it is tried until its expiry.
+ *     Default 432000000 (5 days). <i>Change by JMX applied
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.retry.policy.class</td>
+ *     <td>String</td>
+ *     <td>The class name of the retry policy. Default class is
+ *     FixedDelayRetryPolicy, it uses aspirin.delivery.attempt.delay and
+ *     aspirin.delivery.attempt.count. ExponentialBackoffRetryPolicy
+ *     doubles the delays by the reply of the mail server, with jitter.
+ *     <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.delivery.streaming.min</td>
+ *     <td>Integer</td>
+ *     <td>Minimal size of emails delivered straight from the mail store,
+ *     without parsing them into memory, in bytes. Only stores with streaming
+ *     support (FileMailStore) are used this way. If 0, emails are not
+ *     streamed. Default 1048576. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.delivery.threads.active.max</td>
  *     <td>Integer</td>
  *     <td>Maximum number of active delivery threads in the pool. <i>Change by
@@ -112,6 +228,20 @@ import java.util.*;
  *     JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.dns.cache.negative.ttl</td>
+ *     <td>Integer</td>
+ *     <td>Time in milliseconds while a not existing domain or a domain
+ *     without mail server is cached. <i>Change by JMX applied
+ *     immediately.</i></td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.dns.cache.size</td>
+ *     <td>Integer</td>
+ *     <td>Maximum number of domains in the DNS cache. Resolved mail servers
+ *     are cached until the TTL of their records. If 0, then the cache is
+ *     disabled. <i>Change by JMX applied immediately.</i></td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.encoding</td>
  *     <td>String</td>
  *     <td>The MIME encoding. <i>Change by JMX applied immediately.</i></td>
@@ -122,6 +252,24 @@ import java.util.*;
  *     <td>The hostname. <i>Change by JMX applied immediately.</i></td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.listener.buffer.size</td>
+ *     <td>Integer</td>
+ *     <td>The count of delivery results waiting for a listener dispatcher
+ *     thread. Default 1024.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.listener.overflow</td>
+ *     <td>String</td>
+ *     <td>The policy applied if a listener buffer is full: block, drop or
+ *     spill. Default drop.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.listener.threads</td>
+ *     <td>Integer</td>
+ *     <td>The count of threads calling the listeners. If 0, listeners are
+ *     called by the delivery threads. Default 0.</td>
+ *   </tr>
+ *   <tr>
  *     <td>aspirin.logger.name</td>
  *     <td>String</td>
  *     <td>
@@ -149,11 +297,36 @@ import java.util.*;
  *   	org.masukomi.aspirin.core.store package.</td>
  *   </tr>
  *   <tr>
+ *     <td>aspirin.mailstore.segment.dir</td>
+ *     <td>String</td>
+ *     <td>The path of the segment directory of SegmentMailStore. Messages
+ *     are appended into segment files in this directory.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.tiered.budget</td>
+ *     <td>Long</td>
+ *     <td>Size of messages kept in memory by TieredMailStore in bytes. Over
+ *     this size the least recently used messages are moved to disk. Default
+ *     67108864.</td>
+ *   </tr>
+ *   <tr>
+ *     <td>aspirin.mailstore.tiered.dir</td>
+ *     <td>String</td>
+ *     <td>The path of the directory, where TieredMailStore moves messages
+ *     out of memory.</td>
+ *   </tr>
+ *   <tr>
  *   	<td>aspirin.queuestore.class</td>
  *   	<td>String</td>
  *   	<td>The class name of queue store. Default class is SimpleQueueStore in
  *   	org.masukomi.aspirin.core.queue package.</td>
  *   </tr>
+ *   <tr>
+ *     <td>aspirin.queuestore.journal.file</td>
+ *     <td>String</td>
+ *     <td>The path of the journal file of JournalQueueStore. The queue is
+ *     persisted into this file.</td>
+ *   </tr>
  * </table>
  *
  * @author Kate Rhodes masukomi at masukomi dot org
@@ -164,6 +337,7 @@ public class Configuration implements ConfigurationMBean {
     private static final String MAIL_SMTP_CONNECTIONTIMEOUT = "mail.smtp.connectiontimeout";
     private static final String MAIL_SMTP_HOST = "mail.smtp.host";
     private static final String MAIL_SMTP_LOCALHOST = "mail.smtp.localhost";
+    private static final String MAIL_SMTP_SENDPARTIAL = "mail.smtp.sendpartial";
     private static final String MAIL_SMTP_TIMEOUT = "mail.smtp.timeout";
     @Nullable
     private static Configuration instance;
@@ -180,6 +354,8 @@ public class Configuration implements ConfigurationMBean {
     @Nullable
     private QueueStore queueStore;
     @Nullable
+    private volatile RetryPolicy retryPolicy;
+    @Nullable
     private Session mailSession;
     @Nullable
     private List<ConfigurationChangeListener> listeners;
@@ -197,22 +373,46 @@ public class Configuration implements ConfigurationMBean {
 
     public void init(@NotNull Properties props) {
         Objects.requireNonNull(props, "props");
-        Collection<Parameter> parameterList = new ArrayList<>(15);
+        Collection<Parameter> parameterList = new ArrayList<>(39);
         parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_COUNT, 3, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_ATTEMPT_DELAY, 300000, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_BOUNCE_ON_FAILURE, true, Parameter.TYPE_BOOLEAN));
+        parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_HOST_MAX, 3, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT, 30000, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX, 100, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_CONNECTION_RACE_DELAY, 0, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_DEBUG, false, Parameter.TYPE_BOOLEAN));
+        parameterList.add(new Parameter(PARAM_DELIVERY_DOMAIN_ADAPTIVE, false, Parameter.TYPE_BOOLEAN));
+        parameterList.add(new Parameter(PARAM_DELIVERY_DOMAIN_CONNECTIONS_MAX, 0, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_DOMAIN_LIMITS, null, Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_DELIVERY_DOMAIN_RATE, 0, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_EXECUTOR, DELIVERY_EXECUTOR_POOL, Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_DELIVERY_EXPIRY, -1L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_DELIVERY_HOST_BACKOFF, 30000, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_PRERENDER_MAX, 10 * 1024 * 1024, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RECIPIENTS_MAX, 100, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RETRY_DEADLINE, 432000000L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_DELIVERY_RETRY_POLICY_CLASS, FixedDelayRetryPolicy.class.getCanonicalName(), Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_DELIVERY_STREAMING_MIN, 1024 * 1024, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_ACTIVE_MAX, 3, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_THREADS_IDLE_MAX, 3, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_DELIVERY_TIMEOUT, 30000, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DNS_CACHE_NEGATIVE_TTL, 60000, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_DNS_CACHE_SIZE, 10000, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_ENCODING, "UTF-8", Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_HOSTNAME, "localhost", Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_LISTENER_BUFFER_SIZE, 1024, Parameter.TYPE_INTEGER));
+        parameterList.add(new Parameter(PARAM_LISTENER_OVERFLOW, LISTENER_OVERFLOW_DROP, Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_LISTENER_THREADS, 0, Parameter.TYPE_INTEGER));
         parameterList.add(new Parameter(PARAM_LOGGER_NAME, "Aspirin", Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_LOGGER_PREFIX, "Aspirin ", Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_MAILSTORE_CLASS, SimpleMailStore.class.getCanonicalName(), Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_MAILSTORE_SEGMENT_DIR, null, Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_MAILSTORE_TIERED_BUDGET, 64L * 1024L * 1024L, Parameter.TYPE_LONG));
+        parameterList.add(new Parameter(PARAM_MAILSTORE_TIERED_DIR, null, Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_POSTMASTER_EMAIL, null, Parameter.TYPE_STRING));
         parameterList.add(new Parameter(PARAM_QUEUESTORE_CLASS, SimpleQueueStore.class.getCanonicalName(), Parameter.TYPE_STRING));
+        parameterList.add(new Parameter(PARAM_QUEUESTORE_JOURNAL_FILE, null, Parameter.TYPE_STRING));
 
         parameterList.forEach(param -> {
             Object o = param.extractValue(props);
@@ -281,6 +481,203 @@ public class Configuration implements ConfigurationMBean {
         notifyListeners(PARAM_DELIVERY_ATTEMPT_DELAY);
     }
 
+    @Override
+    public int getDeliveryConnectionHostMax() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_CONNECTION_HOST_MAX);
+    }
+
+    @Override
+    public void setDeliveryConnectionHostMax(int hostMax) {
+        configParameters.put(PARAM_DELIVERY_CONNECTION_HOST_MAX, hostMax);
+        notifyListeners(PARAM_DELIVERY_CONNECTION_HOST_MAX);
+    }
+
+    @Override
+    public int getDeliveryConnectionIdleTimeout() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT);
+    }
+
+    @Override
+    public void setDeliveryConnectionIdleTimeout(int idleTimeout) {
+        configParameters.put(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT, idleTimeout);
+        notifyListeners(PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT);
+    }
+
+    @Override
+    public int getDeliveryConnectionMessagesMax() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX);
+    }
+
+    @Override
+    public void setDeliveryConnectionMessagesMax(int messagesMax) {
+        configParameters.put(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX, messagesMax);
+        notifyListeners(PARAM_DELIVERY_CONNECTION_MESSAGES_MAX);
+    }
+
+    @Override
+    public int getDeliveryConnectionRaceDelay() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_CONNECTION_RACE_DELAY);
+    }
+
+    @Override
+    public void setDeliveryConnectionRaceDelay(int raceDelay) {
+        configParameters.put(PARAM_DELIVERY_CONNECTION_RACE_DELAY, raceDelay);
+        notifyListeners(PARAM_DELIVERY_CONNECTION_RACE_DELAY);
+    }
+
+    @Override
+    public boolean isDeliveryDomainAdaptive() {
+        return (Boolean) configParameters.get(PARAM_DELIVERY_DOMAIN_ADAPTIVE);
+    }
+
+    @Override
+    public void setDeliveryDomainAdaptive(boolean adaptive) {
+        configParameters.put(PARAM_DELIVERY_DOMAIN_ADAPTIVE, adaptive);
+        notifyListeners(PARAM_DELIVERY_DOMAIN_ADAPTIVE);
+    }
+
+    @Override
+    public int getDeliveryDomainConnectionsMax() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_DOMAIN_CONNECTIONS_MAX);
+    }
+
+    @Override
+    public void setDeliveryDomainConnectionsMax(int connectionsMax) {
+        configParameters.put(PARAM_DELIVERY_DOMAIN_CONNECTIONS_MAX, connectionsMax);
+        notifyListeners(PARAM_DELIVERY_DOMAIN_CONNECTIONS_MAX);
+    }
+
+    @Nullable
+    @Override
+    public String getDeliveryDomainLimits() {
+        return (String) configParameters.get(PARAM_DELIVERY_DOMAIN_LIMITS);
+    }
+
+    @Override
+    public void setDeliveryDomainLimits(@Nullable String limits) {
+        configParameters.put(PARAM_DELIVERY_DOMAIN_LIMITS, limits);
+        notifyListeners(PARAM_DELIVERY_DOMAIN_LIMITS);
+    }
+
+    @Override
+    public int getDeliveryDomainRate() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_DOMAIN_RATE);
+    }
+
+    @Override
+    public void setDeliveryDomainRate(int rate) {
+        configParameters.put(PARAM_DELIVERY_DOMAIN_RATE, rate);
+        notifyListeners(PARAM_DELIVERY_DOMAIN_RATE);
+    }
+
+    @Nullable
+    @Override
+    public String getDeliveryExecutor() {
+        return (String) configParameters.get(PARAM_DELIVERY_EXECUTOR);
+    }
+
+    @Override
+    public void setDeliveryExecutor(@Nullable String executor) {
+        configParameters.put(PARAM_DELIVERY_EXECUTOR, executor);
+        notifyListeners(PARAM_DELIVERY_EXECUTOR);
+    }
+
+    @Override
+    public int getDeliveryHostBackoff() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_HOST_BACKOFF);
+    }
+
+    @Override
+    public void setDeliveryHostBackoff(int backoff) {
+        configParameters.put(PARAM_DELIVERY_HOST_BACKOFF, backoff);
+        notifyListeners(PARAM_DELIVERY_HOST_BACKOFF);
+    }
+
+    @Override
+    public int getDeliveryPrerenderMax() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_PRERENDER_MAX);
+    }
+
+    @Override
+    public void setDeliveryPrerenderMax(int prerenderMax) {
+        configParameters.put(PARAM_DELIVERY_PRERENDER_MAX, prerenderMax);
+        notifyListeners(PARAM_DELIVERY_PRERENDER_MAX);
+    }
+
+    @Override
+    public int getDeliveryStreamingMin() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_STREAMING_MIN);
+    }
+
+    @Override
+    public void setDeliveryStreamingMin(int streamingMin) {
+        configParameters.put(PARAM_DELIVERY_STREAMING_MIN, streamingMin);
+        notifyListeners(PARAM_DELIVERY_STREAMING_MIN);
+    }
+
+    @Override
+    public int getDeliveryRecipientsMax() {
+        return (Integer) configParameters.get(PARAM_DELIVERY_RECIPIENTS_MAX);
+    }
+
+    @Override
+    public void setDeliveryRecipientsMax(int recipientsMax) {
+        configParameters.put(PARAM_DELIVERY_RECIPIENTS_MAX, recipientsMax);
+        notifyListeners(PARAM_DELIVERY_RECIPIENTS_MAX);
+    }
+
+    @Override
+    public long getDeliveryRetryDeadline() {
+        return (Long) configParameters.get(PARAM_DELIVERY_RETRY_DEADLINE);
+    }
+
+    @Override
+    public void setDeliveryRetryDeadline(long deadline) {
+        configParameters.put(PARAM_DELIVERY_RETRY_DEADLINE, deadline);
+        notifyListeners(PARAM_DELIVERY_RETRY_DEADLINE);
+    }
+
+    @Nullable
+    @Override
+    public String getDeliveryRetryPolicyClassName() {
+        return (String) configParameters.get(PARAM_DELIVERY_RETRY_POLICY_CLASS);
+    }
+
+    @Override
+    public void setDeliveryRetryPolicyClassName(@Nullable String className) {
+        configParameters.put(PARAM_DELIVERY_RETRY_POLICY_CLASS, className);
+        retryPolicy = null;
+        notifyListeners(PARAM_DELIVERY_RETRY_POLICY_CLASS);
+    }
+
+    @NotNull
+    public RetryPolicy getRetryPolicy() {
+        RetryPolicy currentPolicy = retryPolicy;
+
+        if (currentPolicy == null) {
+            String policyClassName = (String) configParameters.get(PARAM_DELIVERY_RETRY_POLICY_CLASS);
+            try {
+                Class<?> policyClass = Class.forName(policyClassName);
+                if (RetryPolicy.class.isAssignableFrom(policyClass))
+                    currentPolicy = (RetryPolicy) policyClass.getConstructor().newInstance();
+                else
+                    log.warn(getClass().getSimpleName() + " Retry policy class does not implement RetryPolicy, the default is used. Class=" + policyClassName);
+            } catch (Exception e) {
+                log.error(getClass().getSimpleName() + " Retry policy class could not be instantiated. Class=" + policyClassName, e);
+            }
+
+            if (currentPolicy == null) currentPolicy = new FixedDelayRetryPolicy();
+            retryPolicy = currentPolicy;
+        }
+
+        return currentPolicy;
+    }
+
+    public void setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        notifyListeners(PARAM_DELIVERY_RETRY_POLICY_CLASS);
+    }
+
     @Override
     public int getDeliveryThreadsActiveMax() {
         return (Integer) configParameters.get(PARAM_DELIVERY_THREADS_ACTIVE_MAX);
@@ -316,6 +713,62 @@ public class Configuration implements ConfigurationMBean {
         notifyListeners(PARAM_DELIVERY_TIMEOUT);
     }
 
+    @Override
+    public int getDnsCacheNegativeTtl() {
+        return (Integer) configParameters.get(PARAM_DNS_CACHE_NEGATIVE_TTL);
+    }
+
+    @Override
+    public void setDnsCacheNegativeTtl(int negativeTtl) {
+        configParameters.put(PARAM_DNS_CACHE_NEGATIVE_TTL, negativeTtl);
+        notifyListeners(PARAM_DNS_CACHE_NEGATIVE_TTL);
+    }
+
+    @Override
+    public int getDnsCacheSize() {
+        return (Integer) configParameters.get(PARAM_DNS_CACHE_SIZE);
+    }
+
+    @Override
+    public void setDnsCacheSize(int cacheSize) {
+        configParameters.put(PARAM_DNS_CACHE_SIZE, cacheSize);
+        notifyListeners(PARAM_DNS_CACHE_SIZE);
+    }
+
+    @Override
+    public int getListenerBufferSize() {
+        return (Integer) configParameters.get(PARAM_LISTENER_BUFFER_SIZE);
+    }
+
+    @Override
+    public void setListenerBufferSize(int bufferSize) {
+        configParameters.put(PARAM_LISTENER_BUFFER_SIZE, bufferSize);
+        notifyListeners(PARAM_LISTENER_BUFFER_SIZE);
+    }
+
+    @Override
+    @Nullable
+    public String getListenerOverflow() {
+        return (String) configParameters.get(PARAM_LISTENER_OVERFLOW);
+    }
+
+    @Override
+    public void setListenerOverflow(@Nullable String overflow) {
+        configParameters.put(PARAM_LISTENER_OVERFLOW, overflow);
+        notifyListeners(PARAM_LISTENER_OVERFLOW);
+    }
+
+    @Override
+    public int getListenerThreads() {
+        return (Integer) configParameters.get(PARAM_LISTENER_THREADS);
+    }
+
+    @Override
+    public void setListenerThreads(int threads) {
+        configParameters.put(PARAM_LISTENER_THREADS, threads);
+        notifyListeners(PARAM_LISTENER_THREADS);
+    }
+
     @Override
     public long getExpiry() {
         return (Long) configParameters.get(PARAM_DELIVERY_EXPIRY);
@@ -360,7 +813,7 @@ public class Configuration implements ConfigurationMBean {
             String mailStoreClassName = (String) configParameters.get(PARAM_MAILSTORE_CLASS);
             try {
                 Class<?> storeClass = Class.forName(mailStoreClassName);
-                if (storeClass.getInterfaces()[0].equals(MailStore.class))
+                if (MailStore.class.isAssignableFrom(storeClass))
                     mailStore = (MailStore) storeClass.getConstructor().newInstance();
             } catch (Exception e) {
                 log.error(getClass().getSimpleName() + " Mail store class could not be instantiated. Class=" + mailStoreClassName, e);
@@ -401,7 +854,7 @@ public class Configuration implements ConfigurationMBean {
             String queueStoreClassName = (String) configParameters.get(PARAM_QUEUESTORE_CLASS);
             try {
                 Class<?> storeClass = Class.forName(queueStoreClassName);
-                if (storeClass.getInterfaces()[0].equals(QueueStore.class))
+                if (QueueStore.class.isAssignableFrom(storeClass))
                     queueStore = (QueueStore) storeClass.getConstructor().newInstance();
             } catch (Exception e) {
                 log.error(getClass().getSimpleName() + " Queue store class could not be instantiated. Class=" + queueStoreClassName, e);
@@ -482,6 +935,41 @@ public class Configuration implements ConfigurationMBean {
 //		this.mailStoreClassName = className;
     }
 
+    @Override
+    @Nullable
+    public String getMailStoreSegmentDir() {
+        return (String) configParameters.get(PARAM_MAILSTORE_SEGMENT_DIR);
+    }
+
+    @Override
+    public void setMailStoreSegmentDir(@Nullable String segmentDir) {
+        configParameters.put(PARAM_MAILSTORE_SEGMENT_DIR, segmentDir);
+        notifyListeners(PARAM_MAILSTORE_SEGMENT_DIR);
+    }
+
+    @Override
+    public long getMailStoreTieredBudget() {
+        return (Long) configParameters.get(PARAM_MAILSTORE_TIERED_BUDGET);
+    }
+
+    @Override
+    public void setMailStoreTieredBudget(long budget) {
+        configParameters.put(PARAM_MAILSTORE_TIERED_BUDGET, budget);
+        notifyListeners(PARAM_MAILSTORE_TIERED_BUDGET);
+    }
+
+    @Override
+    @Nullable
+    public String getMailStoreTieredDir() {
+        return (String) configParameters.get(PARAM_MAILSTORE_TIERED_DIR);
+    }
+
+    @Override
+    public void setMailStoreTieredDir(@Nullable String tieredDir) {
+        configParameters.put(PARAM_MAILSTORE_TIERED_DIR, tieredDir);
+        notifyListeners(PARAM_MAILSTORE_TIERED_DIR);
+    }
+
     @Nullable
     @Override
     public String getQueueStoreClassName() {
@@ -496,6 +984,18 @@ public class Configuration implements ConfigurationMBean {
 //		this.queueStoreClassName = className;
     }
 
+    @Override
+    @Nullable
+    public String getQueueStoreJournalFile() {
+        return (String) configParameters.get(PARAM_QUEUESTORE_JOURNAL_FILE);
+    }
+
+    @Override
+    public void setQueueStoreJournalFile(@Nullable String journalFile) {
+        configParameters.put(PARAM_QUEUESTORE_JOURNAL_FILE, journalFile);
+        notifyListeners(PARAM_QUEUESTORE_JOURNAL_FILE);
+    }
+
     @NotNull
     public Logger getLogger() {
         return LoggerFactory.getLogger((String) configParameters.get(PARAM_LOGGER_PREFIX));
@@ -524,10 +1024,11 @@ public class Configuration implements ConfigurationMBean {
         mailSessionProps.setProperty(MAIL_MIME_CHARSET, getEncoding()); //The mail.mime.charset System property can be used to specify the default MIME charset to use for encoded words and text parts that don't otherwise specify a charset. Normally, the default MIME charset is derived from the default Java charset, as specified in the file.encoding System property. Most applications will have no need to explicitly set the default MIME charset. In cases where the default MIME charset to be used for mail messages is different than the charset used for files stored on the system, this property should be set.
         mailSessionProps.setProperty(MAIL_SMTP_CONNECTIONTIMEOUT, String.valueOf(getDeliveryTimeout())); //Socket connection timeout value in milliseconds. Default is infinite timeout.
         mailSessionProps.setProperty(MAIL_SMTP_TIMEOUT, String.valueOf(getDeliveryTimeout())); //Socket I/O timeout value in milliseconds. Default is infinite timeout.
+        mailSessionProps.setProperty(MAIL_SMTP_SENDPARTIAL, "true"); //Send the message to the accepted recipients of a multi-recipient transaction, the rejected ones are reported in a SendFailedException.
         Session newSession = Session.getInstance(mailSessionProps);
 
         // Set communication debug
-        if ((AspirinInternal.getLogger().isDebugEnabled()) && isDeliveryDebug())
+        if ((getLogger().isDebugEnabled()) && isDeliveryDebug())
             newSession.setDebug(true);
 
         mailSession = newSession;
@@ -17,18 +17,42 @@ public interface ConfigurationMBean {
     @NotNull String PARAM_DELIVERY_ATTEMPT_DELAY = "aspirin.delivery.attempt.delay";
     @NotNull String PARAM_DELIVERY_ATTEMPT_COUNT = "aspirin.delivery.attempt.count";
     @NotNull String PARAM_DELIVERY_BOUNCE_ON_FAILURE = "aspirin.delivery.bounce-on-failure";
+    @NotNull String PARAM_DELIVERY_CONNECTION_HOST_MAX = "aspirin.delivery.connection.host.max";
+    @NotNull String PARAM_DELIVERY_CONNECTION_IDLE_TIMEOUT = "aspirin.delivery.connection.idle.timeout";
+    @NotNull String PARAM_DELIVERY_CONNECTION_MESSAGES_MAX = "aspirin.delivery.connection.messages.max";
+    @NotNull String PARAM_DELIVERY_CONNECTION_RACE_DELAY = "aspirin.delivery.connection.race.delay";
     @NotNull String PARAM_DELIVERY_DEBUG = "aspirin.delivery.debug";
+    @NotNull String PARAM_DELIVERY_DOMAIN_ADAPTIVE = "aspirin.delivery.domain.adaptive";
+    @NotNull String PARAM_DELIVERY_DOMAIN_CONNECTIONS_MAX = "aspirin.delivery.domain.connections.max";
+    @NotNull String PARAM_DELIVERY_DOMAIN_LIMITS = "aspirin.delivery.domain.limits";
+    @NotNull String PARAM_DELIVERY_DOMAIN_RATE = "aspirin.delivery.domain.rate";
+    @NotNull String PARAM_DELIVERY_EXECUTOR = "aspirin.delivery.executor";
     @NotNull String PARAM_DELIVERY_EXPIRY = "aspirin.delivery.expiry";
+    @NotNull String PARAM_DELIVERY_HOST_BACKOFF = "aspirin.delivery.host.backoff";
+    @NotNull String PARAM_DELIVERY_PRERENDER_MAX = "aspirin.delivery.prerender.max";
+    @NotNull String PARAM_DELIVERY_RECIPIENTS_MAX = "aspirin.delivery.recipients.max";
+    @NotNull String PARAM_DELIVERY_RETRY_DEADLINE = "aspirin.delivery.retry.deadline";
+    @NotNull String PARAM_DELIVERY_RETRY_POLICY_CLASS = "aspirin.delivery.retry.policy.class";
+    @NotNull String PARAM_DELIVERY_STREAMING_MIN = "aspirin.delivery.streaming.min";
     @NotNull String PARAM_DELIVERY_THREADS_ACTIVE_MAX = "aspirin.delivery.threads.active.max";
     @NotNull String PARAM_DELIVERY_THREADS_IDLE_MAX = "aspirin.delivery.threads.idle.max";
     @NotNull String PARAM_DELIVERY_TIMEOUT = "aspirin.delivery.timeout";
+    @NotNull String PARAM_DNS_CACHE_NEGATIVE_TTL = "aspirin.dns.cache.negative.ttl";
+    @NotNull String PARAM_DNS_CACHE_SIZE = "aspirin.dns.cache.size";
     @NotNull String PARAM_ENCODING = "aspirin.encoding";
     @NotNull String PARAM_HOSTNAME = "aspirin.hostname";
+    @NotNull String PARAM_LISTENER_BUFFER_SIZE = "aspirin.listener.buffer.size";
+    @NotNull String PARAM_LISTENER_OVERFLOW = "aspirin.listener.overflow";
+    @NotNull String PARAM_LISTENER_THREADS = "aspirin.listener.threads";
     @NotNull String PARAM_LOGGER_NAME = "aspirin.logger.name";
     @NotNull String PARAM_LOGGER_PREFIX = "aspirin.logger.prefix";
     @NotNull String PARAM_POSTMASTER_EMAIL = "aspirin.postmaster.email";
     @NotNull String PARAM_MAILSTORE_CLASS = "aspirin.mailstore.class";
+    @NotNull String PARAM_MAILSTORE_SEGMENT_DIR = "aspirin.mailstore.segment.dir";
+    @NotNull String PARAM_MAILSTORE_TIERED_BUDGET = "aspirin.mailstore.tiered.budget";
+    @NotNull String PARAM_MAILSTORE_TIERED_DIR = "aspirin.mailstore.tiered.dir";
     @NotNull String PARAM_QUEUESTORE_CLASS = "aspirin.queuestore.class";
+    @NotNull String PARAM_QUEUESTORE_JOURNAL_FILE = "aspirin.queuestore.journal.file";
 
     /**
      * Value of never expiration. If an email expire is marked with this value,
@@ -36,6 +60,38 @@ public interface ConfigurationMBean {
      */
     long NEVER_EXPIRES = -1L;
 
+    /**
+     * Deliveries run on pooled DeliveryThread objects.
+     */
+    @NotNull String DELIVERY_EXECUTOR_POOL = "pool";
+    /**
+     * Every delivery runs on a new virtual thread, or on a cached thread
+     * pool, if virtual threads are not supported by the JVM.
+     */
+    @NotNull String DELIVERY_EXECUTOR_VIRTUAL = "virtual";
+    /**
+     * Every delivery runs on a cached thread pool.
+     */
+    @NotNull String DELIVERY_EXECUTOR_CACHED = "cached";
+
+    /**
+     * If the listener buffer is full, the caller waits for free space. The
+     * caller could hold the lock of the queue store, so a slow listener
+     * stalls every delivery, and a listener calling Aspirin deadlocks.
+     */
+    @NotNull String LISTENER_OVERFLOW_BLOCK = "block";
+    /**
+     * If the listener buffer is full, the delivery result is dropped and
+     * counted. This is the default.
+     */
+    @NotNull String LISTENER_OVERFLOW_DROP = "drop";
+    /**
+     * If the listener buffer is full, the delivery result is kept in an
+     * unbounded overflow list in memory, so a stuck listener could use up
+     * the heap.
+     */
+    @NotNull String LISTENER_OVERFLOW_SPILL = "spill";
+
     /**
      * @return The time between two delivery attempt of an email.
      */
@@ -62,6 +118,236 @@ public interface ConfigurationMBean {
      */
     void setDeliveryAttemptCount(int attemptCount);
 
+    /**
+     * @return The maximal count of idle SMTP connections kept open to a mail
+     * server.
+     */
+    int getDeliveryConnectionHostMax();
+
+    /**
+     * Set the maximal count of idle SMTP connections kept open to a mail
+     * server for reuse. If it is 0, then every connection is closed after
+     * the delivery.
+     *
+     * @param hostMax The count of idle connections per mail server.
+     */
+    void setDeliveryConnectionHostMax(int hostMax);
+
+    /**
+     * @return The time while an idle SMTP connection is kept open.
+     */
+    int getDeliveryConnectionIdleTimeout();
+
+    /**
+     * Set the time while an idle SMTP connection is kept open for reuse.
+     *
+     * @param idleTimeout The idle timeout in milliseconds.
+     */
+    void setDeliveryConnectionIdleTimeout(int idleTimeout);
+
+    /**
+     * @return The maximal count of messages sent on one SMTP connection.
+     */
+    int getDeliveryConnectionMessagesMax();
+
+    /**
+     * Set the maximal count of messages sent on one SMTP connection. After
+     * this count the connection is closed and a new one is opened.
+     *
+     * @param messagesMax The count of messages.
+     */
+    void setDeliveryConnectionMessagesMax(int messagesMax);
+
+    /**
+     * @return The stagger delay of connection races in milliseconds.
+     */
+    int getDeliveryConnectionRaceDelay();
+
+    /**
+     * Set the stagger delay of connection races. If it is greater than 0,
+     * then a new SMTP connection is raced over the mail servers of the
+     * domain: the next server is connected after this delay while the
+     * previous one is still pending, and the connection greeted first is
+     * used. If 0, then the mail servers are tried one after another.
+     *
+     * @param raceDelay The delay in milliseconds.
+     */
+    void setDeliveryConnectionRaceDelay(int raceDelay);
+
+    /**
+     * @return True, if the count of parallel deliveries to a recipient
+     * domain is adapted to its mail servers.
+     */
+    boolean isDeliveryDomainAdaptive();
+
+    /**
+     * Set the adaptive concurrency of deliveries. If true, then the count
+     * of parallel deliveries to a recipient domain is increased while its
+     * mail servers answer fast, and it is halved on slow answers, deferrals
+     * and connection failures, between 1 and the count of delivery threads.
+     * The current windows could be seen on the
+     * {@link org.masukomi.aspirin.core.delivery.AdaptiveConcurrencyControllerMBean}.
+     *
+     * @param adaptive True to adapt the concurrency.
+     */
+    void setDeliveryDomainAdaptive(boolean adaptive);
+
+    /**
+     * @return The maximal count of parallel deliveries to a recipient domain.
+     */
+    int getDeliveryDomainConnectionsMax();
+
+    /**
+     * Set the maximal count of parallel deliveries to a recipient domain.
+     * Further items of the domain wait in the queue until a delivery is
+     * finished. If 0, then the count is not limited.
+     *
+     * @param connectionsMax The count of deliveries per domain.
+     */
+    void setDeliveryDomainConnectionsMax(int connectionsMax);
+
+    /**
+     * @return The limits of recipient domains, which differ from the
+     * default ones.
+     */
+    @Nullable
+    String getDeliveryDomainLimits();
+
+    /**
+     * Set the limits of recipient domains, which differ from the default
+     * ones. The format is a comma separated list of
+     * <code>domains=connections:rate</code> items, for example
+     * <code>gmail.com|googlemail.com=20:10, yahoo.com=4:0.5</code>. Domains
+     * separated by | share the same limits (for example domains of the same
+     * provider). An empty or 0 value means no limit.
+     *
+     * @param limits The limits.
+     */
+    void setDeliveryDomainLimits(@Nullable String limits);
+
+    /**
+     * @return The maximal count of deliveries to a recipient domain in a
+     * second.
+     */
+    int getDeliveryDomainRate();
+
+    /**
+     * Set the maximal count of deliveries (SMTP transactions) to a recipient
+     * domain in a second. A burst of a second is allowed. If 0, then the rate
+     * is not limited.
+     *
+     * @param rate The count of deliveries per second.
+     */
+    void setDeliveryDomainRate(int rate);
+
+    /**
+     * @return The execution mode of deliveries.
+     */
+    @Nullable
+    String getDeliveryExecutor();
+
+    /**
+     * Set the execution mode of deliveries: {@link #DELIVERY_EXECUTOR_POOL},
+     * {@link #DELIVERY_EXECUTOR_VIRTUAL} or {@link #DELIVERY_EXECUTOR_CACHED}.
+     * In the executor modes the count of parallel deliveries is limited by
+     * the maximal count of active delivery threads. It is applied after
+     * restart of the DeliveryManager.
+     *
+     * @param executor The execution mode.
+     */
+    void setDeliveryExecutor(@Nullable String executor);
+
+    /**
+     * @return The back-off time of failing mail servers in milliseconds.
+     */
+    int getDeliveryHostBackoff();
+
+    /**
+     * Set the back-off time of failing mail servers. After consecutive
+     * connection failures a mail server is skipped for this time, then it
+     * is tried by one delivery. If it fails again, it is skipped for a
+     * doubled time.
+     *
+     * @param backoff The time in milliseconds.
+     */
+    void setDeliveryHostBackoff(int backoff);
+
+    /**
+     * @return The maximal size of pre-rendered emails in bytes.
+     */
+    int getDeliveryPrerenderMax();
+
+    /**
+     * Set the maximal size of pre-rendered emails. Emails are rendered into
+     * their wire format once, when they are added to the queue, so MIME
+     * encoding is not repeated on every delivery. Larger emails are
+     * encoded on every delivery. If 0, then emails are not pre-rendered.
+     *
+     * @param prerenderMax The size in bytes.
+     */
+    void setDeliveryPrerenderMax(int prerenderMax);
+
+    /**
+     * @return The maximal count of recipients delivered in one SMTP
+     * transaction.
+     */
+    int getDeliveryRecipientsMax();
+
+    /**
+     * Set the maximal count of recipients delivered in one SMTP transaction.
+     * Recipients of the same email in the same domain are sent together with
+     * multiple RCPT TO commands. If 1, then every recipient is delivered in
+     * its own transaction.
+     *
+     * @param recipientsMax The count of recipients.
+     */
+    void setDeliveryRecipientsMax(int recipientsMax);
+
+    /**
+     * @return The time after queueing in milliseconds, until an email is
+     * tried by the {@link org.masukomi.aspirin.core.delivery.ExponentialBackoffRetryPolicy}.
+     */
+    long getDeliveryRetryDeadline();
+
+    /**
+     * Set the time after queueing, until an email is tried by the
+     * {@link org.masukomi.aspirin.core.delivery.ExponentialBackoffRetryPolicy}.
+     * If 0, then it is tried until its expiry.
+     *
+     * @param deadline The time in milliseconds.
+     */
+    void setDeliveryRetryDeadline(long deadline);
+
+    /**
+     * @return The class name of the retry policy.
+     */
+    @Nullable
+    String getDeliveryRetryPolicyClassName();
+
+    /**
+     * Set the class name of the retry policy, which decides when a failed
+     * delivery is tried again. Built-in policies are
+     * {@link org.masukomi.aspirin.core.delivery.FixedDelayRetryPolicy} and
+     * {@link org.masukomi.aspirin.core.delivery.ExponentialBackoffRetryPolicy}.
+     *
+     * @param className The retry policy class.
+     */
+    void setDeliveryRetryPolicyClassName(@Nullable String className);
+
+    /**
+     * @return The minimal size of streamed emails in bytes.
+     */
+    int getDeliveryStreamingMin();
+
+    /**
+     * Set the minimal size of streamed emails. If the mail store supports
+     * it, emails at least this large are delivered straight from the store,
+     * without parsing them into memory. If 0, then emails are not streamed.
+     *
+     * @param streamingMin The size in bytes.
+     */
+    void setDeliveryStreamingMin(int streamingMin);
+
     /**
      * @return The maximal count of delivery threads running paralel.
      */
@@ -100,6 +386,77 @@ public interface ConfigurationMBean {
      */
     void setDeliveryTimeout(int timeout);
 
+    /**
+     * @return The time in milliseconds while a not existing domain or a
+     * domain without mail server is cached.
+     */
+    int getDnsCacheNegativeTtl();
+
+    /**
+     * Set the time while a not existing domain or a domain without mail
+     * server is cached. Temporary DNS failures are never cached.
+     *
+     * @param negativeTtl The time in milliseconds.
+     */
+    void setDnsCacheNegativeTtl(int negativeTtl);
+
+    /**
+     * @return The maximal count of domains in the DNS cache.
+     */
+    int getDnsCacheSize();
+
+    /**
+     * Set the maximal count of domains in the DNS cache. If 0, then mail
+     * servers are resolved on every delivery attempt.
+     *
+     * @param cacheSize The count of domains.
+     */
+    void setDnsCacheSize(int cacheSize);
+
+    /**
+     * @return The capacity of the buffer of a listener dispatcher thread.
+     */
+    int getListenerBufferSize();
+
+    /**
+     * Set the count of delivery results, which could wait for a listener
+     * dispatcher thread. It is applied when the dispatcher threads are
+     * started.
+     *
+     * @param bufferSize The count of delivery results.
+     */
+    void setListenerBufferSize(int bufferSize);
+
+    /**
+     * @return The policy applied if a listener buffer is full.
+     */
+    @Nullable
+    String getListenerOverflow();
+
+    /**
+     * Set the policy applied if a listener buffer is full:
+     * {@link #LISTENER_OVERFLOW_BLOCK}, {@link #LISTENER_OVERFLOW_DROP} or
+     * {@link #LISTENER_OVERFLOW_SPILL}. It is applied when the dispatcher
+     * threads are started.
+     *
+     * @param overflow The overflow policy.
+     */
+    void setListenerOverflow(@Nullable String overflow);
+
+    /**
+     * @return The count of threads calling the listeners.
+     */
+    int getListenerThreads();
+
+    /**
+     * Set the count of threads calling the listeners. If 0, then listeners
+     * are called by the delivery threads. It is applied when the dispatcher
+     * threads are started.
+     *
+     * @param threads The count of dispatcher threads.
+     */
+    void setListenerThreads(int threads);
+
     /**
      * @return The name of MIME encoding of emails.
      */
@@ -163,12 +520,65 @@ public interface ConfigurationMBean {
 
     /**
      * Set the mail store class name, where MimeMessages will be stored.
-     * Built-in stores are {@link SimpleMailStore} and {@link FileMailStore}.
+     * Built-in stores are {@link SimpleMailStore}, {@link FileMailStore},
+     * {@link org.masukomi.aspirin.core.store.mail.SegmentMailStore},
+     * {@link org.masukomi.aspirin.core.store.mail.DedupMailStore} and
+     * {@link org.masukomi.aspirin.core.store.mail.TieredMailStore}.
      *
      * @param className mail store class
      */
     void setMailStoreClassName(@Nullable String className);
 
+    /**
+     * @return The path of the segment directory used by
+     * {@link org.masukomi.aspirin.core.store.mail.SegmentMailStore}.
+     */
+    @Nullable
+    String getMailStoreSegmentDir();
+
+    /**
+     * Set the path of the segment directory used by
+     * {@link org.masukomi.aspirin.core.store.mail.SegmentMailStore}. It is
+     * applied on the next initialization of the store.
+     *
+     * @param segmentDir The path of the segment directory.
+     */
+    void setMailStoreSegmentDir(@Nullable String segmentDir);
+
+    /**
+     * @return The size of messages kept in memory by
+     * {@link org.masukomi.aspirin.core.store.mail.TieredMailStore} in bytes.
+     */
+    long getMailStoreTieredBudget();
+
+    /**
+     * Set the size of messages kept in memory by
+     * {@link org.masukomi.aspirin.core.store.mail.TieredMailStore}. Over this
+     * size the least recently used messages are moved to disk. It is
+     * applied on the next initialization of the store.
+     *
+     * @param budget The size in bytes.
+     */
+    void setMailStoreTieredBudget(long budget);
+
+    /**
+     * @return The path of the directory, where
+     * {@link org.masukomi.aspirin.core.store.mail.TieredMailStore} moves
+     * messages out of memory.
+     */
+    @Nullable
+    String getMailStoreTieredDir();
+
+    /**
+     * Set the path of the directory, where
+     * {@link org.masukomi.aspirin.core.store.mail.TieredMailStore} moves
+     * messages out of memory. It is applied on the next initialization of
+     * the store.
+     *
+     * @param tieredDir The path of the directory.
+     */
+    void setMailStoreTieredDir(@Nullable String tieredDir);
+
     /**
      * @return The email address of the postmaster.
      */
@@ -192,12 +602,30 @@ public interface ConfigurationMBean {
 
     /**
      * Set the queue store class name, where queue informations are placed in.
-     * Built-in store is the {@link org.masukomi.aspirin.core.store.queue.SimpleQueueStore}.
+     * Built-in stores are the {@link org.masukomi.aspirin.core.store.queue.SimpleQueueStore},
+     * the {@link org.masukomi.aspirin.core.store.queue.JournalQueueStore} and
+     * the {@link org.masukomi.aspirin.core.store.queue.ShardedQueueStore}.
      *
      * @param className queue store class
      */
     void setQueueStoreClassName(@Nullable String className);
 
+    /**
+     * @return The path of the journal file used by
+     * {@link org.masukomi.aspirin.core.store.queue.JournalQueueStore}.
+     */
+    @Nullable
+    String getQueueStoreJournalFile();
+
+    /**
+     * Set the path of the journal file used by
+     * {@link org.masukomi.aspirin.core.store.queue.JournalQueueStore}. It is
+     * applied on the next initialization of the store.
+     *
+     * @param journalFile The path of the journal file.
+     */
+    void setQueueStoreJournalFile(@Nullable String journalFile);
+
     /**
      * @return The hostname of this server. It is used in HELO SMTP command.
      */
@@ -0,0 +1,176 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>This object adapts the allowed count of parallel deliveries (the
+ * window) of every recipient domain to the behaviour of its mail servers,
+ * like the congestion control of TCP. The {@link TrafficShaper} does not
+ * let more deliveries to a domain than its window.</p>
+ *
+ * <p>The window of a new domain is {@value #WINDOW_INITIAL}. Every
+ * successful transaction increases it: by one until the first decrease
+ * (slow start), then by one per window of transactions (additive
+ * increase). A deferral (4xx reply), a connection failure or a timeout
+ * halves it (multiplicative decrease), and so does a transaction slower
+ * than {@value #LATENCY_TOLERANCE} times the usual transaction time of the
+ * domain. The window is decreased at most once in a transaction time,
+ * because parallel deliveries report the same overload at once.</p>
+ *
+ * <p>The window is at least 1 and at most
+ * aspirin.delivery.threads.active.max. Windows of domains without
+ * deliveries for {@value #IDLE_TIMEOUT} milliseconds are forgotten.</p>
+ */
+public class AdaptiveConcurrencyController implements AdaptiveConcurrencyControllerMBean {
+    static final int WINDOW_INITIAL = 2;
+    static final double LATENCY_TOLERANCE = 2.0;
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final long DECREASE_INTERVAL_MIN = 100L;
+    private static final long IDLE_TIMEOUT = 600000L;
+    private static final long CLEANUP_INTERVAL = 60000L;
+    @NotNull
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicLong lastCleanup = new AtomicLong(System.currentTimeMillis());
+    @NotNull
+    private final LongAdder decreaseCount = new LongAdder();
+
+    private static int getWindowMax() {
+        return Math.max(1, AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+    }
+
+    /**
+     * Report the result of an SMTP transaction.
+     *
+     * @param name    Name of the domain or the domain group.
+     * @param outcome The result.
+     * @param latency Time of the transaction in milliseconds, or a negative
+     *                value if it is not measured.
+     */
+    public void record(@NotNull String name, @NotNull Outcome outcome, long latency) {
+        Objects.requireNonNull(name, "name");
+        Objects.requireNonNull(outcome, "outcome");
+        long now = System.currentTimeMillis();
+        int windowMax = getWindowMax();
+
+        windows.compute(name, (key, window) -> {
+            Window current = window != null ? window : new Window();
+            current.used = now;
+
+            if (outcome == Outcome.SUCCESS && 0L <= latency) {
+                if (current.latency == 0.0) {
+                    current.latency = Math.max(1L, latency);
+                    current.baseLatency = current.latency;
+                } else {
+                    current.latency += (latency - current.latency) / 8.0;
+                    // The usual time follows the fastest transactions, and drifts up slowly
+                    current.baseLatency = latency < current.baseLatency ? Math.max(1L, latency) :
+                            current.baseLatency + (latency - current.baseLatency) / 64.0;
+                }
+            }
+
+            boolean congested = outcome != Outcome.SUCCESS ||
+                    (0L <= latency && LATENCY_TOLERANCE * current.baseLatency < current.latency);
+
+            if (congested) {
+                if (Math.max(DECREASE_INTERVAL_MIN, (long) current.latency) <= now - current.decreasedAt) {
+                    current.size = Math.max(1.0, current.size * DECREASE_FACTOR);
+                    current.threshold = current.size;
+                    current.decreasedAt = now;
+                    decreaseCount.increment();
+                }
+            } else {
+                current.size += current.size < current.threshold ? 1.0 : 1.0 / current.size;
+            }
+
+            current.size = Math.min(windowMax, current.size);
+            return current;
+        });
+
+        cleanup(now);
+    }
+
+    private void cleanup(long now) {
+        long last = lastCleanup.get();
+        if (now - last < CLEANUP_INTERVAL || !lastCleanup.compareAndSet(last, now)) return;
+        windows.entrySet().removeIf(entry -> IDLE_TIMEOUT < now - entry.getValue().used);
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Integer> getWindows() {
+        Map<String, Integer> result = new TreeMap<>();
+        windows.forEach((name, window) -> result.put(name, window.getWindow()));
+        return result;
+    }
+
+    @Override
+    public int getWindow(@NotNull String name) {
+        Window window = windows.get(Objects.requireNonNull(name, "name"));
+        return window == null ? Math.min(WINDOW_INITIAL, getWindowMax()) : window.getWindow();
+    }
+
+    @Override
+    public long getLatency(@NotNull String name) {
+        Window window = windows.get(Objects.requireNonNull(name, "name"));
+        return window == null ? 0L : Math.round(window.latency);
+    }
+
+    @Override
+    public int getDestinationCount() {
+        return windows.size();
+    }
+
+    @Override
+    public long getDecreaseCount() {
+        return decreaseCount.sum();
+    }
+
+    @Override
+    public void reset() {
+        windows.clear();
+    }
+
+    /**
+     * Result of an SMTP transaction, as a signal of load of the server.
+     */
+    public enum Outcome {
+        /**
+         * The server answered: the message was accepted, or rejected
+         * permanently (5xx).
+         */
+        SUCCESS,
+        /**
+         * The server deferred the message or a recipient (4xx).
+         */
+        DEFERRED,
+        /**
+         * The server could not be connected, or it did not answer in time.
+         */
+        FAILED
+    }
+
+    /**
+     * State of a domain, guarded by the map of windows.
+     */
+    private static final class Window {
+        private volatile double size = WINDOW_INITIAL;
+        private double threshold = Double.MAX_VALUE;
+        private volatile double latency;
+        private double baseLatency;
+        private long decreasedAt;
+        private volatile long used;
+
+        int getWindow() {
+            return Math.max(1, (int) size);
+        }
+    }
+}
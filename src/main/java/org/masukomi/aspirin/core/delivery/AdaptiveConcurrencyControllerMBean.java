@@ -0,0 +1,47 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+
+/**
+ * <p>This is the JMX bean of the adaptive concurrency of deliveries. It
+ * shows the allowed count of parallel deliveries of every recipient domain
+ * (or group of domains) seen recently.</p>
+ */
+public interface AdaptiveConcurrencyControllerMBean {
+    /**
+     * @return Allowed count of parallel deliveries by domain name (or by
+     * the name of the domain group).
+     */
+    @NotNull
+    Map<String, Integer> getWindows();
+
+    /**
+     * @param name Name of a domain or a domain group.
+     * @return Allowed count of parallel deliveries of the domain.
+     */
+    int getWindow(@NotNull String name);
+
+    /**
+     * @return Moving average of the SMTP transaction time of the domain in
+     * milliseconds, or 0 if it is not known.
+     */
+    long getLatency(@NotNull String name);
+
+    /**
+     * @return Count of domains with a window.
+     */
+    int getDestinationCount();
+
+    /**
+     * @return Count of window decreases since the start, caused by slow
+     * transactions, deferrals or connection failures.
+     */
+    long getDecreaseCount();
+
+    /**
+     * Forget every window, the domains start again from the initial window.
+     */
+    void reset();
+}
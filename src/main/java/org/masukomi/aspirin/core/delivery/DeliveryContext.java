@@ -6,7 +6,9 @@ import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -19,6 +21,8 @@ import java.util.Objects;
 public class DeliveryContext {
     @NotNull
     private final Map<String, Object> contextVariables = new HashMap<>();
+    @NotNull
+    private final List<QueueInfo> queueInfos = new ArrayList<>();
     @Nullable
     private QueueInfo queueInfo;
     @Nullable
@@ -27,6 +31,8 @@ public class DeliveryContext {
     private Session mailSession;
     @Nullable
     private String ctxToString;
+    @Nullable
+    private TrafficShaper.Permit trafficPermit;
 
     @Nullable
     public QueueInfo getQueueInfo() {
@@ -35,6 +41,47 @@ public class DeliveryContext {
 
     public DeliveryContext setQueueInfo(@Nullable QueueInfo queueInfo) {
         this.queueInfo = queueInfo;
+        queueInfos.clear();
+        if (queueInfo != null) queueInfos.add(queueInfo);
+        return this;
+    }
+
+    /**
+     * @return All QueueInfo objects delivered in this context. The first one
+     * is the QueueInfo set by setQueueInfo(), the others are recipients of
+     * the same email in the same domain.
+     */
+    @NotNull
+    public List<QueueInfo> getQueueInfos() {
+        return queueInfos;
+    }
+
+    /**
+     * Add a QueueInfo which is delivered in the same SMTP transaction as the
+     * QueueInfo set by setQueueInfo().
+     *
+     * @param queueInfo The QueueInfo of the same email in the same domain.
+     * @return This context.
+     */
+    @NotNull
+    public DeliveryContext addQueueInfo(@NotNull QueueInfo queueInfo) {
+        queueInfos.add(Objects.requireNonNull(queueInfo, "queueInfo"));
+        ctxToString = null;
+        return this;
+    }
+
+    /**
+     * @return Permit of the delivery given by the {@link TrafficShaper}. It
+     * is released when the context is released.
+     */
+    @Nullable
+    public TrafficShaper.Permit getTrafficPermit() {
+        return trafficPermit;
+    }
+
+    @NotNull
+    public DeliveryContext setTrafficPermit(@Nullable TrafficShaper.Permit trafficPermit) {
+        this.trafficPermit = trafficPermit;
         return this;
     }
 
@@ -85,6 +132,7 @@ public class DeliveryContext {
         if (ctxToString == null)
             ctxToString = getClass().getSimpleName() + " [" +
                     "qi=" + queueInfo +
+                    (queueInfos.size() > 1 ? ", recipients=" + queueInfos.size() : "") +
                     "]; ";
 
         return ctxToString;
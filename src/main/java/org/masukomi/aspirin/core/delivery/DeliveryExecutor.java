@@ -0,0 +1,147 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>This object runs every delivery as a {@link DeliveryTask} on its own
+ * thread, instead of the pooled {@link DeliveryThread} objects. The count of
+ * parallel deliveries is limited by a semaphore, which is sized by the
+ * maximal count of active delivery threads.</p>
+ *
+ * <p>In virtual mode the deliveries run on virtual threads, if the JVM
+ * supports them (Java 21 or later), otherwise on a cached thread pool.
+ * JavaMail transports block inside synchronized methods, which pins the
+ * carrier thread of a virtual thread before Java 24.</p>
+ */
+public class DeliveryExecutor {
+    @NotNull
+    private final ExecutorService executor;
+    @NotNull
+    private final ResizableSemaphore permits;
+    private int limit;
+
+    public DeliveryExecutor(@NotNull String mode, int limit) {
+        Objects.requireNonNull(mode, "mode");
+        ExecutorService virtualExecutor = null;
+
+        if (ConfigurationMBean.DELIVERY_EXECUTOR_VIRTUAL.equals(mode))
+            virtualExecutor = createVirtualThreadExecutor();
+
+        this.executor = virtualExecutor != null ? virtualExecutor : Executors.newCachedThreadPool(new DeliveryTaskThreadFactory());
+        this.limit = Math.max(1, limit);
+        this.permits = new ResizableSemaphore(this.limit);
+    }
+
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AspirinInternal.getLogger().info("DeliveryExecutor(): Virtual threads are not available, a cached thread pool is used.");
+            return null;
+        }
+    }
+
+    /**
+     * Wait for a free delivery slot. The slot is given back after the
+     * delivery started by execute() is finished, or by release().
+     *
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    /**
+     * Give back a slot acquired but not used for a delivery.
+     */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Start the delivery of the context. A slot have to be acquired before.
+     *
+     * @param dCtx The delivery context.
+     * @throws RejectedExecutionException If the executor is shut down. The
+     *                                    slot is given back in this case.
+     */
+    public void execute(@NotNull DeliveryContext dCtx) {
+        DeliveryTask task = new DeliveryTask(Objects.requireNonNull(dCtx, "dCtx"));
+
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            permits.release();
+            throw ree;
+        }
+    }
+
+    /**
+     * @return Count of running deliveries.
+     */
+    public synchronized int getActiveCount() {
+        return Math.max(0, limit - permits.availablePermits());
+    }
+
+    /**
+     * Change the maximal count of parallel deliveries. Running deliveries
+     * over the new limit are not stopped, new ones are started after they
+     * are finished.
+     *
+     * @param limit The count of parallel deliveries.
+     */
+    public synchronized void setLimit(int limit) {
+        limit = Math.max(1, limit);
+
+        if (this.limit < limit) permits.release(limit - this.limit);
+        else if (limit < this.limit) permits.reducePermits(this.limit - limit);
+
+        this.limit = limit;
+    }
+
+    /**
+     * Stop accepting deliveries. Running deliveries are finished.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    private static final class DeliveryTaskThreadFactory implements ThreadFactory {
+        @NotNull
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+            return new Thread(runnable, DeliveryTask.class.getSimpleName() + "-" + count.incrementAndGet());
+        }
+    }
+}
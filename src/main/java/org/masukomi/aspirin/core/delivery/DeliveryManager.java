@@ -9,6 +9,8 @@ import org.masukomi.aspirin.core.config.ConfigurationChangeListener;
 import org.masukomi.aspirin.core.config.ConfigurationMBean;
 import org.masukomi.aspirin.core.dns.ResolveHost;
 import org.masukomi.aspirin.core.store.mail.MailStore;
+import org.masukomi.aspirin.core.store.mail.MessageSource;
+import org.masukomi.aspirin.core.store.mail.StreamingMimeMessage;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 import org.masukomi.aspirin.core.store.queue.QueueStore;
@@ -16,7 +18,12 @@ import org.masukomi.aspirin.core.store.queue.QueueStore;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class is the manager of delivery. It is instantiated by Aspirin class.
@@ -32,8 +39,27 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
     private final ObjectPool deliveryThreadObjectPool;
     @NotNull
     private final Map<String, DeliveryHandler> deliveryHandlers = new HashMap<>();
+    @NotNull
+    private final DeliveryScheduler scheduler = new DeliveryScheduler();
+    @NotNull
+    private final TransportPool transportPool = new TransportPool();
+    @NotNull
+    private final TrafficShaper trafficShaper = new TrafficShaper();
+    @NotNull
+    private final HostHealthRegistry hostHealthRegistry = new HostHealthRegistry();
+    /**
+     * Time between the moment when a QueueInfo became sendable and the
+     * moment when it was handed over to a delivery thread.
+     */
+    @NotNull
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    /**
+     * It runs the deliveries in executor mode, in pool mode it is null.
+     */
+    @Nullable
+    private final DeliveryExecutor deliveryExecutor;
     @Nullable
-    private MailStore mailStore;
+    private volatile MailStore mailStore;
     @Nullable
     private QueueStore queueStore;
     private boolean running;
@@ -60,6 +86,13 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         // Initialize object factory of pool
         threadFactory.init(new ThreadGroup("DeliveryThreadGroup"), deliveryThreadObjectPool);
 
+        // Set up executor of deliveries, if pool of DeliveryThread objects is not used
+        String executorMode = AspirinInternal.getConfiguration().getDeliveryExecutor();
+        if (executorMode == null || ConfigurationMBean.DELIVERY_EXECUTOR_POOL.equals(executorMode))
+            deliveryExecutor = null;
+        else
+            deliveryExecutor = new DeliveryExecutor(executorMode, AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+
         // Set up stores and configuration listener
         queueStore = AspirinInternal.getConfiguration().getQueueStore();
         queueStore.init();
@@ -84,16 +117,77 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         String mailid = AspirinInternal.getMailID(mimeMessage);
         long expiry = AspirinInternal.getExpiry(mimeMessage);
         Collection<InternetAddress> recipients = AspirinInternal.extractRecipients(mimeMessage);
+        MimeMessage renderedMessage = prerender(mimeMessage, AspirinInternal.getConfiguration().getDeliveryPrerenderMax());
+        // The message is stored before it is queued, so disk writes do not block other producers
+        try {
+            mailStore.set(mailid, renderedMessage);
+        } catch (IllegalStateException e) {
+            // Stores report failed writes by unchecked exceptions
+            throw new MessagingException("Message storing failed: " + mailid, e);
+        }
         synchronized (mailingLock) {
-            mailStore.set(mailid, mimeMessage);
             queueStore.add(mailid, expiry, recipients);
         }
+        scheduler.signal();
         return mailid;
     }
 
+    /**
+     * Render the message into its wire format once and parse it back. A
+     * parsed message writes its original bytes on delivery, so the MIME
+     * encoding of its parts (e.g. base64 attachments) is not repeated for
+     * every recipient and every attempt. The parsed message shares the
+     * rendered bytes, they are not copied again.
+     *
+     * @param mimeMessage The message to render.
+     * @param sizeMax     Messages larger than this are not pre-rendered.
+     * @return The pre-rendered message, or the original one if it is too
+     * large or pre-rendering is disabled.
+     * @throws MessagingException If the message could not be rendered.
+     */
+    @NotNull
+    static MimeMessage prerender(@NotNull MimeMessage mimeMessage, int sizeMax) throws MessagingException {
+        Objects.requireNonNull(mimeMessage, "mimeMessage");
+        if (sizeMax <= 0) return mimeMessage;
+        RenderBuffer buffer = new RenderBuffer(sizeMax);
+
+        try {
+            mimeMessage.writeTo(buffer);
+        } catch (RenderBuffer.SizeExceededException e) {
+            AspirinInternal.getLogger().debug("DeliveryManager.prerender(): Message is larger than {} bytes, it is not pre-rendered.", sizeMax);
+            return mimeMessage;
+        } catch (IOException e) {
+            throw new MessagingException("Message could not be rendered.", e);
+        }
+
+        return new MimeMessage(AspirinInternal.getConfiguration().getMailSession(), buffer.toInputStream());
+    }
+
+    /**
+     * Give back the message of a queue item. Large messages are streamed
+     * from the store, if it is supported, so they are not parsed into
+     * memory.
+     *
+     * @param qi The queue item.
+     * @return The message, or null if it is not found.
+     */
     @Nullable
     public MimeMessage get(@NotNull QueueInfo qi) {
         Objects.requireNonNull(qi, "qi");
+        int streamingMin = AspirinInternal.getConfiguration().getDeliveryStreamingMin();
+
+        if (0 < streamingMin) {
+            MessageSource source = mailStore.getSource(qi.getMailid());
+
+            if (source != null && streamingMin <= source.getSize()) {
+                try {
+                    return new StreamingMimeMessage(AspirinInternal.getConfiguration().getMailSession(), source);
+                } catch (MessagingException e) {
+                    AspirinInternal.getLogger().warn("DeliveryManager.get(): Message could not be streamed, it is parsed. qi=" + qi, e);
+                }
+            }
+        }
+
         return mailStore.get(qi.getMailid());
     }
 
@@ -113,95 +207,156 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
 
         while (running) {
             QueueInfo qi = null;
+            DeliveryContext dCtx = null;
+            TrafficShaper.Permit permit = null;
+            boolean acquired = false;
 
             try {
+                /*
+                 * In executor mode we wait for a free delivery slot before
+                 * taking the next item, so items are not taken out of the
+                 * queue while they could not be delivered.
+                 */
+                if (deliveryExecutor != null) {
+                    deliveryExecutor.acquire();
+                    acquired = true;
+                    if (!running) continue;
+                }
+
                 qi = queueStore.next();
 
                 if (qi != null) {
+                    // Throttled domains are tried again later, without using an attempt
+                    permit = trafficShaper.acquire(qi.getRecipientDomain());
+                    if (!permit.isGranted()) {
+                        AspirinInternal.getLogger().trace("DeliveryManager.run(): Domain is throttled, deferred until {}. qi={}", permit.getRetryAt(), qi);
+                        queueStore.defer(qi, permit.getRetryAt());
+                        continue;
+                    }
+
+                    dispatchLatency.record(System.currentTimeMillis() - Math.max(qi.getCreated(), qi.getAttempt()));
                     MimeMessage message = get(qi);
 
                     if (message == null) {
                         AspirinInternal.getLogger().warn("No MimeMessage found for qi={}", qi);
                         qi.setResultInfo("No MimeMessage found.");
                         qi.setState(DeliveryState.FAILED);
+                        permit.release();
                         release(qi);
                         continue;
                     }
 
-                    DeliveryContext dCtx = new DeliveryContext()
+                    dCtx = new DeliveryContext()
                             .setQueueInfo(qi)
-                            .setMessage(message);
-
-                    AspirinInternal.getLogger().trace(
-                            "DeliveryManager.run(): Pool state. A{}/I{}",
-                            deliveryThreadObjectPool.getNumActive(),
-                            deliveryThreadObjectPool.getNumIdle());
-
-                    try {
-                        AspirinInternal.getLogger().debug("DeliveryManager.run(): Start delivery. qi={}", qi);
-                        DeliveryThread dThread = (DeliveryThread) deliveryThreadObjectPool.borrowObject();
-
-                        AspirinInternal.getLogger().trace(
-                                "DeliveryManager.run(): Borrow DeliveryThread object. dt={}: state '{}/{}'",
-                                new Object[]{dThread.getName(), dThread.getState().name(), dThread.isAlive()});
-
-                        dThread.setContext(dCtx);
-                        /*
-                         * On first borrow the DeliveryThread is created and
-                         * initialized, but not started, because the first
-                         * time we have to set up the QueItem to deliver.
-                         */
-                        if (!dThread.isAlive())
-                            dThread.start();
-                    } catch (IllegalStateException ise) {
-                        /*
-                         * This could be happen, if thread is running, but
-                         * ObjectPool is already closed. It is a normal process
-                         * of Aspirin sending thread shutdown.
-                         */
-                        release(qi);
-                    } catch (NoSuchElementException nsee) {
-                        /*
-                         * This happens if there is a lot of mail to send, and
-                         * no idle DeliveryThread is available.
-                         */
-                        AspirinInternal.getLogger().debug("DeliveryManager.run(): No idle DeliveryThread is available: {}", nsee.getMessage());
-                        release(qi);
-                    } catch (Exception e) {
-                        AspirinInternal.getLogger().error("DeliveryManager.run(): Failed borrow delivery thread object.", e);
-                        release(qi);
+                            .setMessage(message)
+                            .setTrafficPermit(permit);
+
+                    // Recipients in the same domain are sent in one SMTP transaction
+                    int recipientsMax = AspirinInternal.getConfiguration().getDeliveryRecipientsMax();
+                    if (1 < recipientsMax) {
+                        for (QueueInfo sqi : queueStore.nextOfSameDomain(qi, recipientsMax - 1)) {
+                            dispatchLatency.record(System.currentTimeMillis() - Math.max(sqi.getCreated(), sqi.getAttempt()));
+                            dCtx.addQueueInfo(sqi);
+                        }
                     }
-                } else {
-                    if (AspirinInternal.getLogger().isTraceEnabled() && 0 < queueStore.size())
-                        AspirinInternal.getLogger().trace("DeliveryManager.run(): There is no sendable item in the queue. Fallback to waiting state for a minute.");
 
-                    synchronized (this) {
+                    if (deliveryExecutor != null) {
                         try {
-                            /*
-                             * We should wait for a specified time, because
-                             * some emails unsent could be sendable again.
-                             */
-                            wait(60000L);
-                        } catch (InterruptedException e) {
-                            running = false;
+                            AspirinInternal.getLogger().debug("DeliveryManager.run(): Start delivery. qi={}", qi);
+                            // The slot is given back by the executor
+                            acquired = false;
+                            deliveryExecutor.execute(dCtx);
+                        } catch (RejectedExecutionException ree) {
+                            // The executor is shut down, it is a normal process of Aspirin shutdown.
+                            release(dCtx);
                         }
+                    } else
+                        dispatchToDeliveryThread(dCtx);
+                } else {
+                    long nextAttempt = queueStore.getNextAttempt();
+
+                    if (AspirinInternal.getLogger().isTraceEnabled() && 0 < queueStore.size())
+                        AspirinInternal.getLogger().trace("DeliveryManager.run(): There is no sendable item in the queue. Waiting for next attempt at {}.", nextAttempt);
+
+                    if (acquired) {
+                        deliveryExecutor.release();
+                        acquired = false;
                     }
-                }
 
+                    /*
+                     * We sleep until the next unsent email is sendable
+                     * again, or until a new email is added or an item is
+                     * released. Idle SMTP connections are closed on time
+                     * in the meantime.
+                     */
+                    transportPool.evictIdle();
+                    if (running) scheduler.await(Math.min(nextAttempt, transportPool.getNextEviction()));
+                }
+            } catch (InterruptedException e) {
+                running = false;
             } catch (UnsupportedOperationException t) {
-                if (qi != null) release(qi);
+                if (dCtx != null) release(dCtx);
+                else if (qi != null) {
+                    if (permit != null) permit.release();
+                    release(qi);
+                }
+            } finally {
+                if (acquired) deliveryExecutor.release();
             }
 
         }
         AspirinInternal.getLogger().info("DeliveryManager terminated.");
     }
 
+    private void dispatchToDeliveryThread(@NotNull DeliveryContext dCtx) {
+        AspirinInternal.getLogger().trace(
+                "DeliveryManager.run(): Pool state. A{}/I{}",
+                deliveryThreadObjectPool.getNumActive(),
+                deliveryThreadObjectPool.getNumIdle());
+
+        try {
+            AspirinInternal.getLogger().debug("DeliveryManager.run(): Start delivery. qi={}", dCtx.getQueueInfo());
+            DeliveryThread dThread = (DeliveryThread) deliveryThreadObjectPool.borrowObject();
+
+            AspirinInternal.getLogger().trace(
+                    "DeliveryManager.run(): Borrow DeliveryThread object. dt={}: state '{}/{}'",
+                    new Object[]{dThread.getName(), dThread.getState().name(), dThread.isAlive()});
+
+            dThread.setContext(dCtx);
+            /*
+             * On first borrow the DeliveryThread is created and
+             * initialized, but not started, because the first
+             * time we have to set up the QueItem to deliver.
+             */
+            if (!dThread.isAlive())
+                dThread.start();
+        } catch (IllegalStateException ise) {
+            /*
+             * This could be happen, if thread is running, but
+             * ObjectPool is already closed. It is a normal process
+             * of Aspirin sending thread shutdown.
+             */
+            release(dCtx);
+        } catch (NoSuchElementException nsee) {
+            /*
+             * This happens if there is a lot of mail to send, and
+             * no idle DeliveryThread is available.
+             */
+            AspirinInternal.getLogger().debug("DeliveryManager.run(): No idle DeliveryThread is available: {}", nsee.getMessage());
+            release(dCtx);
+        } catch (Exception e) {
+            AspirinInternal.getLogger().error("DeliveryManager.run(): Failed borrow delivery thread object.", e);
+            release(dCtx);
+        }
+    }
+
     public boolean isRunning() {
         return running;
     }
 
     public void terminate() {
         running = false;
+        scheduler.signal();
     }
 
     public void release(@NotNull QueueInfo qi) {
@@ -223,6 +378,21 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         AspirinInternal.getLogger().trace(
                 "DeliveryManager.release(): Release item '{}' with state: '{}' after {} attempts.",
                 new Object[]{qi.getMailid(), qi.getState().name(), qi.getAttemptCount()});
+
+        scheduler.signal();
+    }
+
+    /**
+     * Release all QueueInfo objects delivered in the given context.
+     *
+     * @param dCtx The delivery context.
+     */
+    public void release(@NotNull DeliveryContext dCtx) {
+        Objects.requireNonNull(dCtx, "dCtx");
+        // The slot of the domain is free before the items are signalled
+        TrafficShaper.Permit permit = dCtx.getTrafficPermit();
+        if (permit != null) permit.release();
+        dCtx.getQueueInfos().forEach(this::release);
     }
 
     public boolean isCompleted(@NotNull QueueInfo qi) {
@@ -237,10 +407,15 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         synchronized (mailingLock) {
             if (parameterName.equals(ConfigurationMBean.PARAM_MAILSTORE_CLASS))
                 mailStore = AspirinInternal.getConfiguration().getMailStore();
-            else if (parameterName.equals(ConfigurationMBean.PARAM_QUEUESTORE_CLASS))
+            else if (parameterName.equals(ConfigurationMBean.PARAM_QUEUESTORE_CLASS)) {
                 queueStore = AspirinInternal.getConfiguration().getQueueStore();
-            if (parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX))
+                scheduler.signal();
+            }
+            if (parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_ACTIVE_MAX)) {
                 ((GenericObjectPool) deliveryThreadObjectPool).setMaxActive(AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+                if (deliveryExecutor != null)
+                    deliveryExecutor.setLimit(AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax());
+            }
             else if (parameterName.equals(ConfigurationMBean.PARAM_DELIVERY_THREADS_IDLE_MAX))
                 ((GenericObjectPool) deliveryThreadObjectPool).setMaxIdle(AspirinInternal.getConfiguration().getDeliveryThreadsIdleMax());
         }
@@ -252,8 +427,53 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
         return deliveryHandlers.get(handlerName);
     }
 
+    /**
+     * @return Histogram of the latency between the moment when a QueueInfo
+     * became sendable (queued or its next attempt time passed) and the moment
+     * when it was handed over to delivery. Use getPercentile(50) and
+     * getPercentile(99) to get p50 and p99 values.
+     */
+    @NotNull
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * @return Executor of deliveries, or null if deliveries run on the pool
+     * of DeliveryThread objects.
+     */
+    @Nullable
+    public DeliveryExecutor getDeliveryExecutor() {
+        return deliveryExecutor;
+    }
+
+    /**
+     * @return Pool of open SMTP connections used by {@link SendMessage}.
+     */
+    @NotNull
+    public TransportPool getTransportPool() {
+        return transportPool;
+    }
+
+    /**
+     * @return Health of mail servers, shared by the deliveries.
+     */
+    @NotNull
+    public HostHealthRegistry getHostHealthRegistry() {
+        return hostHealthRegistry;
+    }
+
+    /**
+     * @return Limiter of deliveries per recipient domain.
+     */
+    @NotNull
+    public TrafficShaper getTrafficShaper() {
+        return trafficShaper;
+    }
+
     public void shutdown() {
         running = false;
+        scheduler.signal();
 
         try {
             deliveryThreadObjectPool.close();
@@ -262,6 +482,52 @@ public final class DeliveryManager extends Thread implements ConfigurationChange
             AspirinInternal.getLogger().error("DeliveryManager.shutdown() failed.", e);
         }
 
+        if (deliveryExecutor != null) deliveryExecutor.shutdown();
+
+        transportPool.close();
+
         maintenanceThread.shutdown();
+
+        // Buffered changes of persistent stores are written out
+        queueStore.close();
+        mailStore.close();
+    }
+
+    /**
+     * Buffer of a rendered message with a size limit, which gives its
+     * content to a SharedByteArrayInputStream without copy.
+     */
+    private static final class RenderBuffer extends ByteArrayOutputStream {
+        private final int sizeMax;
+
+        RenderBuffer(int sizeMax) {
+            super(Math.min(sizeMax, 64 * 1024));
+            this.sizeMax = sizeMax;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (sizeMax < count + 1) throw new SizeExceededException();
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(@NotNull byte[] b, int off, int len) {
+            if (sizeMax - count < len) throw new SizeExceededException();
+            super.write(b, off, len);
+        }
+
+        @NotNull
+        InputStream toInputStream() {
+            return new SharedByteArrayInputStream(buf, 0, count);
+        }
+
+        private static final class SizeExceededException extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            SizeExceededException() {
+                super(null, null, false, false);
+            }
+        }
     }
 }
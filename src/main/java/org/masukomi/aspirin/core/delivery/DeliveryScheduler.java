@@ -0,0 +1,59 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>This object controls the sleeping of the {@link DeliveryManager}. The
+ * manager asks the queue store for the time of the next due QueueInfo and
+ * sleeps exactly until that time. Adding or releasing an item signals the
+ * scheduler, so the manager wakes up immediately and checks the queue
+ * again.</p>
+ *
+ * <p>A signal which arrives while the manager is not waiting is kept, so the
+ * next wait returns immediately. This prevents lost wake-ups between the
+ * queue check and the wait.</p>
+ */
+public class DeliveryScheduler {
+    @NotNull
+    private final Object lock = new Object();
+    private boolean signalled;
+
+    /**
+     * Wake up the waiting thread, or the next one which will wait.
+     */
+    public void signal() {
+        synchronized (lock) {
+            signalled = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the given attempt time is passed or a signal arrives.
+     *
+     * @param nextAttempt Epoch timestamp in milliseconds of the next due
+     *                    QueueInfo. If it is Long.MAX_VALUE, then we wait for a
+     *                    signal only.
+     * @throws InterruptedException If the waiting thread was interrupted.
+     */
+    public void await(long nextAttempt) throws InterruptedException {
+        synchronized (lock) {
+            while (!signalled) {
+                if (nextAttempt == Long.MAX_VALUE) {
+                    lock.wait();
+                    continue;
+                }
+
+                /*
+                 * A QueueInfo is sendable if its attempt is before the current
+                 * time, so we have to wake up one millisecond after it.
+                 */
+                long delay = nextAttempt + 1L - System.currentTimeMillis();
+                if (delay <= 0L) break;
+                lock.wait(delay);
+            }
+
+            signalled = false;
+        }
+    }
+}
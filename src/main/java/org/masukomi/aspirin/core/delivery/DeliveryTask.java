@@ -0,0 +1,98 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.dns.ResolveHost;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+import java.util.Objects;
+
+/**
+ * <p>Delivery of one {@link DeliveryContext}. It is run by a
+ * {@link DeliveryExecutor}, and the delivery logic is shared with the pooled
+ * {@link DeliveryThread} objects.</p>
+ */
+final class DeliveryTask implements Runnable {
+    @NotNull
+    private final DeliveryContext dCtx;
+
+    DeliveryTask(@NotNull DeliveryContext dCtx) {
+        this.dCtx = Objects.requireNonNull(dCtx, "dCtx");
+    }
+
+    /**
+     * Run the delivery handlers on the context and set the state of its
+     * QueueInfo objects by the result. The QueueInfo objects are not
+     * released.
+     *
+     * @param workerName Name of the thread used in logs.
+     * @param dCtx       The delivery context.
+     */
+    static void deliver(@NotNull String workerName, @NotNull DeliveryContext dCtx) {
+        AspirinInternal.getLogger().info(
+                "DeliveryTask ({}).deliver(): Starting mail delivery. qi={}",
+                workerName,
+                dCtx);
+
+        for (String handlerName : new String[]{
+                ResolveHost.class.getCanonicalName(),
+                SendMessage.class.getCanonicalName()
+        }) {
+            try {
+                AspirinInternal.getDeliveryManager().getDeliveryHandler(handlerName).handle(dCtx);
+            } catch (DeliveryException de) {
+                AspirinInternal.getLogger().info(
+                        "DeliveryTask ({}).deliver(): Mail delivery failed: {}. qi={}",
+                        new Object[]{workerName, de.getMessage(), dCtx});
+
+                /*
+                 * Recipients rejected one by one were already set by the
+                 * handler, the others share the result of the transaction.
+                 */
+                for (QueueInfo qInfo : dCtx.getQueueInfos()) {
+                    if (!qInfo.hasState(DeliveryState.IN_PROGRESS))
+                        continue;
+
+                    qInfo.setResultInfo(de.getMessage());
+
+                    if (de.isPermanent())
+                        qInfo.setState(DeliveryState.FAILED);
+                    else
+                        qInfo.setState(DeliveryState.QUEUED);
+                }
+
+                return;
+            }
+        }
+
+        for (QueueInfo qInfo : dCtx.getQueueInfos()) {
+            if (qInfo.hasState(DeliveryState.IN_PROGRESS)) {
+                if (qInfo.getResultInfo() == null)
+                    qInfo.setResultInfo("250 OK");
+
+                AspirinInternal.getLogger().info(
+                        "DeliveryTask ({}).deliver(): Mail delivery success: {}. qi={}",
+                        new Object[]{workerName, qInfo.getResultInfo(), qInfo});
+
+                qInfo.setState(DeliveryState.SENT);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread thread = Thread.currentThread();
+        // Virtual threads have no name
+        String workerName = thread.getName().isEmpty() ? getClass().getSimpleName() + "-" + thread.getId() : thread.getName();
+
+        try {
+            AspirinInternal.getLogger().trace("DeliveryTask ({}).run(): Call delivering... dCtx={}", workerName, dCtx);
+            deliver(workerName, dCtx);
+        } catch (Exception e) {
+            AspirinInternal.getLogger().error("DeliveryTask (" + workerName + ").run(): Could not deliver message. dCtx={" + dCtx + "}", e);
+        } finally {
+            AspirinInternal.getDeliveryManager().release(dCtx);
+        }
+    }
+}
@@ -4,9 +4,7 @@ import org.apache.commons.pool.ObjectPool;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.masukomi.aspirin.core.AspirinInternal;
-import org.masukomi.aspirin.core.dns.ResolveHost;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
-import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
 import javax.mail.MessagingException;
 
@@ -66,7 +64,7 @@ public class DeliveryThread extends Thread {
                                     getName(),
                                     dCtx);
 
-                            AspirinInternal.getDeliveryManager().release(dCtx.getQueueInfo());
+                            AspirinInternal.getDeliveryManager().release(dCtx);
                             dCtx = null;
                         }
                         running = false;
@@ -89,7 +87,7 @@ public class DeliveryThread extends Thread {
                             dCtx);
 
                     deliver(dCtx);
-                    AspirinInternal.getDeliveryManager().release(dCtx.getQueueInfo());
+                    AspirinInternal.getDeliveryManager().release(dCtx);
                     dCtx = null;
                 }
             } catch (Exception e) {
@@ -101,7 +99,7 @@ public class DeliveryThread extends Thread {
                  * After releasing the dCtx variable will be nullified.
                  */ {
                 if (dCtx != null && !dCtx.getQueueInfo().isSendable()) {
-                    AspirinInternal.getDeliveryManager().release(dCtx.getQueueInfo());
+                    AspirinInternal.getDeliveryManager().release(dCtx);
                     dCtx = null;
                 }
             }
@@ -136,45 +134,7 @@ public class DeliveryThread extends Thread {
     }
 
     private void deliver(@NotNull DeliveryContext dCtx) {
-        AspirinInternal.getLogger().info(
-                "DeliveryThread ({}).deliver(): Starting mail delivery. qi={}",
-                getName(),
-                dCtx);
-
-        QueueInfo qInfo = dCtx.getQueueInfo();
-
-        for (String handlerName : new String[]{
-                ResolveHost.class.getCanonicalName(),
-                SendMessage.class.getCanonicalName()
-        }) {
-            try {
-                AspirinInternal.getDeliveryManager().getDeliveryHandler(handlerName).handle(dCtx);
-            } catch (DeliveryException de) {
-                qInfo.setResultInfo(de.getMessage());
-
-                AspirinInternal.getLogger().info(
-                        "DeliveryThread ({}).deliver(): Mail delivery failed: {}. qi={}",
-                        new Object[]{getName(), qInfo.getResultInfo(), dCtx});
-
-                if (de.isPermanent())
-                    qInfo.setState(DeliveryState.FAILED);
-                else
-                    qInfo.setState(DeliveryState.QUEUED);
-
-                return;
-            }
-        }
-
-        if (qInfo.hasState(DeliveryState.IN_PROGRESS)) {
-            if (qInfo.getResultInfo() == null)
-                qInfo.setResultInfo("250 OK");
-
-            AspirinInternal.getLogger().info(
-                    "DeliveryThread ({}).deliver(): Mail delivery success: {}. qi={}",
-                    new Object[]{getName(), qInfo.getResultInfo(), dCtx});
-
-            qInfo.setState(DeliveryState.SENT);
-        }
+        DeliveryTask.deliver(getName(), dCtx);
     }
 
 }
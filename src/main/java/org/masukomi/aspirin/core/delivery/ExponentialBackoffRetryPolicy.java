@@ -0,0 +1,216 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>This retry policy doubles the delay after every attempt, from an
+ * initial delay up to a maximal delay, both chosen by the result of the
+ * last attempt: the SMTP reply code, the enhanced status code and the
+ * reply text. Results without reply code are failures of connecting or
+ * resolving (exceptions).</p>
+ *
+ * <table>
+ *   <caption>Default delays</caption>
+ *   <tr><th>Class</th><th>Result</th><th>Initial</th><th>Maximal</th></tr>
+ *   <tr><td>RATE_LIMITED</td><td>421, or rate limit / too many / throttling
+ *   in the reply</td><td>10 min</td><td>2 h</td></tr>
+ *   <tr><td>GREYLISTED</td><td>greylisting in the reply, or 450/451 with
+ *   4.7.1</td><td>2 min</td><td>20 min</td></tr>
+ *   <tr><td>MAILBOX_FULL</td><td>4.2.2, or full mailbox / quota in the
+ *   reply</td><td>30 min</td><td>6 h</td></tr>
+ *   <tr><td>TEMPORARY</td><td>other replies</td><td>5 min</td><td>1 h</td></tr>
+ *   <tr><td>CONNECTION</td><td>no reply</td><td>5 min</td><td>1 h</td></tr>
+ * </table>
+ *
+ * <p>Every delay is shortened by a random part up to the jitter (a quarter
+ * by default), so items failed together are not tried again together.</p>
+ *
+ * <p>Items are tried until the deadline after they were queued
+ * (aspirin.delivery.retry.deadline). If the next delay would pass the
+ * deadline, the last attempt is just before it. The count of attempts is
+ * not limited by default, aspirin.delivery.attempt.count and
+ * aspirin.delivery.attempt.delay are used only by the
+ * {@link FixedDelayRetryPolicy}.</p>
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+    private static final long DEADLINE_MARGIN = 1000L;
+    @NotNull
+    private static final Pattern REPLY_PATTERN = Pattern.compile("^\\s*([2-5]\\d\\d)(?:[ -]+([2-5]\\.\\d{1,3}\\.\\d{1,3}))?");
+    @NotNull
+    private static final Pattern RATE_LIMITED_PATTERN = Pattern.compile("rate.?limit|too many|throttl");
+    @NotNull
+    private static final Pattern GREYLISTED_PATTERN = Pattern.compile("gr[ea]ylist");
+    @NotNull
+    private static final Pattern MAILBOX_FULL_PATTERN = Pattern.compile("mailbox (is )?full|quota");
+    @NotNull
+    private final Map<ReplyClass, long[]> delays = new EnumMap<>(ReplyClass.class);
+    private volatile double jitter = 0.25;
+    private volatile long deadline = -1L;
+    private volatile int attemptCountMax;
+
+    public ExponentialBackoffRetryPolicy() {
+        delays.put(ReplyClass.RATE_LIMITED, new long[]{600000L, 7200000L});
+        delays.put(ReplyClass.GREYLISTED, new long[]{120000L, 1200000L});
+        delays.put(ReplyClass.MAILBOX_FULL, new long[]{1800000L, 21600000L});
+        delays.put(ReplyClass.TEMPORARY, new long[]{300000L, 3600000L});
+        delays.put(ReplyClass.CONNECTION, new long[]{300000L, 3600000L});
+    }
+
+    /**
+     * @param resultInfo The result info of a delivery attempt.
+     * @return Class of the result.
+     */
+    @NotNull
+    static ReplyClass classify(@Nullable String resultInfo) {
+        if (resultInfo == null) return ReplyClass.CONNECTION;
+        Matcher matcher = REPLY_PATTERN.matcher(resultInfo);
+        if (!matcher.find()) return ReplyClass.CONNECTION;
+
+        int code = Integer.parseInt(matcher.group(1));
+        String status = matcher.group(2);
+        String text = resultInfo.toLowerCase(Locale.ENGLISH);
+
+        if (code / 100 != 4) return ReplyClass.TEMPORARY;
+        if (code == 421 || RATE_LIMITED_PATTERN.matcher(text).find()) return ReplyClass.RATE_LIMITED;
+        if (GREYLISTED_PATTERN.matcher(text).find() || ((code == 450 || code == 451) && "4.7.1".equals(status)))
+            return ReplyClass.GREYLISTED;
+        if ("4.2.2".equals(status) || MAILBOX_FULL_PATTERN.matcher(text).find()) return ReplyClass.MAILBOX_FULL;
+        return ReplyClass.TEMPORARY;
+    }
+
+    @Override
+    public long getNextAttempt(@NotNull QueueInfo qi, long now) {
+        Objects.requireNonNull(qi, "qi");
+        long[] classDelays;
+
+        synchronized (delays) {
+            classDelays = delays.get(classify(qi.getResultInfo()));
+        }
+
+        double delay = Math.min(classDelays[1], classDelays[0] * Math.pow(2.0, Math.min(qi.getAttemptCount(), 62)));
+        long attempt = now + (long) (delay * (1.0 - jitter * ThreadLocalRandom.current().nextDouble()));
+        long deadlineTime = getDeadlineTime(qi);
+
+        if (deadlineTime - DEADLINE_MARGIN < attempt) {
+            // The last attempt is just before the deadline, if there is time for it
+            long lastAttempt = deadlineTime - DEADLINE_MARGIN;
+            attempt = now < lastAttempt ? lastAttempt : deadlineTime;
+        }
+
+        return attempt;
+    }
+
+    @Override
+    public boolean isInBounds(@NotNull QueueInfo qi, long now) {
+        Objects.requireNonNull(qi, "qi");
+        int countMax = attemptCountMax;
+        return now < getDeadlineTime(qi) && (countMax <= 0 || qi.getAttemptCount() < countMax);
+    }
+
+    private long getDeadlineTime(@NotNull QueueInfo qi) {
+        long currentDeadline = getDeadline();
+        if (currentDeadline <= 0L || Long.MAX_VALUE - qi.getCreated() < currentDeadline) return Long.MAX_VALUE;
+        return qi.getCreated() + currentDeadline;
+    }
+
+    /**
+     * Set the delays of a class of results.
+     *
+     * @param replyClass   The class of results.
+     * @param initialDelay Delay after the first attempt in milliseconds.
+     * @param maxDelay     Maximal delay in milliseconds.
+     */
+    public void setDelays(@NotNull ReplyClass replyClass, long initialDelay, long maxDelay) {
+        Objects.requireNonNull(replyClass, "replyClass");
+
+        synchronized (delays) {
+            delays.put(replyClass, new long[]{Math.max(0L, initialDelay), Math.max(initialDelay, maxDelay)});
+        }
+    }
+
+    /**
+     * @return Delay after the first attempt of the class in milliseconds.
+     */
+    public long getInitialDelay(@NotNull ReplyClass replyClass) {
+        synchronized (delays) {
+            return delays.get(Objects.requireNonNull(replyClass, "replyClass"))[0];
+        }
+    }
+
+    /**
+     * @return Maximal delay of the class in milliseconds.
+     */
+    public long getMaxDelay(@NotNull ReplyClass replyClass) {
+        synchronized (delays) {
+            return delays.get(Objects.requireNonNull(replyClass, "replyClass"))[1];
+        }
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Set the random part of the delays.
+     *
+     * @param jitter Rate of the delay between 0 and 1. If 0, then the delays
+     *               are not randomized.
+     */
+    public void setJitter(double jitter) {
+        this.jitter = Math.max(0.0, Math.min(1.0, jitter));
+    }
+
+    /**
+     * @return Time in milliseconds after queueing, until the items are tried.
+     */
+    public long getDeadline() {
+        long currentDeadline = deadline;
+        return currentDeadline < 0L ? AspirinInternal.getConfiguration().getDeliveryRetryDeadline() : currentDeadline;
+    }
+
+    /**
+     * Set the deadline of the items. If 0, then the items are tried forever
+     * (or until their expiry).
+     *
+     * @param deadline Time in milliseconds after queueing.
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = Math.max(0L, deadline);
+    }
+
+    public int getAttemptCountMax() {
+        return attemptCountMax;
+    }
+
+    /**
+     * Set the maximal count of attempts. If 0, then the count is not
+     * limited, only the time by the deadline.
+     *
+     * @param attemptCountMax The count of attempts.
+     */
+    public void setAttemptCountMax(int attemptCountMax) {
+        this.attemptCountMax = Math.max(0, attemptCountMax);
+    }
+
+    /**
+     * Class of a delivery result, with its own delays.
+     */
+    public enum ReplyClass {
+        RATE_LIMITED,
+        GREYLISTED,
+        MAILBOX_FULL,
+        TEMPORARY,
+        CONNECTION
+    }
+}
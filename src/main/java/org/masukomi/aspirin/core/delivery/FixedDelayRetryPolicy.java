@@ -0,0 +1,22 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+/**
+ * This is the default retry policy: every item is tried again after the
+ * same delay (aspirin.delivery.attempt.delay), up to a count of attempts
+ * (aspirin.delivery.attempt.count), whatever the result was.
+ */
+public class FixedDelayRetryPolicy implements RetryPolicy {
+    @Override
+    public long getNextAttempt(@NotNull QueueInfo qi, long now) {
+        return now + AspirinInternal.getConfiguration().getDeliveryAttemptDelay();
+    }
+
+    @Override
+    public boolean isInBounds(@NotNull QueueInfo qi, long now) {
+        return qi.getAttemptCount() < AspirinInternal.getConfiguration().getDeliveryAttemptCount();
+    }
+}
@@ -0,0 +1,186 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.URLName;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>This object tracks the health of mail servers (MX hosts), shared by
+ * every delivery, so a dead server costs a connection timeout only a few
+ * times instead of on every delivery.</p>
+ *
+ * <p>After {@value #FAILURE_THRESHOLD} consecutive connection or I/O
+ * failures the circuit of a host is opened: deliveries skip it for a
+ * back-off time, configured by aspirin.delivery.host.backoff. When the
+ * back-off time is over, only one delivery tries the host (probe). If the
+ * probe succeeds, the circuit is closed, otherwise it is opened again for
+ * a doubled back-off time, up to {@value #BACKOFF_FACTOR_MAX} times the
+ * configured one. Any SMTP reply, even a rejection, counts as a
+ * success.</p>
+ *
+ * <p>Ordering is stricter than the circuit: a host is tried after the
+ * healthy ones from its first failure, while it is skipped only after
+ * {@value #FAILURE_THRESHOLD} failures. A single failure costs a place in
+ * the MX order, not the host.</p>
+ *
+ * <p>Hosts are keyed by their URLName (host and port) like in the
+ * {@link TransportPool}.</p>
+ */
+public class HostHealthRegistry {
+    static final int FAILURE_THRESHOLD = 2;
+    static final int BACKOFF_FACTOR_MAX = 32;
+    @NotNull
+    private final Map<String, Health> hosts = new ConcurrentHashMap<>();
+    @NotNull
+    private final LongSupplier clock;
+
+    public HostHealthRegistry() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Gives back the current time in milliseconds.
+     */
+    HostHealthRegistry(@NotNull LongSupplier clock) {
+        this.clock = Objects.requireNonNull(clock, "clock");
+    }
+
+    @NotNull
+    private static String createKey(@NotNull URLName url) {
+        // URLName.equals() resolves host names, so we use the string form.
+        return url.toString();
+    }
+
+    /**
+     * Order mail servers by their health. Hosts without failures keep their
+     * MX order and come first, then the hosts which failed since their last
+     * success, even if their circuit is not open yet.
+     *
+     * @param targetServers The mail servers in MX order.
+     * @return A new list of the mail servers.
+     */
+    @NotNull
+    public List<URLName> order(@NotNull Iterable<URLName> targetServers) {
+        Objects.requireNonNull(targetServers, "targetServers");
+        List<URLName> healthy = new ArrayList<>();
+        List<URLName> failing = new ArrayList<>();
+
+        for (URLName url : targetServers) {
+            Health health = hosts.get(createKey(url));
+            if (health == null || health.failures == 0) healthy.add(url);
+            else failing.add(url);
+        }
+
+        healthy.addAll(failing);
+        return healthy;
+    }
+
+    /**
+     * Ask if a mail server could be tried now. If its circuit is open and
+     * the back-off time is over, then the caller becomes the probe of the
+     * host, and it has to report the result.
+     *
+     * @param url The mail server.
+     * @return False, if the circuit of the host is open.
+     */
+    public boolean allow(@NotNull URLName url) {
+        Objects.requireNonNull(url, "url");
+        Health health = hosts.get(createKey(url));
+        if (health == null) return true;
+
+        synchronized (health) {
+            long now = clock.getAsLong();
+            if (health.openUntil == 0L) return true;
+            if (now < health.openUntil) return false;
+
+            // One probe at a time, a lost probe is replaced after the delivery timeout
+            if (health.probeStart != 0L && now - health.probeStart < AspirinInternal.getConfiguration().getDeliveryTimeout())
+                return false;
+            health.probeStart = now;
+            return true;
+        }
+    }
+
+    /**
+     * Report that the mail server answered.
+     *
+     * @param url The mail server.
+     */
+    public void recordSuccess(@NotNull URLName url) {
+        Objects.requireNonNull(url, "url");
+        Health health = hosts.remove(createKey(url));
+
+        if (health != null && health.openUntil != 0L)
+            AspirinInternal.getLogger().info("HostHealthRegistry.recordSuccess(): Circuit of '{}' is closed.", url);
+    }
+
+    /**
+     * Report that the mail server could not be connected, or the connection
+     * failed or timed out.
+     *
+     * @param url The mail server.
+     */
+    public void recordFailure(@NotNull URLName url) {
+        Objects.requireNonNull(url, "url");
+        Health health = hosts.computeIfAbsent(createKey(url), key -> new Health());
+        long backoff = 0L;
+
+        synchronized (health) {
+            health.failures++;
+
+            if (FAILURE_THRESHOLD <= health.failures && (health.openUntil == 0L || health.probeStart != 0L)) {
+                // A failed probe doubles the back-off time
+                health.backoffFactor = health.openUntil == 0L ? 1 : Math.min(BACKOFF_FACTOR_MAX, health.backoffFactor * 2);
+                backoff = health.backoffFactor * (long) AspirinInternal.getConfiguration().getDeliveryHostBackoff();
+                health.openUntil = clock.getAsLong() + backoff;
+                health.probeStart = 0L;
+            }
+        }
+
+        if (0L < backoff)
+            AspirinInternal.getLogger().warn("HostHealthRegistry.recordFailure(): Circuit of '{}' is open for {} ms.", url, backoff);
+    }
+
+    /**
+     * @param url The mail server.
+     * @return True, if the circuit of the host is open, and it is not tried
+     * until its back-off time is over.
+     */
+    public boolean isOpen(@NotNull URLName url) {
+        Health health = hosts.get(createKey(Objects.requireNonNull(url, "url")));
+        return health != null && health.openUntil != 0L;
+    }
+
+    /**
+     * @return Hosts with open circuit.
+     */
+    @NotNull
+    public List<String> getOpenHosts() {
+        List<String> openHosts = new ArrayList<>();
+        hosts.forEach((key, health) -> {
+            if (health.openUntil != 0L) openHosts.add(key);
+        });
+        return openHosts;
+    }
+
+    /**
+     * Close every circuit.
+     */
+    public void clear() {
+        hosts.clear();
+    }
+
+    /**
+     * State of a host, guarded by itself.
+     */
+    private static final class Health {
+        private volatile int failures;
+        private volatile long openUntil;
+        private long probeStart;
+        private int backoffFactor = 1;
+    }
+}
@@ -0,0 +1,98 @@
+package org.masukomi.aspirin.core.delivery;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Lock-free histogram of latency values in milliseconds. Values are
+ * collected into log-linear buckets (8 sub-buckets in every power of two), so
+ * the reported percentiles have at most 12.5% relative error and recording is
+ * a single atomic increment.</p>
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + 59 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_BUCKETS) return (int) value;
+
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - 3;
+        int sub = (int) (value >>> shift);
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < LINEAR_BUCKETS) return index;
+
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1L) << shift) - 1L;
+    }
+
+    /**
+     * Record a latency value.
+     *
+     * @param millis Latency in milliseconds. Negative values are counted as
+     *               zero.
+     */
+    public void record(long millis) {
+        buckets.incrementAndGet(indexOf(Math.max(0L, millis)));
+    }
+
+    /**
+     * @return Count of recorded values.
+     */
+    public long getCount() {
+        long count = 0L;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            count += buckets.get(i);
+        return count;
+    }
+
+    /**
+     * @param percentile Requested percentile between 0 and 100, for example 99
+     *                   for p99.
+     * @return Latency value in milliseconds, which is not exceeded by the
+     * given percent of the recorded values. If nothing was recorded, it gives
+     * back 0.
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0L;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            count += snapshot[i];
+        }
+
+        if (count == 0L) return 0L;
+
+        long rank = (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count);
+        long seen = 0L;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1L, rank)) return upperBoundOf(i);
+        }
+
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Remove all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets.set(i, 0L);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [count=" + getCount() +
+                "; p50=" + getPercentile(50.0) +
+                "; p99=" + getPercentile(99.0) + "]";
+    }
+}
@@ -0,0 +1,32 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+/**
+ * <p>This object decides when a temporarily failed delivery is tried again,
+ * and when it is given up. The queue stores ask it after every delivery
+ * attempt.</p>
+ *
+ * <p>The implementation is configured by the
+ * aspirin.delivery.retry.policy.class parameter, built-in ones are
+ * {@link FixedDelayRetryPolicy} (default) and
+ * {@link ExponentialBackoffRetryPolicy}. Implementations have to be thread
+ * safe and have a public constructor without parameters.</p>
+ */
+public interface RetryPolicy {
+    /**
+     * @param qi  The item after a delivery attempt, with its result info.
+     *            Its attempt count is the count of the earlier attempts.
+     * @param now Current epoch timestamp in milliseconds.
+     * @return Epoch timestamp in milliseconds of the next attempt.
+     */
+    long getNextAttempt(@NotNull QueueInfo qi, long now);
+
+    /**
+     * @param qi  The item to be delivered.
+     * @param now Current epoch timestamp in milliseconds.
+     * @return False, if the item should not be tried again, it fails.
+     */
+    boolean isInBounds(@NotNull QueueInfo qi, long now);
+}
@@ -1,21 +1,25 @@
 package org.masukomi.aspirin.core.delivery;
 
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
 import com.sun.mail.smtp.SMTPTransport;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
+import javax.mail.Address;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.URLName;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import java.net.ConnectException;
-import java.util.Iterator;
-import java.util.Objects;
-import java.util.Properties;
+import java.io.IOException;
+import java.util.*;
 
 /**
  * @author Laszlo Solova
@@ -37,6 +41,108 @@ public class SendMessage implements DeliveryHandler {
         return lastException;
     }
 
+    /**
+     * Classify a failed transaction for the adaptive concurrency. Deferrals
+     * and failed connections mean load, permanent rejections show a working
+     * server.
+     */
+    @NotNull
+    private static AdaptiveConcurrencyController.Outcome classify(@NotNull MessagingException me) {
+        boolean rejected = false;
+        Exception exception = me;
+
+        while (exception instanceof MessagingException) {
+            int returnCode = -1;
+            if (exception instanceof SMTPAddressFailedException)
+                returnCode = ((SMTPAddressFailedException) exception).getReturnCode();
+            else if (exception instanceof SMTPSendFailedException)
+                returnCode = ((SMTPSendFailedException) exception).getReturnCode();
+
+            if (returnCode / 100 == 4) return AdaptiveConcurrencyController.Outcome.DEFERRED;
+            if (returnCode / 100 == 5) rejected = true;
+            exception = ((MessagingException) exception).getNextException();
+        }
+
+        if (rejected) return AdaptiveConcurrencyController.Outcome.SUCCESS;
+        String exMessage = resolveException(me).getMessage();
+        if (exMessage != null && exMessage.startsWith("4")) return AdaptiveConcurrencyController.Outcome.DEFERRED;
+        if (exMessage != null && exMessage.startsWith("5")) return AdaptiveConcurrencyController.Outcome.SUCCESS;
+        return AdaptiveConcurrencyController.Outcome.FAILED;
+    }
+
+    /**
+     * @return True, if the mail server could not be connected, or the
+     * connection failed or timed out, so it did not answer.
+     */
+    private static boolean isHostFailure(@NotNull MessagingException me) {
+        if (me instanceof SendFailedException) return false;
+        Exception exception = me;
+
+        while (exception instanceof MessagingException) {
+            Exception nextException = ((MessagingException) exception).getNextException();
+            if (nextException instanceof IOException) return true;
+            exception = nextException;
+        }
+
+        return false;
+    }
+
+    @NotNull
+    private static String createRecipientKey(@NotNull Address address) {
+        String recipient = address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+        return recipient.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Set the results of the recipients of a multi-recipient transaction
+     * from the RCPT TO replies. Rejected recipients are FAILED or QUEUED by
+     * the reply code, accepted recipients get the server response and they
+     * are set to SENT later by the DeliveryThread.
+     *
+     * @param sfe        The exception thrown by the transport.
+     * @param recipients QueueInfo objects of the transaction by recipient.
+     * @param response   The last server response after the transaction.
+     * @return True, if the message was delivered to at least one recipient.
+     */
+    static boolean applyRecipientResults(@NotNull SendFailedException sfe, @NotNull Map<String, QueueInfo> recipients, @Nullable String response) {
+        Exception nextException = sfe.getNextException();
+
+        while (nextException instanceof MessagingException) {
+            if (nextException instanceof SMTPAddressFailedException) {
+                SMTPAddressFailedException afe = (SMTPAddressFailedException) nextException;
+                QueueInfo qi = recipients.get(createRecipientKey(afe.getAddress()));
+
+                if (qi != null && qi.hasState(DeliveryState.IN_PROGRESS)) {
+                    qi.setResultInfo(afe.getMessage());
+                    qi.setState(afe.getReturnCode() / 100 == 5 ? DeliveryState.FAILED : DeliveryState.QUEUED);
+                }
+            }
+
+            nextException = ((MessagingException) nextException).getNextException();
+        }
+
+        Address[] validSent = sfe.getValidSentAddresses();
+        if (validSent == null || validSent.length == 0) return false;
+
+        Set<QueueInfo> sent = new HashSet<>();
+        for (Address address : validSent) {
+            QueueInfo qi = recipients.get(createRecipientKey(address));
+            if (qi != null) sent.add(qi);
+        }
+
+        // Recipients without RCPT TO result were not delivered, they will be tried again
+        recipients.values().forEach(qi -> {
+            if (sent.contains(qi)) {
+                if (response != null) qi.setResultInfo(response);
+            } else if (qi.hasState(DeliveryState.IN_PROGRESS)) {
+                qi.setResultInfo(resolveException(sfe).getMessage());
+                qi.setState(DeliveryState.QUEUED);
+            }
+        });
+
+        return true;
+    }
+
     @Override
     public void handle(@NotNull DeliveryContext dCtx) throws DeliveryException {
         Objects.requireNonNull(dCtx, "dCtx");
@@ -46,24 +152,46 @@ public class SendMessage implements DeliveryHandler {
         MimeMessage message = dCtx.getMessage();
 
         // Prepare and send
-        Iterator<URLName> urlnIt = targetServers.iterator();
-        InternetAddress[] addr;
+        HostHealthRegistry hostHealthRegistry = AspirinInternal.getDeliveryManager().getHostHealthRegistry();
+        // Failing mail servers are tried after the healthy ones
+        List<URLName> servers = hostHealthRegistry.order(targetServers);
+        ListIterator<URLName> urlnIt = servers.listIterator();
+        Map<String, QueueInfo> recipients = new LinkedHashMap<>();
+        List<InternetAddress> addrList = new ArrayList<>(dCtx.getQueueInfos().size());
+        AddressException addressException = null;
 
-        try {
-            addr = new InternetAddress[]{new InternetAddress(dCtx.getQueueInfo().getRecipient())};
-        } catch (AddressException e) {
-            throw new DeliveryException("Recipient could not be parsed:" + dCtx.getQueueInfo().getRecipient(), true, e);
+        for (QueueInfo qi : dCtx.getQueueInfos()) {
+            try {
+                InternetAddress address = new InternetAddress(qi.getRecipient());
+                addrList.add(address);
+                recipients.put(createRecipientKey(address), qi);
+            } catch (AddressException e) {
+                addressException = e;
+                qi.setResultInfo("Recipient could not be parsed:" + qi.getRecipient());
+                qi.setState(DeliveryState.FAILED);
+            }
         }
 
+        if (addrList.isEmpty())
+            throw new DeliveryException("Recipient could not be parsed:" + dCtx.getQueueInfo().getRecipient(), true, addressException);
+
+        InternetAddress[] addr = addrList.toArray(new InternetAddress[0]);
         boolean sentSuccessfully = false;
+        TrafficShaper trafficShaper = AspirinInternal.getDeliveryManager().getTrafficShaper();
+        String domain = dCtx.getQueueInfo().getRecipientDomain();
 
         while (!sentSuccessfully && urlnIt.hasNext()) {
             try {
                 URLName outgoingMailServer = urlnIt.next();
 
+                if (!hostHealthRegistry.allow(outgoingMailServer)) {
+                    AspirinInternal.getLogger().debug("SendMessage.handle(): Mail server '{}' is skipped, its circuit is open.", outgoingMailServer);
+                    continue;
+                }
+
                 AspirinInternal.getLogger().debug(
-                        "SendMessage.handle(): Attempting delivery of '{}' to recipient '{}' on host '{}' ",
-                        new Object[]{dCtx.getQueueInfo().getMailid(), dCtx.getQueueInfo().getRecipient(), outgoingMailServer});
+                        "SendMessage.handle(): Attempting delivery of '{}' to {} recipient(s) '{}' on host '{}' ",
+                        new Object[]{dCtx.getQueueInfo().getMailid(), addr.length, dCtx.getQueueInfo().getRecipient(), outgoingMailServer});
 
                 Properties props = session.getProperties();
 
@@ -73,25 +201,88 @@ public class SendMessage implements DeliveryHandler {
                     props.setProperty("mail.smtp.from", sender);
                 }
 
-                Transport transport = null;
+                TransportPool transportPool = AspirinInternal.getDeliveryManager().getTransportPool();
+                TransportPool.Connection connection = null;
+                TransmissionTrackingMessage trackedMessage = new TransmissionTrackingMessage(session, message);
+                boolean reusable = false;
 
                 try {
-                    transport = session.getTransport(outgoingMailServer);
                     try {
-                        transport.connect();
-                        transport.sendMessage(message, addr);
+                        // With racing the next mail servers are connected too, if this one is slow
+                        int raceDelay = AspirinInternal.getConfiguration().getDeliveryConnectionRaceDelay();
+                        List<URLName> candidates = new ArrayList<>();
+                        candidates.add(outgoingMailServer);
+
+                        if (0 < raceDelay) {
+                            int raceEnd = urlnIt.nextIndex();
+
+                            for (int i = urlnIt.nextIndex(); i < servers.size(); i++) {
+                                if (hostHealthRegistry.isOpen(servers.get(i))) continue;
+                                candidates.add(servers.get(i));
+                                raceEnd = i + 1;
+                            }
+
+                            // A race is one attempt on all of its candidates, they are not tried again
+                            while (urlnIt.nextIndex() < raceEnd) urlnIt.next();
+                        }
+
+                        connection = transportPool.borrow(session, candidates, raceDelay, (url, e) -> {
+                            if (isHostFailure(e)) hostHealthRegistry.recordFailure(url);
+                        });
+                        outgoingMailServer = connection.getUrl();
+                        Transport transport = connection.getTransport();
+                        long sendStart = System.currentTimeMillis();
+                        transport.sendMessage(trackedMessage, addr);
+                        reusable = true;
+                        // Only the transaction is measured, connecting is not
+                        trafficShaper.record(domain, AdaptiveConcurrencyController.Outcome.SUCCESS, System.currentTimeMillis() - sendStart);
+                        hostHealthRegistry.recordSuccess(outgoingMailServer);
 
                         if (transport instanceof SMTPTransport) {
                             String response = ((SMTPTransport) transport).getLastServerResponse();
 
                             if (response != null) {
                                 AspirinInternal.getLogger().error("SendMessage.handle(): Last server response: {}.", response);
-                                dCtx.getQueueInfo().setResultInfo(response);
+                                recipients.values().forEach(qi -> qi.setResultInfo(response));
                             }
                         }
                     } catch (MessagingException me) {
-                        /* Catch on connection error only. */
-                        if (resolveException(me) instanceof ConnectException) {
+                        trafficShaper.record(domain, classify(me), -1L);
+                        boolean hostFailure = isHostFailure(me);
+
+                        // Failed connections are reported by the pool
+                        if (connection != null) {
+                            if (hostFailure) hostHealthRegistry.recordFailure(outgoingMailServer);
+                            else hostHealthRegistry.recordSuccess(outgoingMailServer);
+                        }
+
+                        /*
+                         * A rejected transaction leaves the connection usable,
+                         * it will be reset before the next transaction.
+                         */
+                        reusable = me instanceof SendFailedException &&
+                                connection != null &&
+                                connection.getTransport().isConnected();
+
+                        /*
+                         * Rejected recipients are reported one by one. If the
+                         * message was delivered to the other recipients, then
+                         * the transaction is successful.
+                         */
+                        if (me instanceof SendFailedException) {
+                            String response = connection != null && connection.getTransport() instanceof SMTPTransport ?
+                                    ((SMTPTransport) connection.getTransport()).getLastServerResponse() : null;
+
+                            if (!applyRecipientResults((SendFailedException) me, recipients, response))
+                                throw me;
+                        }
+                        /*
+                         * Catch on connection and I/O errors before the
+                         * content was sent only, the next server is tried.
+                         * After it the server may have accepted the message,
+                         * so it is delivered again later, not now.
+                         */
+                        else if (hostFailure && !trackedMessage.isTransmitted()) {
                             AspirinInternal.getLogger().error("SendMessage.handle(): Connection failed.", me);
                             if (!urlnIt.hasNext())
                                 throw me;
@@ -108,12 +299,12 @@ public class SendMessage implements DeliveryHandler {
                     sentSuccessfully = true;
                     dCtx.addContextVariable("newstate", DeliveryState.SENT);
                 } finally {
-                    if (transport != null) transport.close();
+                    if (connection != null) transportPool.release(connection, reusable);
                 }
             } catch (MessagingException me) {
                 String exMessage = resolveException(me).getMessage();
 
-                if ('5' == exMessage.charAt(0)) throw new DeliveryException(exMessage, true);
+                if (exMessage != null && exMessage.startsWith("5")) throw new DeliveryException(exMessage, true);
                 else throw new DeliveryException(exMessage, false);
             }
         }
@@ -0,0 +1,312 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>This object limits the deliveries to recipient domains, so a burst of
+ * emails to a large provider does not trip its throttling (421 replies)
+ * and does not occupy every delivery thread. The DeliveryManager asks for a
+ * {@link Permit} before it hands over an item to a delivery, and puts the
+ * item back into the queue for a short time if it is not granted.</p>
+ *
+ * <p>Every domain has a limit of parallel deliveries and a token bucket of
+ * deliveries per second, with a burst of one second. The defaults are
+ * configured by aspirin.delivery.domain.connections.max and
+ * aspirin.delivery.domain.rate, and domains could be overridden or grouped
+ * by aspirin.delivery.domain.limits. The MX hosts of a domain are resolved
+ * only in the delivery, so providers serving several domains are grouped by
+ * their domain names.</p>
+ *
+ * <p>If aspirin.delivery.domain.adaptive is set, the count of parallel
+ * deliveries is limited by the window of the domain too, which is adapted
+ * to its transaction times and deferrals by the
+ * {@link AdaptiveConcurrencyController}.</p>
+ *
+ * <p>Refused items are paced: the n-th refused item of a domain is put back
+ * until the expected time of the n-th free slot, so waiting items are not
+ * taken out of the queue again and again.</p>
+ */
+public class TrafficShaper {
+    /**
+     * Permit of deliveries to domains without limits.
+     */
+    @NotNull
+    private static final Permit UNLIMITED = new Permit(null, null, 0L);
+    private static final long RETRY_DELAY_MIN = 10L;
+    private static final long HOLD_TIME_INITIAL = 1000L;
+    @NotNull
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+    @NotNull
+    private final AdaptiveConcurrencyController concurrencyController = new AdaptiveConcurrencyController();
+    @Nullable
+    private volatile Overrides overrides;
+
+    /**
+     * Parse the domain limits from the aspirin.delivery.domain.limits
+     * format.
+     *
+     * @return Limits by domain.
+     * @throws IllegalArgumentException If the format is invalid.
+     */
+    @NotNull
+    static Map<String, Limit> parseLimits(@Nullable String limits) {
+        Map<String, Limit> limitsByDomain = new HashMap<>();
+        if (limits == null) return limitsByDomain;
+
+        for (String item : limits.split(",")) {
+            if (item.trim().isEmpty()) continue;
+            int separator = item.indexOf('=');
+            if (separator < 0) throw new IllegalArgumentException("Domain limit without '=': " + item);
+
+            String[] values = item.substring(separator + 1).split(":", -1);
+            String domains = item.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            int connectionsMax = values[0].trim().isEmpty() ? 0 : Integer.parseInt(values[0].trim());
+            double rate = values.length < 2 || values[1].trim().isEmpty() ? 0.0 : Double.parseDouble(values[1].trim());
+            // Domains of a group share the name of their limit, so they share their state too
+            Limit limit = new Limit(domains, connectionsMax, rate);
+
+            for (String domain : domains.split("\\|"))
+                if (!domain.trim().isEmpty()) limitsByDomain.put(domain.trim(), limit);
+        }
+
+        return limitsByDomain;
+    }
+
+    @NotNull
+    private Limit getLimit(@NotNull String domain) {
+        Configuration configuration = AspirinInternal.getConfiguration();
+        String limits = configuration.getDeliveryDomainLimits();
+        Overrides currentOverrides = overrides;
+
+        if (currentOverrides == null || !Objects.equals(currentOverrides.source, limits)) {
+            Map<String, Limit> limitsByDomain;
+
+            try {
+                limitsByDomain = parseLimits(limits);
+            } catch (IllegalArgumentException e) {
+                AspirinInternal.getLogger().error("TrafficShaper.getLimit(): Invalid domain limits are ignored: '{}'.", limits, e);
+                limitsByDomain = Collections.emptyMap();
+            }
+
+            currentOverrides = new Overrides(limits, limitsByDomain);
+            overrides = currentOverrides;
+        }
+
+        Limit limit = currentOverrides.limitsByDomain.get(domain);
+        return limit != null ? limit :
+                new Limit(domain, configuration.getDeliveryDomainConnectionsMax(), configuration.getDeliveryDomainRate());
+    }
+
+    /**
+     * @return The static limit of parallel deliveries, or the adaptive
+     * window of the domain if it is lower.
+     */
+    private int getConnectionsMax(@NotNull Limit limit) {
+        if (!AspirinInternal.getConfiguration().isDeliveryDomainAdaptive()) return limit.connectionsMax;
+        int window = concurrencyController.getWindow(limit.name);
+        return limit.connectionsMax <= 0 ? window : Math.min(limit.connectionsMax, window);
+    }
+
+    /**
+     * Ask for a delivery to a domain.
+     *
+     * @param domain The recipient domain.
+     * @return The permit. If it is granted, it has to be released after the
+     * delivery.
+     */
+    @NotNull
+    public Permit acquire(@Nullable String domain) {
+        if (domain == null) return UNLIMITED;
+        Limit limit = getLimit(domain.toLowerCase(Locale.ROOT));
+        int connectionsMax = getConnectionsMax(limit);
+
+        if (connectionsMax <= 0 && limit.rate <= 0.0) return UNLIMITED;
+
+        long now = System.currentTimeMillis();
+        long[] retryAt = {0L};
+
+        destinations.compute(limit.name, (name, destination) -> {
+            Destination current = destination != null ? destination : new Destination(limit, now);
+            current.refill(limit, now);
+            long step = 0L;
+
+            if (0 < connectionsMax && connectionsMax <= current.active)
+                step = Math.max(step, current.holdTime / connectionsMax);
+            if (0.0 < limit.rate && current.tokens < 1.0)
+                step = Math.max(step, (long) Math.ceil(1000.0 / limit.rate));
+
+            if (0L < step) {
+                // Refused items are spread over the expected free slots
+                current.retryAt = Math.max(current.retryAt, now) + Math.max(RETRY_DELAY_MIN, step);
+                retryAt[0] = current.retryAt;
+            } else {
+                if (0.0 < limit.rate) current.tokens -= 1.0;
+                current.active++;
+            }
+
+            return current;
+        });
+
+        return retryAt[0] == 0L ? new Permit(this, limit.name, now) : new Permit(retryAt[0]);
+    }
+
+    private void release(@NotNull String name, long start) {
+        long now = System.currentTimeMillis();
+
+        destinations.computeIfPresent(name, (key, destination) -> {
+            destination.active--;
+            // Moving average of the delivery time, it estimates when a slot is free
+            destination.holdTime = (destination.holdTime * 7 + Math.max(0L, now - start)) / 8;
+            destination.refill(destination.limit, now);
+            boolean idle = destination.active <= 0 && destination.retryAt <= now &&
+                    (destination.limit.rate <= 0.0 || destination.limit.burst() <= destination.tokens);
+            return idle ? null : destination;
+        });
+    }
+
+    /**
+     * Report the result of an SMTP transaction to a domain, it adapts the
+     * window of the domain if aspirin.delivery.domain.adaptive is set.
+     *
+     * @param domain  The recipient domain.
+     * @param outcome The result.
+     * @param latency Time of the transaction in milliseconds, or a negative
+     *                value if it is not measured.
+     */
+    public void record(@Nullable String domain, @NotNull AdaptiveConcurrencyController.Outcome outcome, long latency) {
+        if (domain == null || !AspirinInternal.getConfiguration().isDeliveryDomainAdaptive()) return;
+        concurrencyController.record(getLimit(domain.toLowerCase(Locale.ROOT)).name, outcome, latency);
+    }
+
+    /**
+     * @return Controller of the adaptive windows of domains.
+     */
+    @NotNull
+    public AdaptiveConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * @return Count of running deliveries to the domain (or to its group).
+     */
+    public int getActiveCount(@NotNull String domain) {
+        Destination destination = destinations.get(getLimit(domain.toLowerCase(Locale.ROOT)).name);
+        return destination == null ? 0 : destination.active;
+    }
+
+    /**
+     * Limits of a domain or a group of domains.
+     */
+    static final class Limit {
+        @NotNull
+        final String name;
+        final int connectionsMax;
+        final double rate;
+
+        Limit(@NotNull String name, int connectionsMax, double rate) {
+            this.name = name;
+            this.connectionsMax = connectionsMax;
+            this.rate = rate;
+        }
+
+        double burst() {
+            return Math.max(1.0, rate);
+        }
+    }
+
+    /**
+     * The parsed aspirin.delivery.domain.limits parameter.
+     */
+    private static final class Overrides {
+        @Nullable
+        private final String source;
+        @NotNull
+        private final Map<String, Limit> limitsByDomain;
+
+        Overrides(@Nullable String source, @NotNull Map<String, Limit> limitsByDomain) {
+            this.source = source;
+            this.limitsByDomain = limitsByDomain;
+        }
+    }
+
+    /**
+     * State of a domain, guarded by the map of destinations.
+     */
+    private static final class Destination {
+        @NotNull
+        private Limit limit;
+        private int active;
+        private double tokens;
+        private long refilled;
+        private long retryAt;
+        private long holdTime = HOLD_TIME_INITIAL;
+
+        Destination(@NotNull Limit limit, long now) {
+            this.limit = limit;
+            this.tokens = limit.burst();
+            this.refilled = now;
+        }
+
+        void refill(@NotNull Limit currentLimit, long now) {
+            limit = currentLimit;
+            if (limit.rate <= 0.0) return;
+            tokens = Math.min(limit.burst(), tokens + (now - refilled) * limit.rate / 1000.0);
+            refilled = now;
+        }
+    }
+
+    /**
+     * Result of {@link #acquire(String)}.
+     */
+    public static final class Permit {
+        @Nullable
+        private final TrafficShaper shaper;
+        @Nullable
+        private final String name;
+        private final long start;
+        private final long retryAt;
+        @NotNull
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(@Nullable TrafficShaper shaper, @Nullable String name, long start) {
+            this.shaper = shaper;
+            this.name = name;
+            this.start = start;
+            this.retryAt = 0L;
+        }
+
+        Permit(long retryAt) {
+            this.shaper = null;
+            this.name = null;
+            this.start = 0L;
+            this.retryAt = retryAt;
+        }
+
+        public boolean isGranted() {
+            return retryAt == 0L;
+        }
+
+        /**
+         * @return Epoch timestamp in milliseconds, when a refused item should
+         * be tried again, or 0 if the permit is granted.
+         */
+        public long getRetryAt() {
+            return retryAt;
+        }
+
+        /**
+         * Give back the permit after the delivery. Only the first call has
+         * effect.
+         */
+        public void release() {
+            if (shaper != null && name != null && released.compareAndSet(false, true)) shaper.release(name, start);
+        }
+    }
+}
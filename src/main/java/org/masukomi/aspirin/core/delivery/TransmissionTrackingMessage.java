@@ -0,0 +1,58 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * MimeMessage given to the transport instead of the delivered message. It
+ * writes the delivered message and records that the writing was started.
+ * The transport writes the content only after the mail server accepted the
+ * DATA command, so if it was started, the server may have accepted the
+ * message, even if the transaction failed later.
+ */
+class TransmissionTrackingMessage extends MimeMessage {
+    @NotNull
+    private final MimeMessage message;
+    private volatile boolean transmitted;
+
+    TransmissionTrackingMessage(@Nullable Session session, @NotNull MimeMessage message) {
+        super(session);
+        this.message = Objects.requireNonNull(message, "message");
+    }
+
+    /**
+     * @return True, if the content of the message was started to be sent.
+     */
+    boolean isTransmitted() {
+        return transmitted;
+    }
+
+    @Override
+    public Address[] getFrom() throws MessagingException {
+        return message.getFrom();
+    }
+
+    @Override
+    public Address getSender() throws MessagingException {
+        return message.getSender();
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException, MessagingException {
+        writeTo(os, null);
+    }
+
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+        transmitted = true;
+        message.writeTo(os, ignoreList);
+    }
+}
@@ -0,0 +1,402 @@
+package org.masukomi.aspirin.core.delivery;
+
+import com.sun.mail.smtp.SMTPTransport;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>This object keeps open SMTP connections ({@link Transport} objects) to
+ * mail servers, so deliveries to the same MX host could reuse a connected and
+ * greeted session instead of paying TCP setup, banner and EHLO on every
+ * message.</p>
+ *
+ * <p>Connections are keyed by the MX URLName. A reused connection is checked
+ * and cleaned with an RSET command before the next transaction. Idle
+ * connections are closed after the configured idle timeout, connections are
+ * closed after the configured count of messages, and only the configured
+ * count of idle connections are kept per mail server.</p>
+ *
+ * <p>New connections could be raced over several mail servers (like Happy
+ * Eyeballs): the next server is connected after a stagger delay while the
+ * previous connections are still pending, or at once if one of them
+ * failed since the last start. The first greeted connection is used, the later ones are
+ * closed.</p>
+ */
+public class TransportPool {
+    /**
+     * Runs the connection attempts of races. Its threads are daemons, idle
+     * ones stop after a minute.
+     */
+    @NotNull
+    private static final ExecutorService RACE_EXECUTOR = Executors.newCachedThreadPool(new RaceThreadFactory());
+    @NotNull
+    private final Map<String, Deque<Connection>> idleConnections = new HashMap<>();
+    @NotNull
+    private final Object lock = new Object();
+
+    @NotNull
+    private static String createKey(@NotNull URLName url) {
+        // URLName.equals() resolves host names, so we use the string form.
+        return url.toString();
+    }
+
+    private static void closeQuietly(@NotNull Connection connection) {
+        try {
+            connection.transport.close();
+        } catch (MessagingException e) {
+            AspirinInternal.getLogger().debug("TransportPool.close(): Closing connection to '{}' failed: {}", connection.url, e.getMessage());
+        }
+    }
+
+    /**
+     * Give back an open connection to the mail server. If there is a usable
+     * idle connection, it is reused, otherwise a new one is created and
+     * connected.
+     *
+     * @param session The mail session used to create new connections.
+     * @param url     The URLName of the mail server.
+     * @return Connected SMTP connection.
+     * @throws MessagingException If connection could not be opened.
+     */
+    @NotNull
+    public Connection borrow(@NotNull Session session, @NotNull URLName url) throws MessagingException {
+        Objects.requireNonNull(session, "session");
+        Objects.requireNonNull(url, "url");
+        String key = createKey(url);
+        Connection connection;
+
+        while ((connection = pollIdle(key)) != null) {
+            if (reset(connection)) {
+                AspirinInternal.getLogger().trace("TransportPool.borrow(): Reuse connection to '{}'.", url);
+                return connection;
+            }
+            closeQuietly(connection);
+        }
+
+        Transport transport = session.getTransport(url);
+        transport.connect();
+        AspirinInternal.getLogger().trace("TransportPool.borrow(): New connection to '{}'.", url);
+
+        return new Connection(url, transport);
+    }
+
+    /**
+     * Give back an open connection to one of the mail servers. An idle
+     * connection is reused, if there is one to any of them. Otherwise the
+     * servers are connected in their order, the next one after the stagger
+     * delay or after a failure of a pending one, and the connection
+     * greeted first is given back. Connections greeted later are closed.
+     *
+     * @param session         The mail session used to create new connections.
+     * @param urls            The URLNames of the mail servers, in order of
+     *                        preference.
+     * @param staggerDelay    Delay between the connection attempts in
+     *                        milliseconds. If 0, the servers are not raced.
+     * @param failureListener It is called with every failed connection
+     *                        attempt, on the thread of the attempt.
+     * @return Connected SMTP connection.
+     * @throws MessagingException If none of the servers could be connected,
+     *                            the last failure.
+     */
+    @NotNull
+    public Connection borrow(@NotNull Session session, @NotNull List<URLName> urls, long staggerDelay,
+                             @NotNull BiConsumer<URLName, MessagingException> failureListener) throws MessagingException {
+        Objects.requireNonNull(session, "session");
+        Objects.requireNonNull(urls, "urls");
+        Objects.requireNonNull(failureListener, "failureListener");
+        if (urls.isEmpty()) throw new IllegalArgumentException("No mail server to connect.");
+
+        if (urls.size() == 1 || staggerDelay <= 0L) {
+            try {
+                return borrow(session, urls.get(0));
+            } catch (MessagingException e) {
+                failureListener.accept(urls.get(0), e);
+                throw e;
+            }
+        }
+
+        for (URLName url : urls) {
+            Connection connection;
+
+            while ((connection = pollIdle(createKey(url))) != null) {
+                if (reset(connection)) {
+                    AspirinInternal.getLogger().trace("TransportPool.borrow(): Reuse connection to '{}'.", url);
+                    return connection;
+                }
+                closeQuietly(connection);
+            }
+        }
+
+        Race race = new Race();
+        int started = 0;
+        long nextStart = 0L;
+
+        synchronized (race) {
+            try {
+                while (race.winner == null) {
+                    long now = System.currentTimeMillis();
+
+                    // A failure starts the next attempt at once, like the stagger delay
+                    if (started < urls.size() && (race.pending == 0 || race.failed || nextStart <= now)) {
+                        URLName url = urls.get(started++);
+                        race.pending++;
+                        race.failed = false;
+                        nextStart = now + staggerDelay;
+                        RACE_EXECUTOR.execute(() -> connect(session, url, race, failureListener));
+                        continue;
+                    }
+
+                    if (race.pending == 0) throw Objects.requireNonNull(race.lastFailure);
+                    // Attempts are bounded by the connection timeout of the session
+                    race.wait(started < urls.size() ? Math.max(1L, nextStart - now) : 0L);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Connecting was interrupted.", e);
+            } finally {
+                // Attempts finishing after this point are closed
+                race.finished = true;
+            }
+
+            AspirinInternal.getLogger().trace("TransportPool.borrow(): New connection to '{}' won the race of {} servers.", race.winner.url, started);
+            return race.winner;
+        }
+    }
+
+    private static void connect(@NotNull Session session, @NotNull URLName url, @NotNull Race race,
+                                @NotNull BiConsumer<URLName, MessagingException> failureListener) {
+        Connection connection = null;
+        MessagingException failure = null;
+
+        try {
+            Transport transport = session.getTransport(url);
+            transport.connect();
+            connection = new Connection(url, transport);
+        } catch (MessagingException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new MessagingException("Connecting failed.", e);
+        }
+
+        boolean lost;
+
+        synchronized (race) {
+            race.pending--;
+            lost = race.finished || race.winner != null;
+
+            if (failure != null) {
+                race.lastFailure = failure;
+                race.failed = true;
+            } else if (!lost) race.winner = connection;
+
+            race.notifyAll();
+        }
+
+        if (failure != null) failureListener.accept(url, failure);
+        else if (lost) {
+            AspirinInternal.getLogger().trace("TransportPool.connect(): Connection to '{}' lost the race, it is closed.", url);
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Give back a connection after a transaction.
+     *
+     * @param connection The borrowed connection.
+     * @param reusable   If false, then the connection state is unknown (for
+     *                   example the transaction failed on I/O) and it is
+     *                   closed.
+     */
+    public void release(@NotNull Connection connection, boolean reusable) {
+        Objects.requireNonNull(connection, "connection");
+        Configuration configuration = AspirinInternal.getConfiguration();
+        connection.messageCount++;
+        connection.lastUsed = System.currentTimeMillis();
+
+        if (!reusable ||
+                configuration.getDeliveryConnectionHostMax() <= 0 ||
+                configuration.getDeliveryConnectionMessagesMax() <= connection.messageCount) {
+            closeQuietly(connection);
+        } else {
+            Connection overflow = null;
+
+            synchronized (lock) {
+                Deque<Connection> idle = idleConnections.computeIfAbsent(createKey(connection.url), k -> new ArrayDeque<>());
+                idle.addFirst(connection);
+                if (configuration.getDeliveryConnectionHostMax() < idle.size())
+                    overflow = idle.removeLast();
+            }
+
+            if (overflow != null) closeQuietly(overflow);
+        }
+
+        evictIdle();
+    }
+
+    /**
+     * Close all connections which were idle longer than the configured idle
+     * timeout.
+     */
+    public void evictIdle() {
+        long expired = System.currentTimeMillis() - AspirinInternal.getConfiguration().getDeliveryConnectionIdleTimeout();
+        List<Connection> evicted = new ArrayList<>();
+
+        synchronized (lock) {
+            Iterator<Deque<Connection>> idleIt = idleConnections.values().iterator();
+
+            while (idleIt.hasNext()) {
+                Deque<Connection> idle = idleIt.next();
+                // The oldest connections are at the end of the deque
+                while (!idle.isEmpty() && idle.peekLast().lastUsed <= expired)
+                    evicted.add(idle.removeLast());
+                if (idle.isEmpty()) idleIt.remove();
+            }
+        }
+
+        evicted.forEach(TransportPool::closeQuietly);
+    }
+
+    /**
+     * @return Epoch timestamp in milliseconds when the next idle connection
+     * expires, or Long.MAX_VALUE if there is no idle connection.
+     */
+    public long getNextEviction() {
+        long next = Long.MAX_VALUE;
+
+        synchronized (lock) {
+            for (Deque<Connection> idle : idleConnections.values())
+                if (!idle.isEmpty()) next = Math.min(next, idle.peekLast().lastUsed);
+        }
+
+        return next == Long.MAX_VALUE ? next : next + AspirinInternal.getConfiguration().getDeliveryConnectionIdleTimeout();
+    }
+
+    /**
+     * @return Count of idle connections in the pool.
+     */
+    public int getIdleCount() {
+        synchronized (lock) {
+            return idleConnections.values().stream().mapToInt(Deque::size).sum();
+        }
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public void close() {
+        List<Connection> closeable = new ArrayList<>();
+
+        synchronized (lock) {
+            idleConnections.values().forEach(closeable::addAll);
+            idleConnections.clear();
+        }
+
+        closeable.forEach(TransportPool::closeQuietly);
+    }
+
+    @Nullable
+    private Connection pollIdle(@NotNull String key) {
+        long expired = System.currentTimeMillis() - AspirinInternal.getConfiguration().getDeliveryConnectionIdleTimeout();
+        List<Connection> evicted = new ArrayList<>();
+        Connection usable = null;
+
+        synchronized (lock) {
+            Deque<Connection> idle = idleConnections.get(key);
+
+            while (usable == null && idle != null && !idle.isEmpty()) {
+                Connection connection = idle.pollFirst();
+                if (connection.lastUsed > expired) usable = connection;
+                else evicted.add(connection);
+            }
+        }
+
+        evicted.forEach(TransportPool::closeQuietly);
+        return usable;
+    }
+
+    private boolean reset(@NotNull Connection connection) {
+        if (!(connection.transport instanceof SMTPTransport)) return connection.transport.isConnected();
+
+        try {
+            return ((SMTPTransport) connection.transport).simpleCommand("RSET") == 250;
+        } catch (MessagingException e) {
+            AspirinInternal.getLogger().debug("TransportPool.reset(): RSET failed on '{}': {}", connection.url, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * State of a connection race, guarded by itself.
+     */
+    private static final class Race {
+        @Nullable
+        private Connection winner;
+        @Nullable
+        private MessagingException lastFailure;
+        private int pending;
+        /**
+         * An attempt failed since the last one was started.
+         */
+        private boolean failed;
+        private boolean finished;
+    }
+
+    private static final class RaceThreadFactory implements ThreadFactory {
+        @NotNull
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NotNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "Aspirin-TransportPool-Race-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A pooled SMTP connection.
+     */
+    public static final class Connection {
+        @NotNull
+        private final URLName url;
+        @NotNull
+        private final Transport transport;
+        private int messageCount;
+        private long lastUsed;
+
+        Connection(@NotNull URLName url, @NotNull Transport transport) {
+            this.url = url;
+            this.transport = transport;
+        }
+
+        @NotNull
+        public URLName getUrl() {
+            return url;
+        }
+
+        @NotNull
+        public Transport getTransport() {
+            return transport;
+        }
+
+        /**
+         * @return Count of transactions done on this connection.
+         */
+        public int getMessageCount() {
+            return messageCount;
+        }
+    }
+}
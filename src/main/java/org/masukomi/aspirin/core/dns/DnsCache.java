@@ -0,0 +1,217 @@
+package org.masukomi.aspirin.core.dns;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.URLName;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * <p>This object caches the resolved mail servers of domains until the TTL of
+ * the DNS records used to resolve them. Domains without mail server are
+ * cached for the configured negative TTL, temporary DNS failures are not
+ * cached.</p>
+ *
+ * <p>Concurrent lookups of the same domain are coalesced: only the first
+ * thread asks the DNS, the others wait for its result. The count of cached
+ * domains is bounded by the configured cache size, over this size the
+ * expired and the earliest expiring domains are evicted.</p>
+ */
+public class DnsCache {
+    @NotNull
+    private final Map<String, CompletableFuture<Entry>> entries = new ConcurrentHashMap<>();
+    @NotNull
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    @NotNull
+    private final LongAdder hitCount = new LongAdder();
+    @NotNull
+    private final LongAdder missCount = new LongAdder();
+    @NotNull
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * Give back the mail servers of a domain from the cache, or resolve them
+     * with the given resolver, if the domain is not cached or it is expired.
+     *
+     * @param hostName The domain name.
+     * @param resolver The function which resolves the mail servers of the
+     *                 domain from DNS.
+     * @return Unmodifiable list of mail servers.
+     */
+    @NotNull
+    public List<URLName> get(@NotNull String hostName, @NotNull Function<String, Entry> resolver) {
+        Objects.requireNonNull(hostName, "hostName");
+        Objects.requireNonNull(resolver, "resolver");
+        int cacheSize = AspirinInternal.getConfiguration().getDnsCacheSize();
+
+        if (cacheSize <= 0) {
+            missCount.increment();
+            return resolver.apply(hostName).records;
+        }
+
+        String key = hostName.toLowerCase(Locale.ENGLISH);
+
+        while (true) {
+            CompletableFuture<Entry> future = entries.get(key);
+
+            if (future == null) {
+                CompletableFuture<Entry> newFuture = new CompletableFuture<>();
+                if (entries.putIfAbsent(key, newFuture) != null) continue;
+
+                if (cacheSize < entries.size()) evict(cacheSize);
+                return resolve(key, hostName, newFuture, resolver);
+            }
+
+            Entry entry = future.getNow(null);
+
+            // Lookup of this domain is running in another thread
+            if (entry == null) {
+                hitCount.increment();
+                return await(future).records;
+            }
+
+            if (System.currentTimeMillis() < entry.expiry) {
+                hitCount.increment();
+                return entry.records;
+            }
+
+            CompletableFuture<Entry> newFuture = new CompletableFuture<>();
+            if (entries.replace(key, future, newFuture))
+                return resolve(key, hostName, newFuture, resolver);
+        }
+    }
+
+    /**
+     * @return Count of lookups served from the cache, including lookups
+     * which waited for a running lookup of the same domain.
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return Count of lookups which were resolved from DNS.
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return Count of domains removed from the cache because of the cache
+     * size limit.
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return Count of cached domains.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all domains from the cache.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    @NotNull
+    private static Entry await(@NotNull CompletableFuture<Entry> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    @NotNull
+    private List<URLName> resolve(@NotNull String key, @NotNull String hostName, @NotNull CompletableFuture<Entry> future,
+                                  @NotNull Function<String, Entry> resolver) {
+        missCount.increment();
+        Entry entry;
+
+        try {
+            entry = resolver.apply(hostName);
+        } catch (RuntimeException e) {
+            entries.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+
+        // Not cacheable result, it is given only to the waiting threads
+        if (entry.expiry <= System.currentTimeMillis()) entries.remove(key, future);
+        future.complete(entry);
+        return entry.records;
+    }
+
+    private void evict(int cacheSize) {
+        // Only one thread cleans the cache, the others do not wait for it
+        if (!evictionLock.tryLock()) return;
+
+        try {
+            long now = System.currentTimeMillis();
+            List<Map.Entry<String, CompletableFuture<Entry>>> evictable = new ArrayList<>();
+
+            for (Map.Entry<String, CompletableFuture<Entry>> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue().getNow(null);
+                if (entry == null) continue;
+
+                if (entry.expiry <= now) {
+                    if (entries.remove(mapEntry.getKey(), mapEntry.getValue())) evictionCount.increment();
+                } else evictable.add(mapEntry);
+            }
+
+            // Evict a tenth of the cache at once, so the next insertions do not scan the cache again
+            int target = cacheSize - cacheSize / 10;
+            if (entries.size() <= target) return;
+
+            evictable.sort(Comparator.comparingLong(mapEntry -> mapEntry.getValue().getNow(null).expiry));
+
+            for (Map.Entry<String, CompletableFuture<Entry>> mapEntry : evictable) {
+                if (entries.size() <= target) break;
+                if (entries.remove(mapEntry.getKey(), mapEntry.getValue())) evictionCount.increment();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Resolved mail servers of a domain with their expiration time.
+     */
+    public static final class Entry {
+        @NotNull
+        private final List<URLName> records;
+        private final long expiry;
+
+        /**
+         * @param records The resolved mail servers.
+         * @param ttl     Time to live of the result in milliseconds. If 0 or
+         *                less, then the result is not cached.
+         */
+        public Entry(@Nullable List<URLName> records, long ttl) {
+            this.records = records == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(records));
+            this.expiry = System.currentTimeMillis() + ttl;
+        }
+
+        @NotNull
+        public List<URLName> getRecords() {
+            return records;
+        }
+
+        public long getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.masukomi.aspirin.core.dns;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.masukomi.aspirin.core.AspirinInternal;
 import org.xbill.DNS.*;
 
@@ -9,16 +10,46 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Vector;
+import java.util.function.Function;
 
 /**
- * This object checks all DNS contents and get MX records for emails.
- * TODO Create DNS cache
+ * This object checks all DNS contents and get MX records for emails. The
+ * resolved mail servers are kept in a {@link DnsCache}.
  *
  * @author Laszlo Solova
  */
 public class DnsResolver {
     @NotNull
     public static final String SMTP_PROTOCOL_PREFIX = "smtp://";
+    @NotNull
+    private static final DnsCache cache = new DnsCache();
+    /**
+     * Replaces the DNS lookups, if it is set.
+     */
+    @Nullable
+    private static volatile Function<String, DnsCache.Entry> resolver;
+
+    /**
+     * @return The cache of resolved mail servers.
+     */
+    @NotNull
+    public static DnsCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Replace the DNS lookups of mail servers. It is useful for tests and
+     * load tests, where the mail servers of test domains are local servers
+     * (with URLNames containing the port too). The results of the resolver
+     * are cached like the results of DNS lookups.
+     *
+     * @param resolver It gives back the mail servers of a domain, or null to
+     *                 use DNS lookups.
+     */
+    public static void setResolver(@Nullable Function<String, DnsCache.Entry> resolver) {
+        DnsResolver.resolver = resolver;
+        cache.clear();
+    }
 
     /**
      * <p>This method gives back the host name(s) where we can send the email.
@@ -41,11 +72,24 @@ public class DnsResolver {
      */
     @NotNull
     public static List<URLName> getMXRecordsForHost(String hostName) {
+        Function<String, DnsCache.Entry> currentResolver = resolver;
+        return new Vector<>(cache.get(hostName, currentResolver != null ? currentResolver : DnsResolver::resolveMXRecordsForHost));
+    }
+
+    /**
+     * Resolve the mail servers of a domain from DNS. The result is cached
+     * until the lowest TTL of the used records. If no mail server found, it
+     * is cached for the negative TTL, but if any of the lookups failed
+     * temporarily, the result is not cached.
+     */
+    @NotNull
+    private static DnsCache.Entry resolveMXRecordsForHost(String hostName) {
         List<URLName> recordsColl = new Vector<>();
+        TtlTracker ttlTracker = new TtlTracker();
 
         try {
             boolean foundOriginalMX = true;
-            Record[] records = new Lookup(hostName, Type.MX).run();
+            Record[] records = ttlTracker.run(new Lookup(hostName, Type.MX));
 
             /*
              * Sometimes we should send an email to a subdomain which does not
@@ -64,7 +108,7 @@ public class DnsResolver {
                         upperLevelHostName.lastIndexOf('.') != -1
                 ) {
                     upperLevelHostName = upperLevelHostName.substring(upperLevelHostName.indexOf('.') + 1);
-                    records = new Lookup(upperLevelHostName, Type.MX).run();
+                    records = ttlTracker.run(new Lookup(upperLevelHostName, Type.MX));
                 }
             }
 
@@ -97,7 +141,7 @@ public class DnsResolver {
              * record.
              */
             if (!foundOriginalMX) {
-                Record[] recordsTypeA = new Lookup(hostName, Type.A).run();
+                Record[] recordsTypeA = ttlTracker.run(new Lookup(hostName, Type.A));
 
                 if (recordsTypeA != null && recordsTypeA.length > 0)
                     recordsColl.add(0, new URLName(SMTP_PROTOCOL_PREFIX + hostName));
@@ -105,8 +149,36 @@ public class DnsResolver {
 
         } catch (TextParseException e) {
             AspirinInternal.getConfiguration().getLogger().warn("DnsResolver.getMXRecordsForHost(): Failed get MX record for host '" + hostName + "'.", e);
+            return new DnsCache.Entry(recordsColl, 0L);
         }
 
-        return recordsColl;
+        if (ttlTracker.temporaryFailure)
+            return new DnsCache.Entry(recordsColl, 0L);
+        if (recordsColl.isEmpty())
+            return new DnsCache.Entry(recordsColl, AspirinInternal.getConfiguration().getDnsCacheNegativeTtl());
+        return new DnsCache.Entry(recordsColl, ttlTracker.minTtl * 1000L);
+    }
+
+    /**
+     * Runs lookups and collects the lowest TTL of the found records and the
+     * temporary failures.
+     */
+    private static final class TtlTracker {
+        private long minTtl = Long.MAX_VALUE;
+        private boolean temporaryFailure;
+
+        @Nullable
+        Record[] run(@NotNull Lookup lookup) {
+            Record[] records = lookup.run();
+
+            if (lookup.getResult() == Lookup.TRY_AGAIN || lookup.getResult() == Lookup.UNRECOVERABLE)
+                temporaryFailure = true;
+
+            if (records != null)
+                for (Record record : records)
+                    minTtl = Math.min(minTtl, record.getTTL());
+
+            return records;
+        }
     }
 }
@@ -1,53 +1,288 @@
 package org.masukomi.aspirin.core.listener;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+import org.masukomi.aspirin.core.delivery.LatencyHistogram;
 import org.masukomi.aspirin.core.store.queue.DeliveryState;
 import org.masukomi.aspirin.core.store.queue.QueueInfo;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * <p>This object notifies the {@link AspirinListener} objects about the
+ * delivery results.</p>
+ *
+ * <p>By default listeners are called synchronously in the thread which set
+ * the delivery result. If the count of listener threads is configured, the
+ * results are put into bounded ring buffers and listeners are called by
+ * dispatcher threads, so slow listeners do not block the delivery. Results
+ * of the same email are always dispatched by the same thread in order. If a
+ * buffer is full, the configured overflow policy is applied: the result is
+ * dropped and counted (drop, the default), it is kept in an unbounded
+ * overflow list of the buffer (spill) or the caller waits (block). Results
+ * are set while the queue store is locked, so a waiting caller blocks every
+ * delivery.</p>
+ *
  * @author Laszlo Solova
  */
 public class ListenerManager {
     @NotNull
-    private final List<AspirinListener> listenerList = new ArrayList<>();
+    private final List<AspirinListener> listenerList = new CopyOnWriteArrayList<>();
+    /**
+     * Time between the delivery result and the call of listeners.
+     */
+    @NotNull
+    private final LatencyHistogram dispatchLag = new LatencyHistogram();
+    @NotNull
+    private final LongAdder droppedCount = new LongAdder();
+    @NotNull
+    private final LongAdder spilledCount = new LongAdder();
+    @NotNull
+    private final Object dispatcherLock = new Object();
+    @Nullable
+    private volatile Dispatcher[] dispatchers;
+    private volatile boolean shutdown;
 
     public void add(@NotNull AspirinListener listener) {
         Objects.requireNonNull(listener, "listener");
-
-        synchronized (listenerList) {
-            listenerList.add(listener);
-        }
+        listenerList.add(listener);
     }
 
     public void remove(@NotNull AspirinListener listener) {
         Objects.requireNonNull(listener, "listener");
-
-        synchronized (listenerList) {
-            listenerList.remove(listener);
-        }
+        listenerList.remove(listener);
     }
 
     public void notifyListeners(@NotNull QueueInfo qi) {
         Objects.requireNonNull(qi, "qi");
-        List<AspirinListener> listeners;
+        if (listenerList.isEmpty()) return;
+
+        // The state could be changed until the dispatch, so it is copied now
+        ResultState state = null;
+        if (qi.hasState(DeliveryState.FAILED)) state = ResultState.FAILED;
+        else if (qi.hasState(DeliveryState.SENT)) state = ResultState.SENT;
+        Event event = new Event(qi.getMailid(), qi.getRecipient(), state, qi.getResultInfo(),
+                AspirinInternal.getDeliveryManager().isCompleted(qi));
+
+        Dispatcher[] currentDispatchers = getDispatchers();
+
+        if (currentDispatchers == null) dispatch(event);
+        else {
+            int shard = (event.mailid == null ? 0 : event.mailid.hashCode() & Integer.MAX_VALUE) % currentDispatchers.length;
+            currentDispatchers[shard].enqueue(event);
+        }
+    }
+
+    /**
+     * @return Histogram of the time in milliseconds between a delivery result
+     * and the call of listeners.
+     */
+    @NotNull
+    public LatencyHistogram getDispatchLag() {
+        return dispatchLag;
+    }
+
+    /**
+     * @return Count of delivery results dropped because of full buffers.
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return Count of delivery results put into overflow lists because of
+     * full buffers.
+     */
+    public long getSpilledCount() {
+        return spilledCount.sum();
+    }
+
+    /**
+     * @return Count of delivery results waiting for dispatch.
+     */
+    public int getPendingCount() {
+        Dispatcher[] currentDispatchers = dispatchers;
+        int pending = 0;
 
-        synchronized (listenerList) {
-            listeners = Collections.unmodifiableList(listenerList);
+        if (currentDispatchers != null)
+            for (Dispatcher dispatcher : currentDispatchers)
+                pending += dispatcher.getPendingCount();
+
+        return pending;
+    }
+
+    /**
+     * Stop the dispatcher threads after the waiting delivery results are
+     * dispatched. Later results are dispatched synchronously.
+     */
+    public void shutdown() {
+        Dispatcher[] currentDispatchers;
+
+        synchronized (dispatcherLock) {
+            shutdown = true;
+            currentDispatchers = dispatchers;
+            dispatchers = null;
         }
 
-        if (!listeners.isEmpty()) listeners.forEach(listener -> {
-            if (qi.hasState(DeliveryState.FAILED))
-                listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.FAILED, qi.getResultInfo());
-            else if (qi.hasState(DeliveryState.SENT))
-                listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.SENT, qi.getResultInfo());
-            if (AspirinInternal.getDeliveryManager().isCompleted(qi))
-                listener.delivered(qi.getMailid(), qi.getRecipient(), ResultState.FINISHED, qi.getResultInfo());
+        if (currentDispatchers != null)
+            for (Dispatcher dispatcher : currentDispatchers)
+                dispatcher.shutdown();
+    }
+
+    @Nullable
+    private Dispatcher[] getDispatchers() {
+        Dispatcher[] currentDispatchers = dispatchers;
+        if (currentDispatchers != null || shutdown) return currentDispatchers;
+
+        Configuration configuration = AspirinInternal.getConfiguration();
+        int threads = configuration.getListenerThreads();
+        if (threads <= 0) return null;
+
+        synchronized (dispatcherLock) {
+            if (dispatchers == null && !shutdown) {
+                Dispatcher[] newDispatchers = new Dispatcher[threads];
+                int bufferSize = Math.max(1, configuration.getListenerBufferSize());
+
+                for (int i = 0; i < threads; i++) {
+                    newDispatchers[i] = new Dispatcher(i, bufferSize, configuration.getListenerOverflow());
+                    newDispatchers[i].start();
+                }
+
+                dispatchers = newDispatchers;
+            }
+
+            return dispatchers;
+        }
+    }
+
+    private void dispatch(@NotNull Event event) {
+        if (event.created != 0L) dispatchLag.record(System.currentTimeMillis() - event.created);
+
+        listenerList.forEach(listener -> {
+            if (event.state != null)
+                listener.delivered(event.mailid, event.recipient, event.state, event.resultInfo);
+            if (event.completed)
+                listener.delivered(event.mailid, event.recipient, ResultState.FINISHED, event.resultInfo);
         });
     }
+
+    /**
+     * Copy of a delivery result.
+     */
+    private static final class Event {
+        @Nullable
+        private final String mailid;
+        @Nullable
+        private final String recipient;
+        @Nullable
+        private final ResultState state;
+        @Nullable
+        private final String resultInfo;
+        private final boolean completed;
+        private final long created = System.currentTimeMillis();
+
+        Event(@Nullable String mailid, @Nullable String recipient, @Nullable ResultState state, @Nullable String resultInfo, boolean completed) {
+            this.mailid = mailid;
+            this.recipient = recipient;
+            this.state = state;
+            this.resultInfo = resultInfo;
+            this.completed = completed;
+        }
+    }
+
+    /**
+     * Dispatcher thread of a shard of emails with its ring buffer.
+     */
+    private final class Dispatcher extends Thread {
+        @NotNull
+        private final BlockingQueue<Event> buffer;
+        /**
+         * Results over the buffer capacity in spill mode. It is guarded by
+         * the dispatcher object. If it is not empty, new results are put here
+         * too, so the order of results is kept.
+         */
+        @NotNull
+        private final Deque<Event> spill = new ArrayDeque<>();
+        @Nullable
+        private final String overflow;
+        private volatile boolean running = true;
+
+        Dispatcher(int index, int bufferSize, @Nullable String overflow) {
+            super("Aspirin-ListenerDispatcher-" + index);
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+            this.overflow = overflow;
+            setDaemon(true);
+        }
+
+        void enqueue(@NotNull Event event) {
+            if (ConfigurationMBean.LISTENER_OVERFLOW_SPILL.equals(overflow)) {
+                synchronized (this) {
+                    if (spill.isEmpty() && buffer.offer(event)) return;
+                    spill.add(event);
+                    spilledCount.increment();
+                }
+            } else if (ConfigurationMBean.LISTENER_OVERFLOW_BLOCK.equals(overflow)) {
+                try {
+                    buffer.put(event);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // The result is not lost, it is dispatched by the caller
+                    dispatch(event);
+                }
+            } else if (!buffer.offer(event)) {
+                droppedCount.increment();
+                AspirinInternal.getLogger().warn("ListenerManager.notifyListeners(): Listener buffer is full, result dropped. mailid={}", event.mailid);
+            }
+        }
+
+        int getPendingCount() {
+            synchronized (this) {
+                return buffer.size() + spill.size();
+            }
+        }
+
+        void shutdown() {
+            // Listeners are not interrupted, the thread stops after the buffer is drained
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event;
+
+                try {
+                    event = running ? buffer.poll(100L, TimeUnit.MILLISECONDS) : buffer.poll();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                // Spilled results are moved into the free space of the buffer
+                synchronized (this) {
+                    while (!spill.isEmpty() && buffer.offer(spill.peekFirst()))
+                        spill.pollFirst();
+                }
+
+                if (event != null) {
+                    try {
+                        dispatch(event);
+                    } catch (RuntimeException e) {
+                        AspirinInternal.getLogger().error("ListenerManager: Listener failed. mailid=" + event.mailid, e);
+                    }
+                } else if (!running && getPendingCount() == 0)
+                    return;
+            }
+        }
+    }
 }
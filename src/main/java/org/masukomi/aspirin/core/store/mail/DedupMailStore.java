@@ -0,0 +1,354 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * <p>This store keeps MimeMessage objects in memory like
+ * {@link SimpleMailStore}, but the same content is stored only once. It is
+ * designed for bulk campaigns, where messages differ only in a few headers
+ * and a personalised part.</p>
+ *
+ * <p>A message is rendered and split into its header block and body parts.
+ * Multipart bodies are split on their boundaries (nested multiparts too), so
+ * the boundary lines, which are unique in every message, are separated
+ * from the content of the parts. Parts not smaller than the minimal part
+ * size are identified by their SHA-256 hash and stored once with a
+ * reference count. Smaller parts are stored with the message.</p>
+ *
+ * <p>get() concatenates the parts, and parses the message from the shared
+ * bytes, so the original message is given back byte by byte.</p>
+ */
+public class DedupMailStore implements MailStore {
+    /**
+     * Default minimal size of shared parts in bytes.
+     */
+    public static final int DEFAULT_PART_SIZE_MIN = 256;
+    private static final int NESTING_MAX = 4;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    @NotNull
+    private final Map<String, Part[]> messageMap = new HashMap<>();
+    @NotNull
+    private final Map<String, Part> sharedParts = new HashMap<>();
+    @NotNull
+    private final Object lock = new Object();
+    private volatile int partSizeMin = DEFAULT_PART_SIZE_MIN;
+    /**
+     * Size of the stored messages, guarded by the lock.
+     */
+    private long messageSize;
+    /**
+     * Size of the stored parts, guarded by the lock.
+     */
+    private long storedSize;
+
+    private static int indexOf(@NotNull byte[] content, int from, int to, @NotNull byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++)
+                if (content[i + j] != pattern[j]) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(@NotNull byte[] content, int from, int to, @NotNull byte[] pattern) {
+        return pattern.length <= to - from && indexOf(content, from, from + pattern.length, pattern) == from;
+    }
+
+    /**
+     * @return Boundary of a multipart header block, or null if it is not a
+     * multipart.
+     */
+    @Nullable
+    private static byte[] getBoundary(@NotNull byte[] content, int from, int to) {
+        try {
+            InternetHeaders headers = new InternetHeaders(new ByteArrayInputStream(content, from, to - from));
+            String contentType = headers.getHeader("Content-Type", null);
+            if (contentType == null) return null;
+            ContentType type = new ContentType(contentType);
+            String boundary = type.match("multipart/*") ? type.getParameter("boundary") : null;
+            return boundary == null ? null : ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Split a message or a body part into ranges. The ranges cover the
+     * content without gaps, in order.
+     *
+     * @param ranges Start and end offsets of the ranges.
+     */
+    private static void split(@NotNull byte[] content, int from, int to, int depth, @NotNull List<int[]> ranges) {
+        int headerEnd = indexOf(content, from, to, HEADER_END);
+
+        if (headerEnd < 0 || NESTING_MAX < depth) {
+            ranges.add(new int[]{from, to});
+            return;
+        }
+
+        int bodyStart = headerEnd + HEADER_END.length;
+        byte[] delimiter = getBoundary(content, from, bodyStart);
+
+        if (delimiter == null) {
+            // The headers of a message are unique, the headers of a single part are not
+            if (depth == 0) ranges.add(new int[]{from, bodyStart});
+            ranges.add(new int[]{depth == 0 ? bodyStart : from, to});
+            return;
+        }
+
+        ranges.add(new int[]{from, bodyStart});
+        int delimiterStart = startsWith(content, bodyStart, to, delimiter) ? bodyStart : indexOfDelimiter(content, bodyStart, to, delimiter);
+        int cursor = bodyStart;
+
+        while (0 <= delimiterStart) {
+            int partStart = indexOf(content, delimiterStart, to, CRLF);
+            boolean closing = startsWith(content, delimiterStart + delimiter.length, to, new byte[]{'-', '-'});
+            if (closing || partStart < 0) break;
+            partStart += CRLF.length;
+            ranges.add(new int[]{cursor, partStart});
+
+            // The line break before the next delimiter belongs to the delimiter
+            delimiterStart = indexOfDelimiter(content, partStart, to, delimiter);
+            cursor = delimiterStart < 0 ? partStart : delimiterStart - CRLF.length;
+            if (delimiterStart < 0) break;
+            split(content, partStart, cursor, depth + 1, ranges);
+        }
+
+        ranges.add(new int[]{cursor, to});
+    }
+
+    private static int indexOfDelimiter(@NotNull byte[] content, int from, int to, @NotNull byte[] delimiter) {
+        byte[] pattern = new byte[CRLF.length + delimiter.length];
+        System.arraycopy(CRLF, 0, pattern, 0, CRLF.length);
+        System.arraycopy(delimiter, 0, pattern, CRLF.length, delimiter.length);
+        int index = indexOf(content, from, to, pattern);
+        return index < 0 ? -1 : index + CRLF.length;
+    }
+
+    @NotNull
+    private static String hash(@NotNull byte[] content, int from, int to) {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported.", e);
+        }
+
+        digest.update(content, from, to - from);
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+
+        return new String(hex);
+    }
+
+    @Override
+    @Nullable
+    public MimeMessage get(@NotNull String mailid) {
+        Objects.requireNonNull(mailid, "mailid");
+        Part[] parts;
+
+        synchronized (lock) {
+            parts = messageMap.get(mailid);
+        }
+
+        if (parts == null) return null;
+        int size = 0;
+        for (Part part : parts) size += part.content.length;
+        byte[] content = new byte[size];
+        int position = 0;
+
+        for (Part part : parts) {
+            System.arraycopy(part.content, 0, content, position, part.content.length);
+            position += part.content.length;
+        }
+
+        try {
+            return new MimeMessage(Session.getDefaultInstance(System.getProperties()), new SharedByteArrayInputStream(content));
+        } catch (MessagingException e) {
+            AspirinInternal.getLogger().error("DedupMailStore.get(): There is a messaging exception with message: " + mailid, e);
+            return null;
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<String> getMailIds() {
+        synchronized (lock) {
+            return new ArrayList<>(messageMap.keySet());
+        }
+    }
+
+    @Override
+    public void init() {
+        // Do nothing
+    }
+
+    @Override
+    public void remove(@Nullable String mailid) {
+        synchronized (lock) {
+            release(messageMap.remove(mailid));
+        }
+    }
+
+    @Override
+    public void set(@NotNull String mailid, @NotNull MimeMessage msg) {
+        Objects.requireNonNull(mailid, "mailid");
+        Objects.requireNonNull(msg, "msg");
+        byte[] content;
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16 * 1024, msg.getSize() + 1024));
+            msg.writeTo(out);
+            content = out.toByteArray();
+        } catch (IOException e) {
+            AspirinInternal.getLogger().error("DedupMailStore.set(): Could not render message: " + mailid, e);
+            return;
+        } catch (MessagingException e) {
+            AspirinInternal.getLogger().error("DedupMailStore.set(): There is a messaging exception with message: " + mailid, e);
+            return;
+        }
+
+        List<int[]> ranges = new ArrayList<>();
+        split(content, 0, content.length, 0, ranges);
+
+        // Small neighbour ranges are joined, large ones are hashed out of the lock
+        int sizeMin = partSizeMin;
+        List<int[]> joined = new ArrayList<>(ranges.size());
+        List<String> hashes = new ArrayList<>(ranges.size());
+
+        for (int[] range : ranges) {
+            if (range[1] <= range[0]) continue;
+            boolean shared = sizeMin <= range[1] - range[0];
+            int[] last = joined.isEmpty() ? null : joined.get(joined.size() - 1);
+
+            if (!shared && last != null && hashes.get(hashes.size() - 1) == null)
+                last[1] = range[1];
+            else {
+                joined.add(new int[]{range[0], range[1]});
+                hashes.add(shared ? hash(content, range[0], range[1]) : null);
+            }
+        }
+
+        Part[] parts = new Part[joined.size()];
+
+        synchronized (lock) {
+            for (int i = 0; i < parts.length; i++) {
+                int[] range = joined.get(i);
+                String hash = hashes.get(i);
+                Part part = hash == null ? null : sharedParts.get(hash);
+
+                if (part == null) {
+                    part = new Part(Arrays.copyOfRange(content, range[0], range[1]), hash);
+                    if (hash != null) sharedParts.put(hash, part);
+                    storedSize += part.content.length;
+                }
+
+                part.refCount++;
+                parts[i] = part;
+            }
+
+            messageSize += content.length;
+            release(messageMap.put(mailid, parts));
+        }
+    }
+
+    /**
+     * @return Count of the parts stored once for several messages.
+     */
+    public int getSharedPartCount() {
+        synchronized (lock) {
+            return sharedParts.size();
+        }
+    }
+
+    /**
+     * @return Size of the stored messages in bytes, as if they were stored
+     * one by one.
+     */
+    public long getMessageSize() {
+        synchronized (lock) {
+            return messageSize;
+        }
+    }
+
+    /**
+     * @return Size of the stored parts in bytes.
+     */
+    public long getStoredSize() {
+        synchronized (lock) {
+            return storedSize;
+        }
+    }
+
+    public int getPartSizeMin() {
+        return partSizeMin;
+    }
+
+    /**
+     * Set the minimal size of parts, which are stored once for several
+     * messages. Smaller parts are not hashed, they are stored with every
+     * message.
+     *
+     * @param partSizeMin Size in bytes.
+     */
+    public void setPartSizeMin(int partSizeMin) {
+        this.partSizeMin = partSizeMin;
+    }
+
+    private void release(@Nullable Part[] parts) {
+        if (parts == null) return;
+
+        for (Part part : parts) {
+            messageSize -= part.content.length;
+
+            if (--part.refCount == 0) {
+                storedSize -= part.content.length;
+                if (part.hash != null) sharedParts.remove(part.hash);
+            }
+        }
+    }
+
+    /**
+     * A range of a rendered message.
+     */
+    private static final class Part {
+        @NotNull
+        private final byte[] content;
+        @Nullable
+        private final String hash;
+        /**
+         * Count of messages using this part, guarded by the lock of the store.
+         */
+        private int refCount;
+
+        Part(@NotNull byte[] content, @Nullable String hash) {
+            this.content = content;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of message files in zlib format. Its header and
+ * Adler-32 checksum are smaller and faster than the ones of
+ * {@link GzipMessageCodec}.
+ */
+public class DeflateMessageCodec implements MessageCodec {
+    public static final String NAME = "deflate";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final int level;
+
+    public DeflateMessageCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level Compression level from 1 (fastest) to 9 (smallest).
+     */
+    public DeflateMessageCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    @NotNull
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    @NotNull
+    public String getFileExtension() {
+        return ".deflate";
+    }
+
+    @Override
+    @NotNull
+    public OutputStream compress(@NotNull OutputStream out) throws IOException {
+        Deflater deflater = new Deflater(level);
+        // The native memory of an own deflater is not released by the stream
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    @NotNull
+    public InputStream decompress(@NotNull InputStream in) throws IOException {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
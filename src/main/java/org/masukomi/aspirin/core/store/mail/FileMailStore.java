@@ -2,54 +2,237 @@ package org.masukomi.aspirin.core.store.mail;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.Aspirin;
 import org.masukomi.aspirin.core.AspirinInternal;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
 import java.io.*;
-import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
 
 /**
  * This store implementation is designed to reduce memory
  * usage of MimeMessage instances. All MimeMessage instance
- * are stored in files and in weak references too. So
- * garbage collector can remove all large MimeMessage object
- * from memory if necessary.
+ * are stored in files, and the recently used ones are kept
+ * in a {@link MessageCache} too, up to the configured cache
+ * size in bytes. Messages missing from the cache are parsed
+ * from their files again.
+ *
+ * <p>The mail ID, file, size and expiry of every message are recorded in a
+ * manifest file in the root directory ({@link MailManifest}). On init()
+ * only the manifest is loaded, and the message files are listed to validate
+ * it. Files which are missing from the manifest or have a different size
+ * are scanned in parallel, reading only their headers.</p>
+ *
+ * <p>If a {@link MessageCodec} is set, messages not smaller than the
+ * compression threshold are compressed while they are written, and
+ * decompressed while they are read. The extension of a compressed file
+ * names its codec, so a store could hold files of several codecs and
+ * uncompressed ones too.</p>
+ *
+ * <p>By default set() writes the file in the calling thread
+ * ({@link WriteMode#DIRECT}). In the other write modes set() renders the
+ * message into a bounded staging area, and writer threads write the staged
+ * messages in batches and force them to disk. Staged messages are served
+ * from memory until their files are written.</p>
  *
  * @author Laszlo Solova
  */
 public class FileMailStore implements MailStore {
+    /**
+     * Default size of the message cache in bytes.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024L * 1024L;
+    /**
+     * Name of the manifest file in the root directory.
+     */
+    public static final String MANIFEST_FILE_NAME = "manifest.dat";
+    /**
+     * Default minimal size of compressed messages in bytes.
+     */
+    public static final int DEFAULT_COMPRESSION_MIN = 4 * 1024;
+    /**
+     * Default size of the staging area in bytes.
+     */
+    public static final long DEFAULT_STAGING_SIZE = 32L * 1024L * 1024L;
+    /**
+     * Default count of writer threads.
+     */
+    public static final int DEFAULT_WRITER_COUNT = 2;
+    private static final int BATCH_SIZE_MAX = 64;
+    private static final String MESSAGE_FILE_EXTENSION = ".msg";
     @NotNull
     private final Random rand = new Random();
     @NotNull
-    private final Map<String, WeakReference<MimeMessage>> messageMap = new HashMap<>();
+    private final MessageCache messageCache = new MessageCache(DEFAULT_CACHE_SIZE);
+    @NotNull
+    private final Map<String, MailManifest.Entry> messageEntries = new ConcurrentHashMap<>();
     @NotNull
-    private final Map<String, String> messagePathMap = new HashMap<>();
+    private final Map<String, StagedMessage> staged = new ConcurrentHashMap<>();
+    @NotNull
+    private final Object[] locks = new Object[64];
+    @NotNull
+    private final Object stagingLock = new Object();
     @Nullable
     private File rootDir;
+    @Nullable
+    private volatile MailManifest manifest;
     private int subDirCount = 3;
+    @Nullable
+    private volatile MessageCodec codec;
+    private volatile int compressionMin = DEFAULT_COMPRESSION_MIN;
+    @NotNull
+    private volatile WriteMode writeMode = WriteMode.DIRECT;
+    private volatile long stagingSize = DEFAULT_STAGING_SIZE;
+    private int writerCount = DEFAULT_WRITER_COUNT;
+    @Nullable
+    private StagingWriter[] writers;
+    /**
+     * Size of the staged messages, guarded by the staging lock.
+     */
+    private long stagedSize;
+
+    public FileMailStore() {
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+    }
+
+    @NotNull
+    private MimeMessage read(@NotNull MailManifest.Entry entry) throws IOException, MessagingException {
+        MessageCodec fileCodec = codecOf(entry.getFile().getName());
+        byte[] content;
+
+        if (fileCodec == null)
+            content = Files.readAllBytes(entry.getFile().toPath());
+        else {
+            if (Integer.MAX_VALUE < entry.getMessageSize())
+                throw new IOException("Message is too large to be read into memory: " + entry.getMessageSize());
+            content = new byte[(int) entry.getMessageSize()];
+
+            try (DataInputStream in = new DataInputStream(fileCodec.decompress(Files.newInputStream(entry.getFile().toPath())))) {
+                in.readFully(content);
+            }
+        }
+
+        // The parsed message shares the content of the file instead of copying it
+        return new MimeMessage(Session.getDefaultInstance(System.getProperties()), new SharedByteArrayInputStream(content));
+    }
+
+    @NotNull
+    private static InputStream openFile(@NotNull File msgFile, @Nullable MessageCodec fileCodec) throws IOException {
+        InputStream in = Files.newInputStream(msgFile.toPath());
+        return fileCodec == null ? in : fileCodec.decompress(in);
+    }
+
+    /**
+     * @return Codec of a message file, or null if it is not compressed.
+     */
+    @Nullable
+    private MessageCodec codecOf(@NotNull String fileName) {
+        if (fileName.endsWith(MESSAGE_FILE_EXTENSION)) return null;
+        MessageCodec currentCodec = codec;
+        // The set codec could be a custom instance missing from the registry
+        if (currentCodec != null && fileName.endsWith(MESSAGE_FILE_EXTENSION + currentCodec.getFileExtension()))
+            return currentCodec;
+        return MessageCodecs.forFileName(fileName);
+    }
+
+    private boolean isMessageFile(@NotNull String fileName) {
+        return fileName.endsWith(MESSAGE_FILE_EXTENSION) || codecOf(fileName) != null;
+    }
+
+    private static long parseExpiry(@Nullable String header) {
+        if (header == null) return Long.MAX_VALUE;
+
+        try {
+            // The shared format is not thread-safe
+            return ((SimpleDateFormat) AspirinInternal.expiryFormat.clone()).parse(header).getTime();
+        } catch (ParseException e) {
+            AspirinInternal.getLogger().error("FileMailStore.parseExpiry(): Invalid expiry header: '{}'.", header, e);
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Read only the headers of a message file.
+     *
+     * @param msgFile The message file.
+     * @return Entry of the message, or null if the file could not be read.
+     */
+    @Nullable
+    private MailManifest.Entry scan(@NotNull File msgFile) {
+        MessageCodec fileCodec = codecOf(msgFile.getName());
+
+        try (InputStream in = new BufferedInputStream(openFile(msgFile, fileCodec), 8 * 1024)) {
+            InternetHeaders headers = new InternetHeaders(in);
+            String mailid = headers.getHeader(Aspirin.HEADER_MAIL_ID, null);
+
+            if (mailid == null) {
+                String name = msgFile.getName();
+                mailid = name.substring(0, name.lastIndexOf(MESSAGE_FILE_EXTENSION));
+            }
+
+            long messageSize = msgFile.length();
+
+            // Size of a compressed message is known only after decompressing it
+            if (fileCodec != null) {
+                try (InputStream countIn = openFile(msgFile, fileCodec)) {
+                    messageSize = 0L;
+                    byte[] buffer = new byte[8 * 1024];
+                    int count;
+                    while ((count = countIn.read(buffer)) != -1) messageSize += count;
+                }
+            }
+
+            return new MailManifest.Entry(mailid, msgFile, msgFile.length(), messageSize,
+                    parseExpiry(headers.getHeader(Aspirin.HEADER_EXPIRY, null)));
+        } catch (IOException e) {
+            AspirinInternal.getConfiguration().getLogger().error(
+                    getClass().getSimpleName() + " No file representation found with name " + msgFile.getAbsolutePath(), e);
+        } catch (MessagingException e) {
+            AspirinInternal.getConfiguration().getLogger().error(
+                    getClass().getSimpleName() + " There is a messaging exception in file " + msgFile.getAbsolutePath(), e);
+        }
+
+        return null;
+    }
 
     @Override
     @Nullable
     public MimeMessage get(@NotNull String mailid) {
         Objects.requireNonNull(mailid, "mailid");
-        WeakReference<MimeMessage> msgRef = messageMap.get(mailid);
-        MimeMessage msg = null;
+        MimeMessage msg = messageCache.get(mailid);
+        if (msg != null) return msg;
 
-        if (msgRef != null) {
-            msg = msgRef.get();
-            if (msg == null) {
-                try {
-                    msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new FileInputStream(new File(messagePathMap.get(mailid))));
-                } catch (FileNotFoundException e) {
-                    AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName() + " No file representation found for name " + mailid, e);
-                } catch (MessagingException e) {
-                    AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
-                }
-            }
+        StagedMessage stagedMessage = staged.get(mailid);
+        if (stagedMessage != null) return stagedMessage.message;
+
+        MailManifest.Entry entry = messageEntries.get(mailid);
+        if (entry == null) return null;
+
+        try {
+            msg = read(entry);
+            // The message could be removed while it was read
+            if (messageEntries.get(mailid) == entry) messageCache.put(mailid, msg, entry.getMessageSize());
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName() + " No file representation found for name " + mailid, e);
+        } catch (IOException e) {
+            AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName() + " Could not read file for name " + mailid, e);
+        } catch (MessagingException e) {
+            AspirinInternal.getConfiguration().getLogger().error(getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
         }
 
         return msg;
@@ -58,90 +241,161 @@ public class FileMailStore implements MailStore {
     @Override
     @NotNull
     public List<String> getMailIds() {
-        return new ArrayList<>(messageMap.keySet());
+        if (staged.isEmpty()) return new ArrayList<>(messageEntries.keySet());
+        Set<String> mailIds = new HashSet<>(messageEntries.keySet());
+        mailIds.addAll(staged.keySet());
+        return new ArrayList<>(mailIds);
+    }
+
+    @Override
+    @Nullable
+    public MessageSource getSource(@NotNull String mailid) {
+        StagedMessage stagedMessage = staged.get(Objects.requireNonNull(mailid, "mailid"));
+        if (stagedMessage != null) return stagedMessage;
+        MailManifest.Entry entry = messageEntries.get(mailid);
+        return entry == null ? null : new FileMessageSource(entry.getFile(), codecOf(entry.getFile().getName()), entry.getMessageSize());
+    }
+
+    /**
+     * @param mailid Unique Aspirin ID of the message.
+     * @return Expiry of the stored message in epoch milliseconds,
+     * Long.MAX_VALUE if the message has no expiry header, or -1 if there is
+     * no such message.
+     */
+    public long getExpiry(@NotNull String mailid) {
+        StagedMessage stagedMessage = staged.get(Objects.requireNonNull(mailid, "mailid"));
+        if (stagedMessage != null) return stagedMessage.expiry;
+        MailManifest.Entry entry = messageEntries.get(mailid);
+        return entry == null ? -1L : entry.getExpiry();
     }
 
     @Override
     public void init() {
-        if (!rootDir.exists()) return;
-        File[] subdirs = rootDir.listFiles();
-        if (subdirs == null) return;
+        if (rootDir == null)
+            throw new IllegalStateException(getClass().getSimpleName() + " Please set up root directory.");
+        if (!rootDir.exists()) rootDir.mkdirs();
+
+        MailManifest previousManifest = manifest;
+        if (previousManifest != null) previousManifest.close();
+        MailManifest currentManifest = new MailManifest(rootDir, new File(rootDir, MANIFEST_FILE_NAME), () -> new ArrayList<>(messageEntries.values()));
+        Map<String, MailManifest.Entry> recorded = currentManifest.load();
+        Map<String, MailManifest.Entry> recordedByPath = new HashMap<>();
+        if (recorded != null)
+            recorded.values().forEach(entry -> recordedByPath.put(entry.getFile().getAbsolutePath(), entry));
+
+        // Only the file names and sizes are read to validate the manifest
+        List<File> unknownFiles = new ArrayList<>();
+        File[] subdirs = rootDir.listFiles(File::isDirectory);
+        int loadedCount = 0;
+
+        for (File subdir : subdirs == null ? new File[0] : subdirs) {
+            File[] msgFiles = subdir.listFiles((dir, name) -> isMessageFile(name));
+            if (msgFiles == null) continue;
+
+            for (File msgFile : msgFiles) {
+                MailManifest.Entry entry = recordedByPath.get(msgFile.getAbsolutePath());
+
+                if (entry != null && entry.getSize() == msgFile.length()) {
+                    messageEntries.put(entry.getMailid(), entry);
+                    loadedCount++;
+                } else
+                    unknownFiles.add(msgFile);
+            }
+        }
 
-        Arrays.stream(subdirs)
-                .filter(File::isDirectory)
-                .map(File::listFiles)
+        List<MailManifest.Entry> scanned = unknownFiles.parallelStream()
+                .map(this::scan)
                 .filter(Objects::nonNull)
-                .flatMap(Arrays::stream)
-                .forEachOrdered(msgFile -> {
-                    try {
-                        MimeMessage msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new FileInputStream(msgFile));
-                        String mailid = AspirinInternal.getMailID(msg);
-
-                        synchronized (messageMap) {
-                            messageMap.put(mailid, new WeakReference<>(msg));
-                            messagePathMap.put(mailid, msgFile.getAbsolutePath());
-                        }
-                    } catch (FileNotFoundException e) {
-                        AspirinInternal.getConfiguration().getLogger().error(
-                                getClass().getSimpleName() + " No file representation found with name " + msgFile.getAbsolutePath(),
-                                e);
-                    } catch (MessagingException e) {
-                        AspirinInternal.getConfiguration().getLogger().error(
-                                getClass().getSimpleName() + " There is a messaging exception in file " + msgFile.getAbsolutePath(),
-                                e);
-                    }
-                });
+                .collect(Collectors.toList());
+        scanned.forEach(entry -> messageEntries.put(entry.getMailid(), entry));
+
+        if (recorded == null || !unknownFiles.isEmpty() || loadedCount < recorded.size())
+            AspirinInternal.getLogger().info("FileMailStore.init(): Manifest is missing or stale, {} of {} message files were scanned.",
+                    unknownFiles.size(), loadedCount + unknownFiles.size());
+
+        // The validated state is written back as a checkpoint
+        currentManifest.checkpoint();
+        manifest = currentManifest;
     }
 
     @Override
     public void remove(@Nullable String mailid) {
-        synchronized (messageMap) {
-            messageMap.remove(mailid);
-
-            synchronized (messagePathMap) {
-                File file = new File(messagePathMap.get(mailid));
+        if (mailid == null) return;
+        MailManifest.Entry entry;
 
-                try {
-                    Files.delete(file.toPath());
-                } catch (IOException e) {
-                    AspirinInternal.getConfiguration().getLogger().error(
-                            getClass().getSimpleName() + " Could not write file for name " + mailid, e);
-                }
+        synchronized (lockOf(mailid)) {
+            // The writer deletes the file of a removed staged message
+            staged.remove(mailid);
+            entry = messageEntries.remove(mailid);
+            messageCache.remove(mailid);
+            if (entry == null) return;
 
-                messagePathMap.remove(mailid);
-            }
+            MailManifest currentManifest = manifest;
+            if (currentManifest != null) currentManifest.removed(mailid);
         }
+
+        delete(entry.getFile());
     }
 
     @Override
     public void set(@NotNull String mailid, @NotNull MimeMessage msg) {
         Objects.requireNonNull(mailid, "mailid");
         Objects.requireNonNull(msg, "msg");
-        String filepath;
-
         // Create file path
         if (rootDir == null)
             throw new IllegalStateException(getClass().getSimpleName() + " Please set up root directory.");
 
+        long expiry;
+
+        try {
+            String[] expiryHeaders = msg.getHeader(Aspirin.HEADER_EXPIRY);
+            expiry = parseExpiry(expiryHeaders == null || expiryHeaders.length == 0 ? null : expiryHeaders[0]);
+        } catch (MessagingException e) {
+            AspirinInternal.getConfiguration().getLogger().error(
+                    getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+            return;
+        }
+
+        WriteMode currentWriteMode = writeMode;
+
+        if (currentWriteMode == WriteMode.DIRECT) {
+            MailManifest.Entry entry = write(mailid, msg::writeTo, expiry, false);
+            if (entry == null) return;
+
+            synchronized (lockOf(mailid)) {
+                commit(entry);
+                messageCache.put(mailid, msg, entry.getMessageSize());
+            }
+        } else
+            stage(mailid, msg, expiry, currentWriteMode == WriteMode.FSYNC);
+    }
+
+    /**
+     * Write a message file into a random subdirectory.
+     *
+     * @param sync Force the file to disk before it is closed.
+     * @return Entry of the written file, or null if it could not be written.
+     */
+    @Nullable
+    private MailManifest.Entry write(@NotNull String mailid, @NotNull MessageWriter writer, long expiry, boolean sync) {
         String subDirName = String.valueOf(rand.nextInt(subDirCount));
         File dir = new File(rootDir, subDirName);
 
         if (!dir.exists())
             dir.mkdirs();
 
-        filepath = new File(dir, mailid + ".msg").getAbsolutePath();
+        MessageFileOutputStream out = new MessageFileOutputStream(new File(dir, mailid + MESSAGE_FILE_EXTENSION), codec, compressionMin, sync);
 
         // Save information
         try {
-            File msgFile = new File(filepath);
-            if (msgFile.exists()) Files.delete(msgFile.toPath());
-            if (!msgFile.exists()) msgFile.createNewFile();
-            msg.writeTo(new FileOutputStream(msgFile));
-
-            synchronized (messageMap) {
-                messageMap.put(mailid, new WeakReference<>(msg));
-                messagePathMap.put(mailid, filepath);
+            try {
+                writer.writeTo(out);
+            } finally {
+                out.close();
             }
+
+            File msgFile = out.getFile();
+            return new MailManifest.Entry(mailid, msgFile, msgFile.length(), out.getMessageSize(), expiry);
         } catch (FileNotFoundException e) {
             AspirinInternal.getConfiguration().getLogger().error(
                     getClass().getSimpleName() + " No file representation found for name " + mailid, e);
@@ -152,6 +406,214 @@ public class FileMailStore implements MailStore {
             AspirinInternal.getConfiguration().getLogger().error(
                     getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
         }
+
+        return null;
+    }
+
+    /**
+     * Record a written file. It has to be called with the lock of the
+     * message.
+     */
+    private void commit(@NotNull MailManifest.Entry entry) {
+        // A previous version of the message could be in another subdirectory or compressed differently
+        MailManifest.Entry previous = messageEntries.put(entry.getMailid(), entry);
+        if (previous != null && !previous.getFile().equals(entry.getFile())) delete(previous.getFile());
+
+        MailManifest currentManifest = manifest;
+        if (currentManifest != null) currentManifest.added(entry);
+    }
+
+    private void delete(@NotNull File msgFile) {
+        try {
+            Files.deleteIfExists(msgFile.toPath());
+        } catch (IOException e) {
+            AspirinInternal.getConfiguration().getLogger().error(
+                    getClass().getSimpleName() + " Could not delete file " + msgFile.getAbsolutePath(), e);
+        }
+    }
+
+    @NotNull
+    private Object lockOf(@NotNull String mailid) {
+        return locks[(mailid.hashCode() & 0x7FFFFFFF) % locks.length];
+    }
+
+    /**
+     * Render the message into the staging area and hand it over to its
+     * writer. Messages of the same mail ID go to the same writer, so their
+     * versions are written in order.
+     *
+     * @param await Wait until the file is forced to disk.
+     */
+    private void stage(@NotNull String mailid, @NotNull MimeMessage msg, long expiry, boolean await) {
+        byte[] content;
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16 * 1024, msg.getSize() + 1024));
+            msg.writeTo(out);
+            content = out.toByteArray();
+        } catch (IOException e) {
+            AspirinInternal.getConfiguration().getLogger().error(
+                    getClass().getSimpleName() + " Could not render message for name " + mailid, e);
+            return;
+        } catch (MessagingException e) {
+            AspirinInternal.getConfiguration().getLogger().error(
+                    getClass().getSimpleName() + " There is a messaging exception with name " + mailid, e);
+            return;
+        }
+
+        StagedMessage stagedMessage = new StagedMessage(mailid, msg, content, expiry);
+
+        synchronized (stagingLock) {
+            // Producers wait for the writers while the staging area is full
+            try {
+                while (0L < stagedSize && stagingSize < stagedSize + content.length) stagingLock.wait();
+            } catch (InterruptedException e) {
+                // The staging area is not overcommitted, the message is not stored
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(getClass().getSimpleName() + " Staging was interrupted for name " + mailid, e);
+            }
+            stagedSize += content.length;
+        }
+
+        synchronized (lockOf(mailid)) {
+            staged.put(mailid, stagedMessage);
+            messageCache.put(mailid, msg, content.length);
+        }
+
+        StagingWriter[] currentWriters = getWriters();
+        currentWriters[(mailid.hashCode() & 0x7FFFFFFF) % currentWriters.length].queue.add(stagedMessage);
+        if (!await) return;
+
+        try {
+            stagedMessage.written.await();
+        } catch (InterruptedException e) {
+            // The message stays staged, it is written later
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (stagedMessage.failed)
+            throw new IllegalStateException(getClass().getSimpleName() + " Could not write file for name " + mailid);
+    }
+
+    @NotNull
+    private synchronized StagingWriter[] getWriters() {
+        if (writers == null) {
+            StagingWriter[] startedWriters = new StagingWriter[writerCount];
+            for (int i = 0; i < startedWriters.length; i++) {
+                startedWriters[i] = new StagingWriter(i);
+                startedWriters[i].start();
+            }
+            writers = startedWriters;
+        }
+        return writers;
+    }
+
+    /**
+     * Write a batch of staged messages. The files are forced to disk one by
+     * one, then their directories once for the batch, and the messages are
+     * recorded only after that.
+     */
+    private void writeBatch(@NotNull List<StagedMessage> batch) {
+        MailManifest.Entry[] entries = new MailManifest.Entry[batch.size()];
+        Set<File> dirs = new HashSet<>();
+
+        for (int i = 0; i < entries.length; i++) {
+            StagedMessage stagedMessage = batch.get(i);
+            // Removed and replaced messages are not written
+            if (staged.get(stagedMessage.mailid) != stagedMessage) continue;
+            entries[i] = write(stagedMessage.mailid, out -> out.write(stagedMessage.content), stagedMessage.expiry, true);
+            if (entries[i] != null) dirs.add(entries[i].getFile().getParentFile());
+        }
+
+        // New files are durable only after their directory entries are forced too
+        for (File dir : dirs) {
+            try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Some platforms could not open directories
+                AspirinInternal.getLogger().debug("FileMailStore.writeBatch(): Directory '{}' could not be forced to disk.", dir, e);
+            }
+        }
+
+        for (int i = 0; i < entries.length; i++) {
+            StagedMessage stagedMessage = batch.get(i);
+
+            synchronized (lockOf(stagedMessage.mailid)) {
+                if (staged.get(stagedMessage.mailid) == stagedMessage) {
+                    staged.remove(stagedMessage.mailid);
+
+                    if (entries[i] != null) commit(entries[i]);
+                    else {
+                        // The message is lost, it is not served from the cache either
+                        stagedMessage.failed = true;
+                        messageCache.remove(stagedMessage.mailid);
+                    }
+                } else if (entries[i] != null)
+                    delete(entries[i].getFile());
+            }
+
+            synchronized (stagingLock) {
+                stagedSize -= stagedMessage.content.length;
+                stagingLock.notifyAll();
+            }
+            stagedMessage.written.countDown();
+        }
+    }
+
+    /**
+     * Wait until every staged message is written to disk.
+     *
+     * @throws InterruptedException If the thread is interrupted meanwhile.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (stagingLock) {
+            while (0L < stagedSize) stagingLock.wait();
+        }
+    }
+
+    /**
+     * Wait until every staged message is written to disk, then close the
+     * manifest. Later changes are stored, but they are not recorded in the
+     * manifest.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            AspirinInternal.getLogger().error("FileMailStore.close(): Staged messages could not be written, the thread was interrupted.", e);
+            Thread.currentThread().interrupt();
+        }
+
+        MailManifest currentManifest = manifest;
+        if (currentManifest != null) currentManifest.close();
+    }
+
+    /**
+     * @return The cache of recently used messages, with its hit and eviction
+     * counts.
+     */
+    @NotNull
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * @return Maximal size of cached messages in bytes.
+     */
+    public long getCacheSize() {
+        return messageCache.getBudget();
+    }
+
+    /**
+     * Set the maximal size of messages kept in memory. Messages are weighted
+     * by their uncompressed size. If 0, then every get reads the file.
+     *
+     * @param cacheSize Size in bytes.
+     */
+    public void setCacheSize(long cacheSize) {
+        messageCache.setBudget(cacheSize);
     }
 
     @Nullable
@@ -170,4 +632,323 @@ public class FileMailStore implements MailStore {
     public void setSubDirCount(int subDirCount) {
         this.subDirCount = subDirCount;
     }
+
+    @Nullable
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the codec of new message files. Stored files are read with their
+     * own codec, they are not converted.
+     *
+     * @param codec The codec, or null to store messages uncompressed.
+     */
+    public void setCodec(@Nullable MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Set the codec of new message files by its name.
+     *
+     * @param codecName Name of a codec in {@link MessageCodecs}, or null to
+     *                  store messages uncompressed.
+     * @throws IllegalArgumentException If there is no codec with this name.
+     */
+    public void setCodecName(@Nullable String codecName) {
+        MessageCodec namedCodec = codecName == null ? null : MessageCodecs.forName(codecName);
+        if (codecName != null && namedCodec == null)
+            throw new IllegalArgumentException("Unknown message codec: " + codecName);
+        this.codec = namedCodec;
+    }
+
+    public int getCompressionMin() {
+        return compressionMin;
+    }
+
+    /**
+     * Set the minimal size of compressed messages. Smaller messages are
+     * stored uncompressed, because compression would not save a disk block.
+     *
+     * @param compressionMin Size in bytes.
+     */
+    public void setCompressionMin(int compressionMin) {
+        this.compressionMin = Math.max(0, compressionMin);
+    }
+
+    @NotNull
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    /**
+     * Set how set() writes the message files. Messages staged before are
+     * written in the previous mode.
+     *
+     * @param writeMode The write mode.
+     */
+    public void setWriteMode(@NotNull WriteMode writeMode) {
+        this.writeMode = Objects.requireNonNull(writeMode, "writeMode");
+    }
+
+    public long getStagingSize() {
+        return stagingSize;
+    }
+
+    /**
+     * Set the maximal size of staged messages. If the staging area is full,
+     * set() waits until the writers make room. A single message larger than
+     * the staging area is staged alone.
+     *
+     * @param stagingSize Size in bytes.
+     */
+    public void setStagingSize(long stagingSize) {
+        this.stagingSize = stagingSize;
+    }
+
+    /**
+     * @return Size of the currently staged messages in bytes.
+     */
+    public long getStagedSize() {
+        synchronized (stagingLock) {
+            return stagedSize;
+        }
+    }
+
+    public synchronized int getWriterCount() {
+        return writerCount;
+    }
+
+    /**
+     * Set the count of writer threads. The writers are started by the first
+     * staged message, the count could not be changed after that.
+     *
+     * @param writerCount Count of threads.
+     */
+    public synchronized void setWriterCount(int writerCount) {
+        if (writers != null) throw new IllegalStateException("Writers are already started.");
+        this.writerCount = Math.max(1, writerCount);
+    }
+
+    /**
+     * How set() stores a message.
+     */
+    public enum WriteMode {
+        /**
+         * The file is written by the calling thread, it is not forced to
+         * disk.
+         */
+        DIRECT,
+        /**
+         * The message is staged, and set() returns after a writer has forced
+         * its file to disk. If the file could not be written, set() throws
+         * an IllegalStateException.
+         */
+        FSYNC,
+        /**
+         * set() returns after the message is staged. Staged messages are
+         * written by close(), but they are lost, if the JVM stops before.
+         */
+        STAGED
+    }
+
+    /**
+     * Renders a message into a stream.
+     */
+    private interface MessageWriter {
+        void writeTo(@NotNull OutputStream out) throws IOException, MessagingException;
+    }
+
+    /**
+     * A rendered message waiting in the staging area. It could be streamed
+     * from memory until it is written.
+     */
+    private static final class StagedMessage implements MessageSource {
+        @NotNull
+        private final String mailid;
+        @NotNull
+        private final MimeMessage message;
+        @NotNull
+        private final byte[] content;
+        private final long expiry;
+        @NotNull
+        private final CountDownLatch written = new CountDownLatch(1);
+        /**
+         * Set before the latch is counted down, if the file could not be
+         * written.
+         */
+        private volatile boolean failed;
+
+        StagedMessage(@NotNull String mailid, @NotNull MimeMessage message, @NotNull byte[] content, long expiry) {
+            this.mailid = mailid;
+            this.message = message;
+            this.content = content;
+            this.expiry = expiry;
+        }
+
+        @Override
+        public long getSize() {
+            return content.length;
+        }
+
+        @Override
+        @NotNull
+        public InputStream openStream() {
+            return new ByteArrayInputStream(content);
+        }
+    }
+
+    /**
+     * Takes the staged messages of its queue, and writes them in batches.
+     */
+    private final class StagingWriter extends Thread {
+        @NotNull
+        private final BlockingQueue<StagedMessage> queue = new LinkedBlockingQueue<>();
+
+        StagingWriter(int index) {
+            setName("Aspirin-" + FileMailStore.class.getSimpleName() + "-Writer-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<StagedMessage> batch = new ArrayList<>(BATCH_SIZE_MAX);
+
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                queue.drainTo(batch, BATCH_SIZE_MAX - 1);
+
+                try {
+                    writeBatch(batch);
+                } catch (RuntimeException e) {
+                    AspirinInternal.getLogger().error("FileMailStore.StagingWriter.run(): Staged messages could not be written.", e);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes a message file. Without codec the file is written directly.
+     * With codec the beginning of the message is buffered until the
+     * compression threshold: if the message ends before, it is written
+     * uncompressed, otherwise it is compressed into a file with the
+     * extension of the codec.
+     */
+    private static final class MessageFileOutputStream extends OutputStream {
+        @NotNull
+        private final File plainFile;
+        @Nullable
+        private final MessageCodec fileCodec;
+        private final int threshold;
+        private final boolean sync;
+        @Nullable
+        private ByteArrayOutputStream buffer;
+        @Nullable
+        private OutputStream out;
+        @NotNull
+        private File file;
+        private long messageSize;
+
+        MessageFileOutputStream(@NotNull File plainFile, @Nullable MessageCodec fileCodec, int threshold, boolean sync) {
+            this.plainFile = plainFile;
+            this.fileCodec = fileCodec;
+            this.threshold = threshold;
+            this.sync = sync;
+            this.file = plainFile;
+            if (fileCodec != null) buffer = new ByteArrayOutputStream(Math.min(threshold, 8 * 1024) + 1);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            messageSize += len;
+
+            if (out == null && buffer != null && buffer.size() + len < threshold) {
+                buffer.write(b, off, len);
+                return;
+            }
+
+            open(fileCodec).write(b, off, len);
+        }
+
+        @NotNull
+        private OutputStream open(@Nullable MessageCodec openCodec) throws IOException {
+            if (out != null) return out;
+            if (openCodec != null) file = new File(plainFile.getPath() + openCodec.getFileExtension());
+            FileOutputStream fileOut = new FileOutputStream(file) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    // The streams above are flushed before, the codec is finished too
+                    if (sync && !closed) getFD().sync();
+                    closed = true;
+                    super.close();
+                }
+            };
+            OutputStream bufferedOut = new BufferedOutputStream(fileOut, 64 * 1024);
+            out = openCodec == null ? bufferedOut : openCodec.compress(bufferedOut);
+
+            if (buffer != null) {
+                buffer.writeTo(out);
+                buffer = null;
+            }
+
+            return out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Messages under the threshold are not compressed
+            open(null).close();
+        }
+
+        @NotNull
+        File getFile() {
+            return file;
+        }
+
+        long getMessageSize() {
+            return messageSize;
+        }
+    }
+
+    /**
+     * Reads the message file, decompressed if needed. The message is not
+     * parsed.
+     */
+    private static final class FileMessageSource implements MessageSource {
+        @NotNull
+        private final File file;
+        @Nullable
+        private final MessageCodec fileCodec;
+        private final long size;
+
+        FileMessageSource(@NotNull File file, @Nullable MessageCodec fileCodec, long size) {
+            this.file = file;
+            this.fileCodec = fileCodec;
+            this.size = size;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        @NotNull
+        public InputStream openStream() throws IOException {
+            return openFile(file, fileCodec);
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * GZIP compression of message files, they could be read by gunzip too.
+ */
+public class GzipMessageCodec implements MessageCodec {
+    public static final String NAME = "gzip";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final int level;
+
+    public GzipMessageCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level Compression level from 1 (fastest) to 9 (smallest).
+     */
+    public GzipMessageCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    @NotNull
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    @NotNull
+    public String getFileExtension() {
+        return ".gz";
+    }
+
+    @Override
+    @NotNull
+    public OutputStream compress(@NotNull OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    @Override
+    @NotNull
+    public InputStream decompress(@NotNull InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+}
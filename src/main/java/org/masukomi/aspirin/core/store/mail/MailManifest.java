@@ -0,0 +1,305 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Manifest file of {@link FileMailStore}. It maps every stored mail ID to
+ * its file, file size, message size and expiry, so the store could start without parsing
+ * the message files.</p>
+ *
+ * <p>Changes are appended to the manifest as framed records (length and
+ * CRC32 checksum, like in the queue journal). Records are flushed to the
+ * operating system, but not forced to disk: the manifest is only a hint,
+ * the store validates it against the message files on startup. If the
+ * count of records grows over twice the count of live entries, the
+ * manifest is replaced by a checkpoint of the live entries with an atomic
+ * rename.</p>
+ */
+final class MailManifest {
+    private static final int MAGIC = 0x4153504D; // "ASPM"
+    private static final int VERSION = 2;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int RECORD_SIZE_MAX = 64 * 1024;
+    private static final int CHECKPOINT_RECORDS_MIN = 1024;
+    @NotNull
+    private final File rootDir;
+    @NotNull
+    private final File file;
+    @NotNull
+    private final Supplier<Collection<Entry>> liveEntries;
+    @NotNull
+    private final Object lock = new Object();
+    @Nullable
+    private DataOutputStream out;
+    private int recordCount;
+    private int checkpointSize;
+
+    /**
+     * @param rootDir     Root directory of the store, the paths in the
+     *                    manifest are relative to it.
+     * @param file        The manifest file.
+     * @param liveEntries Gives back the current entries of the store for
+     *                    checkpoints.
+     */
+    MailManifest(@NotNull File rootDir, @NotNull File file, @NotNull Supplier<Collection<Entry>> liveEntries) {
+        this.rootDir = Objects.requireNonNull(rootDir, "rootDir");
+        this.file = Objects.requireNonNull(file, "file");
+        this.liveEntries = Objects.requireNonNull(liveEntries, "liveEntries");
+    }
+
+    @NotNull
+    private static byte[] frame(@NotNull byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    @NotNull
+    private byte[] createAddRecord(@NotNull Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream recordOut = new DataOutputStream(bytes);
+        recordOut.writeByte(RECORD_ADD);
+        recordOut.writeUTF(entry.getMailid());
+        recordOut.writeUTF(entry.getFile().getParentFile().getName() + '/' + entry.getFile().getName());
+        recordOut.writeLong(entry.getSize());
+        recordOut.writeLong(entry.getMessageSize());
+        recordOut.writeLong(entry.getExpiry());
+        return frame(bytes.toByteArray());
+    }
+
+    @NotNull
+    private static byte[] createRemoveRecord(@NotNull String mailid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream recordOut = new DataOutputStream(bytes);
+        recordOut.writeByte(RECORD_REMOVE);
+        recordOut.writeUTF(mailid);
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Read the entries of the manifest. Records after a broken one are
+     * ignored.
+     *
+     * @return Entries by mail ID, or null if there is no readable manifest.
+     */
+    @Nullable
+    Map<String, Entry> load() {
+        if (!file.isFile()) return null;
+        Map<String, Entry> entries = new HashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+
+            // Version 1 has no message size, the files were not compressed
+            if (version != 1 && version != VERSION) {
+                AspirinInternal.getLogger().warn("MailManifest.load(): Unknown manifest format in '{}'.", file);
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[1024];
+
+            while (true) {
+                int length;
+                int checksum;
+
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || RECORD_SIZE_MAX < length) break;
+                    if (payload.length < length) payload = new byte[length];
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    AspirinInternal.getLogger().warn("MailManifest.load(): Broken record found in '{}'.", file);
+                    break;
+                }
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+                byte type = recordIn.readByte();
+                String mailid = recordIn.readUTF();
+
+                if (type == RECORD_ADD) {
+                    File msgFile = new File(rootDir, recordIn.readUTF());
+                    long size = recordIn.readLong();
+                    long messageSize = version == 1 ? size : recordIn.readLong();
+                    entries.put(mailid, new Entry(mailid, msgFile, size, messageSize, recordIn.readLong()));
+                } else
+                    entries.remove(mailid);
+            }
+        } catch (IOException e) {
+            AspirinInternal.getLogger().warn("MailManifest.load(): Manifest '{}' could not be read.", file, e);
+            return null;
+        }
+
+        return entries;
+    }
+
+    /**
+     * Write a checkpoint of the live entries and open the manifest for
+     * appending.
+     */
+    void checkpoint() {
+        synchronized (lock) {
+            File checkpointFile = new File(file.getPath() + ".tmp");
+            closeQuietly();
+
+            try {
+                Collection<Entry> entries = liveEntries.get();
+
+                try (FileOutputStream fileOut = new FileOutputStream(checkpointFile)) {
+                    DataOutputStream checkpointOut = new DataOutputStream(new BufferedOutputStream(fileOut, 1024 * 1024));
+                    checkpointOut.writeInt(MAGIC);
+                    checkpointOut.writeInt(VERSION);
+                    for (Entry entry : entries) checkpointOut.write(createAddRecord(entry));
+                    checkpointOut.flush();
+                    fileOut.getFD().sync();
+                }
+
+                Files.move(checkpointFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 8 * 1024));
+                recordCount = entries.size();
+                checkpointSize = entries.size();
+            } catch (IOException e) {
+                // Without manifest the next startup scans the message files
+                AspirinInternal.getLogger().error("MailManifest.checkpoint(): Manifest '{}' could not be written.", file, e);
+                try {
+                    Files.deleteIfExists(checkpointFile.toPath());
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException de) {
+                    AspirinInternal.getLogger().error("MailManifest.checkpoint(): Manifest '{}' could not be deleted.", file, de);
+                }
+            }
+        }
+    }
+
+    void added(@NotNull Entry entry) {
+        try {
+            append(createAddRecord(entry));
+        } catch (IOException e) {
+            AspirinInternal.getLogger().error("MailManifest.added(): Record could not be created for '{}'.", entry.getMailid(), e);
+        }
+    }
+
+    void removed(@NotNull String mailid) {
+        try {
+            append(createRemoveRecord(mailid));
+        } catch (IOException e) {
+            AspirinInternal.getLogger().error("MailManifest.removed(): Record could not be created for '{}'.", mailid, e);
+        }
+    }
+
+    private void append(@NotNull byte[] record) {
+        boolean needsCheckpoint;
+
+        synchronized (lock) {
+            if (out == null) return;
+
+            try {
+                out.write(record);
+                out.flush();
+            } catch (IOException e) {
+                AspirinInternal.getLogger().error("MailManifest.append(): Manifest '{}' could not be written.", file, e);
+                closeQuietly();
+                return;
+            }
+
+            recordCount++;
+            needsCheckpoint = Math.max(CHECKPOINT_RECORDS_MIN, 2 * checkpointSize) < recordCount;
+        }
+
+        if (needsCheckpoint) checkpoint();
+    }
+
+    /**
+     * Close the manifest. Later changes are not recorded.
+     */
+    void close() {
+        synchronized (lock) {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            AspirinInternal.getLogger().error("MailManifest.close(): Manifest '{}' could not be closed.", file, e);
+        }
+        out = null;
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * A stored message: its file, size of the file, size of the message and
+     * expiry. The sizes differ if the file is compressed.
+     */
+    static final class Entry {
+        @NotNull
+        private final String mailid;
+        @NotNull
+        private final File file;
+        private final long size;
+        private final long messageSize;
+        private final long expiry;
+
+        Entry(@NotNull String mailid, @NotNull File file, long size, long messageSize, long expiry) {
+            this.mailid = mailid;
+            this.file = file;
+            this.size = size;
+            this.messageSize = messageSize;
+            this.expiry = expiry;
+        }
+
+        @NotNull
+        String getMailid() {
+            return mailid;
+        }
+
+        @NotNull
+        File getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getMessageSize() {
+            return messageSize;
+        }
+
+        long getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -15,12 +15,33 @@ import java.util.List;
  * @author Laszlo Solova
  */
 public interface MailStore {
+    /**
+     * Persist the buffered changes and release the resources of the store.
+     * It is called on shutdown. The default implementation does nothing.
+     */
+    default void close() {
+    }
+
     @Nullable
     MimeMessage get(@NotNull String mailid);
 
     @NotNull
     List<String> getMailIds();
 
+    /**
+     * Give back the raw content of a message, if the store could read it
+     * without parsing. Stores keeping MimeMessage objects in memory do not
+     * support it.
+     *
+     * @param mailid Unique Aspirin ID of the message.
+     * @return The raw message, or null if there is no such message or
+     * streaming is not supported.
+     */
+    @Nullable
+    default MessageSource getSource(@NotNull String mailid) {
+        return null;
+    }
+
     void init();
 
     void remove(@Nullable String mailid);
@@ -0,0 +1,265 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>This object caches MimeMessage objects up to a size budget in bytes.
+ * Every message is weighted by its stored size. Over the budget the least
+ * recently used messages are evicted, until the cached size goes under
+ * nine tenth of the budget, so the next insertions do not scan the cache
+ * again.</p>
+ *
+ * <p>Reads do not lock: they only mark the access time of the entry with a
+ * logical clock.</p>
+ *
+ * <p>An {@link EvictionListener} could be called with every evicted
+ * message, for example to move it to another store. It could keep the
+ * message in the cache.</p>
+ */
+public class MessageCache {
+    @NotNull
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    @NotNull
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    @NotNull
+    private final AtomicLong clock = new AtomicLong();
+    @NotNull
+    private final AtomicLong weight = new AtomicLong();
+    @NotNull
+    private final LongAdder hitCount = new LongAdder();
+    @NotNull
+    private final LongAdder missCount = new LongAdder();
+    @NotNull
+    private final LongAdder evictionCount = new LongAdder();
+    @Nullable
+    private final EvictionListener evictionListener;
+    private volatile long budget;
+
+    /**
+     * @param budget Maximal size of cached messages in bytes. If 0, then
+     *               nothing is cached.
+     */
+    public MessageCache(long budget) {
+        this(budget, null);
+    }
+
+    /**
+     * @param budget           Maximal size of cached messages in bytes. If
+     *                         0, then nothing is cached.
+     * @param evictionListener It is called with every evicted message.
+     */
+    public MessageCache(long budget, @Nullable EvictionListener evictionListener) {
+        this.budget = Math.max(0L, budget);
+        this.evictionListener = evictionListener;
+    }
+
+    @Nullable
+    public MimeMessage get(@NotNull String mailid) {
+        Entry entry = entries.get(Objects.requireNonNull(mailid, "mailid"));
+
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+
+        hitCount.increment();
+        entry.access = clock.incrementAndGet();
+        return entry.message;
+    }
+
+    /**
+     * Get a message without counting a hit or a miss, and without changing
+     * its access time.
+     *
+     * @param mailid Unique Aspirin ID of the message.
+     * @return The cached message, or null if it is not cached.
+     */
+    @Nullable
+    public MimeMessage peek(@NotNull String mailid) {
+        Entry entry = entries.get(Objects.requireNonNull(mailid, "mailid"));
+        return entry == null ? null : entry.message;
+    }
+
+    /**
+     * Put a message into the cache. Messages larger than the budget are not
+     * cached.
+     *
+     * @param mailid  Unique Aspirin ID of the message.
+     * @param message The message.
+     * @param size    The size of the message in bytes.
+     */
+    public void put(@NotNull String mailid, @NotNull MimeMessage message, long size) {
+        Objects.requireNonNull(mailid, "mailid");
+        Objects.requireNonNull(message, "message");
+        long currentBudget = budget;
+
+        if (currentBudget < size) {
+            remove(mailid);
+            return;
+        }
+
+        Entry entry = new Entry(message, Math.max(0L, size), clock.incrementAndGet());
+        Entry previous = entries.put(mailid, entry);
+        weight.addAndGet(entry.size - (previous == null ? 0L : previous.size));
+
+        if (currentBudget < weight.get()) evict();
+    }
+
+    public void remove(@NotNull String mailid) {
+        Entry previous = entries.remove(Objects.requireNonNull(mailid, "mailid"));
+        if (previous != null) weight.addAndGet(-previous.size);
+    }
+
+    /**
+     * Remove all messages from the cache.
+     */
+    public void clear() {
+        entries.keySet().forEach(this::remove);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Change the size budget. If it is lower than the current cached size,
+     * messages are evicted immediately.
+     *
+     * @param budget Maximal size of cached messages in bytes.
+     */
+    public void setBudget(long budget) {
+        this.budget = Math.max(0L, budget);
+        if (this.budget < weight.get()) evict();
+    }
+
+    /**
+     * @return Size of the cached messages in bytes.
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return Unmodifiable view of the IDs of the cached messages.
+     */
+    @NotNull
+    public Set<String> getMailIds() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @return Count of cached messages.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return Ratio of gets served from the cache, or 0 if there was no get.
+     */
+    public double getHitRate() {
+        long hits = hitCount.sum();
+        long total = hits + missCount.sum();
+        return total == 0L ? 0.0 : (double) hits / total;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    private void evict() {
+        // Only one thread cleans the cache, the others do not wait for it
+        if (!evictionLock.tryLock()) return;
+
+        try {
+            long target = budget - budget / 10;
+            if (weight.get() <= target) return;
+
+            // Access times are copied, because they could change while sorting
+            List<Candidate> evictable = new ArrayList<>(entries.size());
+            entries.forEach((mailid, entry) -> evictable.add(new Candidate(mailid, entry)));
+            evictable.sort(Comparator.comparingLong(candidate -> candidate.access));
+
+            for (Candidate candidate : evictable) {
+                if (weight.get() <= target) break;
+
+                if (evictionListener != null &&
+                        !evictionListener.evicted(candidate.mailid, candidate.entry.message, candidate.entry.size))
+                    continue;
+
+                if (entries.remove(candidate.mailid, candidate.entry)) {
+                    weight.addAndGet(-candidate.entry.size);
+                    evictionCount.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final MimeMessage message;
+        private final long size;
+        private volatile long access;
+
+        Entry(@NotNull MimeMessage message, long size, long access) {
+            this.message = message;
+            this.size = size;
+            this.access = access;
+        }
+    }
+
+    private static final class Candidate {
+        @NotNull
+        private final String mailid;
+        @NotNull
+        private final Entry entry;
+        private final long access;
+
+        Candidate(@NotNull String mailid, @NotNull Entry entry) {
+            this.mailid = mailid;
+            this.entry = entry;
+            this.access = entry.access;
+        }
+    }
+
+    /**
+     * Listener of evicted messages.
+     */
+    public interface EvictionListener {
+        /**
+         * It is called before the message is removed from the cache, on the
+         * thread of the eviction. Only one thread evicts at a time.
+         *
+         * @param mailid  Unique Aspirin ID of the message.
+         * @param message The evicted message.
+         * @param size    The size of the message in bytes.
+         * @return True, if the message could be removed, false to keep it in
+         * the cache.
+         */
+        boolean evicted(@NotNull String mailid, @NotNull MimeMessage message, long size);
+    }
+}
@@ -0,0 +1,50 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>Compression of stored message files. Messages are compressed while
+ * they are written and decompressed while they are read, so they are never
+ * held in memory twice.</p>
+ *
+ * <p>{@link GzipMessageCodec} and {@link DeflateMessageCodec} are built in.
+ * Other codecs are found by {@link java.util.ServiceLoader}, if they are
+ * listed in META-INF/services/org.masukomi.aspirin.core.store.mail.MessageCodec
+ * of a jar on the classpath. See {@link MessageCodecs}.</p>
+ */
+public interface MessageCodec {
+    /**
+     * @return Unique name of the codec, for example "gzip".
+     */
+    @NotNull
+    String getName();
+
+    /**
+     * @return Extension appended to the name of compressed message files,
+     * for example ".gz". The codec of a file is chosen by this extension.
+     */
+    @NotNull
+    String getFileExtension();
+
+    /**
+     * @param out Stream of the file.
+     * @return Stream which compresses into the given stream. Closing it
+     * closes the given stream.
+     * @throws IOException If the stream could not be created.
+     */
+    @NotNull
+    OutputStream compress(@NotNull OutputStream out) throws IOException;
+
+    /**
+     * @param in Stream of the file.
+     * @return Stream which decompresses the given stream. Closing it closes
+     * the given stream.
+     * @throws IOException If the stream could not be created.
+     */
+    @NotNull
+    InputStream decompress(@NotNull InputStream in) throws IOException;
+}
@@ -0,0 +1,69 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import java.util.*;
+
+/**
+ * Registry of the available {@link MessageCodec} implementations: the built
+ * in ones and the ones found by {@link ServiceLoader} on the classpath. The
+ * codecs are loaded once.
+ */
+public final class MessageCodecs {
+    @NotNull
+    private static final List<MessageCodec> CODECS = load();
+
+    private MessageCodecs() {
+    }
+
+    @NotNull
+    private static List<MessageCodec> load() {
+        Map<String, MessageCodec> codecs = new LinkedHashMap<>();
+        codecs.put(GzipMessageCodec.NAME, new GzipMessageCodec());
+        codecs.put(DeflateMessageCodec.NAME, new DeflateMessageCodec());
+
+        try {
+            for (MessageCodec codec : ServiceLoader.load(MessageCodec.class, MessageCodecs.class.getClassLoader()))
+                codecs.putIfAbsent(codec.getName(), codec);
+        } catch (ServiceConfigurationError e) {
+            AspirinInternal.getLogger().error("MessageCodecs.load(): Message codecs could not be loaded.", e);
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(codecs.values()));
+    }
+
+    /**
+     * @return Every available codec.
+     */
+    @NotNull
+    public static List<MessageCodec> getCodecs() {
+        return CODECS;
+    }
+
+    /**
+     * @param name Name of the codec.
+     * @return The codec, or null if there is no codec with this name.
+     */
+    @Nullable
+    public static MessageCodec forName(@NotNull String name) {
+        Objects.requireNonNull(name, "name");
+        for (MessageCodec codec : CODECS)
+            if (codec.getName().equals(name)) return codec;
+        return null;
+    }
+
+    /**
+     * @param fileName Name of a file.
+     * @return Codec of the file by its extension, or null if the file is not
+     * compressed by any known codec.
+     */
+    @Nullable
+    public static MessageCodec forFileName(@NotNull String fileName) {
+        Objects.requireNonNull(fileName, "fileName");
+        for (MessageCodec codec : CODECS)
+            if (fileName.endsWith(codec.getFileExtension())) return codec;
+        return null;
+    }
+}
@@ -0,0 +1,27 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Raw content of a stored message in RFC 822 format. It is used to deliver
+ * large messages straight from the store, without parsing them into
+ * memory.
+ */
+public interface MessageSource {
+    /**
+     * @return Size of the raw message in bytes.
+     */
+    long getSize();
+
+    /**
+     * Open a new stream of the raw message. The caller has to close it.
+     *
+     * @return The stream of the message, headers and body.
+     * @throws IOException If the message could not be read.
+     */
+    @NotNull
+    InputStream openStream() throws IOException;
+}
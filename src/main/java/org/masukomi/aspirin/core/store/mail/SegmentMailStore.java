@@ -0,0 +1,813 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Log-structured mail store. Messages are appended into large segment
+ * files instead of one file per message, so writes are sequential and only
+ * a few files are used. An index in memory maps every mail ID to the
+ * position of its message, which is read with a positional read of the
+ * segment file. Recently used messages are kept in a {@link MessageCache}
+ * like in {@link FileMailStore}.</p>
+ *
+ * <p>Every record has a sequence number, and the record with the highest
+ * sequence number wins for a mail ID. A removal appends a tombstone record,
+ * and so does a replacement for the segment of the replaced message.
+ * If less than the half of a closed segment is live, the segment is
+ * compacted in the background: its live messages are copied to the active
+ * segment, then the segment file is deleted. Tombstones are copied too,
+ * until the segment of the removed message exists.</p>
+ *
+ * <p>On init() all segment files are read to rebuild the index. A broken
+ * record at the end of a segment (after a crash) is cut off. Records are
+ * not forced to disk one by one, only when a segment is closed.</p>
+ *
+ * <p>The segment directory is set by setSegmentDir() or by the
+ * aspirin.mailstore.segment.dir configuration parameter.</p>
+ */
+public class SegmentMailStore implements MailStore {
+    /**
+     * Default size of a segment file in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024L * 1024L;
+    private static final int MAGIC = 0x41535047; // "ASPG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int FRAME_SIZE = 8;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    @NotNull
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    @NotNull
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    @NotNull
+    private final MessageCache messageCache = new MessageCache(FileMailStore.DEFAULT_CACHE_SIZE);
+    /**
+     * Guards the appends, the active segment and the index changes bound to
+     * appended records.
+     */
+    @NotNull
+    private final Object writeLock = new Object();
+    @NotNull
+    private final AtomicLong sequence = new AtomicLong();
+    @NotNull
+    private final Object compactionLock = new Object();
+    @NotNull
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    @Nullable
+    private File segmentDir;
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+    @Nullable
+    private volatile Segment activeSegment;
+
+    @NotNull
+    private static byte[] frame(@NotNull byte[] record) {
+        // The first bytes of the record are reserved for the frame
+        CRC32 crc = new CRC32();
+        crc.update(record, FRAME_SIZE, record.length - FRAME_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(record.length - FRAME_SIZE);
+        buffer.putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Render a put record. Its sequence number is set later by
+     * setSequence(), when the order of the append is known.
+     */
+    @NotNull
+    private static byte[] createPutRecord(@NotNull String mailid, @NotNull MimeMessage msg) throws IOException, MessagingException {
+        // The size of a parsed message is known, it saves copies of the buffer
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(16 * 1024, msg.getSize() + 1024));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0L);
+        out.writeByte(RECORD_PUT);
+        out.writeLong(0L);
+        out.writeUTF(mailid);
+        msg.writeTo(out);
+        return frame(bytes.toByteArray());
+    }
+
+    @NotNull
+    private static byte[] setSequence(@NotNull byte[] record, long seq) {
+        // The sequence number follows the frame and the record type
+        ByteBuffer.wrap(record).putLong(FRAME_SIZE + 1, seq);
+        return frame(record);
+    }
+
+    @NotNull
+    private static byte[] createRemoveRecord(long seq, @NotNull String mailid, long segmentId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0L);
+        out.writeByte(RECORD_REMOVE);
+        out.writeLong(seq);
+        out.writeUTF(mailid);
+        out.writeLong(segmentId);
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Read all valid records of a segment file.
+     *
+     * @return Size of the valid records with the header.
+     */
+    private static long readRecords(@NotNull File file, @NotNull RecordHandler handler) throws IOException {
+        long offset = HEADER_SIZE;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a mail segment file: " + file.getAbsolutePath());
+
+            CRC32 crc = new CRC32();
+
+            while (true) {
+                byte[] record;
+
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || file.length() - offset - FRAME_SIZE < length) break;
+                    record = new byte[FRAME_SIZE + length];
+                    in.readFully(record, FRAME_SIZE, length);
+                    crc.reset();
+                    crc.update(record, FRAME_SIZE, length);
+                    if ((int) crc.getValue() != checksum) break;
+                    ByteBuffer.wrap(record).putInt(length).putInt(checksum);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                handler.handle(new Record(offset, record));
+                offset += record.length;
+            }
+        }
+
+        return offset;
+    }
+
+    @NotNull
+    private static File segmentFile(@NotNull File dir, long id) {
+        return new File(dir, String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    @Override
+    @Nullable
+    public MimeMessage get(@NotNull String mailid) {
+        Objects.requireNonNull(mailid, "mailid");
+        MimeMessage msg = messageCache.get(mailid);
+        if (msg != null) return msg;
+
+        // The segment of the message could be compacted while it is read, then the new location is used
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location location = index.get(mailid);
+            if (location == null) return null;
+
+            try {
+                byte[] content = location.segment.read(location.getMessageOffset(), location.getMessageLength());
+                msg = new MimeMessage(Session.getDefaultInstance(System.getProperties()), new SharedByteArrayInputStream(content));
+                if (index.get(mailid) == location) messageCache.put(mailid, msg, content.length);
+                return msg;
+            } catch (ClosedChannelException e) {
+                if (index.get(mailid) == location) {
+                    AspirinInternal.getLogger().error("SegmentMailStore.get(): Segment of message is closed: " + mailid, e);
+                    return null;
+                }
+            } catch (IOException e) {
+                AspirinInternal.getLogger().error("SegmentMailStore.get(): Could not read message: " + mailid, e);
+                return null;
+            } catch (MessagingException e) {
+                AspirinInternal.getLogger().error("SegmentMailStore.get(): There is a messaging exception with message: " + mailid, e);
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    @NotNull
+    public List<String> getMailIds() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    @Nullable
+    public MessageSource getSource(@NotNull String mailid) {
+        Location location = index.get(Objects.requireNonNull(mailid, "mailid"));
+        return location == null ? null : new SegmentMessageSource(location);
+    }
+
+    @Override
+    public void init() {
+        File dir = segmentDir;
+
+        if (dir == null) {
+            String dirName = AspirinInternal.getConfiguration().getMailStoreSegmentDir();
+            if (dirName == null)
+                throw new IllegalStateException(getClass().getSimpleName() + " Please set up segment directory.");
+            dir = new File(dirName);
+        }
+
+        if (!dir.exists()) dir.mkdirs();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null)
+            throw new IllegalStateException(getClass().getSimpleName() + " Segment directory could not be read: " + dir.getAbsolutePath());
+
+        close();
+        long start = System.currentTimeMillis();
+        Map<String, Location> latest = new HashMap<>();
+        long lastId = 0L;
+
+        try {
+            for (File file : files) {
+                String name = file.getName();
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Set<Long> tombstoneTargets = new HashSet<>();
+                long validSize = readRecords(file, record -> {
+                    if (record.type == RECORD_REMOVE) tombstoneTargets.add(record.segmentId);
+                    Location current = latest.get(record.mailid);
+                    if (current != null && record.seq < current.seq) return;
+                    // A tombstone is kept as a location without segment
+                    latest.put(record.mailid, new Location(null, id, record));
+                });
+
+                if (validSize < file.length()) {
+                    AspirinInternal.getLogger().warn("SegmentMailStore.init(): Broken record found at {} in '{}', the segment is truncated.", validSize, file);
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        channel.truncate(validSize);
+                    }
+                }
+
+                Segment segment = new Segment(id, file);
+                segment.tombstoneTargets.addAll(tombstoneTargets);
+                segments.put(id, segment);
+                lastId = Math.max(lastId, id);
+            }
+        } catch (IOException | NumberFormatException e) {
+            close();
+            throw new IllegalStateException(getClass().getSimpleName() + " Segments could not be loaded: " + dir.getAbsolutePath(), e);
+        }
+
+        long lastSeq = 0L;
+        index.clear();
+
+        for (Map.Entry<String, Location> entry : latest.entrySet()) {
+            Location location = entry.getValue();
+            lastSeq = Math.max(lastSeq, location.seq);
+            if (location.type != RECORD_PUT) continue;
+
+            Location live = location.withSegment(segments.get(location.segmentId));
+            index.put(entry.getKey(), live);
+            live.segment.liveBytes.addAndGet(live.length);
+        }
+
+        sequence.set(lastSeq + 1L);
+        messageCache.clear();
+        segmentDir = dir;
+
+        synchronized (writeLock) {
+            try {
+                activeSegment = createSegment(lastId + 1L);
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException(getClass().getSimpleName() + " Segment could not be created in " + dir.getAbsolutePath(), e);
+            }
+        }
+
+        AspirinInternal.getLogger().info(
+                "SegmentMailStore.init(): {} messages loaded from {} segments in {} ms.",
+                new Object[]{index.size(), files.length, System.currentTimeMillis() - start});
+        compactIfNeeded();
+    }
+
+    @Override
+    public void remove(@Nullable String mailid) {
+        if (mailid == null) return;
+        Location location;
+
+        synchronized (writeLock) {
+            location = index.remove(mailid);
+            if (location == null) return;
+            location.segment.liveBytes.addAndGet(-location.length);
+
+            try {
+                appendRemove(createRemoveRecord(sequence.getAndIncrement(), mailid, location.segment.id), location.segment.id);
+            } catch (IOException | IllegalStateException e) {
+                AspirinInternal.getLogger().error("SegmentMailStore.remove(): Could not write tombstone of message: " + mailid, e);
+            }
+        }
+
+        messageCache.remove(mailid);
+        compactIfNeeded();
+    }
+
+    @Override
+    public void set(@NotNull String mailid, @NotNull MimeMessage msg) {
+        Objects.requireNonNull(mailid, "mailid");
+        Objects.requireNonNull(msg, "msg");
+
+        try {
+            // The record is rendered out of the lock, only the append is serialized
+            byte[] record = createPutRecord(mailid, msg);
+            Location location;
+
+            synchronized (writeLock) {
+                // Sequence numbers are taken in the lock, so they follow the order of appends
+                long removeSeq = sequence.getAndIncrement();
+                location = appendPut(setSequence(record, sequence.getAndIncrement()));
+                location.segment.liveBytes.addAndGet(location.length);
+                Location previous = index.put(mailid, location);
+
+                if (previous != null) {
+                    previous.segment.liveBytes.addAndGet(-previous.length);
+
+                    /*
+                     * The replaced copy gets a tombstone, so it does not come
+                     * back when the segment of the new copy is compacted. Its
+                     * sequence number is lower than the one of the new copy.
+                     */
+                    try {
+                        appendRemove(createRemoveRecord(removeSeq, mailid, previous.segment.id), previous.segment.id);
+                    } catch (IOException e) {
+                        AspirinInternal.getLogger().error("SegmentMailStore.set(): Could not write tombstone of replaced message: " + mailid, e);
+                    }
+                }
+            }
+
+            messageCache.put(mailid, msg, location.getMessageLength());
+        } catch (IOException | IllegalStateException e) {
+            AspirinInternal.getLogger().error("SegmentMailStore.set(): Could not write message: " + mailid, e);
+        } catch (MessagingException e) {
+            AspirinInternal.getLogger().error("SegmentMailStore.set(): There is a messaging exception with message: " + mailid, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Compact the closed segments, where less than the half of the content
+     * is live. If a compaction is running, this waits for it.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            if (activeSegment == null) return;
+
+            try {
+                for (Segment segment : segments.values())
+                    if (segment != activeSegment && segment.isSparse()) compact(segment);
+            } catch (IOException e) {
+                AspirinInternal.getLogger().error("SegmentMailStore.compact(): Segments could not be compacted.", e);
+            }
+        }
+    }
+
+    private void compact(@NotNull Segment segment) throws IOException {
+        long before = segment.size;
+
+        // A segment without live messages and needed tombstones is deleted without reading it
+        boolean empty = segment.liveBytes.get() == 0L && segment.tombstoneTargets.stream()
+                .noneMatch(target -> target != segment.id && segments.containsKey(target));
+
+        if (!empty) readRecords(segment.file, record -> {
+            synchronized (writeLock) {
+                if (record.type == RECORD_PUT) {
+                    Location location = index.get(record.mailid);
+                    if (location == null || location.segment != segment || location.seq != record.seq) return;
+
+                    Location moved = appendPut(record.bytes);
+                    index.put(record.mailid, moved);
+                    moved.segment.liveBytes.addAndGet(moved.length);
+                    segment.liveBytes.addAndGet(-location.length);
+                } else if (record.segmentId != segment.id && segments.containsKey(record.segmentId))
+                    appendRemove(record.bytes, record.segmentId);
+            }
+        });
+
+        synchronized (writeLock) {
+            Segment current = activeSegment;
+            // The copies have to be on disk before the original is deleted
+            if (current != null) current.force();
+            segments.remove(segment.id);
+        }
+
+        segment.delete();
+        AspirinInternal.getLogger().debug("SegmentMailStore.compact(): Segment '{}' of {} bytes is compacted.", segment.file, before);
+    }
+
+    /**
+     * Force the active segment to disk and close all segment files. A
+     * running compaction is finished first.
+     */
+    @Override
+    public void close() {
+        synchronized (compactionLock) {
+            synchronized (writeLock) {
+                Segment current = activeSegment;
+                activeSegment = null;
+
+                if (current != null) {
+                    try {
+                        current.force();
+                    } catch (IOException e) {
+                        AspirinInternal.getLogger().error("SegmentMailStore.close(): Active segment could not be forced.", e);
+                    }
+                }
+
+                segments.values().forEach(Segment::close);
+                segments.clear();
+            }
+        }
+    }
+
+    /**
+     * @return The cache of recently used messages, with its hit and eviction
+     * counts.
+     */
+    @NotNull
+    public MessageCache getMessageCache() {
+        return messageCache;
+    }
+
+    /**
+     * @return Maximal size of cached messages in bytes.
+     */
+    public long getCacheSize() {
+        return messageCache.getBudget();
+    }
+
+    /**
+     * Set the maximal size of messages kept in memory. If 0, then every get
+     * reads the segment file.
+     *
+     * @param cacheSize Size in bytes.
+     */
+    public void setCacheSize(long cacheSize) {
+        messageCache.setBudget(cacheSize);
+    }
+
+    /**
+     * @return Count of segment files.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Nullable
+    public File getSegmentDir() {
+        return segmentDir;
+    }
+
+    /**
+     * Set the directory of segment files. It is applied on the next init().
+     *
+     * @param segmentDir The directory.
+     */
+    public void setSegmentDir(@Nullable File segmentDir) {
+        this.segmentDir = segmentDir;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Set the size of segment files. A new segment is started, if the next
+     * record does not fit into the active one. Messages larger than this
+     * get their own segment.
+     *
+     * @param segmentSize Size in bytes.
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @return Offset of the record in the active segment.
+     */
+    private long append(@NotNull byte[] record) throws IOException {
+        Segment segment = activeSegment;
+        if (segment == null)
+            throw new IllegalStateException(getClass().getSimpleName() + " Segments are not loaded, please call init().");
+
+        if (HEADER_SIZE < segment.size && segmentSize < segment.size + record.length) {
+            segment.force();
+            segment = createSegment(segment.id + 1L);
+            activeSegment = segment;
+        }
+
+        return segment.append(record);
+    }
+
+    /**
+     * @return Location of the appended message.
+     */
+    @NotNull
+    private Location appendPut(@NotNull byte[] record) throws IOException {
+        long offset = append(record);
+        Segment segment = Objects.requireNonNull(activeSegment, "activeSegment");
+        return new Location(segment, segment.id, new Record(offset, record));
+    }
+
+    private void appendRemove(@NotNull byte[] record, long targetId) throws IOException {
+        append(record);
+        Objects.requireNonNull(activeSegment, "activeSegment").tombstoneTargets.add(targetId);
+    }
+
+    @NotNull
+    private Segment createSegment(long id) throws IOException {
+        File file = segmentFile(Objects.requireNonNull(segmentDir, "segmentDir"), id);
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        Segment segment = new Segment(id, file);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void compactIfNeeded() {
+        if (compactionScheduled.get()) return;
+        Segment current = activeSegment;
+
+        for (Segment segment : segments.values()) {
+            if (segment != current && segment.isSparse()) {
+                if (!compactionScheduled.compareAndSet(false, true)) return;
+                Thread compactionThread = new Thread(() -> {
+                    try {
+                        compact();
+                    } finally {
+                        compactionScheduled.set(false);
+                    }
+                }, "Aspirin-" + getClass().getSimpleName() + "-Compaction");
+                compactionThread.setDaemon(true);
+                compactionThread.start();
+                return;
+            }
+        }
+    }
+
+    private interface RecordHandler {
+        void handle(@NotNull Record record) throws IOException;
+    }
+
+    /**
+     * A framed record read from a segment file.
+     */
+    private static final class Record {
+        private final long offset;
+        @NotNull
+        private final byte[] bytes;
+        private final byte type;
+        private final long seq;
+        @NotNull
+        private final String mailid;
+        /**
+         * Offset of the message from the start of the record.
+         */
+        private final int messageOffset;
+        /**
+         * Segment of the removed message, only in tombstones.
+         */
+        private final long segmentId;
+
+        Record(long offset, @NotNull byte[] bytes) throws IOException {
+            this.offset = offset;
+            this.bytes = bytes;
+            ByteArrayInputStream byteIn = new ByteArrayInputStream(bytes, FRAME_SIZE, bytes.length - FRAME_SIZE);
+            DataInputStream in = new DataInputStream(byteIn);
+            type = in.readByte();
+            seq = in.readLong();
+            mailid = in.readUTF();
+            messageOffset = bytes.length - byteIn.available();
+            segmentId = type == RECORD_REMOVE ? in.readLong() : -1L;
+            if (type != RECORD_PUT && type != RECORD_REMOVE) throw new IOException("Unknown segment record type: " + type);
+        }
+    }
+
+    /**
+     * Position of a message in a segment.
+     */
+    private static final class Location {
+        @Nullable
+        private final Segment segment;
+        private final long segmentId;
+        private final byte type;
+        private final long seq;
+        private final long offset;
+        private final int length;
+        private final int messageOffset;
+
+        Location(@Nullable Segment segment, long segmentId, @NotNull Record record) {
+            this.segment = segment;
+            this.segmentId = segmentId;
+            this.type = record.type;
+            this.seq = record.seq;
+            this.offset = record.offset;
+            this.length = record.bytes.length;
+            this.messageOffset = record.messageOffset;
+        }
+
+        private Location(@NotNull Segment segment, @NotNull Location location) {
+            this.segment = segment;
+            this.segmentId = segment.id;
+            this.type = location.type;
+            this.seq = location.seq;
+            this.offset = location.offset;
+            this.length = location.length;
+            this.messageOffset = location.messageOffset;
+        }
+
+        @NotNull
+        Location withSegment(@NotNull Segment segment) {
+            return new Location(segment, this);
+        }
+
+        long getMessageOffset() {
+            return offset + messageOffset;
+        }
+
+        int getMessageLength() {
+            return length - messageOffset;
+        }
+    }
+
+    /**
+     * A segment file. Only the active segment is appended, the others are
+     * read only until they are compacted.
+     */
+    private final class Segment {
+        private final long id;
+        @NotNull
+        private final File file;
+        @NotNull
+        private final AtomicLong liveBytes = new AtomicLong();
+        /**
+         * Segments of the messages removed by the tombstones of this segment.
+         */
+        @NotNull
+        private final Set<Long> tombstoneTargets = ConcurrentHashMap.newKeySet();
+        @NotNull
+        private volatile FileChannel channel;
+        private volatile boolean closed;
+        /**
+         * Guarded by the write lock of the store.
+         */
+        private long size;
+
+        Segment(long id, @NotNull File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+        }
+
+        boolean isSparse() {
+            return liveBytes.get() < (size - HEADER_SIZE) / 2;
+        }
+
+        long append(@NotNull byte[] record) throws IOException {
+            long offset = size;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) channel().write(buffer, offset + buffer.position());
+            size += record.length;
+            return offset;
+        }
+
+        @NotNull
+        byte[] read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+
+            while (buffer.hasRemaining()) {
+                if (channel().read(buffer, position + buffer.position()) < 0)
+                    throw new EOFException("Message is cut off in segment: " + file.getAbsolutePath());
+            }
+
+            return buffer.array();
+        }
+
+        int read(@NotNull ByteBuffer buffer, long position) throws IOException {
+            return channel().read(buffer, position);
+        }
+
+        void force() throws IOException {
+            channel().force(false);
+        }
+
+        /**
+         * The channel is closed, if a thread is interrupted while it uses the
+         * channel. Then it is opened again, until the segment is closed.
+         */
+        @NotNull
+        private FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (current.isOpen() || closed) return current;
+
+            synchronized (this) {
+                if (!channel.isOpen() && !closed)
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                return channel;
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                AspirinInternal.getLogger().error("SegmentMailStore.close(): Segment could not be closed: " + file, e);
+            }
+        }
+
+        void delete() {
+            close();
+
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                AspirinInternal.getLogger().error("SegmentMailStore.compact(): Segment could not be deleted: " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Reads a message from its segment. If the segment is compacted while
+     * the message is read, then the stream fails.
+     */
+    private static final class SegmentMessageSource implements MessageSource {
+        @NotNull
+        private final Location location;
+
+        SegmentMessageSource(@NotNull Location location) {
+            this.location = location;
+        }
+
+        @Override
+        public long getSize() {
+            return location.getMessageLength();
+        }
+
+        @Override
+        @NotNull
+        public InputStream openStream() {
+            return new InputStream() {
+                private long position = location.getMessageOffset();
+                private final long end = position + location.getMessageLength();
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(@NotNull byte[] b, int off, int len) throws IOException {
+                    if (end <= position) return -1;
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+                    int read = Objects.requireNonNull(location.segment, "segment").read(buffer, position);
+                    if (read < 0) throw new EOFException("Message is cut off in segment: " + location.segment.file.getAbsolutePath());
+                    position += read;
+                    return read;
+                }
+
+                @Override
+                public long skip(long n) {
+                    long skipped = Math.max(0L, Math.min(n, end - position));
+                    position += skipped;
+                    return skipped;
+                }
+
+                @Override
+                public int available() {
+                    return (int) Math.min(Integer.MAX_VALUE, end - position);
+                }
+            };
+        }
+    }
+}
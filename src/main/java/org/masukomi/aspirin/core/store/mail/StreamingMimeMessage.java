@@ -0,0 +1,91 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.*;
+import java.util.Objects;
+
+/**
+ * <p>MimeMessage backed by a {@link MessageSource}. Only the headers are
+ * parsed and kept in memory. The body is read from the source every time
+ * it is needed, so writeTo() copies it from the store to the output with a
+ * small buffer, and headers in the ignore list (like Bcc) are left out as
+ * usual.</p>
+ *
+ * <p>The message is read only: changing it has no effect on the stored
+ * content.</p>
+ */
+public class StreamingMimeMessage extends MimeMessage {
+    @NotNull
+    private final MessageSource source;
+    private final int headerSize;
+
+    /**
+     * Read and parse the headers of the message.
+     *
+     * @param session The mail session.
+     * @param source  The raw message.
+     * @throws MessagingException If the headers could not be read.
+     */
+    public StreamingMimeMessage(@NotNull Session session, @NotNull MessageSource source) throws MessagingException {
+        super(session);
+        this.source = Objects.requireNonNull(source, "source");
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(4096);
+
+        try (InputStream in = new BufferedInputStream(source.openStream(), 8 * 1024)) {
+            // The header block ends with the first empty line
+            int previous = '\n';
+            int b;
+
+            while ((b = in.read()) != -1) {
+                headerBytes.write(b);
+                if (b == '\n' && previous == '\n') break;
+                if (b != '\r') previous = b;
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Headers of the message could not be read.", e);
+        }
+
+        headerSize = headerBytes.size();
+        headers = createInternetHeaders(new ByteArrayInputStream(headerBytes.toByteArray()));
+        modified = false;
+        saved = true;
+    }
+
+    @Override
+    protected InputStream getContentStream() throws MessagingException {
+        try {
+            InputStream in = source.openStream();
+            long remaining = headerSize;
+
+            while (0 < remaining) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() == -1) break;
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+
+            return in;
+        } catch (IOException e) {
+            throw new MessagingException("Content of the message could not be read.", e);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return (int) Math.min(Integer.MAX_VALUE, source.getSize() - headerSize);
+    }
+
+    /**
+     * @return The raw message behind this object.
+     */
+    @NotNull
+    public MessageSource getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,346 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>This store keeps MimeMessage objects in memory like
+ * {@link SimpleMailStore}, up to a size budget in bytes. The memory tier is
+ * a {@link MessageCache}: over the budget the least recently used messages
+ * are moved to a {@link FileMailStore} (spilled) by its eviction listener.
+ * A message is removed from memory only if it is found on disk after
+ * spilling, otherwise it is kept. Messages larger than the budget are
+ * written to disk at once.</p>
+ *
+ * <p>A spilled message is moved back into memory (promoted) when it is
+ * read, if it is not larger than the budget. The file of a promoted message is kept,
+ * so spilling it again does not write it again.</p>
+ *
+ * <p>Changes of a message are serialized by a lock stripe of its mail ID,
+ * so a message could not be lost between the tiers.</p>
+ *
+ * <p>The budget and the directory of spilled messages are set by the
+ * setters or by the aspirin.mailstore.tiered.budget and
+ * aspirin.mailstore.tiered.dir configuration parameters.</p>
+ */
+public class TieredMailStore implements MailStore {
+    private static final int LOCK_STRIPES = 64;
+    @NotNull
+    private final MessageCache memory = new MessageCache(0L, this::spill);
+    @NotNull
+    private final FileMailStore disk = new FileMailStore();
+    @NotNull
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    @NotNull
+    private final LongAdder diskHitCount = new LongAdder();
+    @NotNull
+    private final LongAdder spillCount = new LongAdder();
+    @NotNull
+    private final LongAdder spilledSize = new LongAdder();
+    @NotNull
+    private final LongAdder promotionCount = new LongAdder();
+    private volatile long budget = -1L;
+
+    public TieredMailStore() {
+        for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+        // Spilled messages are read from the files, they are not cached twice
+        disk.setCacheSize(0L);
+    }
+
+    /**
+     * @return Size of the rendered message, or -1 if it is larger than the
+     * limit.
+     */
+    private static long measure(@NotNull MimeMessage msg, long limit) throws IOException, MessagingException {
+        int contentSize = msg.getSize();
+
+        if (0 <= contentSize) {
+            // Parsed messages know their content size, only the headers are counted
+            long size = contentSize + 2;
+            Enumeration<?> headerLines = msg.getAllHeaderLines();
+            while (headerLines.hasMoreElements()) size += ((String) headerLines.nextElement()).length() + 2;
+            return size <= limit ? size : -1L;
+        }
+
+        SizeCounter counter = new SizeCounter(limit);
+
+        try {
+            msg.writeTo(counter);
+        } catch (SizeCounter.SizeExceededException e) {
+            return -1L;
+        }
+
+        return counter.size;
+    }
+
+    @NotNull
+    private Object lockOf(@NotNull String mailid) {
+        return locks[(mailid.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES];
+    }
+
+    /**
+     * @return The memory tier, with the current budget.
+     */
+    @NotNull
+    private MessageCache memory() {
+        // The budget could be changed in the configuration
+        long currentBudget = getBudget();
+        if (memory.getBudget() != currentBudget) memory.setBudget(currentBudget);
+        return memory;
+    }
+
+    @Override
+    public void close() {
+        disk.close();
+    }
+
+    @Override
+    @Nullable
+    public MimeMessage get(@NotNull String mailid) {
+        Objects.requireNonNull(mailid, "mailid");
+        MimeMessage msg = memory.get(mailid);
+        if (msg != null) return msg;
+
+        synchronized (lockOf(mailid)) {
+            // It could be promoted by another thread meanwhile
+            msg = memory.peek(mailid);
+            if (msg != null) return msg;
+
+            msg = disk.get(mailid);
+            if (msg == null) return null;
+            diskHitCount.increment();
+
+            MessageSource source = disk.getSource(mailid);
+            long size = source == null ? -1L : source.getSize();
+
+            // Colder messages are spilled to make room for it
+            if (0 <= size && size <= getBudget()) {
+                memory().put(mailid, msg, size);
+                promotionCount.increment();
+            }
+        }
+
+        return msg;
+    }
+
+    @Override
+    @NotNull
+    public List<String> getMailIds() {
+        Set<String> mailIds = new HashSet<>(memory.getMailIds());
+        mailIds.addAll(disk.getMailIds());
+        return new ArrayList<>(mailIds);
+    }
+
+    @Override
+    @Nullable
+    public MessageSource getSource(@NotNull String mailid) {
+        // Messages only in memory are not streamed
+        return disk.getSource(mailid);
+    }
+
+    @Override
+    public void init() {
+        if (disk.getRootDir() == null) {
+            String dirName = AspirinInternal.getConfiguration().getMailStoreTieredDir();
+            if (dirName == null)
+                throw new IllegalStateException(getClass().getSimpleName() + " Please set up spill directory.");
+            disk.setRootDir(new File(dirName));
+        }
+
+        // Messages of the previous run are read from disk
+        disk.init();
+    }
+
+    @Override
+    public void remove(@Nullable String mailid) {
+        if (mailid == null) return;
+
+        synchronized (lockOf(mailid)) {
+            memory.remove(mailid);
+            disk.remove(mailid);
+        }
+    }
+
+    @Override
+    public void set(@NotNull String mailid, @NotNull MimeMessage msg) {
+        Objects.requireNonNull(mailid, "mailid");
+        Objects.requireNonNull(msg, "msg");
+        long size;
+
+        try {
+            size = measure(msg, getBudget());
+        } catch (IOException | MessagingException e) {
+            // The file store renders the message again and reports the error
+            size = -1L;
+        }
+
+        synchronized (lockOf(mailid)) {
+            // An older version of the message could be on disk
+            disk.remove(mailid);
+
+            if (0L <= size) memory().put(mailid, msg, size);
+            else memory.remove(mailid);
+
+            // Messages not kept in memory are written to disk, unless they were spilled already
+            if (memory.peek(mailid) != msg && disk.getSource(mailid) == null) {
+                disk.set(mailid, msg);
+                spillCount.increment();
+            }
+        }
+    }
+
+    /**
+     * Eviction listener of the memory tier, it moves the evicted message to
+     * disk.
+     *
+     * @return True, if the message is on disk, so it could be removed from
+     * memory.
+     */
+    private boolean spill(@NotNull String mailid, @NotNull MimeMessage message, long size) {
+        synchronized (lockOf(mailid)) {
+            // It was replaced or removed meanwhile
+            if (memory.peek(mailid) != message) return false;
+
+            // A promoted message has its file already
+            if (disk.getSource(mailid) == null) {
+                try {
+                    disk.set(mailid, message);
+                } catch (IllegalStateException e) {
+                    AspirinInternal.getLogger().error(getClass().getSimpleName() + " Could not spill message " + mailid, e);
+                }
+
+                // The disk store only logs most of its failures, the message is kept in memory then
+                if (disk.getSource(mailid) == null) return false;
+                spilledSize.add(size);
+            }
+
+            spillCount.increment();
+            return true;
+        }
+    }
+
+    /**
+     * @return Maximal size of messages in memory in bytes.
+     */
+    public long getBudget() {
+        long currentBudget = budget;
+        return currentBudget < 0L ? AspirinInternal.getConfiguration().getMailStoreTieredBudget() : currentBudget;
+    }
+
+    /**
+     * Set the maximal size of messages in memory. If 0, then every message
+     * is written to disk.
+     *
+     * @param budget Size in bytes.
+     */
+    public void setBudget(long budget) {
+        this.budget = Math.max(0L, budget);
+        memory();
+    }
+
+    @Nullable
+    public File getRootDir() {
+        return disk.getRootDir();
+    }
+
+    /**
+     * Set the directory of spilled messages. It is applied on the next
+     * init().
+     *
+     * @param rootDir The directory.
+     */
+    public void setRootDir(@Nullable File rootDir) {
+        disk.setRootDir(rootDir);
+    }
+
+    /**
+     * @return Size of messages in memory in bytes.
+     */
+    public long getMemorySize() {
+        return memory.getWeight();
+    }
+
+    /**
+     * @return Count of messages in memory.
+     */
+    public int getMemoryCount() {
+        return memory.size();
+    }
+
+    /**
+     * @return Count of messages on disk, including the promoted ones.
+     */
+    public int getDiskCount() {
+        return disk.getMailIds().size();
+    }
+
+    public long getMemoryHitCount() {
+        return memory.getHitCount();
+    }
+
+    public long getDiskHitCount() {
+        return diskHitCount.sum();
+    }
+
+    /**
+     * @return Count of messages moved from memory to disk, or written to
+     * disk at once, because they are larger than the budget.
+     */
+    public long getSpillCount() {
+        return spillCount.sum();
+    }
+
+    /**
+     * @return Size of messages written to disk by spilling in bytes.
+     */
+    public long getSpilledSize() {
+        return spilledSize.sum();
+    }
+
+    public long getPromotionCount() {
+        return promotionCount.sum();
+    }
+
+    /**
+     * Counts the rendered size of a message, and stops over the limit.
+     */
+    private static final class SizeCounter extends OutputStream {
+        private final long limit;
+        private long size;
+
+        SizeCounter(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(null, 0, 1);
+        }
+
+        @Override
+        public void write(@Nullable byte[] b, int off, int len) throws IOException {
+            size += len;
+            if (limit < size) throw new SizeExceededException();
+        }
+
+        private static final class SizeExceededException extends IOException {
+            SizeExceededException() {
+                super("Message is larger than the limit.");
+            }
+
+            @Override
+            public synchronized Throwable fillInStackTrace() {
+                return this;
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Persistent queue store. The queue is kept in memory the same way as in
+ * {@link SimpleQueueStore}, and every change is written into an append-only
+ * journal file, so the queue survives restarts and crashes of the JVM.</p>
+ *
+ * <p>Adding recipients and setting sending results return after the change
+ * is forced to disk. Concurrent changes are forced together (group commit),
+ * so the count of disk flushes is much less than the count of changes.
+ * Items in progress are not persisted, after a restart they are sent
+ * again.</p>
+ *
+ * <p>On init() the journal is replayed to rebuild the queue. The journal is
+ * compacted into a snapshot of the live items by clean(), or in the
+ * background if it grows over the compaction limit.</p>
+ *
+ * <p>The journal file is set by setJournalFile() or by the
+ * aspirin.queuestore.journal.file configuration parameter.</p>
+ */
+public class JournalQueueStore extends SimpleQueueStore {
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_STATE = 2;
+    private static final byte RECORD_REMOVE_MAIL = 3;
+    private static final byte RECORD_REMOVE_RECIPIENT = 4;
+    private static final long COMPACTION_SIZE_MIN = 16L * 1024L * 1024L;
+    @NotNull
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    @Nullable
+    private File journalFile;
+    @Nullable
+    private volatile QueueJournal journal;
+    /**
+     * Size of the journal after the last compaction or replay.
+     */
+    private volatile long compactedSize;
+
+    private static void writeString(@NotNull DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) out.writeInt(-1);
+        else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @Nullable
+    private static String readString(@NotNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @NotNull
+    private static DeliveryState toState(int stateId) throws IOException {
+        for (DeliveryState state : DeliveryState.values())
+            if (state.getStateId() == stateId) return state;
+        throw new IOException("Unknown delivery state: " + stateId);
+    }
+
+    @NotNull
+    private static byte[] createAddRecord(@NotNull QueueInfo qi) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_ADD);
+            writeString(out, qi.getMailid());
+            writeString(out, qi.getRecipient());
+            out.writeLong(qi.getExpiry());
+            out.writeLong(qi.getCreated());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @NotNull
+    private static byte[] createStateRecord(@NotNull QueueInfo qi) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_STATE);
+            writeString(out, qi.getMailid());
+            writeString(out, qi.getRecipient());
+            // Items in progress are sent again after restart
+            out.writeByte(qi.hasState(DeliveryState.IN_PROGRESS) ? DeliveryState.QUEUED.getStateId() : qi.getState().getStateId());
+            out.writeLong(qi.getAttempt());
+            out.writeInt(qi.getAttemptCount());
+            writeString(out, qi.getResultInfo());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @NotNull
+    private static byte[] createRemoveRecord(byte type, @Nullable String key) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            writeString(out, key);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void add(@Nullable String mailid, long expiry, @NotNull Iterable<? extends InternetAddress> recipients) throws MessagingException {
+        Objects.requireNonNull(recipients, "recipients");
+        QueueJournal currentJournal = getJournal();
+        long seq = 0L;
+
+        synchronized (lock) {
+            for (QueueInfo qi : addQueueInfos(mailid, expiry, recipients))
+                seq = currentJournal.append(createAddRecord(qi));
+        }
+
+        try {
+            currentJournal.sync(seq);
+        } catch (IOException e) {
+            throw new MessagingException("Message queueing failed: " + mailid, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    @NotNull
+    @Override
+    public List<String> clean() {
+        List<String> mailidList = super.clean();
+        compact();
+        return mailidList;
+    }
+
+    @Override
+    public void init() {
+        File file = journalFile;
+
+        if (file == null) {
+            String fileName = AspirinInternal.getConfiguration().getQueueStoreJournalFile();
+            if (fileName == null)
+                throw new IllegalStateException(getClass().getSimpleName() + " Please set up journal file.");
+            file = new File(fileName);
+        }
+
+        Replay replay = new Replay();
+        QueueJournal newJournal = new QueueJournal(file);
+        long start = System.currentTimeMillis();
+
+        try {
+            newJournal.open(replay::apply);
+        } catch (IOException e) {
+            throw new IllegalStateException(getClass().getSimpleName() + " Journal could not be loaded: " + file.getAbsolutePath(), e);
+        }
+
+        replay.queueInfos.values().forEach(this::restore);
+
+        synchronized (lock) {
+            journal = newJournal;
+            journalFile = file;
+        }
+        compactedSize = newJournal.getSize();
+
+        AspirinInternal.getLogger().info(
+                "JournalQueueStore.init(): {} items loaded from '{}' in {} ms.",
+                new Object[]{replay.queueInfos.size(), file, System.currentTimeMillis() - start});
+    }
+
+    @Override
+    public void remove(@Nullable String mailid) {
+        synchronized (lock) {
+            super.remove(mailid);
+            getJournal().append(createRemoveRecord(RECORD_REMOVE_MAIL, mailid));
+        }
+    }
+
+    @Override
+    public void removeRecipient(@Nullable String recipient) {
+        synchronized (lock) {
+            super.removeRecipient(recipient);
+            getJournal().append(createRemoveRecord(RECORD_REMOVE_RECIPIENT, recipient));
+        }
+    }
+
+    @Override
+    public void setSendingResult(@NotNull QueueInfo qi) {
+        Objects.requireNonNull(qi, "qi");
+        QueueJournal currentJournal = getJournal();
+        long seq;
+
+        synchronized (lock) {
+            super.setSendingResult(qi);
+            QueueInfo uniqueQueueInfo = getQueueInfo(qi.getMailid(), qi.getRecipient());
+            if (uniqueQueueInfo == null) return;
+            seq = currentJournal.append(createStateRecord(uniqueQueueInfo));
+        }
+
+        try {
+            currentJournal.sync(seq);
+        } catch (IOException e) {
+            AspirinInternal.getLogger().error("JournalQueueStore.setSendingResult(): Sending result could not be persisted. qi=" + qi, e);
+        }
+
+        compactIfNeeded();
+    }
+
+    @Override
+    protected void sendingResultsUpdated(@NotNull List<QueueInfo> queueInfos) {
+        QueueJournal currentJournal = getJournal();
+        long seq = 0L;
+
+        for (QueueInfo qi : queueInfos)
+            seq = currentJournal.append(createStateRecord(qi));
+
+        try {
+            currentJournal.sync(seq);
+        } catch (IOException e) {
+            AspirinInternal.getLogger().error("JournalQueueStore.sendingResultsUpdated(): Sending results could not be persisted. size=" + queueInfos.size(), e);
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Write the live items into a new journal, and replace the current
+     * journal with it. Changes are not blocked while the new journal is
+     * written.
+     */
+    public void compact() {
+        if (!compacting.compareAndSet(false, true)) return;
+
+        try {
+            QueueJournal currentJournal = getJournal();
+            List<QueueInfo> queueInfos;
+
+            /*
+             * The list of items and the start of collecting new records have
+             * to be atomic. Items changed after this point are written later
+             * than the snapshot too, so the snapshot is created out of lock.
+             */
+            synchronized (lock) {
+                queueInfos = getQueueInfos();
+                currentJournal.startCompaction();
+            }
+
+            List<byte[]> snapshot = new ArrayList<>(queueInfos.size() * 2);
+            for (QueueInfo qi : queueInfos) {
+                snapshot.add(createAddRecord(qi));
+                snapshot.add(createStateRecord(qi));
+            }
+
+            long before = currentJournal.getSize();
+            currentJournal.finishCompaction(new FramedRecords(snapshot));
+            compactedSize = currentJournal.getSize();
+
+            AspirinInternal.getLogger().debug(
+                    "JournalQueueStore.compact(): Journal compacted from {} to {} bytes, {} items.",
+                    new Object[]{before, compactedSize, queueInfos.size()});
+        } catch (IOException e) {
+            AspirinInternal.getLogger().error("JournalQueueStore.compact(): Journal could not be compacted.", e);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    @Nullable
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    public void setJournalFile(@Nullable File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Force the buffered changes to disk and close the journal.
+     */
+    @Override
+    public void close() {
+        QueueJournal currentJournal;
+
+        synchronized (lock) {
+            currentJournal = journal;
+            journal = null;
+        }
+
+        if (currentJournal != null) {
+            try {
+                currentJournal.close();
+            } catch (IOException e) {
+                AspirinInternal.getLogger().error("JournalQueueStore.close(): Journal could not be closed.", e);
+            }
+        }
+    }
+
+    @NotNull
+    private QueueJournal getJournal() {
+        QueueJournal currentJournal = journal;
+        if (currentJournal == null)
+            throw new IllegalStateException(getClass().getSimpleName() + " Journal is not loaded, please call init().");
+        return currentJournal;
+    }
+
+    private void compactIfNeeded() {
+        QueueJournal currentJournal = journal;
+
+        if (currentJournal != null && !compacting.get() &&
+                Math.max(COMPACTION_SIZE_MIN, 4L * compactedSize) < currentJournal.getSize()) {
+            Thread compactionThread = new Thread(this::compact, "Aspirin-" + getClass().getSimpleName() + "-Compaction");
+            compactionThread.setDaemon(true);
+            compactionThread.start();
+        }
+    }
+
+    /**
+     * Rebuilds the queue from the journal records.
+     */
+    private static final class Replay {
+        @NotNull
+        private final Map<String, QueueInfo> queueInfos = new LinkedHashMap<>();
+        @NotNull
+        private final Map<String, Set<QueueInfo>> queueInfosByMailid = new HashMap<>();
+        @NotNull
+        private final Map<String, Set<QueueInfo>> queueInfosByRecipient = new HashMap<>();
+
+        void apply(@NotNull DataInputStream in) throws IOException {
+            byte type = in.readByte();
+
+            switch (type) {
+                case RECORD_ADD: {
+                    QueueInfo qi = new QueueInfo();
+                    qi.setMailid(readString(in));
+                    qi.setRecipient(readString(in));
+                    qi.setExpiry(in.readLong());
+                    qi.setCreated(in.readLong());
+                    qi.setAttempt(qi.getCreated());
+                    remove(queueInfos.put(qi.getComplexId(), qi));
+                    queueInfosByMailid.computeIfAbsent(qi.getMailid(), k -> new HashSet<>()).add(qi);
+                    queueInfosByRecipient.computeIfAbsent(qi.getRecipient(), k -> new HashSet<>()).add(qi);
+                    break;
+                }
+                case RECORD_STATE: {
+                    String mailid = readString(in);
+                    String recipient = readString(in);
+                    QueueInfo qi = queueInfos.get(mailid + "-" + recipient);
+                    DeliveryState state = toState(in.readByte());
+                    long attempt = in.readLong();
+                    int attemptCount = in.readInt();
+                    String resultInfo = readString(in);
+
+                    if (qi != null) {
+                        qi.restoreState(state);
+                        qi.setAttempt(attempt);
+                        qi.setAttemptCount(attemptCount);
+                        qi.setResultInfo(resultInfo);
+                    }
+                    break;
+                }
+                case RECORD_REMOVE_MAIL: {
+                    Set<QueueInfo> removeable = queueInfosByMailid.remove(readString(in));
+                    if (removeable != null) removeable.forEach(qi -> {
+                        queueInfos.remove(qi.getComplexId());
+                        queueInfosByRecipient.get(qi.getRecipient()).remove(qi);
+                    });
+                    break;
+                }
+                case RECORD_REMOVE_RECIPIENT: {
+                    Set<QueueInfo> removeable = queueInfosByRecipient.remove(readString(in));
+                    if (removeable != null) removeable.forEach(qi -> {
+                        queueInfos.remove(qi.getComplexId());
+                        queueInfosByMailid.get(qi.getMailid()).remove(qi);
+                    });
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record type: " + type);
+            }
+        }
+
+        private void remove(@Nullable QueueInfo previous) {
+            if (previous == null) return;
+            queueInfosByMailid.get(previous.getMailid()).remove(previous);
+            queueInfosByRecipient.get(previous.getRecipient()).remove(previous);
+        }
+    }
+
+    /**
+     * Frames the snapshot records while they are written.
+     */
+    private static final class FramedRecords implements Iterable<byte[]> {
+        @NotNull
+        private final List<byte[]> payloads;
+
+        FramedRecords(@NotNull List<byte[]> payloads) {
+            this.payloads = payloads;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<byte[]> iterator() {
+            Iterator<byte[]> payloadIt = payloads.iterator();
+
+            return new Iterator<byte[]>() {
+                @Override
+                public boolean hasNext() {
+                    return payloadIt.hasNext();
+                }
+
+                @Override
+                public byte[] next() {
+                    return QueueJournal.frame(payloadIt.next());
+                }
+            };
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.jetbrains.annotations.Nullable;
 import org.masukomi.aspirin.core.AspirinInternal;
 
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.Objects;
 
 /**
@@ -19,6 +20,7 @@ public class QueueInfo {
     private String resultInfo;
     private long attempt;
     private int attemptCount;
+    private long created = System.currentTimeMillis();
     private long expiry = -1L;
     @NotNull
     private DeliveryState state = DeliveryState.QUEUED;
@@ -50,6 +52,15 @@ public class QueueInfo {
         this.recipient = recipient;
     }
 
+    /**
+     * @return The lower case domain part of the recipient address, or null
+     * if there is no recipient.
+     */
+    public @Nullable String getRecipientDomain() {
+        if (recipient == null) return null;
+        return recipient.substring(recipient.lastIndexOf('@') + 1).toLowerCase(Locale.ENGLISH);
+    }
+
     public @Nullable String getResultInfo() {
         return resultInfo;
     }
@@ -66,6 +77,17 @@ public class QueueInfo {
         this.attempt = attempt;
     }
 
+    /**
+     * @return Epoch timestamp in milliseconds when this item was queued.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public void setCreated(long created) {
+        this.created = created;
+    }
+
     public int getAttemptCount() {
         return attemptCount;
     }
@@ -108,6 +130,17 @@ public class QueueInfo {
         }
     }
 
+    /**
+     * Set the state of a QueueInfo loaded from a persisted queue. Listeners
+     * are not notified, because they were notified before persisting.
+     *
+     * @param state The persisted state.
+     */
+    void restoreState(@NotNull DeliveryState state) {
+        this.state = Objects.requireNonNull(state, "state");
+        notifiedAlready = !hasState(DeliveryState.QUEUED, DeliveryState.IN_PROGRESS);
+    }
+
     public boolean hasState(@NotNull DeliveryState... states) {
         Objects.requireNonNull(states, "states");
         return Arrays.stream(states).anyMatch(st -> st == state);
@@ -122,8 +155,9 @@ public class QueueInfo {
 //	public abstract void load();
 
     public boolean isInTimeBounds() {
-        return (expiry == -1L || System.currentTimeMillis() < expiry) &&
-                attemptCount < AspirinInternal.getConfiguration().getDeliveryAttemptCount();
+        long now = System.currentTimeMillis();
+        return (expiry == -1L || now < expiry) &&
+                AspirinInternal.getConfiguration().getRetryPolicy().isInBounds(this, now);
     }
 
     @Override
@@ -0,0 +1,358 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Append-only write-ahead journal file of {@link JournalQueueStore}.
+ * Every record is framed with its length and CRC32 checksum, so a torn
+ * record at the end of the file (after a crash) is detected and cut off on
+ * replay.</p>
+ *
+ * <p>Appending only copies a record into a memory buffer. The buffer is
+ * written and forced to disk by sync(), with group commit: one thread (the
+ * leader) writes and forces all buffered records, while the other threads
+ * waiting for their records are released by this one force.</p>
+ *
+ * <p>Compaction writes a snapshot into a new file, then the records appended
+ * since the start of the compaction, and replaces the journal file with an
+ * atomic rename.</p>
+ */
+final class QueueJournal implements Closeable {
+    private static final int MAGIC = 0x41535051; // "ASPQ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE_MAX = 16 * 1024 * 1024;
+    @NotNull
+    private final File file;
+    /**
+     * Guards the buffered records and the sequence of appended records.
+     */
+    @NotNull
+    private final Object writeLock = new Object();
+    /**
+     * Guards the sequence of synced records and the leader election.
+     */
+    @NotNull
+    private final Object syncLock = new Object();
+    /**
+     * Guards the file channel.
+     */
+    @NotNull
+    private final Object ioLock = new Object();
+    @NotNull
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+    @Nullable
+    private ByteArrayOutputStream compactionTail;
+    @Nullable
+    private FileChannel channel;
+    private long appendedSeq;
+    private long syncedSeq;
+    private boolean syncing;
+    private long size;
+
+    QueueJournal(@NotNull File file) {
+        this.file = Objects.requireNonNull(file, "file");
+    }
+
+    @NotNull
+    static byte[] frame(@NotNull byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private static void writeHeader(@NotNull OutputStream out) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+    }
+
+    private static void writeFully(@NotNull FileChannel channel, @NotNull byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Read all records of the journal and open it for appending. A broken
+     * record at the end of the file is removed.
+     *
+     * @param handler It is called with the payload of every valid record.
+     * @throws IOException If the journal could not be read or opened.
+     */
+    void open(@NotNull RecordHandler handler) throws IOException {
+        Objects.requireNonNull(handler, "handler");
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+
+        long validSize = HEADER_SIZE;
+
+        if (file.exists() && file.length() >= HEADER_SIZE) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    throw new IOException("Not a queue journal file: " + file.getAbsolutePath());
+
+                CRC32 crc = new CRC32();
+                byte[] payload = new byte[4096];
+
+                while (true) {
+                    int length;
+                    int checksum;
+
+                    try {
+                        length = in.readInt();
+                        checksum = in.readInt();
+                        if (length < 0 || RECORD_SIZE_MAX < length) break;
+                        if (payload.length < length) payload = new byte[Math.max(length, payload.length * 2)];
+                        in.readFully(payload, 0, length);
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) break;
+
+                    handler.handle(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                    validSize += 8 + length;
+                }
+            }
+
+            if (validSize < file.length())
+                AspirinInternal.getLogger().warn("QueueJournal.open(): Broken record found at {} in '{}', the journal is truncated.", validSize, file);
+        } else {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                writeHeader(out);
+                out.getFD().sync();
+            }
+        }
+
+        synchronized (ioLock) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            channel.truncate(validSize);
+            channel.position(validSize);
+            size = validSize;
+        }
+    }
+
+    /**
+     * Append a record to the buffer of the journal. It is written to disk by
+     * the next sync().
+     *
+     * @param payload The record.
+     * @return The sequence number of the record, used in sync().
+     */
+    long append(@NotNull byte[] payload) {
+        byte[] record = frame(payload);
+
+        synchronized (writeLock) {
+            pending.write(record, 0, record.length);
+            if (compactionTail != null) compactionTail.write(record, 0, record.length);
+            size += record.length;
+            return ++appendedSeq;
+        }
+    }
+
+    /**
+     * Wait until the record with the given sequence number is written and
+     * forced to disk. Concurrent callers are served by one force.
+     *
+     * @param seq Sequence number given back by append().
+     * @throws IOException If the journal could not be written.
+     */
+    void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            while (syncedSeq < seq && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Waiting for journal sync was interrupted.");
+                }
+            }
+            if (seq <= syncedSeq) return;
+            syncing = true;
+        }
+
+        // This thread is the leader, it writes all buffered records
+        long synced = 0L;
+
+        try {
+            synchronized (ioLock) {
+                byte[] data;
+                long upTo;
+
+                synchronized (writeLock) {
+                    data = pending.toByteArray();
+                    pending.reset();
+                    upTo = appendedSeq;
+                }
+
+                if (channel == null) throw new IOException("Queue journal is not open: " + file.getAbsolutePath());
+                long position = channel.position();
+
+                try {
+                    writeFully(channel, data);
+                    channel.force(false);
+                    synced = upTo;
+                } catch (IOException | RuntimeException e) {
+                    // Cut off the partially written records and keep them for the next leader
+                    try {
+                        channel.truncate(position);
+                        channel.position(position);
+                    } catch (IOException te) {
+                        AspirinInternal.getLogger().error("QueueJournal.sync(): Journal could not be truncated after failed write.", te);
+                    }
+
+                    synchronized (writeLock) {
+                        byte[] later = pending.toByteArray();
+                        pending.reset();
+                        pending.write(data, 0, data.length);
+                        pending.write(later, 0, later.length);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            synchronized (syncLock) {
+                syncedSeq = Math.max(syncedSeq, synced);
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Start collecting the appended records for compaction. It have to be
+     * called together with taking the snapshot of the store, while no
+     * record could be appended.
+     */
+    void startCompaction() {
+        synchronized (writeLock) {
+            compactionTail = new ByteArrayOutputStream(64 * 1024);
+        }
+    }
+
+    /**
+     * Replace the journal by the given snapshot and the records appended
+     * since startCompaction().
+     *
+     * @param snapshot Framed records of the snapshot.
+     * @throws IOException If the new journal could not be written. The old
+     *                     journal is kept in this case.
+     */
+    void finishCompaction(@NotNull Iterable<byte[]> snapshot) throws IOException {
+        File compactFile = new File(file.getPath() + ".compact");
+        long snapshotSize = HEADER_SIZE;
+
+        try {
+            try (FileOutputStream out = new FileOutputStream(compactFile)) {
+                BufferedOutputStream bufferedOut = new BufferedOutputStream(out, 1024 * 1024);
+                writeHeader(bufferedOut);
+                for (byte[] record : snapshot) {
+                    bufferedOut.write(record);
+                    snapshotSize += record.length;
+                }
+                bufferedOut.flush();
+                out.getFD().sync();
+            }
+
+            synchronized (ioLock) {
+                byte[] tail;
+                int pendingSize;
+                long upTo;
+
+                synchronized (writeLock) {
+                    tail = compactionTail.toByteArray();
+                    compactionTail = null;
+                    pendingSize = pending.size();
+                    upTo = appendedSeq;
+                }
+
+                try (FileChannel compactChannel = FileChannel.open(compactFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    writeFully(compactChannel, tail);
+                    compactChannel.force(false);
+                }
+
+                channel.close();
+                try {
+                    Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+
+                // The buffered records are in the tail too, only the later ones are kept
+                synchronized (writeLock) {
+                    byte[] buffered = pending.toByteArray();
+                    pending.reset();
+                    pending.write(buffered, pendingSize, buffered.length - pendingSize);
+                    size = snapshotSize + tail.length + pending.size();
+                }
+
+                synchronized (syncLock) {
+                    syncedSeq = Math.max(syncedSeq, upTo);
+                    syncLock.notifyAll();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (writeLock) {
+                compactionTail = null;
+            }
+            Files.deleteIfExists(compactFile.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * @return Size of the journal in bytes, including the buffered records.
+     */
+    long getSize() {
+        synchronized (writeLock) {
+            return size;
+        }
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        long seq;
+
+        synchronized (writeLock) {
+            seq = appendedSeq;
+        }
+
+        sync(seq);
+
+        synchronized (ioLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the payload of a journal record.
+     */
+    interface RecordHandler {
+        void handle(@NotNull DataInputStream in) throws IOException;
+    }
+}
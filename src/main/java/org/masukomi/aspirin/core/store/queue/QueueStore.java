@@ -5,6 +5,7 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -27,11 +28,30 @@ public interface QueueStore {
     @NotNull
     List<String> clean();
 
+    /**
+     * Persist the buffered changes and release the resources of the store.
+     * It is called on shutdown. The default implementation does nothing.
+     */
+    default void close() {
+    }
+
     @NotNull
     QueueInfo createQueueInfo();
 
     long getNextAttempt(@Nullable String mailid, @Nullable String recipient);
 
+    /**
+     * It gives back the earliest attempt time of all QUEUED items. The
+     * DeliveryManager sleeps until this time if there is no sendable item.
+     * The default implementation keeps the original polling of a minute.
+     *
+     * @return Epoch timestamp in milliseconds of the next attempt or
+     * Long.MAX_VALUE, if there is no QUEUED item.
+     */
+    default long getNextAttempt() {
+        return System.currentTimeMillis() + 60000L;
+    }
+
     boolean hasBeenRecipientHandled(@Nullable String mailid, @Nullable String recipient);
 
     void init();
@@ -50,6 +70,36 @@ public interface QueueStore {
     @Nullable
     QueueInfo next();
 
+    /**
+     * It gives back further sendable QueueInfo objects of the same mailid,
+     * whose recipients are in the same domain as the recipient of the given
+     * QueueInfo. These items are delivered together with the given one in
+     * one SMTP transaction, so they are marked IN_PROGRESS like the result
+     * of next(). The default implementation does not group items.
+     *
+     * @param qi  The QueueInfo given back by next().
+     * @param max Maximal count of returned items.
+     * @return List of sendable QueueInfo objects, without the given one.
+     */
+    @NotNull
+    default List<QueueInfo> nextOfSameDomain(@NotNull QueueInfo qi, int max) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Put back an item taken by next() without a delivery attempt, for
+     * example because its domain is throttled. Its attempt count is not
+     * changed. The default implementation gives it back as a failed
+     * attempt, stores should override it.
+     *
+     * @param qi      The QueueInfo given back by next().
+     * @param attempt Epoch timestamp in milliseconds of the next attempt.
+     */
+    default void defer(@NotNull QueueInfo qi, long attempt) {
+        qi.setState(DeliveryState.QUEUED);
+        setSendingResult(qi);
+    }
+
     void remove(@Nullable String mailid);
 
     void removeRecipient(@Nullable String recipient);
@@ -0,0 +1,165 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>In-memory queue store for many delivery threads. The items are
+ * partitioned by the hash of their mailid into shards, every shard is a
+ * {@link SimpleQueueStore} with its own lock. Threads working on different
+ * messages do not wait for each other.</p>
+ *
+ * <p>All items of a message are in the same shard, so isCompleted(),
+ * remove() and nextOfSameDomain() use only one shard. next() visits the
+ * shards round-robin, starting from the shard after the previous call, so
+ * every shard gets the same share of the deliveries. Inside a shard the
+ * items are taken by their attempt time.</p>
+ *
+ * <p>The count of shards is the count of processors by default.</p>
+ */
+public class ShardedQueueStore implements QueueStore {
+    @NotNull
+    private final SimpleQueueStore[] shards;
+    @NotNull
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    public ShardedQueueStore() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param shardCount Count of shards, at least 1.
+     */
+    public ShardedQueueStore(int shardCount) {
+        shards = new SimpleQueueStore[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) shards[i] = createShard();
+    }
+
+    /**
+     * @return A new empty shard. Subclasses could give back another
+     * SimpleQueueStore implementation.
+     */
+    @NotNull
+    protected SimpleQueueStore createShard() {
+        return new SimpleQueueStore();
+    }
+
+    @NotNull
+    private SimpleQueueStore shardOf(@Nullable String mailid) {
+        return shards[(Objects.hashCode(mailid) & 0x7FFFFFFF) % shards.length];
+    }
+
+    @Override
+    public void add(@Nullable String mailid, long expiry, @NotNull Iterable<? extends InternetAddress> recipients) throws MessagingException {
+        shardOf(mailid).add(mailid, expiry, recipients);
+    }
+
+    @NotNull
+    @Override
+    public List<String> clean() {
+        List<String> mailidList = new ArrayList<>();
+        for (SimpleQueueStore shard : shards) mailidList.addAll(shard.clean());
+        return mailidList;
+    }
+
+    @Override
+    public void close() {
+        for (SimpleQueueStore shard : shards) shard.close();
+    }
+
+    @NotNull
+    @Override
+    public QueueInfo createQueueInfo() {
+        return new QueueInfo();
+    }
+
+    @Override
+    public long getNextAttempt(@Nullable String mailid, @Nullable String recipient) {
+        return shardOf(mailid).getNextAttempt(mailid, recipient);
+    }
+
+    @Override
+    public long getNextAttempt() {
+        long nextAttempt = Long.MAX_VALUE;
+        for (SimpleQueueStore shard : shards) nextAttempt = Math.min(nextAttempt, shard.getNextAttempt());
+        return nextAttempt;
+    }
+
+    @Override
+    public boolean hasBeenRecipientHandled(@Nullable String mailid, @Nullable String recipient) {
+        return shardOf(mailid).hasBeenRecipientHandled(mailid, recipient);
+    }
+
+    @Override
+    public void init() {
+        for (SimpleQueueStore shard : shards) shard.init();
+    }
+
+    @Override
+    public boolean isCompleted(@Nullable String mailid) {
+        return shardOf(mailid).isCompleted(mailid);
+    }
+
+    @Override
+    @Nullable
+    public QueueInfo next() {
+        int start = nextShard.getAndIncrement() & 0x7FFFFFFF;
+
+        for (int i = 0; i < shards.length; i++) {
+            QueueInfo qi = shards[(start + i) % shards.length].next();
+            if (qi != null) return qi;
+        }
+
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public List<QueueInfo> nextOfSameDomain(@NotNull QueueInfo qi, int max) {
+        Objects.requireNonNull(qi, "qi");
+        return shardOf(qi.getMailid()).nextOfSameDomain(qi, max);
+    }
+
+    @Override
+    public void defer(@NotNull QueueInfo qi, long attempt) {
+        Objects.requireNonNull(qi, "qi");
+        shardOf(qi.getMailid()).defer(qi, attempt);
+    }
+
+    @Override
+    public void remove(@Nullable String mailid) {
+        shardOf(mailid).remove(mailid);
+    }
+
+    @Override
+    public void removeRecipient(@Nullable String recipient) {
+        for (SimpleQueueStore shard : shards) shard.removeRecipient(recipient);
+    }
+
+    @Override
+    public void setSendingResult(@NotNull QueueInfo qi) {
+        Objects.requireNonNull(qi, "qi");
+        shardOf(qi.getMailid()).setSendingResult(qi);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (SimpleQueueStore shard : shards) size += shard.size();
+        return size;
+    }
+
+    /**
+     * @return Count of shards.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+}
@@ -9,22 +9,42 @@ import javax.mail.internet.InternetAddress;
 import java.util.*;
 
 /**
+ * <p>In-memory queue store. The QUEUED items are kept in a sorted set ordered
+ * by their next attempt time, so next(), add() and setSendingResult() are
+ * O(log n) operations - the head of the set is always the next sendable
+ * item.</p>
+ *
+ * <p>Items are removed from the time index while they are in progress or
+ * finished, and they are put back on setSendingResult() if they should be
+ * sent again. The attempt time of an indexed item must not be changed
+ * without removing it from the index first.</p>
+ *
+ * <p>A new item is due at its creation time, so the items are served in
+ * arrival order, and retries are not waiting behind later items. Items due
+ * at the same time are ordered by creation time.</p>
+ *
  * @author Laszlo Solova
  */
 public class SimpleQueueStore implements QueueStore {
     @NotNull
-    private final List<QueueInfo> queueInfoList = new LinkedList<>();
+    private static final Comparator<QueueInfo> queueInfoComparator =
+            Comparator.comparingLong(QueueInfo::getAttempt)
+                    .thenComparingLong(QueueInfo::getCreated)
+                    .thenComparing(QueueInfo::getComplexId);
+    @NotNull
+    private final NavigableSet<QueueInfo> queuedQueueInfos = new TreeSet<>(queueInfoComparator);
     @NotNull
     private final Map<String, QueueInfo> queueInfoByMailidAndRecipient = new HashMap<>();
     @NotNull
     private final Map<String, Collection<QueueInfo>> queueInfoByMailid = new HashMap<>();
     @NotNull
     private final Map<String, Collection<QueueInfo>> queueInfoByRecipient = new HashMap<>();
+    /**
+     * Guards all indexes. Subclasses could extend the critical sections of
+     * this store by synchronizing on it.
+     */
     @NotNull
-    private final Object lock = new Object();
-    @NotNull
-    private final Comparator<QueueInfo> queueInfoComparator =
-            (o1, o2) -> Long.compare(o2.getAttempt(), o1.getAttempt());
+    protected final Object lock = new Object();
 
     @NotNull
     private static String createSearchKey(@Nullable String mailid, @Nullable String recipient) {
@@ -33,7 +53,18 @@ public class SimpleQueueStore implements QueueStore {
 
     @Override
     public void add(@Nullable String mailid, long expiry, @NotNull Iterable<? extends InternetAddress> recipients) throws MessagingException {
+        addQueueInfos(mailid, expiry, recipients);
+    }
+
+    /**
+     * Add the recipients of a message. The recipients are iterated once.
+     *
+     * @return The QueueInfo objects created for the recipients.
+     */
+    @NotNull
+    protected List<QueueInfo> addQueueInfos(@Nullable String mailid, long expiry, @NotNull Iterable<? extends InternetAddress> recipients) throws MessagingException {
         Objects.requireNonNull(recipients, "recipients");
+        List<QueueInfo> added = new ArrayList<>();
 
         try {
             recipients.forEach(recipient -> {
@@ -41,10 +72,18 @@ public class SimpleQueueStore implements QueueStore {
                 queueInfo.setExpiry(expiry);
                 queueInfo.setMailid(mailid);
                 queueInfo.setRecipient(recipient.getAddress());
+                queueInfo.setAttempt(queueInfo.getCreated());
 
                 synchronized (lock) {
-                    queueInfoList.add(queueInfo);
-                    queueInfoByMailidAndRecipient.put(createSearchKey(queueInfo.getMailid(), queueInfo.getRecipient()), queueInfo);
+                    QueueInfo previous = queueInfoByMailidAndRecipient.put(createSearchKey(queueInfo.getMailid(), queueInfo.getRecipient()), queueInfo);
+
+                    if (previous != null) {
+                        queuedQueueInfos.remove(previous);
+                        queueInfoByMailid.get(previous.getMailid()).remove(previous);
+                        queueInfoByRecipient.get(previous.getRecipient()).remove(previous);
+                    }
+
+                    queuedQueueInfos.add(queueInfo);
 
                     if (!queueInfoByMailid.containsKey(queueInfo.getMailid()))
                         queueInfoByMailid.put(queueInfo.getMailid(), new ArrayList<>());
@@ -57,10 +96,14 @@ public class SimpleQueueStore implements QueueStore {
                     queueInfoByRecipient.get(queueInfo.getRecipient()).add(queueInfo);
 
                 }
+
+                added.add(queueInfo);
             });
         } catch (RuntimeException e) {
             throw new MessagingException("Message queueing failed: " + mailid, e);
         }
+
+        return added;
     }
 
     @NotNull
@@ -92,17 +135,79 @@ public class SimpleQueueStore implements QueueStore {
         return new QueueInfo();
     }
 
+    /**
+     * @return The stored QueueInfo of the given mailid and recipient, or null
+     * if it does not exist.
+     */
+    @Nullable
+    protected QueueInfo getQueueInfo(@Nullable String mailid, @Nullable String recipient) {
+        synchronized (lock) {
+            return queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
+        }
+    }
+
+    /**
+     * @return Copy of the list of all stored QueueInfo objects.
+     */
+    @NotNull
+    protected List<QueueInfo> getQueueInfos() {
+        synchronized (lock) {
+            return new ArrayList<>(queueInfoByMailidAndRecipient.values());
+        }
+    }
+
+    /**
+     * Put a QueueInfo into the store as it is, for example on loading a
+     * persisted queue. Its state and attempt are not changed and listeners
+     * are not notified.
+     *
+     * @param qi The restored QueueInfo.
+     */
+    protected void restore(@NotNull QueueInfo qi) {
+        Objects.requireNonNull(qi, "qi");
+
+        synchronized (lock) {
+            QueueInfo previous = queueInfoByMailidAndRecipient.put(createSearchKey(qi.getMailid(), qi.getRecipient()), qi);
+
+            if (previous != null) {
+                queuedQueueInfos.remove(previous);
+                queueInfoByMailid.get(previous.getMailid()).remove(previous);
+                queueInfoByRecipient.get(previous.getRecipient()).remove(previous);
+            }
+
+            if (qi.hasState(DeliveryState.QUEUED))
+                queuedQueueInfos.add(qi);
+
+            queueInfoByMailid.computeIfAbsent(qi.getMailid(), k -> new ArrayList<>()).add(qi);
+            queueInfoByRecipient.computeIfAbsent(qi.getRecipient(), k -> new ArrayList<>()).add(qi);
+        }
+    }
+
     @Override
     public long getNextAttempt(@Nullable String mailid, @Nullable String recipient) {
-        QueueInfo qInfo = queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
-        if (qInfo != null && qInfo.hasState(DeliveryState.QUEUED))
-            return qInfo.getAttempt();
-        return -1L;
+        synchronized (lock) {
+            QueueInfo qInfo = queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
+            if (qInfo != null && qInfo.hasState(DeliveryState.QUEUED))
+                return qInfo.getAttempt();
+            return -1L;
+        }
+    }
+
+    @Override
+    public long getNextAttempt() {
+        synchronized (lock) {
+            return queuedQueueInfos.isEmpty() ? Long.MAX_VALUE : queuedQueueInfos.first().getAttempt();
+        }
     }
 
     @Override
     public boolean hasBeenRecipientHandled(@Nullable String mailid, @Nullable String recipient) {
-        QueueInfo qInfo = queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
+        QueueInfo qInfo;
+
+        synchronized (lock) {
+            qInfo = queueInfoByMailidAndRecipient.get(createSearchKey(mailid, recipient));
+        }
+
         return (qInfo != null && qInfo.hasState(DeliveryState.FAILED, DeliveryState.SENT));
     }
 
@@ -113,37 +218,112 @@ public class SimpleQueueStore implements QueueStore {
 
     @Override
     public boolean isCompleted(@Nullable String mailid) {
-        Collection<QueueInfo> qibmList = queueInfoByMailid.get(mailid);
+        synchronized (lock) {
+            Collection<QueueInfo> qibmList = queueInfoByMailid.get(mailid);
 
-        if (qibmList != null)
-            return qibmList.stream().noneMatch(sqi -> sqi.hasState(DeliveryState.IN_PROGRESS, DeliveryState.QUEUED));
+            // The list is changed under the lock, it could not be iterated without it
+            if (qibmList != null)
+                for (QueueInfo sqi : qibmList)
+                    if (sqi.hasState(DeliveryState.IN_PROGRESS, DeliveryState.QUEUED)) return false;
 
-        return true;
+            return true;
+        }
     }
 
     @Override
     @Nullable
     public QueueInfo next() {
-        queueInfoList.sort(queueInfoComparator);
-
-        if (!queueInfoList.isEmpty())
-            synchronized (lock) {
-                for (QueueInfo qi : queueInfoList)
-                    if (qi.isSendable()) {
-                        if (!qi.isInTimeBounds()) {
-                            if (qi.getResultInfo() == null || qi.getResultInfo().isEmpty())
-                                qi.setResultInfo("Delivery is out of time or attempt.");
-
-                            qi.setState(DeliveryState.FAILED);
-                            setSendingResult(qi);
-                        } else {
-                            qi.setState(DeliveryState.IN_PROGRESS);
-                            return qi;
-                        }
-                    }
+        List<QueueInfo> expiredQueueInfos = new ArrayList<>();
+        QueueInfo next = null;
+
+        synchronized (lock) {
+            while (!queuedQueueInfos.isEmpty()) {
+                QueueInfo qi = queuedQueueInfos.first();
+
+                // The state was changed outside of the store, it is not queued anymore.
+                if (!qi.hasState(DeliveryState.QUEUED)) {
+                    queuedQueueInfos.pollFirst();
+                    continue;
+                }
+
+                // The earliest item is not sendable yet, so no other item is.
+                if (!qi.isSendable())
+                    break;
+
+                queuedQueueInfos.pollFirst();
+
+                if (!qi.isInTimeBounds()) {
+                    if (qi.getResultInfo() == null || qi.getResultInfo().isEmpty())
+                        qi.setResultInfo("Delivery is out of time or attempt.");
+
+                    qi.setState(DeliveryState.FAILED);
+                    updateSendingResult(qi);
+                    expiredQueueInfos.add(qi);
+                } else {
+                    qi.setState(DeliveryState.IN_PROGRESS);
+                    next = qi;
+                    break;
+                }
             }
+        }
 
-        return null;
+        if (!expiredQueueInfos.isEmpty()) sendingResultsUpdated(expiredQueueInfos);
+        return next;
+    }
+
+    /**
+     * It is called out of the lock with the items failed by the store
+     * itself, like the expired items in next(). Their results are already
+     * set, subclasses could persist them here. The default implementation
+     * does nothing.
+     *
+     * @param queueInfos The failed items.
+     */
+    protected void sendingResultsUpdated(@NotNull List<QueueInfo> queueInfos) {
+    }
+
+    @NotNull
+    @Override
+    public List<QueueInfo> nextOfSameDomain(@NotNull QueueInfo qi, int max) {
+        Objects.requireNonNull(qi, "qi");
+        List<QueueInfo> sameDomainQueueInfos = new ArrayList<>();
+        String domain = qi.getRecipientDomain();
+
+        synchronized (lock) {
+            Collection<QueueInfo> qibmList = queueInfoByMailid.get(qi.getMailid());
+
+            if (domain == null || qibmList == null) return sameDomainQueueInfos;
+
+            for (QueueInfo sqi : qibmList) {
+                if (max <= sameDomainQueueInfos.size()) break;
+
+                // Out of bounds items are failed by next()
+                if (sqi != qi && sqi.hasState(DeliveryState.QUEUED) && sqi.isSendable() && sqi.isInTimeBounds() &&
+                        domain.equals(sqi.getRecipientDomain())) {
+                    queuedQueueInfos.remove(sqi);
+                    sqi.setState(DeliveryState.IN_PROGRESS);
+                    sameDomainQueueInfos.add(sqi);
+                }
+            }
+        }
+
+        return sameDomainQueueInfos;
+    }
+
+    @Override
+    public void defer(@NotNull QueueInfo qi, long attempt) {
+        Objects.requireNonNull(qi, "qi");
+
+        synchronized (lock) {
+            QueueInfo uniqueQueueInfo = queueInfoByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()));
+
+            if (uniqueQueueInfo != null) {
+                queuedQueueInfos.remove(uniqueQueueInfo);
+                uniqueQueueInfo.setAttempt(attempt);
+                uniqueQueueInfo.setState(DeliveryState.QUEUED);
+                queuedQueueInfos.add(uniqueQueueInfo);
+            }
+        }
     }
 
     @Override
@@ -152,6 +332,7 @@ public class SimpleQueueStore implements QueueStore {
             Iterable<QueueInfo> removeableQueueInfos = queueInfoByMailid.remove(mailid);
 
             if (removeableQueueInfos != null) removeableQueueInfos.forEach(sqi -> {
+                queuedQueueInfos.remove(sqi);
                 queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
                 queueInfoByRecipient.get(sqi.getRecipient()).remove(sqi);
             });
@@ -164,6 +345,7 @@ public class SimpleQueueStore implements QueueStore {
             Iterable<QueueInfo> removeableQueueInfos = queueInfoByRecipient.remove(recipient);
 
             if (removeableQueueInfos != null) removeableQueueInfos.forEach(sqi -> {
+                queuedQueueInfos.remove(sqi);
                 queueInfoByMailidAndRecipient.remove(createSearchKey(sqi.getMailid(), sqi.getRecipient()));
                 queueInfoByMailid.get(sqi.getMailid()).remove(sqi);
             });
@@ -175,18 +357,30 @@ public class SimpleQueueStore implements QueueStore {
         Objects.requireNonNull(qi, "qi");
 
         synchronized (lock) {
-            QueueInfo uniqueQueueInfo = queueInfoByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()));
+            updateSendingResult(qi);
+        }
+    }
 
-            if (uniqueQueueInfo != null) {
-                uniqueQueueInfo.setAttempt(System.currentTimeMillis() + AspirinInternal.getConfiguration().getDeliveryAttemptDelay());
-                uniqueQueueInfo.incAttemptCount();
-                uniqueQueueInfo.setState(qi.getState());
-            }
+    private void updateSendingResult(@NotNull QueueInfo qi) {
+        QueueInfo uniqueQueueInfo = queueInfoByMailidAndRecipient.get(createSearchKey(qi.getMailid(), qi.getRecipient()));
+
+        if (uniqueQueueInfo != null) {
+            // Remove before the attempt time changes, it is the key of the index
+            queuedQueueInfos.remove(uniqueQueueInfo);
+            // The policy sees the result of the attempt, and the count of the earlier ones
+            uniqueQueueInfo.setAttempt(AspirinInternal.getConfiguration().getRetryPolicy().getNextAttempt(qi, System.currentTimeMillis()));
+            uniqueQueueInfo.incAttemptCount();
+            uniqueQueueInfo.setState(qi.getState());
+
+            if (uniqueQueueInfo.hasState(DeliveryState.QUEUED))
+                queuedQueueInfos.add(uniqueQueueInfo);
         }
     }
 
     @Override
     public int size() {
-        return queueInfoByMailid.size();
+        synchronized (lock) {
+            return queueInfoByMailid.size();
+        }
     }
 }
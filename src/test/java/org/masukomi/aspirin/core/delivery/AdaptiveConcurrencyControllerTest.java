@@ -0,0 +1,76 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+public class AdaptiveConcurrencyControllerTest {
+    private int threadsActiveMax;
+
+    @Before
+    public void setUp() {
+        threadsActiveMax = AspirinInternal.getConfiguration().getDeliveryThreadsActiveMax();
+        AspirinInternal.getConfiguration().setDeliveryThreadsActiveMax(20);
+    }
+
+    @After
+    public void tearDown() {
+        AspirinInternal.getConfiguration().setDeliveryThreadsActiveMax(threadsActiveMax);
+        AspirinInternal.getConfiguration().setDeliveryDomainAdaptive(false);
+    }
+
+    @Test
+    public void windowIsIncreasedAdditivelyAndDecreasedMultiplicatively() {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController();
+        Assert.assertEquals(AdaptiveConcurrencyController.WINDOW_INITIAL, controller.getWindow("example.com"));
+
+        // Slow start up to the global bound
+        for (int i = 0; i < 30; i++) controller.record("example.com", AdaptiveConcurrencyController.Outcome.SUCCESS, 50L);
+        Assert.assertEquals(20, controller.getWindow("example.com"));
+
+        controller.record("example.com", AdaptiveConcurrencyController.Outcome.DEFERRED, -1L);
+        Assert.assertEquals(10, controller.getWindow("example.com"));
+        // Parallel deliveries report the same overload, it is counted once
+        controller.record("example.com", AdaptiveConcurrencyController.Outcome.FAILED, -1L);
+        Assert.assertEquals(10, controller.getWindow("example.com"));
+        Assert.assertEquals(1L, controller.getDecreaseCount());
+
+        // Additive increase: one per window of transactions
+        for (int i = 0; i < 10; i++) controller.record("example.com", AdaptiveConcurrencyController.Outcome.SUCCESS, 50L);
+        Assert.assertEquals(10, controller.getWindow("example.com"));
+        controller.record("example.com", AdaptiveConcurrencyController.Outcome.SUCCESS, 50L);
+        Assert.assertEquals(11, controller.getWindow("example.com"));
+        Assert.assertEquals(50L, controller.getLatency("example.com"));
+        Assert.assertEquals(1, controller.getWindows().size());
+
+        controller.reset();
+        Assert.assertEquals(0, controller.getDestinationCount());
+    }
+
+    @Test
+    public void slowTransactionsDecreaseWindow() {
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController();
+        for (int i = 0; i < 10; i++) controller.record("example.com", AdaptiveConcurrencyController.Outcome.SUCCESS, 10L);
+        int window = controller.getWindow("example.com");
+
+        for (int i = 0; i < 10; i++) controller.record("example.com", AdaptiveConcurrencyController.Outcome.SUCCESS, 200L);
+        Assert.assertTrue(controller.getWindow("example.com") < window);
+        Assert.assertEquals(1L, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void trafficShaperUsesWindow() {
+        AspirinInternal.getConfiguration().setDeliveryDomainAdaptive(true);
+        TrafficShaper shaper = new TrafficShaper();
+
+        Assert.assertTrue(shaper.acquire("example.com").isGranted());
+        Assert.assertTrue(shaper.acquire("example.com").isGranted());
+        Assert.assertFalse(shaper.acquire("example.com").isGranted());
+
+        shaper.record("example.com", AdaptiveConcurrencyController.Outcome.SUCCESS, 10L);
+        Assert.assertTrue(shaper.acquire("example.com").isGranted());
+        Assert.assertEquals(3, shaper.getConcurrencyController().getWindow("example.com"));
+    }
+}
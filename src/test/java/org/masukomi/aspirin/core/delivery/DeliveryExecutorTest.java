@@ -0,0 +1,44 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+
+public class DeliveryExecutorTest {
+    @Test
+    public void limitIsResizable() throws InterruptedException {
+        DeliveryExecutor executor = new DeliveryExecutor(ConfigurationMBean.DELIVERY_EXECUTOR_VIRTUAL, 2);
+
+        try {
+            executor.acquire();
+            executor.acquire();
+            Assert.assertEquals(2, executor.getActiveCount());
+
+            executor.setLimit(3);
+            executor.acquire();
+            Assert.assertEquals(3, executor.getActiveCount());
+
+            // Running deliveries over the new limit are kept
+            executor.setLimit(1);
+            executor.release();
+            executor.release();
+            Assert.assertEquals(1, executor.getActiveCount());
+
+            Thread waiter = new Thread(() -> {
+                try {
+                    executor.acquire();
+                } catch (InterruptedException ignored) {
+                }
+            });
+            waiter.start();
+            waiter.join(100L);
+            Assert.assertTrue(waiter.isAlive());
+
+            executor.release();
+            waiter.join(1000L);
+            Assert.assertFalse(waiter.isAlive());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
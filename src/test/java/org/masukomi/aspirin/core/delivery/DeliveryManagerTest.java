@@ -0,0 +1,83 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.Aspirin;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DeliveryManagerTest {
+    private static MimeMessage createMessage(AtomicInteger encodeCount) throws MessagingException {
+        MimeMessage message = AspirinInternal.createNewMimeMessage();
+        message.setSubject("Attachment");
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("See the attachment.");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new DataSource() {
+            @Override
+            public InputStream getInputStream() {
+                encodeCount.incrementAndGet();
+                return new ByteArrayInputStream(new byte[32 * 1024]);
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                throw new IOException("Read only.");
+            }
+
+            @Override
+            public String getContentType() {
+                return "application/octet-stream";
+            }
+
+            @Override
+            public String getName() {
+                return "zeros.bin";
+            }
+        }));
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+        return message;
+    }
+
+    private static byte[] render(MimeMessage message) throws IOException, MessagingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void prerenderedMessageIsEncodedOnce() throws IOException, MessagingException {
+        AtomicInteger encodeCount = new AtomicInteger();
+        MimeMessage message = DeliveryManager.prerender(createMessage(encodeCount), 1024 * 1024);
+        int rendered = encodeCount.get();
+
+        byte[] first = render(message);
+        byte[] second = render(message);
+
+        Assert.assertEquals(rendered, encodeCount.get());
+        Assert.assertArrayEquals(first, second);
+        Assert.assertEquals(AspirinInternal.getMailID(message), message.getHeader(Aspirin.HEADER_MAIL_ID, null));
+    }
+
+    @Test
+    public void largeMessageIsNotPrerendered() throws MessagingException {
+        MimeMessage message = createMessage(new AtomicInteger());
+        Assert.assertSame(message, DeliveryManager.prerender(message, 1024));
+        Assert.assertSame(message, DeliveryManager.prerender(message, 0));
+    }
+}
@@ -0,0 +1,54 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeliverySchedulerTest {
+    @Test
+    public void signalBeforeAwaitIsNotLost() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+        scheduler.signal();
+
+        long start = System.currentTimeMillis();
+        scheduler.await(Long.MAX_VALUE);
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000L);
+    }
+
+    @Test
+    public void awaitWakesUpAtNextAttempt() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+
+        long start = System.currentTimeMillis();
+        scheduler.await(start + 100L);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100L);
+    }
+
+    @Test
+    public void signalWakesUpWaitingThread() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler();
+        Thread waiter = new Thread(() -> {
+            try {
+                scheduler.await(Long.MAX_VALUE);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        waiter.start();
+        Thread.sleep(50L);
+
+        scheduler.signal();
+        waiter.join(1000L);
+        Assert.assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++)
+            histogram.record(i);
+
+        Assert.assertEquals(100L, histogram.getCount());
+        Assert.assertTrue(Math.abs(histogram.getPercentile(50.0) - 50L) <= 7L);
+        Assert.assertTrue(Math.abs(histogram.getPercentile(99.0) - 99L) <= 13L);
+        Assert.assertEquals(0L, new LatencyHistogram().getPercentile(99.0));
+    }
+}
@@ -0,0 +1,57 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.delivery.ExponentialBackoffRetryPolicy.ReplyClass;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+public class ExponentialBackoffRetryPolicyTest {
+    private static QueueInfo createQueueInfo(String resultInfo, int attemptCount, long created) {
+        QueueInfo qi = new QueueInfo();
+        qi.setMailid("mailid");
+        qi.setRecipient("rcpt@example.com");
+        qi.setResultInfo(resultInfo);
+        qi.setAttemptCount(attemptCount);
+        qi.setCreated(created);
+        return qi;
+    }
+
+    @Test
+    public void resultsAreClassified() {
+        Assert.assertEquals(ReplyClass.GREYLISTED, ExponentialBackoffRetryPolicy.classify("450 4.2.0 <rcpt@example.com>: Recipient address rejected: Greylisted"));
+        Assert.assertEquals(ReplyClass.GREYLISTED, ExponentialBackoffRetryPolicy.classify("451 4.7.1 Please try again later"));
+        Assert.assertEquals(ReplyClass.RATE_LIMITED, ExponentialBackoffRetryPolicy.classify("421 4.7.0 Try again later, closing connection."));
+        Assert.assertEquals(ReplyClass.RATE_LIMITED, ExponentialBackoffRetryPolicy.classify("451 4.7.1 Too many messages, slow down"));
+        Assert.assertEquals(ReplyClass.MAILBOX_FULL, ExponentialBackoffRetryPolicy.classify("452 4.2.2 The email account is over quota"));
+        Assert.assertEquals(ReplyClass.TEMPORARY, ExponentialBackoffRetryPolicy.classify("451 4.3.0 Try again later"));
+        Assert.assertEquals(ReplyClass.CONNECTION, ExponentialBackoffRetryPolicy.classify("Could not connect to SMTP host: mx.example.com, port: 25"));
+        Assert.assertEquals(ReplyClass.CONNECTION, ExponentialBackoffRetryPolicy.classify(null));
+    }
+
+    @Test
+    public void delaysAreDoubledWithJitterUpToCapAndDeadline() {
+        ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy();
+        policy.setDeadline(86400000L);
+        policy.setDelays(ReplyClass.GREYLISTED, 60000L, 300000L);
+        long now = 1000000000L;
+        String greylisted = "450 4.2.0 Greylisted";
+
+        for (int attemptCount = 0; attemptCount < 6; attemptCount++) {
+            long delay = Math.min(300000L, 60000L << attemptCount);
+            long attempt = policy.getNextAttempt(createQueueInfo(greylisted, attemptCount, now), now);
+            Assert.assertTrue(now + delay * 3 / 4 <= attempt && attempt <= now + delay);
+        }
+
+        policy.setJitter(0.0);
+        Assert.assertEquals(now + 120000L, policy.getNextAttempt(createQueueInfo(greylisted, 1, now), now));
+
+        // The last attempt is just before the deadline, then the item is out of bounds
+        QueueInfo qi = createQueueInfo(greylisted, 5, now - 86400000L + 10000L);
+        Assert.assertEquals(now + 9000L, policy.getNextAttempt(qi, now));
+        Assert.assertTrue(policy.isInBounds(qi, now + 9000L));
+        Assert.assertFalse(policy.isInBounds(qi, now + 10000L));
+
+        policy.setAttemptCountMax(5);
+        Assert.assertFalse(policy.isInBounds(qi, now));
+    }
+}
@@ -0,0 +1,118 @@
+package org.masukomi.aspirin.core.delivery;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SMTP transport of the tests for the "fake" protocol, it is registered in
+ * META-INF/javamail.providers. It does not open sockets, the behaviour of
+ * the mail servers is set by host name.
+ */
+public class FakeTransport extends SMTPTransport {
+    static final String PROTOCOL = "fake";
+    private static final Map<String, Host> HOSTS = new ConcurrentHashMap<>();
+
+    private volatile boolean open;
+
+    public FakeTransport(Session session, URLName urlname) {
+        super(session, urlname);
+    }
+
+    static URLName url(String host) {
+        return new URLName(PROTOCOL + "://" + host);
+    }
+
+    static Host host(String host) {
+        return HOSTS.computeIfAbsent(host, key -> new Host());
+    }
+
+    static void reset() {
+        HOSTS.clear();
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        Host h = host(host);
+        h.connects.incrementAndGet();
+
+        if (0L < h.connectDelay) {
+            try {
+                Thread.sleep(h.connectDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (h.refused) throw new MessagingException("Could not connect to SMTP host: " + host, new IOException("Connection refused"));
+        open = true;
+        return true;
+    }
+
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        Host h = host(url.getHost());
+        h.sends.incrementAndGet();
+
+        if (h.sendBroken) {
+            close();
+            throw new MessagingException("Exception reading response", new IOException("Connection reset"));
+        }
+
+        // The content is written after DATA, like the SMTP transport does
+        try {
+            message.writeTo(new ByteArrayOutputStream());
+        } catch (IOException e) {
+            throw new MessagingException("IOException while sending message", e);
+        }
+
+        if (h.replyLost) {
+            close();
+            throw new MessagingException("Exception reading response", new SocketTimeoutException("Read timed out"));
+        }
+    }
+
+    @Override
+    public int simpleCommand(String cmd) {
+        Host h = host(url.getHost());
+        h.commands.incrementAndGet();
+        return h.reply;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        if (open) host(url.getHost()).closes.incrementAndGet();
+        open = false;
+        setConnected(false);
+    }
+
+    /**
+     * Behaviour and counters of a fake mail server.
+     */
+    static final class Host {
+        final AtomicInteger connects = new AtomicInteger();
+        final AtomicInteger sends = new AtomicInteger();
+        final AtomicInteger commands = new AtomicInteger();
+        final AtomicInteger closes = new AtomicInteger();
+        volatile long connectDelay;
+        volatile boolean refused;
+        volatile boolean sendBroken;
+        volatile boolean replyLost;
+        volatile int reply = 250;
+    }
+}
@@ -0,0 +1,57 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.URLName;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HostHealthRegistryTest {
+    @After
+    public void tearDown() {
+        AspirinInternal.getConfiguration().setDeliveryHostBackoff(30000);
+    }
+
+    @Test
+    public void failingHostIsSkippedAndProbed() {
+        AspirinInternal.getConfiguration().setDeliveryHostBackoff(100);
+        AtomicLong now = new AtomicLong(1000000L);
+        HostHealthRegistry registry = new HostHealthRegistry(now::get);
+        URLName primary = new URLName("smtp://mx1.example.com");
+        URLName secondary = new URLName("smtp://mx2.example.com");
+
+        // A single failure demotes the host, but it is still tried
+        registry.recordFailure(primary);
+        Assert.assertFalse(registry.isOpen(primary));
+        Assert.assertTrue(registry.allow(primary));
+        Assert.assertEquals(Arrays.asList(secondary, primary), registry.order(Arrays.asList(primary, secondary)));
+        registry.recordFailure(primary);
+        Assert.assertTrue(registry.isOpen(primary));
+        Assert.assertFalse(registry.allow(primary));
+
+        // The failing host is tried after the healthy one
+        List<URLName> ordered = registry.order(Arrays.asList(primary, secondary));
+        Assert.assertEquals(Arrays.asList(secondary, primary), ordered);
+
+        // Only one probe after the back-off time, it fails and doubles the time
+        now.addAndGet(99L);
+        Assert.assertFalse(registry.allow(primary));
+        now.addAndGet(1L);
+        Assert.assertTrue(registry.allow(primary));
+        Assert.assertFalse(registry.allow(primary));
+        registry.recordFailure(primary);
+        now.addAndGet(199L);
+        Assert.assertFalse(registry.allow(primary));
+        now.addAndGet(1L);
+        Assert.assertTrue(registry.allow(primary));
+
+        registry.recordSuccess(primary);
+        Assert.assertFalse(registry.isOpen(primary));
+        Assert.assertTrue(registry.getOpenHosts().isEmpty());
+        Assert.assertEquals(Arrays.asList(primary, secondary), registry.order(Arrays.asList(primary, secondary)));
+    }
+}
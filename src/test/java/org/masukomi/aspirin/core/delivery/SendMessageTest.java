@@ -0,0 +1,202 @@
+package org.masukomi.aspirin.core.delivery;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.URLName;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SendMessageTest {
+    private int raceDelay;
+
+    @Before
+    public void setUp() {
+        FakeTransport.reset();
+        AspirinInternal.getDeliveryManager().getHostHealthRegistry().clear();
+        raceDelay = AspirinInternal.getConfiguration().getDeliveryConnectionRaceDelay();
+    }
+
+    @After
+    public void tearDown() {
+        AspirinInternal.getConfiguration().setDeliveryConnectionRaceDelay(raceDelay);
+        AspirinInternal.getDeliveryManager().getTransportPool().close();
+        AspirinInternal.getDeliveryManager().getHostHealthRegistry().clear();
+    }
+
+    private static QueueInfo createQueueInfo(String recipient) {
+        QueueInfo qi = new QueueInfo();
+        qi.setMailid("mail-1");
+        qi.setRecipient(recipient);
+        qi.setState(DeliveryState.IN_PROGRESS);
+        return qi;
+    }
+
+    private static Map<String, QueueInfo> createRecipients(String... recipients) {
+        Map<String, QueueInfo> map = new LinkedHashMap<>();
+        for (String recipient : recipients)
+            map.put(recipient, createQueueInfo(recipient));
+        return map;
+    }
+
+    private static SMTPAddressFailedException rejected(String recipient, int returnCode) throws AddressException {
+        return new SMTPAddressFailedException(new InternetAddress(recipient), "RCPT TO:<" + recipient + ">", returnCode, returnCode + " Rejected " + recipient);
+    }
+
+    private static SendFailedException createSendFailed(Address[] validSent, Address[] invalid, SMTPAddressFailedException... failures) {
+        SendFailedException sfe = new SendFailedException("Invalid Addresses", null, validSent, new Address[0], invalid);
+        for (SMTPAddressFailedException failure : failures)
+            sfe.setNextException(failure);
+        return sfe;
+    }
+
+    private static DeliveryContext createContext(List<URLName> servers) throws MessagingException {
+        MimeMessage message = AspirinInternal.createNewMimeMessage();
+        message.setSubject("Race");
+        message.setText("Race of the mail servers.");
+        DeliveryContext dCtx = new DeliveryContext()
+                .setQueueInfo(createQueueInfo("user@example.com"))
+                .setMessage(message);
+        dCtx.addContextVariable("targetservers", servers);
+        return dCtx;
+    }
+
+    @Test
+    public void rejectedRecipientsAreFailedOrQueuedByReplyCode() throws AddressException {
+        Map<String, QueueInfo> recipients = createRecipients("ok@example.com", "full@example.com", "unknown@example.com");
+        SendFailedException sfe = createSendFailed(
+                new Address[]{new InternetAddress("ok@example.com")},
+                new Address[]{new InternetAddress("full@example.com"), new InternetAddress("unknown@example.com")},
+                rejected("full@example.com", 452),
+                rejected("unknown@example.com", 550));
+
+        Assert.assertTrue(SendMessage.applyRecipientResults(sfe, recipients, "250 Queued"));
+
+        QueueInfo accepted = recipients.get("ok@example.com");
+        Assert.assertEquals(DeliveryState.IN_PROGRESS, accepted.getState());
+        Assert.assertEquals("250 Queued", accepted.getResultInfo());
+        Assert.assertEquals(DeliveryState.QUEUED, recipients.get("full@example.com").getState());
+        Assert.assertEquals("452 Rejected full@example.com", recipients.get("full@example.com").getResultInfo());
+        Assert.assertEquals(DeliveryState.FAILED, recipients.get("unknown@example.com").getState());
+    }
+
+    @Test
+    public void recipientsWithoutResultAreQueuedAgain() throws AddressException {
+        Map<String, QueueInfo> recipients = createRecipients("ok@example.com", "lost@example.com");
+        SendFailedException sfe = createSendFailed(new Address[]{new InternetAddress("OK@example.com")}, new Address[0]);
+
+        Assert.assertTrue(SendMessage.applyRecipientResults(sfe, recipients, null));
+
+        Assert.assertEquals(DeliveryState.IN_PROGRESS, recipients.get("ok@example.com").getState());
+        Assert.assertNull(recipients.get("ok@example.com").getResultInfo());
+        Assert.assertEquals(DeliveryState.QUEUED, recipients.get("lost@example.com").getState());
+        Assert.assertNotNull(recipients.get("lost@example.com").getResultInfo());
+    }
+
+    @Test
+    public void transactionWithoutAcceptedRecipientFails() throws AddressException {
+        Map<String, QueueInfo> recipients = createRecipients("full@example.com", "unknown@example.com");
+        SendFailedException sfe = createSendFailed(
+                new Address[0],
+                new Address[]{new InternetAddress("full@example.com"), new InternetAddress("unknown@example.com")},
+                rejected("full@example.com", 421),
+                rejected("unknown@example.com", 550));
+
+        Assert.assertFalse(SendMessage.applyRecipientResults(sfe, recipients, null));
+
+        Assert.assertEquals(DeliveryState.QUEUED, recipients.get("full@example.com").getState());
+        Assert.assertEquals(DeliveryState.FAILED, recipients.get("unknown@example.com").getState());
+    }
+
+    @Test
+    public void serversOfFailedRaceAreNotTriedAgain() throws MessagingException {
+        AspirinInternal.getConfiguration().setDeliveryConnectionRaceDelay(10);
+        List<String> hosts = Arrays.asList("refused1.example.com", "refused2.example.com", "refused3.example.com");
+        hosts.forEach(host -> FakeTransport.host(host).refused = true);
+        DeliveryContext dCtx = createContext(Arrays.asList(
+                FakeTransport.url(hosts.get(0)), FakeTransport.url(hosts.get(1)), FakeTransport.url(hosts.get(2))));
+
+        try {
+            new SendMessage().handle(dCtx);
+            Assert.fail("Delivery should fail.");
+        } catch (DeliveryException e) {
+            Assert.assertFalse(e.isPermanent());
+        }
+
+        // One race is one attempt on every server
+        for (String host : hosts)
+            Assert.assertEquals(host, 1, FakeTransport.host(host).connects.get());
+    }
+
+    @Test
+    public void winnerOfRaceIsNotTriedAgainAfterBrokenTransaction() throws MessagingException {
+        AspirinInternal.getConfiguration().setDeliveryConnectionRaceDelay(20);
+        FakeTransport.Host slow = FakeTransport.host("slow.example.com");
+        slow.connectDelay = 500L;
+        FakeTransport.Host broken = FakeTransport.host("broken.example.com");
+        broken.sendBroken = true;
+        DeliveryContext dCtx = createContext(Arrays.asList(
+                FakeTransport.url("slow.example.com"), FakeTransport.url("broken.example.com")));
+
+        try {
+            new SendMessage().handle(dCtx);
+            Assert.fail("Delivery should fail.");
+        } catch (DeliveryException e) {
+            Assert.assertFalse(e.isPermanent());
+        }
+
+        Assert.assertEquals(1, slow.connects.get());
+        Assert.assertEquals(1, broken.connects.get());
+        Assert.assertEquals(1, broken.sends.get());
+    }
+
+    @Test
+    public void lostReplyAfterContentIsNotSentToNextServer() throws MessagingException {
+        AspirinInternal.getConfiguration().setDeliveryConnectionRaceDelay(0);
+        FakeTransport.Host lost = FakeTransport.host("lost.example.com");
+        lost.replyLost = true;
+        FakeTransport.Host next = FakeTransport.host("next.example.com");
+        List<URLName> servers = Arrays.asList(FakeTransport.url("lost.example.com"), FakeTransport.url("next.example.com"));
+
+        try {
+            new SendMessage().handle(createContext(servers));
+            Assert.fail("Delivery should fail.");
+        } catch (DeliveryException e) {
+            Assert.assertFalse(e.isPermanent());
+        }
+
+        // The first server may have accepted the message, it is retried later
+        Assert.assertEquals(1, lost.sends.get());
+        Assert.assertEquals(0, next.connects.get());
+        // The failure is recorded, so the server is demoted
+        Assert.assertEquals(servers.get(1), AspirinInternal.getDeliveryManager().getHostHealthRegistry().order(servers).get(0));
+    }
+
+    @Test
+    public void brokenTransactionBeforeContentIsSentToNextServer() throws MessagingException {
+        AspirinInternal.getConfiguration().setDeliveryConnectionRaceDelay(0);
+        FakeTransport.Host broken = FakeTransport.host("broken.example.com");
+        broken.sendBroken = true;
+        FakeTransport.Host next = FakeTransport.host("next.example.com");
+
+        new SendMessage().handle(createContext(Arrays.asList(
+                FakeTransport.url("broken.example.com"), FakeTransport.url("next.example.com"))));
+
+        Assert.assertEquals(1, broken.sends.get());
+        Assert.assertEquals(1, next.sends.get());
+    }
+}
@@ -0,0 +1,48 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+public class TrafficShaperTest {
+    @After
+    public void tearDown() {
+        AspirinInternal.getConfiguration().setDeliveryDomainLimits(null);
+    }
+
+    @Test
+    public void connectionsOfGroupedDomainsAreLimited() {
+        AspirinInternal.getConfiguration().setDeliveryDomainLimits("gmail.com|googlemail.com=2:, yahoo.com=:0.5");
+        TrafficShaper shaper = new TrafficShaper();
+
+        TrafficShaper.Permit first = shaper.acquire("gmail.com");
+        TrafficShaper.Permit second = shaper.acquire("GoogleMail.com");
+        Assert.assertTrue(first.isGranted());
+        Assert.assertTrue(second.isGranted());
+        Assert.assertEquals(2, shaper.getActiveCount("gmail.com"));
+
+        // The third one is refused, and the next refused one is paced after it
+        TrafficShaper.Permit third = shaper.acquire("gmail.com");
+        TrafficShaper.Permit fourth = shaper.acquire("gmail.com");
+        Assert.assertFalse(third.isGranted());
+        Assert.assertTrue(System.currentTimeMillis() < third.getRetryAt());
+        Assert.assertTrue(third.getRetryAt() < fourth.getRetryAt());
+
+        first.release();
+        first.release();
+        Assert.assertEquals(1, shaper.getActiveCount("gmail.com"));
+        Assert.assertTrue(shaper.acquire("gmail.com").isGranted());
+
+        // Other domains are not limited by default
+        Assert.assertTrue(shaper.acquire("example.com").isGranted());
+        Assert.assertTrue(shaper.acquire("example.com").isGranted());
+        Assert.assertEquals(0, shaper.getActiveCount("example.com"));
+
+        // Half a delivery per second: a burst of one delivery
+        Assert.assertTrue(shaper.acquire("yahoo.com").isGranted());
+        TrafficShaper.Permit throttled = shaper.acquire("yahoo.com");
+        Assert.assertFalse(throttled.isGranted());
+        Assert.assertTrue(System.currentTimeMillis() + 1000L < throttled.getRetryAt());
+    }
+}
@@ -0,0 +1,212 @@
+package org.masukomi.aspirin.core.delivery;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.Configuration;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+public class TransportPoolTest {
+    private final Configuration configuration = AspirinInternal.getConfiguration();
+    private final URLName mx1 = FakeTransport.url("mx1.example.com");
+    private final URLName mx2 = FakeTransport.url("mx2.example.com");
+    private final List<URLName> failures = Collections.synchronizedList(new ArrayList<>());
+    private Session session;
+    private int hostMax;
+    private int idleTimeout;
+    private int messagesMax;
+
+    @Before
+    public void setUp() {
+        FakeTransport.reset();
+        session = Session.getInstance(new Properties());
+        hostMax = configuration.getDeliveryConnectionHostMax();
+        idleTimeout = configuration.getDeliveryConnectionIdleTimeout();
+        messagesMax = configuration.getDeliveryConnectionMessagesMax();
+        configuration.setDeliveryConnectionHostMax(2);
+        configuration.setDeliveryConnectionIdleTimeout(60000);
+        configuration.setDeliveryConnectionMessagesMax(100);
+    }
+
+    @After
+    public void tearDown() {
+        configuration.setDeliveryConnectionHostMax(hostMax);
+        configuration.setDeliveryConnectionIdleTimeout(idleTimeout);
+        configuration.setDeliveryConnectionMessagesMax(messagesMax);
+    }
+
+    @Test
+    public void releasedConnectionIsResetAndReused() throws MessagingException {
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection first = pool.borrow(session, mx1);
+        pool.release(first, true);
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        TransportPool.Connection second = pool.borrow(session, mx1);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, second.getMessageCount());
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertEquals(1, FakeTransport.host("mx1.example.com").connects.get());
+        Assert.assertEquals(1, FakeTransport.host("mx1.example.com").commands.get());
+    }
+
+    @Test
+    public void connectionWithFailedResetIsReplaced() throws MessagingException {
+        FakeTransport.host("mx1.example.com").reply = 421;
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection first = pool.borrow(session, mx1);
+        pool.release(first, true);
+
+        TransportPool.Connection second = pool.borrow(session, mx1);
+        Assert.assertNotSame(first, second);
+        Assert.assertFalse(first.getTransport().isConnected());
+        Assert.assertEquals(2, FakeTransport.host("mx1.example.com").connects.get());
+    }
+
+    @Test
+    public void unusableConnectionIsClosed() throws MessagingException {
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection connection = pool.borrow(session, mx1);
+        pool.release(connection, false);
+
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertFalse(connection.getTransport().isConnected());
+    }
+
+    @Test
+    public void idleConnectionsAreCappedPerHost() throws MessagingException {
+        configuration.setDeliveryConnectionHostMax(1);
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection first = pool.borrow(session, mx1);
+        TransportPool.Connection second = pool.borrow(session, mx1);
+        pool.release(first, true);
+        pool.release(second, true);
+
+        // The longest idle connection is closed
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertFalse(first.getTransport().isConnected());
+        Assert.assertTrue(second.getTransport().isConnected());
+        Assert.assertSame(second, pool.borrow(session, mx1));
+    }
+
+    @Test
+    public void connectionIsClosedAfterMessagesMax() throws MessagingException {
+        configuration.setDeliveryConnectionMessagesMax(2);
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection connection = pool.borrow(session, mx1);
+        pool.release(connection, true);
+        Assert.assertSame(connection, pool.borrow(session, mx1));
+        pool.release(connection, true);
+
+        Assert.assertEquals(2, connection.getMessageCount());
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertFalse(connection.getTransport().isConnected());
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws MessagingException {
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection connection = pool.borrow(session, mx1);
+        pool.release(connection, true);
+        Assert.assertTrue(pool.getNextEviction() < Long.MAX_VALUE);
+
+        configuration.setDeliveryConnectionIdleTimeout(0);
+        pool.evictIdle();
+
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertEquals(Long.MAX_VALUE, pool.getNextEviction());
+        Assert.assertFalse(connection.getTransport().isConnected());
+        Assert.assertEquals(1, FakeTransport.host("mx1.example.com").closes.get());
+    }
+
+    @Test
+    public void raceGoesOnAtOnceAfterFailure() throws MessagingException {
+        FakeTransport.host("mx1.example.com").refused = true;
+        TransportPool pool = new TransportPool();
+        long start = System.currentTimeMillis();
+        TransportPool.Connection connection = pool.borrow(session, Arrays.asList(mx1, mx2), 10000L, (url, e) -> failures.add(url));
+
+        // The failure starts the next attempt, the stagger delay is not waited
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000L);
+        Assert.assertEquals(mx2, connection.getUrl());
+        Assert.assertTrue(connection.getTransport().isConnected());
+        Assert.assertEquals(Collections.singletonList(mx1), failures);
+    }
+
+    @Test
+    public void failureStartsNextAttemptWhileOthersArePending() throws MessagingException {
+        FakeTransport.host("mx1.example.com").connectDelay = 3000L;
+        FakeTransport.host("mx2.example.com").refused = true;
+        URLName mx3 = FakeTransport.url("mx3.example.com");
+        TransportPool pool = new TransportPool();
+        long start = System.currentTimeMillis();
+        TransportPool.Connection connection = pool.borrow(session, Arrays.asList(mx1, mx2, mx3), 1000L, (url, e) -> failures.add(url));
+
+        // The third server is started after the failure of the second one, not after another stagger delay
+        Assert.assertTrue(System.currentTimeMillis() - start < 1800L);
+        Assert.assertEquals(mx3, connection.getUrl());
+    }
+
+    @Test
+    public void slowConnectionLosesRaceAndIsClosed() throws MessagingException, InterruptedException {
+        FakeTransport.Host slow = FakeTransport.host("mx1.example.com");
+        slow.connectDelay = 500L;
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection connection = pool.borrow(session, Arrays.asList(mx1, mx2), 50L, (url, e) -> failures.add(url));
+        Assert.assertEquals(mx2, connection.getUrl());
+
+        for (int i = 0; i < 100 && slow.closes.get() == 0; i++)
+            Thread.sleep(20L);
+
+        Assert.assertEquals(1, slow.connects.get());
+        Assert.assertEquals(1, slow.closes.get());
+        Assert.assertTrue(failures.isEmpty());
+        Assert.assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void raceOfFailingServersThrowsAndReportsEach() throws InterruptedException {
+        FakeTransport.host("mx1.example.com").refused = true;
+        FakeTransport.host("mx2.example.com").refused = true;
+        TransportPool pool = new TransportPool();
+
+        try {
+            pool.borrow(session, Arrays.asList(mx1, mx2), 50L, (url, e) -> failures.add(url));
+            Assert.fail("Connecting should fail.");
+        } catch (MessagingException e) {
+            Assert.assertTrue(e.getNextException() instanceof IOException);
+        }
+
+        // The listener may be called after the failure was handed over
+        for (int i = 0; i < 100 && failures.size() < 2; i++)
+            Thread.sleep(20L);
+
+        Assert.assertTrue(failures.containsAll(Arrays.asList(mx1, mx2)));
+        Assert.assertEquals(1, FakeTransport.host("mx1.example.com").connects.get());
+        Assert.assertEquals(1, FakeTransport.host("mx2.example.com").connects.get());
+    }
+
+    @Test
+    public void idleConnectionIsReusedWithoutRace() throws MessagingException {
+        TransportPool pool = new TransportPool();
+        TransportPool.Connection idle = pool.borrow(session, mx2);
+        pool.release(idle, true);
+
+        TransportPool.Connection connection = pool.borrow(session, Arrays.asList(mx1, mx2), 50L, (url, e) -> failures.add(url));
+
+        Assert.assertSame(idle, connection);
+        Assert.assertEquals(0, FakeTransport.host("mx1.example.com").connects.get());
+        Assert.assertEquals(1, FakeTransport.host("mx2.example.com").connects.get());
+    }
+}
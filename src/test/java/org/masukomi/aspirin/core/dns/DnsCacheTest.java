@@ -0,0 +1,104 @@
+package org.masukomi.aspirin.core.dns;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.URLName;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DnsCacheTest {
+    private static final List<URLName> MX = Collections.singletonList(new URLName("smtp://mx.example.com"));
+
+    @Test
+    public void resultIsCachedUntilTtl() throws InterruptedException {
+        DnsCache cache = new DnsCache();
+        AtomicInteger lookups = new AtomicInteger();
+
+        Assert.assertEquals(MX, cache.get("example.com", host -> {
+            lookups.incrementAndGet();
+            return new DnsCache.Entry(MX, 100L);
+        }));
+        Assert.assertEquals(MX, cache.get("EXAMPLE.com", host -> {
+            lookups.incrementAndGet();
+            return new DnsCache.Entry(MX, 100L);
+        }));
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertEquals(1L, cache.getHitCount());
+        Assert.assertEquals(1L, cache.getMissCount());
+
+        Thread.sleep(150L);
+        cache.get("example.com", host -> {
+            lookups.incrementAndGet();
+            return new DnsCache.Entry(MX, 100L);
+        });
+        Assert.assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void notCacheableResultIsResolvedAgain() {
+        DnsCache cache = new DnsCache();
+        AtomicInteger lookups = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++)
+            Assert.assertTrue(cache.get("example.com", host -> {
+                lookups.incrementAndGet();
+                return new DnsCache.Entry(null, 0L);
+            }).isEmpty());
+
+        Assert.assertEquals(3, lookups.get());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void concurrentLookupsAreCoalesced() throws InterruptedException {
+        DnsCache cache = new DnsCache();
+        AtomicInteger lookups = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread first = new Thread(() -> cache.get("example.com", host -> {
+            lookups.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            return new DnsCache.Entry(MX, 60000L);
+        }));
+        first.start();
+        started.await();
+
+        Thread second = new Thread(() -> Assert.assertEquals(MX, cache.get("example.com", host -> {
+            lookups.incrementAndGet();
+            return new DnsCache.Entry(MX, 60000L);
+        })));
+        second.start();
+        Thread.sleep(50L);
+        release.countDown();
+        first.join(1000L);
+        second.join(1000L);
+
+        Assert.assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void cacheSizeIsBounded() {
+        int cacheSize = AspirinInternal.getConfiguration().getDnsCacheSize();
+        AspirinInternal.getConfiguration().setDnsCacheSize(100);
+
+        try {
+            DnsCache cache = new DnsCache();
+            for (int i = 0; i < 1000; i++)
+                cache.get("domain" + i + ".example", host -> new DnsCache.Entry(MX, 60000L));
+
+            Assert.assertTrue(cache.size() <= 101);
+            Assert.assertTrue(0L < cache.getEvictionCount());
+        } finally {
+            AspirinInternal.getConfiguration().setDnsCacheSize(cacheSize);
+        }
+    }
+}
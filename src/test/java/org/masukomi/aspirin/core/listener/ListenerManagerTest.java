@@ -0,0 +1,117 @@
+package org.masukomi.aspirin.core.listener;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+import org.masukomi.aspirin.core.config.ConfigurationMBean;
+import org.masukomi.aspirin.core.store.queue.DeliveryState;
+import org.masukomi.aspirin.core.store.queue.QueueInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ListenerManagerTest {
+    private ListenerManager manager;
+
+    @Before
+    public void setUp() {
+        AspirinInternal.getConfiguration().setListenerThreads(2);
+        AspirinInternal.getConfiguration().setListenerBufferSize(2);
+        manager = new ListenerManager();
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+        AspirinInternal.getConfiguration().setListenerThreads(0);
+        AspirinInternal.getConfiguration().setListenerBufferSize(1024);
+        AspirinInternal.getConfiguration().setListenerOverflow(ConfigurationMBean.LISTENER_OVERFLOW_DROP);
+    }
+
+    private static QueueInfo result(String recipient) {
+        QueueInfo qi = new QueueInfo();
+        qi.setMailid("mail-1");
+        qi.setRecipient(recipient);
+        qi.setState(DeliveryState.SENT);
+        return qi;
+    }
+
+    @Test
+    public void slowListenerDoesNotBlockAndOrderIsKept() throws InterruptedException {
+        AspirinInternal.getConfiguration().setListenerOverflow(ConfigurationMBean.LISTENER_OVERFLOW_SPILL);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> recipients = Collections.synchronizedList(new ArrayList<>());
+        manager.add((mailId, recipient, state, resultContent) -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            if (state == ResultState.SENT) recipients.add(recipient);
+        });
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add("r" + i + "@example.com");
+            manager.notifyListeners(result("r" + i + "@example.com"));
+        }
+        Assert.assertTrue(0 < manager.getSpilledCount());
+
+        release.countDown();
+        manager.shutdown();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (manager.getPendingCount() != 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+        while (recipients.size() < expected.size() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+
+        Assert.assertEquals(expected, recipients);
+    }
+
+    @Test
+    public void stuckListenerDoesNotBlockCallerByDefault() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        manager.add((mailId, recipient, state, resultContent) -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        Thread caller = new Thread(() -> {
+            for (int i = 0; i < 10; i++)
+                manager.notifyListeners(result("r" + i + "@example.com"));
+        });
+        caller.start();
+        caller.join(5000L);
+
+        Assert.assertFalse(caller.isAlive());
+        // The buffer is bounded, the results over it are dropped
+        Assert.assertTrue(0 < manager.getDroppedCount());
+        Assert.assertEquals(0L, manager.getSpilledCount());
+        release.countDown();
+    }
+
+    @Test
+    public void resultsAreDroppedOnFullBuffer() throws InterruptedException {
+        AspirinInternal.getConfiguration().setListenerOverflow(ConfigurationMBean.LISTENER_OVERFLOW_DROP);
+        CountDownLatch release = new CountDownLatch(1);
+        manager.add((mailId, recipient, state, resultContent) -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        for (int i = 0; i < 10; i++)
+            manager.notifyListeners(result("r" + i + "@example.com"));
+
+        // One result is dispatched, two are buffered, the others are dropped
+        Assert.assertTrue(7 <= manager.getDroppedCount());
+        release.countDown();
+    }
+}
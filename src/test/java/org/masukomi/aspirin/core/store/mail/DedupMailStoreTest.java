@@ -0,0 +1,76 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class DedupMailStoreTest {
+    private static final byte[] ATTACHMENT = new byte[64 * 1024];
+
+    static {
+        for (int i = 0; i < ATTACHMENT.length; i++) ATTACHMENT[i] = (byte) (i * 31);
+    }
+
+    private static MimeMessage createMessage(String recipient) throws MessagingException {
+        MimeMessage message = AspirinInternal.createNewMimeMessage();
+        message.setRecipients(MimeMessage.RecipientType.TO, recipient);
+        message.setSubject("Campaign");
+
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Dear " + recipient + ",\r\nplease find our offer attached.");
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(ATTACHMENT, "application/octet-stream")));
+        attachment.setFileName("offer.bin");
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(attachment);
+        message.setContent(multipart);
+        message.saveChanges();
+        return message;
+    }
+
+    private static byte[] render(MimeMessage message) throws IOException, MessagingException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void sameAttachmentIsStoredOnce() throws IOException, MessagingException {
+        DedupMailStore store = new DedupMailStore();
+        MimeMessage first = createMessage("first@domain.example");
+        MimeMessage second = createMessage("second@domain.example");
+        String firstId = AspirinInternal.getMailID(first);
+        String secondId = AspirinInternal.getMailID(second);
+        byte[] firstContent = render(first);
+
+        store.set(firstId, first);
+        long storedSize = store.getStoredSize();
+        store.set(secondId, second);
+
+        // Only the headers and the text of the second message are stored
+        Assert.assertTrue(store.getStoredSize() - storedSize < 4096L);
+        Assert.assertEquals(firstContent.length + render(second).length, store.getMessageSize());
+        Assert.assertArrayEquals(firstContent, render(store.get(firstId)));
+
+        store.remove(firstId);
+        Assert.assertNull(store.get(firstId));
+        Assert.assertEquals(1, store.getSharedPartCount());
+        MimeMultipart multipart = (MimeMultipart) store.get(secondId).getContent();
+        Assert.assertEquals("offer.bin", multipart.getBodyPart(1).getFileName());
+
+        store.remove(secondId);
+        Assert.assertEquals(0L, store.getStoredSize());
+        Assert.assertEquals(0L, store.getMessageSize());
+        Assert.assertEquals(0, store.getSharedPartCount());
+    }
+}
@@ -0,0 +1,245 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.stream.Stream;
+
+public class FileMailStoreTest {
+    private Path rootDir;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("aspirin-mailstore");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(rootDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private FileMailStore createStore() {
+        FileMailStore store = new FileMailStore();
+        store.setRootDir(rootDir.toFile());
+        store.init();
+        return store;
+    }
+
+    private static MimeMessage createMessage(String text) throws MessagingException {
+        MimeMessage message = AspirinInternal.createNewMimeMessage();
+        message.setSubject("Test");
+        message.setText(text);
+        message.saveChanges();
+        return message;
+    }
+
+    @Test
+    public void evictedMessagesAreReadFromFile() throws IOException, MessagingException {
+        FileMailStore store = createStore();
+        store.setCacheSize(2048L);
+        String firstText = new String(new char[600]).replace('\0', 'a');
+        MimeMessage first = createMessage(firstText);
+        MimeMessage second = createMessage(new String(new char[1200]).replace('\0', 'b'));
+        String firstId = AspirinInternal.getMailID(first);
+        String secondId = AspirinInternal.getMailID(second);
+
+        store.set(firstId, first);
+        Assert.assertSame(first, store.get(firstId));
+        store.set(secondId, second);
+
+        // The first message is evicted by the second one
+        Assert.assertEquals(1, store.getMessageCache().getEvictionCount());
+        MimeMessage read = store.get(firstId);
+        Assert.assertNotSame(first, read);
+        Assert.assertEquals(firstText, read.getContent());
+        Assert.assertTrue(store.getMessageCache().getWeight() <= 2048L);
+        Assert.assertEquals(2, store.getMailIds().size());
+    }
+
+    @Test
+    public void messagesAreLoadedOnInit() throws IOException, MessagingException {
+        FileMailStore store = createStore();
+        MimeMessage message = createMessage("persistent");
+        String mailid = AspirinInternal.getMailID(message);
+        store.set(mailid, message);
+
+        store = createStore();
+        Assert.assertEquals("persistent", store.get(mailid).getContent());
+
+        store.remove(mailid);
+        Assert.assertNull(store.get(mailid));
+        Assert.assertTrue(store.getMailIds().isEmpty());
+        try (Stream<Path> paths = Files.walk(rootDir)) {
+            Assert.assertTrue(paths.noneMatch(path -> path.toString().endsWith(".msg")));
+        }
+    }
+
+    @Test
+    public void staleManifestIsRepairedOnInit() throws IOException, MessagingException {
+        FileMailStore store = createStore();
+        store.setSubDirCount(1);
+        MimeMessage kept = createMessage("kept");
+        MimeMessage deleted = createMessage("deleted");
+        String keptId = AspirinInternal.getMailID(kept);
+        String deletedId = AspirinInternal.getMailID(deleted);
+        store.set(keptId, kept);
+        store.set(deletedId, deleted);
+        Assert.assertTrue(new File(rootDir.toFile(), FileMailStore.MANIFEST_FILE_NAME).isFile());
+
+        // Files changed without the store are found by scanning
+        Files.delete(rootDir.resolve("0").resolve(deletedId + ".msg"));
+        MimeMessage copied = createMessage("copied");
+        String copiedId = AspirinInternal.getMailID(copied);
+        try (OutputStream out = Files.newOutputStream(rootDir.resolve("0").resolve(copiedId + ".msg"))) {
+            copied.writeTo(out);
+        }
+
+        store = createStore();
+        Assert.assertEquals(new HashSet<>(Arrays.asList(keptId, copiedId)), new HashSet<>(store.getMailIds()));
+        Assert.assertEquals("copied", store.get(copiedId).getContent());
+        Assert.assertEquals(Long.MAX_VALUE, store.getExpiry(keptId));
+        Assert.assertEquals(-1L, store.getExpiry(deletedId));
+
+        // Without manifest every file is scanned
+        Files.delete(rootDir.resolve(FileMailStore.MANIFEST_FILE_NAME));
+        store = createStore();
+        Assert.assertEquals(new HashSet<>(Arrays.asList(keptId, copiedId)), new HashSet<>(store.getMailIds()));
+    }
+
+    @Test
+    public void messagesAreStreamedFromFile() throws IOException, MessagingException {
+        FileMailStore store = createStore();
+        MimeMessage message = createMessage("streamed");
+        message.setRecipients(MimeMessage.RecipientType.BCC, "hidden@domain.example");
+        message.saveChanges();
+        String mailid = AspirinInternal.getMailID(message);
+        store.set(mailid, message);
+
+        MessageSource source = store.getSource(mailid);
+        StreamingMimeMessage streamed = new StreamingMimeMessage(AspirinInternal.getConfiguration().getMailSession(), source);
+        Assert.assertEquals(mailid, AspirinInternal.getMailID(streamed));
+        Assert.assertEquals("streamed", streamed.getContent());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        message.writeTo(expected, new String[]{"Bcc"});
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        streamed.writeTo(actual, new String[]{"Bcc"});
+        Assert.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        Assert.assertFalse(new String(actual.toByteArray(), "US-ASCII").contains("hidden@domain.example"));
+        Assert.assertNull(store.getSource("unknown"));
+    }
+
+    @Test
+    public void largeMessagesAreCompressed() throws IOException, MessagingException {
+        FileMailStore store = createStore();
+        store.setSubDirCount(1);
+        store.setCacheSize(0L);
+        store.setCodecName(GzipMessageCodec.NAME);
+        String largeText = new String(new char[64 * 1024]).replace('\0', 'a');
+        MimeMessage large = createMessage(largeText);
+        MimeMessage small = createMessage("small");
+        String largeId = AspirinInternal.getMailID(large);
+        String smallId = AspirinInternal.getMailID(small);
+        store.set(largeId, large);
+        store.set(smallId, small);
+
+        File largeFile = rootDir.resolve("0").resolve(largeId + ".msg.gz").toFile();
+        Assert.assertTrue(largeFile.length() < 4096L);
+        Assert.assertTrue(rootDir.resolve("0").resolve(smallId + ".msg").toFile().isFile());
+        Assert.assertEquals(largeText, store.get(largeId).getContent());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        large.writeTo(expected);
+        Assert.assertEquals(expected.size(), store.getSource(largeId).getSize());
+
+        // Compressed files are found by scanning too, without the codec set
+        Files.delete(rootDir.resolve(FileMailStore.MANIFEST_FILE_NAME));
+        store = createStore();
+        Assert.assertEquals(expected.size(), store.getSource(largeId).getSize());
+        Assert.assertEquals(largeText, store.get(largeId).getContent());
+        Assert.assertEquals("small", store.get(smallId).getContent());
+
+        store.remove(largeId);
+        Assert.assertFalse(largeFile.exists());
+    }
+
+    @Test
+    public void stagedMessagesAreWrittenBehind() throws IOException, InterruptedException, MessagingException {
+        FileMailStore store = createStore();
+        store.setWriteMode(FileMailStore.WriteMode.STAGED);
+        MimeMessage kept = createMessage("kept");
+        MimeMessage removed = createMessage("removed");
+        String keptId = AspirinInternal.getMailID(kept);
+        String removedId = AspirinInternal.getMailID(removed);
+        store.set(keptId, kept);
+        store.set(removedId, removed);
+        store.remove(removedId);
+
+        // Staged messages are served before they are written
+        Assert.assertEquals("kept", store.get(keptId).getContent());
+        Assert.assertNull(store.get(removedId));
+        store.flush();
+        Assert.assertEquals(0L, store.getStagedSize());
+
+        store.setWriteMode(FileMailStore.WriteMode.FSYNC);
+        MimeMessage synced = createMessage("synced");
+        String syncedId = AspirinInternal.getMailID(synced);
+        store.set(syncedId, synced);
+        Assert.assertEquals(0L, store.getStagedSize());
+
+        store = createStore();
+        Assert.assertEquals(new HashSet<>(Arrays.asList(keptId, syncedId)), new HashSet<>(store.getMailIds()));
+        Assert.assertEquals("kept", store.get(keptId).getContent());
+        Assert.assertEquals("synced", store.get(syncedId).getContent());
+    }
+
+    @Test
+    public void stagedMessagesAreWrittenOnClose() throws IOException, MessagingException {
+        FileMailStore store = createStore();
+        store.setWriteMode(FileMailStore.WriteMode.STAGED);
+        MimeMessage message = createMessage("staged");
+        String mailid = AspirinInternal.getMailID(message);
+        store.set(mailid, message);
+        store.close();
+        Assert.assertEquals(0L, store.getStagedSize());
+
+        store = createStore();
+        Assert.assertEquals("staged", store.get(mailid).getContent());
+    }
+
+    @Test
+    public void failedSyncedWriteIsReported() throws IOException, MessagingException {
+        FileMailStore store = createStore();
+        store.setWriteMode(FileMailStore.WriteMode.FSYNC);
+        store.setSubDirCount(1);
+        // The subdirectory could not be created, a file has its name
+        Files.createFile(rootDir.resolve("0"));
+        MimeMessage message = createMessage("lost");
+        String mailid = AspirinInternal.getMailID(message);
+
+        try {
+            store.set(mailid, message);
+            Assert.fail("Failed write was not reported.");
+        } catch (IllegalStateException expected) {
+        }
+
+        Assert.assertNull(store.get(mailid));
+        Assert.assertEquals(0L, store.getStagedSize());
+    }
+}
@@ -0,0 +1,155 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class SegmentMailStoreTest {
+    private Path segmentDir;
+    private SegmentMailStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        segmentDir = Files.createTempDirectory("aspirin-segments");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (store != null) store.close();
+        try (Stream<Path> paths = Files.walk(segmentDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private SegmentMailStore createStore(long segmentSize) {
+        if (store != null) store.close();
+        store = new SegmentMailStore();
+        store.setSegmentDir(segmentDir.toFile());
+        store.setSegmentSize(segmentSize);
+        store.setCacheSize(0L);
+        store.init();
+        return store;
+    }
+
+    private static MimeMessage createMessage(String text) throws MessagingException {
+        MimeMessage message = AspirinInternal.createNewMimeMessage();
+        message.setSubject("Test");
+        message.setText(text);
+        message.saveChanges();
+        return message;
+    }
+
+    private static MimeMessage createMessage(String text, int size) throws MessagingException {
+        StringBuilder content = new StringBuilder(text);
+        while (content.length() < size)
+            content.append("\n0123456789012345678901234567890123456789012345678901234567890123456789");
+        return createMessage(content.toString());
+    }
+
+    @Test
+    public void messagesAreReplayedOnInit() throws IOException, MessagingException {
+        SegmentMailStore store = createStore(SegmentMailStore.DEFAULT_SEGMENT_SIZE);
+        MimeMessage kept = createMessage("kept");
+        MimeMessage removed = createMessage("removed");
+        String keptId = AspirinInternal.getMailID(kept);
+        String removedId = AspirinInternal.getMailID(removed);
+        store.set(keptId, createMessage("first version"));
+        store.set(keptId, kept);
+        store.set(removedId, removed);
+        store.remove(removedId);
+        Assert.assertEquals("kept", store.get(keptId).getContent());
+        Assert.assertNull(store.get(removedId));
+
+        store = createStore(SegmentMailStore.DEFAULT_SEGMENT_SIZE);
+        Assert.assertEquals(1, store.getMailIds().size());
+        Assert.assertEquals("kept", store.get(keptId).getContent());
+        Assert.assertNull(store.get(removedId));
+    }
+
+    @Test
+    public void sparseSegmentsAreCompacted() throws IOException, MessagingException {
+        SegmentMailStore store = createStore(4096L);
+        List<String> mailIds = new ArrayList<>();
+
+        for (int i = 0; i < 40; i++) {
+            MimeMessage message = createMessage("message " + i);
+            String mailid = AspirinInternal.getMailID(message);
+            store.set(mailid, message);
+            mailIds.add(mailid);
+        }
+
+        int segmentCount = store.getSegmentCount();
+        Assert.assertTrue(1 < segmentCount);
+
+        // Every message is removed, but each fifth
+        for (int i = 0; i < mailIds.size(); i++)
+            if (i % 5 != 0) store.remove(mailIds.get(i));
+        store.compact();
+        Assert.assertTrue(store.getSegmentCount() < segmentCount);
+
+        for (int i = 0; i < mailIds.size(); i += 5)
+            Assert.assertEquals("message " + i, store.get(mailIds.get(i)).getContent());
+
+        // Removed messages do not come back after compaction
+        store = createStore(4096L);
+        Assert.assertEquals(8, store.getMailIds().size());
+        for (int i = 0; i < mailIds.size(); i += 5)
+            Assert.assertTrue(new HashSet<>(store.getMailIds()).contains(mailIds.get(i)));
+        Assert.assertEquals("message 35", store.get(mailIds.get(35)).getContent());
+    }
+
+    @Test
+    public void replacedMessageDoesNotComeBackAfterCompaction() throws IOException, MessagingException {
+        SegmentMailStore store = createStore(8192L);
+        MimeMessage message = createMessage("first version");
+        String mailid = AspirinInternal.getMailID(message);
+        MimeMessage dense = createMessage("dense", 5000);
+        MimeMessage sparse = createMessage("sparse", 5000);
+        MimeMessage last = createMessage("last", 5000);
+
+        // Segment 1 keeps the first version, it stays dense
+        store.set(mailid, message);
+        store.set(AspirinInternal.getMailID(dense), dense);
+        // Segment 2 gets the second version, segment 3 gets its tombstone
+        store.set(mailid, createMessage("second version", 5000));
+        store.set(AspirinInternal.getMailID(sparse), sparse);
+        store.remove(mailid);
+        store.remove(AspirinInternal.getMailID(sparse));
+        store.set(AspirinInternal.getMailID(last), last);
+
+        // Segments 2 and 3 are compacted, segment 1 and the active segment 4 are kept
+        store.compact();
+        Assert.assertEquals(2, store.getSegmentCount());
+        Assert.assertNull(store.get(mailid));
+
+        store = createStore(8192L);
+        Assert.assertNull(store.get(mailid));
+        Assert.assertEquals(2, store.getMailIds().size());
+        Assert.assertTrue(store.getMailIds().contains(AspirinInternal.getMailID(dense)));
+        Assert.assertTrue(store.getMailIds().contains(AspirinInternal.getMailID(last)));
+    }
+
+    @Test
+    public void setAfterCloseIsLogged() throws MessagingException {
+        SegmentMailStore store = createStore(SegmentMailStore.DEFAULT_SEGMENT_SIZE);
+        store.close();
+
+        MimeMessage message = createMessage("closed");
+        store.set(AspirinInternal.getMailID(message), message);
+        Assert.assertNull(store.get(AspirinInternal.getMailID(message)));
+    }
+}
@@ -0,0 +1,128 @@
+package org.masukomi.aspirin.core.store.mail;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.masukomi.aspirin.core.AspirinInternal;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class TieredMailStoreTest {
+    private Path spillDir;
+
+    @Before
+    public void setUp() throws IOException {
+        spillDir = Files.createTempDirectory("aspirin-spill");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(spillDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static MimeMessage createMessage(String text) throws MessagingException {
+        MimeMessage message = AspirinInternal.createNewMimeMessage();
+        message.setSubject("Test");
+        message.setText(text);
+        message.saveChanges();
+        return message;
+    }
+
+    @Test
+    public void coldMessagesAreSpilledAndPromoted() throws IOException, MessagingException {
+        TieredMailStore store = new TieredMailStore();
+        store.setRootDir(spillDir.toFile());
+        store.setBudget(8 * 1024L);
+        store.init();
+        List<String> mailIds = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) text.append("0123456789");
+
+        for (int i = 0; i < 40; i++) {
+            MimeMessage message = createMessage(i + text.toString());
+            String mailid = AspirinInternal.getMailID(message);
+            store.set(mailid, message);
+            mailIds.add(mailid);
+        }
+
+        Assert.assertTrue(store.getMemorySize() <= store.getBudget());
+        Assert.assertTrue(0L < store.getSpillCount());
+        Assert.assertEquals(40, store.getMailIds().size());
+        Assert.assertEquals(40, store.getMemoryCount() + store.getDiskCount());
+
+        // The first message is the coldest one, it is read from disk
+        Assert.assertEquals(0 + text.toString(), store.get(mailIds.get(0)).getContent());
+        Assert.assertEquals(1L, store.getDiskHitCount());
+        Assert.assertEquals(1L, store.getPromotionCount());
+        Assert.assertEquals(0 + text.toString(), store.get(mailIds.get(0)).getContent());
+        Assert.assertEquals(1L, store.getMemoryHitCount());
+
+        for (String mailid : mailIds) store.remove(mailid);
+        Assert.assertEquals(0L, store.getMemorySize());
+        Assert.assertTrue(store.getMailIds().isEmpty());
+    }
+
+    @Test
+    public void largeMessagesAreWrittenToDisk() throws IOException, MessagingException {
+        TieredMailStore store = new TieredMailStore();
+        store.setRootDir(spillDir.toFile());
+        store.setBudget(0L);
+        store.init();
+        MimeMessage message = createMessage("large");
+        String mailid = AspirinInternal.getMailID(message);
+        store.set(mailid, message);
+
+        Assert.assertEquals(0, store.getMemoryCount());
+        Assert.assertEquals(1, store.getDiskCount());
+        Assert.assertEquals("large", store.get(mailid).getContent());
+        Assert.assertEquals(0, store.getMemoryCount());
+
+        // Messages on disk are found after a restart
+        store = new TieredMailStore();
+        store.setRootDir(spillDir.toFile());
+        store.init();
+        Assert.assertEquals("large", store.get(mailid).getContent());
+    }
+
+    @Test
+    public void messagesAreKeptInMemoryIfSpillingFails() throws IOException, MessagingException {
+        Path rootDir = spillDir.resolve("store");
+        TieredMailStore store = new TieredMailStore();
+        store.setRootDir(rootDir.toFile());
+        store.setBudget(4 * 1024L);
+        store.init();
+        // The subdirectories could not be created, a file has the name of the root directory
+        try (Stream<Path> paths = Files.walk(rootDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+        Files.createFile(rootDir);
+        List<String> mailIds = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) text.append("0123456789");
+
+        for (int i = 0; i < 10; i++) {
+            MimeMessage message = createMessage(i + text.toString());
+            String mailid = AspirinInternal.getMailID(message);
+            store.set(mailid, message);
+            mailIds.add(mailid);
+        }
+
+        // Nothing could be spilled, so nothing is lost
+        Assert.assertEquals(0L, store.getSpillCount());
+        Assert.assertEquals(10, store.getMemoryCount());
+        for (int i = 0; i < mailIds.size(); i++)
+            Assert.assertEquals(i + text.toString(), store.get(mailIds.get(i)).getContent());
+    }
+}
@@ -0,0 +1,136 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+public class JournalQueueStoreTest {
+    private File journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        journalFile = File.createTempFile("aspirin-queue", ".journal");
+        Files.delete(journalFile.toPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    private JournalQueueStore open() {
+        JournalQueueStore store = new JournalQueueStore();
+        store.setJournalFile(journalFile);
+        store.init();
+        return store;
+    }
+
+    private void fill(JournalQueueStore store) throws MessagingException {
+        store.add("mail-1", -1L, Arrays.asList(new InternetAddress("a@example.com"), new InternetAddress("b@example.com")));
+        store.add("mail-2", -1L, Arrays.asList(new InternetAddress("c@example.com")));
+
+        QueueInfo qi = store.next();
+        qi.setResultInfo("250 OK");
+        qi.setState(DeliveryState.SENT);
+        store.setSendingResult(qi);
+
+        qi = store.next();
+        qi.setState(DeliveryState.QUEUED);
+        store.setSendingResult(qi);
+
+        store.remove("mail-2");
+    }
+
+    private void assertRestored(JournalQueueStore store) {
+        Assert.assertTrue(store.hasBeenRecipientHandled("mail-1", "a@example.com"));
+        Assert.assertEquals("250 OK", store.getQueueInfo("mail-1", "a@example.com").getResultInfo());
+        QueueInfo queued = store.getQueueInfo("mail-1", "b@example.com");
+        Assert.assertTrue(queued.hasState(DeliveryState.QUEUED));
+        Assert.assertEquals(1, queued.getAttemptCount());
+        Assert.assertEquals(queued.getAttempt(), store.getNextAttempt());
+        Assert.assertTrue(store.isCompleted("mail-2"));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void queueIsRestoredFromJournal() throws MessagingException {
+        JournalQueueStore store = open();
+        fill(store);
+        store.close();
+
+        assertRestored(open());
+    }
+
+    @Test
+    public void queueIsRestoredAfterCompaction() throws MessagingException {
+        JournalQueueStore store = open();
+        fill(store);
+        long size = journalFile.length();
+        store.compact();
+        Assert.assertTrue(journalFile.length() < size);
+
+        // Changes after compaction are appended to the new journal
+        store.add("mail-3", -1L, Arrays.asList(new InternetAddress("d@example.com")));
+        store.remove("mail-3");
+        store.close();
+
+        assertRestored(open());
+    }
+
+    @Test
+    public void brokenRecordAtEndIsCutOff() throws IOException, MessagingException {
+        JournalQueueStore store = open();
+        fill(store);
+        store.close();
+
+        long size = journalFile.length();
+        try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+            file.seek(size);
+            file.write(new byte[]{0, 0, 0, 42, 1, 2, 3});
+        }
+
+        store = open();
+        assertRestored(store);
+        Assert.assertEquals(size, journalFile.length());
+        store.close();
+    }
+
+    @Test
+    public void recipientsAreIteratedOnceAndExpiredItemsAreJournaled() throws MessagingException {
+        JournalQueueStore store = open();
+        store.add("mail-1", System.currentTimeMillis() - 1L, Collections.singletonList(new InternetAddress("a@example.com")));
+        List<InternetAddress> recipients = Arrays.asList(new InternetAddress("b@example.com"), new InternetAddress("c@example.com"));
+        store.add("mail-2", -1L, new Iterable<InternetAddress>() {
+            private boolean iterated;
+
+            @Override
+            public Iterator<InternetAddress> iterator() {
+                Assert.assertFalse("Recipients are iterated twice.", iterated);
+                iterated = true;
+                return recipients.iterator();
+            }
+        });
+
+        // The expired item is failed on the way to the next one
+        Assert.assertEquals("mail-2", store.next().getMailid());
+        store.close();
+
+        store = open();
+        Assert.assertTrue(store.getQueueInfo("mail-1", "a@example.com").hasState(DeliveryState.FAILED));
+        Assert.assertTrue(store.getQueueInfo("mail-2", "b@example.com").hasState(DeliveryState.QUEUED));
+        Assert.assertTrue(store.getQueueInfo("mail-2", "c@example.com").hasState(DeliveryState.QUEUED));
+        store.close();
+    }
+}
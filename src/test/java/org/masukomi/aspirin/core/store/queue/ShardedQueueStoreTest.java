@@ -0,0 +1,42 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class ShardedQueueStoreTest {
+    @Test
+    public void itemsOfEveryShardAreSent() throws MessagingException {
+        ShardedQueueStore store = new ShardedQueueStore(4);
+        for (int i = 0; i < 20; i++)
+            store.add("mail-" + i, -1L, Arrays.asList(new InternetAddress("a@example.com"), new InternetAddress("b@example.com")));
+        Assert.assertEquals(20, store.size());
+
+        Set<String> sentMailids = new HashSet<>();
+        QueueInfo qi;
+
+        while ((qi = store.next()) != null) {
+            Assert.assertTrue(qi.hasState(DeliveryState.IN_PROGRESS));
+            // The other recipient of the message is in the same shard
+            Assert.assertEquals(1, store.nextOfSameDomain(qi, 10).size());
+            qi.setState(DeliveryState.SENT);
+            store.setSendingResult(qi);
+            sentMailids.add(qi.getMailid());
+        }
+
+        Assert.assertEquals(20, sentMailids.size());
+        Assert.assertEquals(Long.MAX_VALUE, store.getNextAttempt());
+        Assert.assertFalse(store.isCompleted("mail-0"));
+        Assert.assertTrue(store.hasBeenRecipientHandled("mail-0", "a@example.com"));
+
+        store.removeRecipient("b@example.com");
+        Assert.assertTrue(store.isCompleted("mail-0"));
+        Assert.assertTrue(store.clean().isEmpty());
+        Assert.assertEquals(0, store.size());
+    }
+}
@@ -0,0 +1,100 @@
+package org.masukomi.aspirin.core.store.queue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SimpleQueueStoreTest {
+    @Test
+    public void nextGivesBackEarliestSendableItem() throws MessagingException {
+        SimpleQueueStore store = new SimpleQueueStore();
+        store.add("mail-1", -1L, Collections.singletonList(new InternetAddress("a@example.com")));
+        store.add("mail-2", -1L, Collections.singletonList(new InternetAddress("b@example.com")));
+
+        QueueInfo first = store.next();
+        Assert.assertNotNull(first);
+        Assert.assertTrue(first.hasState(DeliveryState.IN_PROGRESS));
+
+        // Temporary failure: it is queued again with a later attempt time
+        first.setState(DeliveryState.QUEUED);
+        store.setSendingResult(first);
+        Assert.assertTrue(first.getAttempt() > System.currentTimeMillis());
+
+        QueueInfo second = store.next();
+        Assert.assertNotNull(second);
+        Assert.assertFalse(first.getMailid().equals(second.getMailid()));
+
+        Assert.assertNull(store.next());
+        Assert.assertEquals(first.getAttempt(), store.getNextAttempt());
+    }
+
+    @Test
+    public void newItemsAreSentInArrivalOrder() throws MessagingException, InterruptedException {
+        SimpleQueueStore store = new SimpleQueueStore();
+        // Aspirin IDs are not ordered as strings: "10" is before "9"
+        store.add("1000.9", -1L, Collections.singletonList(new InternetAddress("a@example.com")));
+        Thread.sleep(5L);
+        store.add("1000.10", -1L, Collections.singletonList(new InternetAddress("a@example.com")));
+
+        Assert.assertEquals("1000.9", store.next().getMailid());
+        Assert.assertEquals("1000.10", store.next().getMailid());
+    }
+
+    @Test
+    public void removedItemsAreNotSent() throws MessagingException {
+        SimpleQueueStore store = new SimpleQueueStore();
+        store.add("mail-1", -1L, Arrays.asList(new InternetAddress("a@example.com"), new InternetAddress("b@example.com")));
+        store.remove("mail-1");
+
+        Assert.assertNull(store.next());
+        Assert.assertEquals(Long.MAX_VALUE, store.getNextAttempt());
+        Assert.assertTrue(store.isCompleted("mail-1"));
+    }
+
+    @Test
+    public void finishedItemIsNotQueuedAgain() throws MessagingException {
+        SimpleQueueStore store = new SimpleQueueStore();
+        store.add("mail-1", -1L, Collections.singletonList(new InternetAddress("a@example.com")));
+
+        QueueInfo qi = store.next();
+        qi.setState(DeliveryState.SENT);
+        store.setSendingResult(qi);
+
+        Assert.assertNull(store.next());
+        Assert.assertTrue(store.isCompleted("mail-1"));
+        Assert.assertTrue(store.hasBeenRecipientHandled("mail-1", "a@example.com"));
+    }
+
+    @Test
+    public void nextOfSameDomainGroupsRecipientsOfTheSameMail() throws MessagingException {
+        SimpleQueueStore store = new SimpleQueueStore();
+        store.add("mail-1", -1L, Arrays.asList(
+                new InternetAddress("a@example.com"),
+                new InternetAddress("b@EXAMPLE.com"),
+                new InternetAddress("c@other.com"),
+                new InternetAddress("d@example.com")));
+        store.add("mail-2", -1L, Collections.singletonList(new InternetAddress("e@example.com")));
+
+        QueueInfo qi = store.next();
+        Assert.assertEquals("example.com", qi.getRecipientDomain());
+
+        List<QueueInfo> sameDomain = store.nextOfSameDomain(qi, 1);
+        Assert.assertEquals(1, sameDomain.size());
+        Assert.assertTrue(sameDomain.get(0).hasState(DeliveryState.IN_PROGRESS));
+
+        sameDomain = store.nextOfSameDomain(qi, 10);
+        Assert.assertEquals(1, sameDomain.size());
+        Assert.assertEquals("mail-1", sameDomain.get(0).getMailid());
+        Assert.assertEquals("example.com", sameDomain.get(0).getRecipientDomain());
+
+        // Grouped items are not given back by next() again
+        Assert.assertEquals("c@other.com", store.next().getRecipient());
+        Assert.assertEquals("mail-2", store.next().getMailid());
+        Assert.assertNull(store.next());
+    }
+}